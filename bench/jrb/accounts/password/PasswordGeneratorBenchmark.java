@@ -0,0 +1,51 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.password;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark for generating passwords, set up the way the password
+ * generator panel sets up its generator:  one character of each
+ * category required, and the rest alphanumeric.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class PasswordGeneratorBenchmark {
+    @Param({ "16", "32" })
+    public int length;
+
+    private PasswordGenerator generator;
+
+    @Setup
+    public void setup() {
+	generator = new PasswordGenerator(length, length);
+	generator.addCharSpec(PasswordCharSpec.createUppercaseCharSpec(1));
+	generator.addCharSpec(PasswordCharSpec.createLowercaseCharSpec(1));
+	generator.addCharSpec(PasswordCharSpec.createDigitCharSpec(1));
+	generator.addCharSpec(PasswordCharSpec.SPECIAL.toCharArray(), 1);
+    }
+
+    @Benchmark
+    public char[] generatePassword() {
+	return generator.generatePassword();
+    }
+}
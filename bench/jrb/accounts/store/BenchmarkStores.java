@@ -0,0 +1,54 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * Account stores for the benchmarks to work on, made with a
+ * {@link StoreGenerator}.  The same arguments always give the same
+ * data.
+ */
+class BenchmarkStores {
+    static final String PASSWORD = "password";
+
+    private BenchmarkStores() {
+    }
+
+    /**
+     * Create an account store.
+     *
+     * @param numAccounts The number of accounts in the store.
+     * @param historyDepth The number of entries in each account's
+     *     history.
+     * @param seed The seed for the generated data.
+     * @return The new store.
+     */
+    static AccountStore create(int numAccounts, int historyDepth,
+			       long seed)
+	    throws GeneralSecurityException, IOException {
+	StoreGenerator generator = new StoreGenerator(seed, numAccounts);
+	generator.setHistoryDepth(historyDepth, historyDepth);
+	return read(generator);
+    }
+
+    /**
+     * Generate a store, and read it back.
+     *
+     * @param generator The generator for the store.
+     * @return The new store.
+     */
+    static AccountStore read(StoreGenerator generator)
+	    throws GeneralSecurityException, IOException {
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	generator.write(out, PASSWORD.toCharArray());
+	return new AccountStore(new ByteArrayInputStream(out.toByteArray()),
+				PASSWORD.toCharArray());
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import java.security.GeneralSecurityException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for writing and reading snapshots with and without
+ * compression.  The size of the snapshot is printed when each trial
+ * starts, so that the time taken can be weighed against the space
+ * saved.
+ *<p>
+ * The snapshot is written and read directly, with a key derived once
+ * in advance, so that key derivation doesn't swamp the measurement.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class CompressionBenchmark {
+    @Param({ "true", "false" })
+    public boolean compress;
+
+    @Param({ "10000" })
+    public int numAccounts;
+
+    private DerivedKey key;
+    private List<Account> accounts;
+    private byte[] snapshot;
+
+    /**
+     * Create a store with account data resembling real use:  URLs from
+     * a limited set of sites, and user names that are often shared.
+     */
+    @Setup
+    public void setup() throws GeneralSecurityException, IOException {
+	key = new DerivedKey("password".toCharArray(), new byte[8]);
+	Random random = new Random(1);
+	AccountStore store = new AccountStore();
+	for (int i = 0; i < numAccounts; i++) {
+	    int site = random.nextInt(numAccounts / 4 + 1);
+	    store.createAccount(
+		    String.format("Site %d account %d", site, i),
+		    "https://www.site" + site + ".com/account/login",
+		    "user" + random.nextInt(20) + "@example.com",
+		    Long.toString(random.nextLong(), 36));
+	}
+	accounts = new ArrayList<Account>();
+	for (Account acct : store) {
+	    accounts.add(acct);
+	}
+	snapshot = write().toByteArray();
+	System.out.println("Snapshot size with compress=" + compress
+			   + ": " + snapshot.length + " bytes");
+    }
+
+    @Benchmark
+    public ByteArrayOutputStream write()
+	    throws GeneralSecurityException, IOException {
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	ChunkedSnapshot.write(new DataOutputStream(out), key, 0,
+			      accounts, compress);
+	return out;
+    }
+
+    @Benchmark
+    public ChunkedSnapshot read()
+	    throws GeneralSecurityException, IOException {
+	return ChunkedSnapshot.read(ByteBuffer.wrap(snapshot), key,
+				    AccountStore.FORMAT_CURRENT);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.store;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks for reading an account's current data, as the account
+ * list and search indexes do for every account.
+ *<p>
+ * The <code>vector</code> benchmarks read from a copy of each history
+ * kept the way <code>Account</code> used to keep it:  a
+ * <code>Vector</code> of entries, each with its own <code>Date</code>.
+ * The <code>account</code> benchmarks read the same data through
+ * <code>Account</code>'s getters, for comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class HistoryBenchmark {
+    @Param({ "10000" })
+    public int numAccounts;
+
+    @Param({ "5" })
+    public int numUpdates;
+
+    /**
+     * A history entry as <code>Account</code> used to keep it.
+     */
+    private static class VectorEntry {
+	final String description;
+	final String url;
+	final String username;
+	final String password;
+	final Date timestamp;
+
+	VectorEntry(AccountData data) {
+	    description = data.getDescription();
+	    url = data.getUrl();
+	    username = data.getUsername();
+	    password = data.getPassword();
+	    timestamp = data.getTimestamp();
+	}
+    }
+
+    private List<Account> accounts;
+    private List<Vector<VectorEntry>> histories;
+
+    @Setup
+    public void setup() {
+	accounts = new ArrayList<Account>();
+	histories = new ArrayList<Vector<VectorEntry>>();
+	for (int i = 0; i < numAccounts; i++) {
+	    Account account = new Account("account " + i,
+					  "https://example.com/" + i,
+					  "user" + i, "password");
+	    for (int j = 0; j < numUpdates; j++) {
+		account.update(account.getDescription(), account.getUrl(),
+			       account.getUsername(), "password " + j);
+	    }
+	    accounts.add(account);
+	    Vector<VectorEntry> history = new Vector<VectorEntry>();
+	    for (int j = account.getUpdateCount() - 1; j >= 0; j--) {
+		history.add(new VectorEntry(account.getUpdateData(j)));
+	    }
+	    histories.add(history);
+	}
+    }
+
+    @Benchmark
+    public void vectorGetters(Blackhole bh) {
+	for (Vector<VectorEntry> history : histories) {
+	    bh.consume(history.get(history.size() - 1).description);
+	    bh.consume(history.get(history.size() - 1).url);
+	    bh.consume(history.get(history.size() - 1).username);
+	    bh.consume(history.get(history.size() - 1).password);
+	}
+    }
+
+    @Benchmark
+    public void accountGetters(Blackhole bh) {
+	for (Account account : accounts) {
+	    bh.consume(account.getDescription());
+	    bh.consume(account.getUrl());
+	    bh.consume(account.getUsername());
+	    bh.consume(account.getPassword());
+	}
+    }
+
+    @Benchmark
+    public void vectorTimestamps(Blackhole bh) {
+	for (Vector<VectorEntry> history : histories) {
+	    bh.consume(history.get(history.size() - 1).timestamp.getTime());
+	}
+    }
+
+    @Benchmark
+    public void accountTimestamps(Blackhole bh) {
+	for (Account account : accounts) {
+	    bh.consume(account.getTimestamp().getTime());
+	}
+    }
+
+    @Benchmark
+    public void vectorClone(Blackhole bh) {
+	for (Vector<VectorEntry> history : histories) {
+	    bh.consume(new Vector<VectorEntry>(history));
+	}
+    }
+
+    @Benchmark
+    public void accountClone(Blackhole bh) {
+	for (Account account : accounts) {
+	    bh.consume(account.clone());
+	}
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.store;
+
+import java.util.concurrent.TimeUnit;
+
+import java.security.GeneralSecurityException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark for deriving a key from a password, as is done each time
+ * a file is opened or saved with a new password.  The cost is set by
+ * the iteration count in <code>DerivedKey</code>, and should stay
+ * well above what makes guessing passwords cheap.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class KeyBenchmark {
+    private final byte[] salt = new byte[8];
+
+    @Benchmark
+    public DerivedKey makeKey() throws GeneralSecurityException {
+	return new DerivedKey(BenchmarkStores.PASSWORD.toCharArray(), salt);
+    }
+}
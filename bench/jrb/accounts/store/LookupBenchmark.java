@@ -0,0 +1,114 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.store;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import java.security.GeneralSecurityException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for looking up one account, by description in an open
+ * <code>AccountStore</code>, and by description or UUID in a
+ * <code>LazyAccountStore</code>.
+ *<p>
+ * Each call looks up the next of the accounts in a shuffled order, so
+ * that lookups in the lazy store's cache miss about as often as they
+ * would for scattered lookups, given the cache size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class LookupBenchmark {
+    @Param({ "10000" })
+    public int numAccounts;
+
+    @Param({ "1024" })
+    public int cacheSize;
+
+    private AccountStore store;
+    private LazyAccountStore lazyStore;
+    private Path file;
+    private String[] descriptions;
+    private UUID[] uuids;
+    private int next;
+
+    @Setup
+    public void setup() throws GeneralSecurityException, IOException {
+	store = BenchmarkStores.create(numAccounts, 1, 1);
+	List<Account> accounts = new ArrayList<Account>();
+	for (Account acct : store) {
+	    accounts.add(acct);
+	}
+	Collections.shuffle(accounts, new Random(2));
+	descriptions = new String[accounts.size()];
+	uuids = new UUID[accounts.size()];
+	for (int i = 0; i < accounts.size(); i++) {
+	    descriptions[i] = accounts.get(i).getDescription();
+	    uuids[i] = accounts.get(i).getUUID();
+	}
+
+	file = Files.createTempFile("lookup", ".accts");
+	OutputStream out = Files.newOutputStream(file);
+	try {
+	    store.writeAccounts(out, BenchmarkStores.PASSWORD.toCharArray());
+	} finally {
+	    out.close();
+	}
+	lazyStore = new LazyAccountStore(
+		file, BenchmarkStores.PASSWORD.toCharArray(), cacheSize);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+	lazyStore.close();
+	Files.delete(file);
+    }
+
+    private int nextIndex() {
+	int i = next;
+	next = i + 1 < descriptions.length ? i + 1 : 0;
+	return i;
+    }
+
+    @Benchmark
+    public Account byDescription() {
+	return store.getAccount(descriptions[nextIndex()]);
+    }
+
+    @Benchmark
+    public Account lazyByDescription() throws IOException {
+	return lazyStore.getAccount(descriptions[nextIndex()]);
+    }
+
+    @Benchmark
+    public Account lazyByUUID() throws IOException {
+	return lazyStore.getAccount(uuids[nextIndex()]);
+    }
+}
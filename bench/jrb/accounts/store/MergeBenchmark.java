@@ -0,0 +1,84 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.store;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import java.security.GeneralSecurityException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for merging account histories and whole account stores.
+ *<p>
+ * The source store is a replica of the target in which a tenth of the
+ * accounts have changed, as when merging a copy of a file that was
+ * changed elsewhere; see {@link StoreGenerator#replica}.  Each
+ * merge goes into a fresh snapshot of the target, which costs nothing
+ * to make.  Merging histories includes cloning the target account, so
+ * that each merge starts from the same history.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class MergeBenchmark {
+    @Param({ "10000" })
+    public int numAccounts;
+
+    @Param({ "5" })
+    public int historyDepth;
+
+    private AccountStore target;
+    private AccountStore source;
+    private Account targetAccount;
+    private Account sourceAccount;
+
+    @Setup
+    public void setup() throws GeneralSecurityException, IOException {
+	StoreGenerator generator = new StoreGenerator(1, numAccounts);
+	generator.setHistoryDepth(1, historyDepth);
+	target = BenchmarkStores.read(generator);
+	source = BenchmarkStores.read(generator.replica(2, 0.1));
+
+	// Two copies of one account whose histories have diverged.
+	targetAccount = target.iterator().next().clone();
+	sourceAccount = targetAccount.clone();
+	for (int depth = 0; depth < historyDepth; depth++) {
+	    targetAccount.update(targetAccount.getDescription(),
+				 targetAccount.getUrl(),
+				 targetAccount.getUsername(), "t" + depth);
+	    sourceAccount.update(sourceAccount.getDescription(),
+				 sourceAccount.getUrl(),
+				 sourceAccount.getUsername(), "s" + depth);
+	}
+    }
+
+    @Benchmark
+    public Account mergeHistory() {
+	Account merged = targetAccount.clone();
+	merged.mergeHistory(sourceAccount);
+	return merged;
+    }
+
+    @Benchmark
+    public List<Account> mergeAccounts() {
+	return target.snapshot().mergeAccounts(source);
+    }
+}
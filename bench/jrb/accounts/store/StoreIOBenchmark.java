@@ -0,0 +1,75 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import java.security.GeneralSecurityException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for writing and reading whole account store files, for
+ * stores of different sizes and history depths.
+ *<p>
+ * Writing uses the key remembered from a first save, as autosave does.
+ * Reading always derives the key from the password; see
+ * {@link KeyBenchmark} for what that costs on its own.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class StoreIOBenchmark {
+    @Param({ "1000", "10000", "100000" })
+    public int numAccounts;
+
+    @Param({ "1", "10" })
+    public int historyDepth;
+
+    private AccountStore store;
+    private byte[] image;
+
+    @Setup
+    public void setup() throws GeneralSecurityException, IOException {
+	store = BenchmarkStores.create(numAccounts, historyDepth, 1);
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	store.writeAccounts(out, BenchmarkStores.PASSWORD.toCharArray());
+	image = out.toByteArray();
+	System.out.println("File size for " + numAccounts + " accounts, "
+			   + historyDepth + " deep: "
+			   + image.length + " bytes");
+    }
+
+    @Benchmark
+    public ByteArrayOutputStream write()
+	    throws GeneralSecurityException, IOException {
+	ByteArrayOutputStream out = new ByteArrayOutputStream(image.length);
+	store.writeAccounts(out);
+	return out;
+    }
+
+    @Benchmark
+    public AccountStore read()
+	    throws GeneralSecurityException, IOException {
+	return new AccountStore(new ByteArrayInputStream(image),
+				BenchmarkStores.PASSWORD.toCharArray());
+    }
+}
@@ -0,0 +1,596 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.cli;
+
+import jrb.accounts.store.Account;
+import jrb.accounts.store.AccountStore;
+import jrb.accounts.store.FileSaver;
+import jrb.accounts.store.StoreMetrics;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import java.security.GeneralSecurityException;
+
+import javax.management.JMException;
+
+import jdk.net.ExtendedSocketOptions;
+import jdk.net.UnixDomainPrincipal;
+
+/**
+ * An agent that keeps an account store file open in memory, and
+ * answers queries about it over a Unix domain socket, so that scripts
+ * can look up accounts without paying to derive the key and decrypt
+ * the file each time.  Clients talk to it with {@link AgentClient}.
+ *<p>
+ * Usage:  <code>AccountAgent FILE SOCKET [IDLE-MINUTES]</code>
+ *<p>
+ * The file's password is read as by {@link MergeStores}.  The agent
+ * runs until it's told to stop or is killed.  Only the user running
+ * the agent may use the socket:  the socket is made private to that
+ * user, and each client's credentials are checked as it connects.
+ *<p>
+ * The agent locks itself, forgetting the store, when it hasn't been
+ * asked anything for a while, and also when the file is changed by
+ * anything else.  While it's locked, the only things it will do are
+ * unlock with the file's password, or stop.  Changes made through
+ * the agent are saved to the file before the agent replies.
+ *<p>
+ * Each connection is served by its own thread; any number of requests
+ * can be made over one connection.
+ *<p>
+ * The agent registers {@link StoreMetrics}, so the time it spends
+ * reading and saving the file can be watched over JMX.
+ */
+public class AccountAgent {
+    /**
+     * How long the agent waits for a request before it locks, unless
+     * some other time is given.
+     */
+    public static final long DEFAULT_IDLE_MINUTES = 15;
+
+    /**
+     * The most accounts a search returns, unless a smaller limit is
+     * given.
+     */
+    static final int MAX_SEARCH_RESULTS = 100;
+
+    private static final int EXIT_FAILURE = 1;
+    private static final int EXIT_USAGE = 2;
+
+    private final FileSaver saver;
+    private final Path socket;
+    private final long idleNanos;
+
+    private final ExecutorService connections =
+	    Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+		    Thread t = new Thread(r, "agent connection");
+		    t.setDaemon(true);
+		    return t;
+		}
+	    });
+
+    private final ScheduledExecutorService timer =
+	    Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+		    Thread t = new Thread(r, "agent idle timer");
+		    t.setDaemon(true);
+		    return t;
+		}
+	    });
+
+    /**
+     * The open account store, or <code>null</code> while the agent is
+     * locked.  Changed only while holding <code>this</code>.
+     */
+    private volatile AccountStore store;
+
+    /**
+     * The attributes of the file when the agent last read or wrote it.
+     * Changed only while holding <code>this</code>.
+     */
+    private volatile BasicFileAttributes fileAttributes;
+
+    /**
+     * The time, from <code>System.nanoTime()</code>, of the most recent
+     * request.
+     */
+    private volatile long lastRequest;
+
+    /**
+     * The task that will lock the agent when it's idle, or
+     * <code>null</code> if none is scheduled.  Guarded by
+     * <code>this</code>.
+     */
+    private ScheduledFuture<?> idleTask;
+
+    private ServerSocketChannel server;
+    private Thread acceptThread;
+
+    /**
+     * The owner of the socket, and the only user whose requests are
+     * served.  Set before any connection is accepted.
+     */
+    private UserPrincipal owner;
+
+    /**
+     * Create a locked agent for an account store file.
+     *
+     * @param file The account store file.
+     * @param socket The path of the socket to serve requests on.
+     * @param idleMillis How long, in milliseconds, the agent waits for
+     *     a request before it locks.  If zero, it never locks for
+     *     being idle.
+     */
+    public AccountAgent(Path file, Path socket, long idleMillis) {
+	this.saver = new FileSaver(file);
+	this.socket = socket.toAbsolutePath();
+	this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+    }
+
+    /**
+     * Read the account store file, and keep it open until the agent
+     * locks.
+     *
+     * @param password A character array holding the file's password.
+     *     The array is cleared.
+     * @throws GeneralSecurityException Indicates the password is wrong,
+     *     or the file was tampered with.
+     * @throws IOException Indicates a failure reading the file.
+     */
+    public synchronized void unlock(char[] password)
+	    throws GeneralSecurityException, IOException {
+	Path file = saver.getTarget();
+	BasicFileAttributes attributes = readAttributes(file);
+	AccountStore unlocked = new AccountStore(file, password);
+	if (store != null) {
+	    store.destroy();
+	}
+	store = unlocked;
+	fileAttributes = attributes;
+	lastRequest = System.nanoTime();
+	scheduleIdleCheck(idleNanos);
+    }
+
+    /**
+     * Forget the account store until the agent is unlocked again.  The
+     * store's key is destroyed, so that it can't be used even by a
+     * request still being served.
+     */
+    public synchronized void lock() {
+	if (store != null) {
+	    store.destroy();
+	}
+	store = null;
+	fileAttributes = null;
+	if (idleTask != null) {
+	    idleTask.cancel(false);
+	    idleTask = null;
+	}
+    }
+
+    public boolean isLocked() {
+	return store == null;
+    }
+
+    /**
+     * Schedule a check for whether the agent has been idle long enough
+     * to lock.  Called while holding <code>this</code>.
+     */
+    private void scheduleIdleCheck(long delay) {
+	if (idleTask != null) {
+	    idleTask.cancel(false);
+	    idleTask = null;
+	}
+	if (idleNanos <= 0) {
+	    return;
+	}
+	idleTask = timer.schedule(new Runnable() {
+	    public void run() {
+		lockIfIdle();
+	    }
+	}, delay, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Lock the agent if no request has come since long enough ago;
+     * otherwise, check again when it might have been.
+     */
+    private synchronized void lockIfIdle() {
+	if (store == null) {
+	    return;
+	}
+	long remaining = lastRequest + idleNanos - System.nanoTime();
+	if (remaining <= 0) {
+	    lock();
+	} else {
+	    scheduleIdleCheck(remaining);
+	}
+    }
+
+    private static BasicFileAttributes readAttributes(Path file)
+	    throws IOException {
+	return Files.readAttributes(file, BasicFileAttributes.class);
+    }
+
+    /**
+     * Return whether the file has been changed since the agent last
+     * read or wrote it.  A file that can't be read counts as changed,
+     * as does any file once the agent is locked.
+     */
+    private static boolean fileChanged(Path file,
+				       BasicFileAttributes saved) {
+	if (saved == null) {
+	    return true;
+	}
+	try {
+	    BasicFileAttributes current = readAttributes(file);
+	    return current.size() != saved.size()
+		    || !current.lastModifiedTime().equals(
+			    saved.lastModifiedTime())
+		    || !Objects.equals(current.fileKey(), saved.fileKey());
+	} catch (IOException e) {
+	    return true;
+	}
+    }
+
+    /**
+     * Return the open account store, first locking the agent if the
+     * file has been changed by something else.
+     *
+     * @throws IOException The agent is locked.
+     */
+    private AccountStore getStore() throws IOException {
+	AccountStore current = store;
+	if (current != null
+		&& fileChanged(saver.getTarget(), fileAttributes)) {
+	    // Look again while no change of ours is being saved.
+	    synchronized (this) {
+		if (store == current
+			&& fileChanged(saver.getTarget(), fileAttributes)) {
+		    lock();
+		}
+		current = store;
+	    }
+	}
+	if (current == null) {
+	    throw new IOException("Locked");
+	}
+	return current;
+    }
+
+    /**
+     * Set the account with a given description, creating it if it's
+     * new, and save the change to the file.
+     */
+    private synchronized void update(String description, String url,
+				     String username, String password)
+	    throws GeneralSecurityException, IOException {
+	AccountStore current = getStore();
+	Account account = current.getAccount(description);
+	if (account == null) {
+	    current.createAccount(description, url, username, password);
+	} else {
+	    current.updateAccount(account, description, url,
+				  username, password);
+	}
+	try {
+	    if (current.canAppend()) {
+		saver.append(current, true);
+	    } else {
+		saver.write(current);
+	    }
+	    fileAttributes = readAttributes(saver.getTarget());
+	} catch (IOException e) {
+	    // The file no longer matches the store; don't pretend it does.
+	    lock();
+	    throw e;
+	}
+    }
+
+    private static void writeAccount(Writer out, Account account)
+	    throws IOException {
+	AgentProtocol.writeLine(out, account.getDescription(),
+				account.getUrl(), account.getUsername(),
+				account.getPassword());
+    }
+
+    private static void writeDescriptions(Writer out,
+					  List<Account> accounts)
+	    throws IOException {
+	AgentProtocol.writeLine(out, AgentProtocol.OK,
+				Integer.toString(accounts.size()));
+	for (Account account : accounts) {
+	    AgentProtocol.writeLine(out, account.getDescription());
+	}
+    }
+
+    /**
+     * Carry out one request, and write the reply.
+     *
+     * @return Whether the agent should go on serving the connection.
+     */
+    private boolean serve(String[] request, Writer out)
+	    throws GeneralSecurityException, IOException {
+	lastRequest = System.nanoTime();
+	String command = request[0];
+	if (command.equals(AgentProtocol.GET) && request.length == 2) {
+	    Account account = getStore().getAccount(request[1]);
+	    if (account == null) {
+		AgentProtocol.writeLine(out, AgentProtocol.OK, "0");
+	    } else {
+		AgentProtocol.writeLine(out, AgentProtocol.OK, "1");
+		writeAccount(out, account);
+	    }
+	} else if (command.equals(AgentProtocol.LIST)
+		&& request.length == 1) {
+	    List<Account> accounts = new ArrayList<Account>();
+	    Iterator<Account> it = getStore().iterator();
+	    while (it.hasNext()) {
+		accounts.add(it.next());
+	    }
+	    writeDescriptions(out, accounts);
+	} else if (command.equals(AgentProtocol.SEARCH)
+		&& request.length == 3) {
+	    int limit = Math.min(Integer.parseInt(request[2]),
+				 MAX_SEARCH_RESULTS);
+	    writeDescriptions(out, getStore().search(request[1], limit));
+	} else if (command.equals(AgentProtocol.UPDATE)
+		&& request.length == 5) {
+	    update(request[1], request[2], request[3], request[4]);
+	    AgentProtocol.writeLine(out, AgentProtocol.OK, "0");
+	} else if (command.equals(AgentProtocol.LOCK)
+		&& request.length == 1) {
+	    lock();
+	    AgentProtocol.writeLine(out, AgentProtocol.OK, "0");
+	} else if (command.equals(AgentProtocol.UNLOCK)
+		&& request.length == 2) {
+	    unlock(request[1].toCharArray());
+	    AgentProtocol.writeLine(out, AgentProtocol.OK, "0");
+	} else if (command.equals(AgentProtocol.STOP)
+		&& request.length == 1) {
+	    stop();
+	    AgentProtocol.writeLine(out, AgentProtocol.OK, "0");
+	    return false;
+	} else {
+	    AgentProtocol.writeLine(out, AgentProtocol.ERR,
+				    "Bad request: " + command);
+	}
+	return true;
+    }
+
+    /**
+     * Return whether a client is running as the owner of the socket.
+     * The socket's permissions already keep other users out, but
+     * they're only set once it's bound; this closes the gap.  Where
+     * the platform can't say who the client is, nobody is served.
+     */
+    private boolean fromOwner(SocketChannel channel) {
+	try {
+	    UnixDomainPrincipal peer =
+		    channel.getOption(ExtendedSocketOptions.SO_PEERCRED);
+	    return peer.user().equals(owner);
+	} catch (UnsupportedOperationException | IOException e) {
+	    return false;
+	}
+    }
+
+    /**
+     * Serve requests from one client until it disconnects.  Clients
+     * other than the socket's owner are disconnected at once.
+     */
+    private void serveConnection(SocketChannel channel) {
+	try {
+	    if (!fromOwner(channel)) {
+		return;
+	    }
+	    BufferedReader in = new BufferedReader(Channels.newReader(
+		    channel, StandardCharsets.UTF_8));
+	    Writer out = new BufferedWriter(Channels.newWriter(
+		    channel, StandardCharsets.UTF_8));
+	    String[] request;
+	    while ((request = AgentProtocol.readLine(in)) != null) {
+		boolean more;
+		try {
+		    more = serve(request, out);
+		} catch (Exception e) {
+		    String message = e.getMessage() != null
+			    ? e.getMessage() : e.toString();
+		    AgentProtocol.writeLine(out, AgentProtocol.ERR, message);
+		    more = true;
+		}
+		out.flush();
+		if (!more) {
+		    break;
+		}
+	    }
+	} catch (IOException e) {
+	    // The client went away; nothing more to do for it.
+	} finally {
+	    try {
+		channel.close();
+	    } catch (IOException e) {
+		// Already closed.
+	    }
+	}
+    }
+
+    /**
+     * Start serving requests on the agent's socket.  A socket file left
+     * behind by an agent that's no longer running is replaced.
+     *
+     * @throws IOException Indicates the socket couldn't be created,
+     *     perhaps because another agent is using it.
+     */
+    public synchronized void start() throws IOException {
+	UnixDomainSocketAddress address = UnixDomainSocketAddress.of(socket);
+	if (Files.exists(socket)) {
+	    if (isListening(address)) {
+		throw new IOException(socket + ": agent already running");
+	    }
+	    Files.delete(socket);
+	}
+	final ServerSocketChannel channel =
+		ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+	channel.bind(address);
+	try {
+	    Files.setPosixFilePermissions(
+		    socket, PosixFilePermissions.fromString("rw-------"));
+	} catch (UnsupportedOperationException e) {
+	    // Not a POSIX file system; rely on the directory's permissions.
+	}
+	owner = Files.getOwner(socket);
+	server = channel;
+	acceptThread = new Thread(new Runnable() {
+	    public void run() {
+		acceptConnections(channel);
+	    }
+	}, "agent");
+	acceptThread.start();
+    }
+
+    private static boolean isListening(UnixDomainSocketAddress address) {
+	try {
+	    SocketChannel.open(address).close();
+	    return true;
+	} catch (IOException e) {
+	    return false;
+	}
+    }
+
+    /**
+     * Accept connections until the agent is stopped.  The channel is
+     * passed in, rather than read from <code>server</code>, because
+     * stopping clears that field while this thread is still running.
+     */
+    private void acceptConnections(ServerSocketChannel server) {
+	try {
+	    while (true) {
+		final SocketChannel channel = server.accept();
+		try {
+		    connections.execute(new Runnable() {
+			public void run() {
+			    serveConnection(channel);
+			}
+		    });
+		} catch (RejectedExecutionException e) {
+		    // Stopped after the connection was accepted.
+		    channel.close();
+		    return;
+		}
+	    }
+	} catch (ClosedChannelException e) {
+	    // The agent was stopped.
+	} catch (IOException e) {
+	    System.err.println("AccountAgent: " + e.getMessage());
+	}
+    }
+
+    /**
+     * Stop serving requests, lock the agent, and remove its socket.
+     *
+     * @throws IOException Indicates a failure closing the socket.
+     */
+    public synchronized void stop() throws IOException {
+	lock();
+	if (server == null) {
+	    return;
+	}
+	try {
+	    server.close();
+	} finally {
+	    server = null;
+	    connections.shutdown();
+	    timer.shutdown();
+	    Files.deleteIfExists(socket);
+	}
+    }
+
+    /**
+     * Wait for the agent to stop.
+     *
+     * @throws InterruptedException Indicates the wait was interrupted.
+     */
+    public void awaitStop() throws InterruptedException {
+	Thread t;
+	synchronized (this) {
+	    t = acceptThread;
+	}
+	if (t != null) {
+	    t.join();
+	}
+    }
+
+    /**
+     * Run an agent as described above.
+     *
+     * @param argv The command line arguments.
+     */
+    public static void main(String[] argv) {
+	if (argv.length < 2 || argv.length > 3) {
+	    System.err.println(
+		    "usage: AccountAgent FILE SOCKET [IDLE-MINUTES]");
+	    System.exit(EXIT_USAGE);
+	}
+	int status = 0;
+	try {
+	    long minutes = argv.length > 2
+		    ? Long.parseLong(argv[2]) : DEFAULT_IDLE_MINUTES;
+	    final AccountAgent agent = new AccountAgent(
+		    Paths.get(argv[0]), Paths.get(argv[1]),
+		    TimeUnit.MINUTES.toMillis(minutes));
+	    agent.unlock(new PasswordReader().readPassword(
+		    "Password for " + argv[0] + ": "));
+	    agent.start();
+	    try {
+		StoreMetrics.register();
+	    } catch (JMException e) {
+		System.err.println("Store metrics unavailable: "
+				   + e.getMessage());
+	    }
+	    Runtime.getRuntime().addShutdownHook(new Thread() {
+		public void run() {
+		    try {
+			agent.stop();
+		    } catch (IOException e) {
+			// Exiting anyway.
+		    }
+		}
+	    });
+	    agent.awaitStop();
+	} catch (Exception e) {
+	    System.err.println("AccountAgent: " + e.getMessage());
+	    status = EXIT_FAILURE;
+	}
+	System.exit(status);
+    }
+}
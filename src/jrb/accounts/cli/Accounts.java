@@ -0,0 +1,380 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.cli;
+
+import jrb.accounts.store.Account;
+import jrb.accounts.store.AccountStore;
+import jrb.accounts.store.FileSaver;
+import jrb.accounts.store.LazyAccountStore;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * A command to read and change an account store file from the shell,
+ * without starting the GUI.  No AWT or Swing classes are loaded, so the
+ * command starts quickly.
+ *<p>
+ * Usage:
+ *<pre>
+ *     Accounts FILE COMMAND [ARG...]
+ *     Accounts -a SOCKET COMMAND [ARG...]
+ *</pre>
+ * The commands are:
+ *<dl>
+ *<dt><code>get DESCRIPTION [FIELD]</code>
+ *<dd>Print one field of the account with the given description:
+ *    <code>description</code>, <code>url</code>, <code>username</code>
+ *    or <code>password</code>, or <code>all</code> for every field
+ *    separated by tabs.  The default is <code>password</code>.
+ *<dt><code>list</code>
+ *<dd>Print the description of every account.
+ *<dt><code>search QUERY [LIMIT]</code>
+ *<dd>Print the descriptions of the accounts matching a query, best
+ *    first; see {@link AccountStore#search}.
+ *<dt><code>add DESCRIPTION URL USERNAME</code>
+ *<dd>Add a new account.
+ *<dt><code>update DESCRIPTION URL USERNAME</code>
+ *<dd>Change the URL, user name and password of an existing account.
+ *<dt><code>export OUTPUT</code>
+ *<dd>Write every account to a new CSV file, unencrypted, or to
+ *    standard output if OUTPUT is "-".
+ *</dl>
+ * Passwords are read as by {@link MergeStores}: first the file's
+ * password, and then, for <code>add</code> and <code>update</code>,
+ * the account's new password.  Account passwords aren't given on the
+ * command line, where other users could see them.
+ *<p>
+ * With <code>-a</code>, requests go to an {@link AccountAgent} that
+ * has the file open, and the file's password isn't needed.  Exporting
+ * can't be done through an agent.
+ */
+public class Accounts {
+    private static final int EXIT_FAILURE = 1;
+    private static final int EXIT_USAGE = 2;
+
+    private static final int DEFAULT_SEARCH_LIMIT = 20;
+
+    private static final String[] FIELDS = {
+	"description", "url", "username", "password"
+    };
+
+    private static final String USAGE =
+	"usage: Accounts FILE COMMAND [ARG...]\n"
+	+ "       Accounts -a SOCKET COMMAND [ARG...]\n"
+	+ "commands:\n"
+	+ "    get DESCRIPTION [FIELD]\n"
+	+ "    list\n"
+	+ "    search QUERY [LIMIT]\n"
+	+ "    add DESCRIPTION URL USERNAME\n"
+	+ "    update DESCRIPTION URL USERNAME\n"
+	+ "    export OUTPUT";
+
+    private final PasswordReader passwords = new PasswordReader();
+    private final PrintStream out;
+
+    private Path file;
+    private AgentClient agent;
+
+    Accounts(PrintStream out) {
+	this.out = out;
+    }
+
+    private static String[] fieldsOf(Account account) {
+	return new String[] {
+	    account.getDescription(), account.getUrl(),
+	    account.getUsername(), account.getPassword()
+	};
+    }
+
+    private char[] readFilePassword() throws IOException {
+	return passwords.readPassword("Password for " + file + ": ");
+    }
+
+    private AccountStore readStore()
+	    throws GeneralSecurityException, IOException {
+	return new AccountStore(file, readFilePassword());
+    }
+
+    /**
+     * Look up an account, decrypting as little of the file as
+     * possible.
+     *
+     * @return The account's fields, or <code>null</code> if there's
+     *     no such account.
+     */
+    private String[] getAccount(String description)
+	    throws GeneralSecurityException, IOException {
+	if (agent != null) {
+	    return agent.get(description);
+	}
+	char[] password = readFilePassword();
+	char[] copy = Arrays.copyOf(password, password.length);
+	Account account;
+	try {
+	    LazyAccountStore lazy = new LazyAccountStore(file, password);
+	    try {
+		account = lazy.getAccount(description);
+	    } finally {
+		lazy.close();
+	    }
+	} catch (IOException e) {
+	    // Files in older formats have no index; read the whole file.
+	    account = new AccountStore(file, copy).getAccount(description);
+	} finally {
+	    Arrays.fill(copy, '\0');
+	}
+	return account == null ? null : fieldsOf(account);
+    }
+
+    private List<String> listAccounts()
+	    throws GeneralSecurityException, IOException {
+	if (agent != null) {
+	    return agent.list();
+	}
+	char[] password = readFilePassword();
+	char[] copy = Arrays.copyOf(password, password.length);
+	Iterable<Account> accounts;
+	LazyAccountStore lazy = null;
+	try {
+	    lazy = new LazyAccountStore(file, password);
+	    accounts = lazy;
+	} catch (IOException e) {
+	    accounts = new AccountStore(file, copy);
+	} finally {
+	    Arrays.fill(copy, '\0');
+	}
+	try {
+	    List<String> descriptions = new ArrayList<String>();
+	    for (Account account : accounts) {
+		descriptions.add(account.getDescription());
+	    }
+	    return descriptions;
+	} finally {
+	    if (lazy != null) {
+		lazy.close();
+	    }
+	}
+    }
+
+    private List<String> search(String query, int limit)
+	    throws GeneralSecurityException, IOException {
+	if (agent != null) {
+	    return agent.search(query, limit);
+	}
+	List<String> descriptions = new ArrayList<String>();
+	for (Account account : readStore().search(query, limit)) {
+	    descriptions.add(account.getDescription());
+	}
+	return descriptions;
+    }
+
+    /**
+     * Add or update an account, and save the change.
+     *
+     * @param create Whether the account must be new, rather than
+     *     already exist.
+     * @return Whether the change was made.
+     */
+    private boolean setAccount(boolean create, String description,
+			       String url, String username)
+	    throws GeneralSecurityException, IOException {
+	AccountStore store = null;
+	boolean exists;
+	if (agent != null) {
+	    exists = agent.get(description) != null;
+	} else {
+	    store = readStore();
+	    exists = store.getAccount(description) != null;
+	}
+	if (exists == create) {
+	    System.err.println(description + (create
+		    ? ": account already exists" : ": no such account"));
+	    return false;
+	}
+	char[] password = passwords.readPassword(
+		"New password for " + description + ": ");
+	if (agent != null) {
+	    agent.update(description, url, username, new String(password));
+	    return true;
+	}
+	if (create) {
+	    store.createAccount(description, url, username,
+				new String(password));
+	} else {
+	    store.updateAccount(store.getAccount(description),
+				description, url, username,
+				new String(password));
+	}
+	FileSaver saver = new FileSaver(file);
+	if (store.canAppend()) {
+	    saver.append(store, true);
+	} else {
+	    saver.write(store);
+	}
+	return true;
+    }
+
+    /**
+     * Quote a field for a CSV file, if it needs it.
+     */
+    private static String csvField(String field) {
+	if (field == null) {
+	    return "";
+	}
+	for (int i = 0; i < field.length(); i++) {
+	    char c = field.charAt(i);
+	    if (c == ',' || c == '"' || c == '\r' || c == '\n') {
+		return "\"" + field.replace("\"", "\"\"") + "\"";
+	    }
+	}
+	return field;
+    }
+
+    private static void writeCsv(Writer csv, String[] fields)
+	    throws IOException {
+	for (int i = 0; i < fields.length; i++) {
+	    if (i > 0) {
+		csv.write(',');
+	    }
+	    csv.write(csvField(fields[i]));
+	}
+	csv.write("\r\n");
+    }
+
+    /**
+     * Write every account to a CSV file.  A new file can be read only
+     * by its owner.
+     */
+    private void export(String output)
+	    throws GeneralSecurityException, IOException {
+	AccountStore store = readStore();
+	Writer csv;
+	if (output.equals("-")) {
+	    csv = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+	} else {
+	    Path path = Paths.get(output);
+	    try {
+		Files.createFile(path,
+				 PosixFilePermissions.asFileAttribute(
+					 PosixFilePermissions.fromString(
+						 "rw-------")));
+	    } catch (UnsupportedOperationException e) {
+		Files.createFile(path);
+	    }
+	    csv = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+					  StandardOpenOption.WRITE);
+	}
+	csv = new BufferedWriter(csv);
+	try {
+	    writeCsv(csv, FIELDS);
+	    for (Account account : store) {
+		writeCsv(csv, fieldsOf(account));
+	    }
+	} finally {
+	    if (output.equals("-")) {
+		csv.flush();
+	    } else {
+		csv.close();
+	    }
+	}
+    }
+
+    private static int usage() {
+	System.err.println(USAGE);
+	return EXIT_USAGE;
+    }
+
+    int run(String[] argv) throws GeneralSecurityException, IOException {
+	int next = 0;
+	if (argv.length >= 2 && argv[0].equals("-a")) {
+	    agent = new AgentClient(Paths.get(argv[1]));
+	    next = 2;
+	} else if (argv.length >= 1) {
+	    file = Paths.get(argv[0]);
+	    next = 1;
+	}
+	if (next >= argv.length) {
+	    return usage();
+	}
+	String command = argv[next];
+	String[] args = Arrays.copyOfRange(argv, next + 1, argv.length);
+	try {
+	    if (command.equals("get") && (args.length == 1
+					  || args.length == 2)) {
+		String field = args.length > 1 ? args[1] : "password";
+		int index = Arrays.asList(FIELDS).indexOf(field);
+		if (index < 0 && !field.equals("all")) {
+		    return usage();
+		}
+		String[] fields = getAccount(args[0]);
+		if (fields == null) {
+		    System.err.println(args[0] + ": no such account");
+		    return EXIT_FAILURE;
+		}
+		out.println(index < 0
+			    ? String.join("\t", fields) : fields[index]);
+	    } else if (command.equals("list") && args.length == 0) {
+		for (String description : listAccounts()) {
+		    out.println(description);
+		}
+	    } else if (command.equals("search") && (args.length == 1
+						    || args.length == 2)) {
+		int limit = args.length > 1
+			? Integer.parseInt(args[1]) : DEFAULT_SEARCH_LIMIT;
+		for (String description : search(args[0], limit)) {
+		    out.println(description);
+		}
+	    } else if ((command.equals("add") || command.equals("update"))
+		       && args.length == 3) {
+		if (!setAccount(command.equals("add"),
+				args[0], args[1], args[2])) {
+		    return EXIT_FAILURE;
+		}
+	    } else if (command.equals("export") && args.length == 1
+		       && agent == null) {
+		export(args[0]);
+	    } else {
+		return usage();
+	    }
+	} finally {
+	    if (agent != null) {
+		agent.close();
+	    }
+	}
+	out.flush();
+	return 0;
+    }
+
+    /**
+     * Carry out a command as described above.
+     *
+     * @param argv The command line arguments.
+     */
+    public static void main(String[] argv) {
+	int status;
+	try {
+	    status = new Accounts(System.out).run(argv);
+	} catch (Exception e) {
+	    System.err.println("Accounts: " + e.getMessage());
+	    status = EXIT_FAILURE;
+	}
+	System.exit(status);
+    }
+}
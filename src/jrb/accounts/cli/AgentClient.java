@@ -0,0 +1,170 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.cli;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A connection to an {@link AccountAgent}.  Any number of requests can
+ * be made over one connection, one at a time.
+ *<p>
+ * A request the agent can't carry out, including any request other
+ * than {@link #unlock} while the agent is locked, throws an
+ * <code>IOException</code> with the agent's message.
+ */
+public class AgentClient implements Closeable {
+    private final SocketChannel channel;
+    private final BufferedReader in;
+    private final Writer out;
+
+    /**
+     * Connect to the agent serving a socket.
+     *
+     * @param socket The path of the agent's socket.
+     * @throws IOException Indicates no agent is serving the socket.
+     */
+    public AgentClient(Path socket) throws IOException {
+	channel = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+	in = new BufferedReader(Channels.newReader(
+		channel, StandardCharsets.UTF_8));
+	out = new BufferedWriter(Channels.newWriter(
+		channel, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Send one request, and read the lines of the reply that follow
+     * its status line.
+     */
+    private List<String[]> request(String... request) throws IOException {
+	AgentProtocol.writeLine(out, request);
+	out.flush();
+	String[] status = AgentProtocol.readLine(in);
+	if (status == null) {
+	    throw new IOException("Agent closed the connection");
+	}
+	if (status[0].equals(AgentProtocol.ERR) && status.length == 2) {
+	    throw new IOException(status[1]);
+	}
+	if (!status[0].equals(AgentProtocol.OK) || status.length != 2) {
+	    throw new IOException("Bad reply from agent");
+	}
+	int count = Integer.parseInt(status[1]);
+	List<String[]> reply = new ArrayList<String[]>(count);
+	for (int i = 0; i < count; i++) {
+	    String[] line = AgentProtocol.readLine(in);
+	    if (line == null) {
+		throw new IOException("Agent closed the connection");
+	    }
+	    reply.add(line);
+	}
+	return reply;
+    }
+
+    private static List<String> firstFields(List<String[]> reply) {
+	List<String> fields = new ArrayList<String>(reply.size());
+	for (String[] line : reply) {
+	    fields.add(line[0]);
+	}
+	return fields;
+    }
+
+    /**
+     * Look up an account by its description.
+     *
+     * @param description The description of the account.
+     * @return The account's description, URL, user name and password,
+     *     in that order, or <code>null</code> if there's no such
+     *     account.
+     * @throws IOException Indicates the request failed.
+     */
+    public String[] get(String description) throws IOException {
+	List<String[]> reply = request(AgentProtocol.GET, description);
+	return reply.isEmpty() ? null : reply.get(0);
+    }
+
+    /**
+     * Return the description of every account, in order.
+     *
+     * @return A list of the descriptions.
+     * @throws IOException Indicates the request failed.
+     */
+    public List<String> list() throws IOException {
+	return firstFields(request(AgentProtocol.LIST));
+    }
+
+    /**
+     * Search for accounts; see
+     * {@link jrb.accounts.store.AccountStore#search}.
+     *
+     * @param query The string to search for.
+     * @param limit The largest number of accounts to return.
+     * @return The descriptions of the matching accounts, best first.
+     * @throws IOException Indicates the request failed.
+     */
+    public List<String> search(String query, int limit) throws IOException {
+	return firstFields(request(AgentProtocol.SEARCH, query,
+				   Integer.toString(limit)));
+    }
+
+    /**
+     * Set the account with a given description, creating it if it's
+     * new.  The change is saved to the file before this returns.
+     *
+     * @param description The description of the account.
+     * @param url The account's new URL.
+     * @param username The account's new user name.
+     * @param password The account's new password.
+     * @throws IOException Indicates the request failed.
+     */
+    public void update(String description, String url,
+		       String username, String password)
+	    throws IOException {
+	request(AgentProtocol.UPDATE, description, url, username, password);
+    }
+
+    /**
+     * Lock the agent, so that it forgets the account store.
+     *
+     * @throws IOException Indicates the request failed.
+     */
+    public void lock() throws IOException {
+	request(AgentProtocol.LOCK);
+    }
+
+    /**
+     * Unlock the agent, so that it reads the account store again.
+     *
+     * @param password A character array holding the file's password.
+     * @throws IOException Indicates the request failed, as when the
+     *     password is wrong.
+     */
+    public void unlock(char[] password) throws IOException {
+	request(AgentProtocol.UNLOCK, new String(password));
+    }
+
+    /**
+     * Tell the agent to stop.
+     *
+     * @throws IOException Indicates the request failed.
+     */
+    public void stop() throws IOException {
+	request(AgentProtocol.STOP);
+    }
+
+    public void close() throws IOException {
+	channel.close();
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.cli;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The messages passed between an {@link AccountAgent} and its clients.
+ *<p>
+ * Every message is a sequence of lines, and every line is a list of
+ * fields separated by tabs.  Backslash, tab, carriage return and
+ * newline characters in a field are escaped with a backslash, as
+ * "\\", "\t", "\r" and "\n".
+ *<p>
+ * A request is one line, starting with the name of a command and
+ * followed by its arguments.  A reply starts with a line holding
+ * either "OK" and a count of lines to follow, or "ERR" and a message
+ * saying what went wrong.
+ */
+class AgentProtocol {
+    static final String OK = "OK";
+    static final String ERR = "ERR";
+
+    static final String GET = "get";
+    static final String LIST = "list";
+    static final String SEARCH = "search";
+    static final String UPDATE = "update";
+    static final String LOCK = "lock";
+    static final String UNLOCK = "unlock";
+    static final String STOP = "stop";
+
+    private AgentProtocol() {
+    }
+
+    private static void escape(StringBuilder line, String field) {
+	for (int i = 0; i < field.length(); i++) {
+	    char c = field.charAt(i);
+	    switch (c) {
+	    case '\\':
+		line.append("\\\\");
+		break;
+	    case '\t':
+		line.append("\\t");
+		break;
+	    case '\r':
+		line.append("\\r");
+		break;
+	    case '\n':
+		line.append("\\n");
+		break;
+	    default:
+		line.append(c);
+		break;
+	    }
+	}
+    }
+
+    /**
+     * Write one line made of the given fields.  A <code>null</code>
+     * field is written as an empty one.
+     *
+     * @param out The writer for the line.
+     * @param fields The fields of the line.
+     * @throws IOException Indicates a failure writing the line.
+     */
+    static void writeLine(Writer out, String... fields) throws IOException {
+	StringBuilder line = new StringBuilder();
+	for (int i = 0; i < fields.length; i++) {
+	    if (i > 0) {
+		line.append('\t');
+	    }
+	    if (fields[i] != null) {
+		escape(line, fields[i]);
+	    }
+	}
+	line.append('\n');
+	out.write(line.toString());
+    }
+
+    /**
+     * Read one line and split it into its fields.
+     *
+     * @param in The reader for the line.
+     * @return The fields of the line, or <code>null</code> at the end of
+     *     the input.
+     * @throws IOException Indicates a failure reading the line, or a
+     *     line that isn't properly escaped.
+     */
+    static String[] readLine(BufferedReader in) throws IOException {
+	String line = in.readLine();
+	if (line == null) {
+	    return null;
+	}
+	List<String> fields = new ArrayList<String>();
+	StringBuilder field = new StringBuilder();
+	for (int i = 0; i < line.length(); i++) {
+	    char c = line.charAt(i);
+	    if (c == '\t') {
+		fields.add(field.toString());
+		field.setLength(0);
+	    } else if (c != '\\') {
+		field.append(c);
+	    } else if (++i < line.length()) {
+		c = line.charAt(i);
+		switch (c) {
+		case 't':
+		    field.append('\t');
+		    break;
+		case 'r':
+		    field.append('\r');
+		    break;
+		case 'n':
+		    field.append('\n');
+		    break;
+		default:
+		    field.append(c);
+		    break;
+		}
+	    } else {
+		throw new IOException("Bad escape at end of line");
+	    }
+	}
+	fields.add(field.toString());
+	return fields.toArray(new String[fields.size()]);
+    }
+}
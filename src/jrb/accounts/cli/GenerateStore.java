@@ -0,0 +1,182 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.cli;
+
+import jrb.accounts.store.StoreGenerator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * A command to generate an account store file full of made-up
+ * accounts, for benchmarks and scale tests; see {@link StoreGenerator}.
+ *<p>
+ * Usage:  <code>GenerateStore [OPTION...] COUNT OUTPUT</code>
+ *<p>
+ * The options are:
+ *<dl>
+ *<dt><code>-s SEED</code>
+ *<dd>The seed for the generated data; 0 by default.
+ *<dt><code>-d MIN-MAX</code>
+ *<dd>The range of history depths.
+ *<dt><code>-w MIN-MAX</code>
+ *<dd>The range of the number of words in descriptions.
+ *<dt><code>-p MIN-MAX</code>
+ *<dd>The range of password lengths.
+ *<dt><code>-u RATIO</code>
+ *<dd>The fraction of accounts whose URL is shared with others.
+ *<dt><code>-r SEED</code>
+ *<dd>Generate a replica that has diverged from the store, with changes
+ *    generated from the given seed.
+ *<dt><code>-c RATIO</code>
+ *<dd>The fraction of accounts changed in a replica; 0.1 by default.
+ *<dt><code>-n</code>
+ *<dd>Don't compress the file.
+ *</dl>
+ * The password for the output is read as by {@link MergeStores}.  The
+ * output file must not already exist.  If generating fails, the partial
+ * output is deleted.
+ */
+public class GenerateStore {
+    private static final int EXIT_FAILURE = 1;
+    private static final int EXIT_USAGE = 2;
+
+    private static final String USAGE =
+	"usage: GenerateStore [-s SEED] [-d MIN-MAX] [-w MIN-MAX]"
+	+ " [-p MIN-MAX]\n"
+	+ "           [-u RATIO] [-r SEED [-c RATIO]] [-n] COUNT OUTPUT";
+
+    /**
+     * Parse a range given as "MIN-MAX", or as a single number for both.
+     */
+    private static int[] parseRange(String range) {
+	int dash = range.indexOf('-');
+	if (dash < 0) {
+	    int n = Integer.parseInt(range);
+	    return new int[] { n, n };
+	}
+	return new int[] {
+	    Integer.parseInt(range.substring(0, dash)),
+	    Integer.parseInt(range.substring(dash + 1))
+	};
+    }
+
+    private int run(String[] argv)
+	    throws GeneralSecurityException, IOException {
+	long seed = 0;
+	int[] depth = null;
+	int[] words = null;
+	int[] passwordLength = null;
+	double sharedUrlRatio = -1;
+	Long replicaSeed = null;
+	double changeRatio = 0.1;
+	boolean compress = true;
+
+	int i = 0;
+	for (; i < argv.length && argv[i].startsWith("-"); i++) {
+	    String option = argv[i];
+	    if (option.equals("-n")) {
+		compress = false;
+		continue;
+	    }
+	    if (i + 1 >= argv.length) {
+		System.err.println(USAGE);
+		return EXIT_USAGE;
+	    }
+	    String value = argv[++i];
+	    if (option.equals("-s")) {
+		seed = Long.parseLong(value);
+	    } else if (option.equals("-d")) {
+		depth = parseRange(value);
+	    } else if (option.equals("-w")) {
+		words = parseRange(value);
+	    } else if (option.equals("-p")) {
+		passwordLength = parseRange(value);
+	    } else if (option.equals("-u")) {
+		sharedUrlRatio = Double.parseDouble(value);
+	    } else if (option.equals("-r")) {
+		replicaSeed = Long.valueOf(value);
+	    } else if (option.equals("-c")) {
+		changeRatio = Double.parseDouble(value);
+	    } else {
+		System.err.println(USAGE);
+		return EXIT_USAGE;
+	    }
+	}
+	if (argv.length - i != 2) {
+	    System.err.println(USAGE);
+	    return EXIT_USAGE;
+	}
+	int count = Integer.parseInt(argv[i]);
+	Path output = Paths.get(argv[i + 1]);
+	if (Files.exists(output)) {
+	    System.err.println(output + ": file exists");
+	    return EXIT_FAILURE;
+	}
+
+	StoreGenerator generator = new StoreGenerator(seed, count);
+	if (depth != null) {
+	    generator.setHistoryDepth(depth[0], depth[1]);
+	}
+	if (words != null) {
+	    generator.setDescriptionWords(words[0], words[1]);
+	}
+	if (passwordLength != null) {
+	    generator.setPasswordLength(passwordLength[0],
+					passwordLength[1]);
+	}
+	if (sharedUrlRatio >= 0) {
+	    generator.setSharedUrlRatio(sharedUrlRatio);
+	}
+	generator.setCompressionEnabled(compress);
+	if (replicaSeed != null) {
+	    generator = generator.replica(replicaSeed, changeRatio);
+	}
+
+	char[] password = new PasswordReader().readPassword(
+		"Password for " + output + ": ");
+	OutputStream out = Files.newOutputStream(
+		output, StandardOpenOption.CREATE_NEW);
+	boolean written = false;
+	try {
+	    generator.write(out, password);
+	    out.close();
+	    written = true;
+	} finally {
+	    if (!written) {
+		try {
+		    out.close();
+		} finally {
+		    Files.deleteIfExists(output);
+		}
+	    }
+	}
+	System.err.println("Generated " + generator.size()
+			   + " accounts into " + output);
+	return 0;
+    }
+
+    /**
+     * Generate an account store file as described above.
+     *
+     * @param argv The command line arguments.
+     */
+    public static void main(String[] argv) {
+	int status;
+	try {
+	    status = new GenerateStore().run(argv);
+	} catch (Exception e) {
+	    System.err.println("GenerateStore: " + e.getMessage());
+	    status = EXIT_FAILURE;
+	}
+	System.exit(status);
+    }
+}
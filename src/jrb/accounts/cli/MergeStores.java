@@ -0,0 +1,93 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.cli;
+
+import jrb.accounts.store.Account;
+import jrb.accounts.store.AccountStore;
+import jrb.accounts.store.FileSaver;
+import jrb.accounts.store.StoreMerger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * A command to merge several account store files into a new file,
+ * without starting the GUI.
+ *<p>
+ * Usage:  <code>MergeStores OUTPUT INPUT...</code>
+ *<p>
+ * The password for each input is read in turn, and then the password
+ * for the output, twice.  Passwords are read from the console if
+ * there is one; otherwise, one per line from standard input.  The
+ * output file must not already exist.  Inputs take precedence for
+ * descriptions in the order given; see {@link StoreMerger}.
+ *<p>
+ * The output is written with a {@link FileSaver}, so a failure leaves
+ * no partial file behind to block running the command again.
+ */
+public class MergeStores {
+    private static final int EXIT_FAILURE = 1;
+    private static final int EXIT_USAGE = 2;
+
+    private final PasswordReader passwords = new PasswordReader();
+
+    private int run(String[] argv)
+	    throws GeneralSecurityException, IOException {
+	if (argv.length < 2) {
+	    System.err.println("usage: MergeStores OUTPUT INPUT...");
+	    return EXIT_USAGE;
+	}
+	Path output = Paths.get(argv[0]);
+	if (Files.exists(output)) {
+	    System.err.println(output + ": file exists");
+	    return EXIT_FAILURE;
+	}
+
+	StoreMerger merger = new StoreMerger();
+	for (int i = 1; i < argv.length; i++) {
+	    String prompt = "Password for " + argv[i] + ": ";
+	    merger.addSource(Paths.get(argv[i]),
+			     passwords.readPassword(prompt));
+	}
+	char[] password =
+		passwords.readPassword("Password for " + output + ": ");
+	char[] confirm = passwords.readPassword("Confirm password: ");
+	if (!Arrays.equals(password, confirm)) {
+	    System.err.println("Passwords don't match");
+	    return EXIT_FAILURE;
+	}
+
+	AccountStore merged = merger.merge();
+	for (Account account : merger.getRejected()) {
+	    System.err.println("Not merged, duplicate description: "
+			       + account.getDescription());
+	}
+	new FileSaver(output, 0).write(merged, password);
+	System.err.println("Merged " + merged.size() + " accounts into "
+			   + output);
+	return 0;
+    }
+
+    /**
+     * Merge account store files as described above.
+     *
+     * @param argv The command line arguments.
+     */
+    public static void main(String[] argv) {
+	int status;
+	try {
+	    status = new MergeStores().run(argv);
+	} catch (Exception e) {
+	    System.err.println("MergeStores: " + e.getMessage());
+	    status = EXIT_FAILURE;
+	}
+	System.exit(status);
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.cli;
+
+import java.io.BufferedReader;
+import java.io.Console;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+/**
+ * Reads passwords for the command line tools.  Passwords are read from
+ * the console if there is one, without echoing them; otherwise, one
+ * per line from standard input, so that scripts can supply them.
+ */
+class PasswordReader {
+    private final Console console = System.console();
+    private BufferedReader stdin;
+
+    /**
+     * Read one password, prompting for it on the console if there is
+     * one.
+     *
+     * @param prompt The prompt to show on the console.
+     * @return The password read.
+     * @throws IOException Indicates no password could be read.
+     */
+    char[] readPassword(String prompt) throws IOException {
+	if (console != null) {
+	    char[] password = console.readPassword("%s", prompt);
+	    if (password == null) {
+		throw new IOException("No password entered");
+	    }
+	    return password;
+	}
+	if (stdin == null) {
+	    stdin = new BufferedReader(new InputStreamReader(System.in));
+	}
+	String line = stdin.readLine();
+	if (line == null) {
+	    throw new IOException("No password entered");
+	}
+	return line.toCharArray();
+    }
+}
@@ -8,9 +8,7 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.util.Date;
-import java.util.List;
 import java.util.UUID;
-import java.util.Vector;
 
 /**
  * A class representing one account in an account store.  An
@@ -21,80 +19,26 @@ import java.util.Vector;
  * As an instance of <code>AccountData</code>, an <code>Account</code>
  * returns the values of its account data properties as of the most
  * recent update.
+ *<p>
+ * An account's history is never changed once other threads may see
+ * it; each change builds a new history and then replaces the old one.
+ * So any number of threads may read an account while one thread
+ * changes it, and each read sees the account either before or after
+ * the change.  Changes must not be made by more than one thread at a
+ * time; in an {@link AccountStore}, they're made under the store's
+ * lock.
  */
 public class Account extends AccountData implements Cloneable {
     /**
-     * One entry in the update history of an <code>Account</code>.
-     */
-    private static class HistoryEntry extends AccountData
-	    implements Comparable<HistoryEntry> {
-	private String description;
-	private String url;
-	private String username;
-	private String password;
-	private Date timestamp;
-
-	HistoryEntry(String description, String url,
-		     String username, String password,
-		     Date timestamp) {
-	    this.description = description;
-	    this.url = url;
-	    this.username = username;
-	    this.password = password;
-	    this.timestamp = timestamp;
-	}
-
-	HistoryEntry(String description, String url,
-		     String username, String password) {
-	    this(description, url, username, password, new Date());
-	}
-
-	public String getDescription() {
-	    return description;
-	}
-
-	public String getUrl() {
-	    return url;
-	}
-
-	public String getUsername() {
-	    return username;
-	}
-
-	public String getPassword() {
-	    return password;
-	}
-
-	public Date getTimestamp() {
-	    return timestamp;
-	}
-
-	@Override
-	public boolean equals(Object o) {
-	    if (!(o instanceof HistoryEntry)) {
-		return false;
-	    }
-	    HistoryEntry data = (HistoryEntry) o;
-	    return description.equals(data.description)
-		    && url.equals(data.url)
-		    && username.equals(data.username)
-		    && password.equals(data.password)
-		    && timestamp.equals(data.timestamp);
-	}
-
-	@Override
-	public int compareTo(HistoryEntry data) {
-	    int rv = timestamp.compareTo(data.timestamp);
-	    if (rv != 0) return rv;
-	    rv = description.compareTo(data.description);
-	    if (rv != 0) return rv;
-	    rv = url.compareTo(data.url);
-	    if (rv != 0) return rv;
-	    rv = username.compareTo(data.username);
-	    if (rv != 0) return rv;
-	    return password.compareTo(data.password);
-	}
-    }
+     * Flags in a history entry, starting with format version 6, marking
+     * the fields that are written rather than copied from the previous
+     * entry.
+     */
+    private static final int DESCRIPTION_CHANGED = 0x01;
+    private static final int URL_CHANGED = 0x02;
+    private static final int USERNAME_CHANGED = 0x04;
+    private static final int PASSWORD_CHANGED = 0x08;
+    private static final int ALL_CHANGED = 0x0f;
 
     /**
      * A UUID distinguishing this account from all others.  The UUID is
@@ -108,10 +52,10 @@ public class Account extends AccountData implements Cloneable {
     private UUID myUUID;
 
     /**
-     * The history of <code>AccountData</code> entries created by
-     * updates to this account.
+     * The history of entries created by updates to this account.  A
+     * history stored here is never added to again.
      */
-    private List<HistoryEntry> myHistory;
+    private volatile AccountHistory myHistory;
 
     /**
      * Create a new account object from initial data values.  The given
@@ -124,11 +68,25 @@ public class Account extends AccountData implements Cloneable {
      */
     public Account(String description, String url,
 		   String username, String password) {
-	myHistory = new Vector<HistoryEntry>();
+	AccountHistory history = new AccountHistory(1);
 	myUUID = UUID.randomUUID();
-	HistoryEntry data = new HistoryEntry(
+	AccountHistory.Entry data = new AccountHistory.Entry(
 		description, url, username, password);
-	myHistory.add(data);
+	history.add(data, System.currentTimeMillis());
+	myHistory = history;
+    }
+
+    /**
+     * Create an account object with a given UUID and history, as for
+     * generated test data.
+     *
+     * @param uuid The account's UUID.
+     * @param history The account's history.  The history must not be
+     *     added to afterwards.
+     */
+    Account(UUID uuid, AccountHistory history) {
+	myUUID = uuid;
+	myHistory = history;
     }
 
     /**
@@ -144,7 +102,6 @@ public class Account extends AccountData implements Cloneable {
      * @throws IOException Indicates a failure reading account data.
      */
     Account(DataInput in, int formatVersion) throws IOException {
-	myHistory = new Vector<HistoryEntry>();
 	readAccount(in, formatVersion);
     }
 
@@ -159,67 +116,131 @@ public class Account extends AccountData implements Cloneable {
      */
     public void update(String description, String url,
 		       String username, String password) {
-	HistoryEntry data = new HistoryEntry(
-		description, url, username, password);
-	HistoryEntry prevData = myHistory.get(myHistory.size() - 1);
+	AccountHistory history = myHistory.copy();
+	long timestamp = System.currentTimeMillis();
 	// The unit tests will fail without this loop, and I'm pretty
 	// sure this is a fix, not a hack.
-	while (data.timestamp.compareTo(prevData.timestamp) <= 0) {
-	    data.timestamp = new Date();
+	while (timestamp <= history.getLatestTimestamp()) {
+	    timestamp = System.currentTimeMillis();
 	}
-	myHistory.add(data);
+	AccountHistory.Entry data = new AccountHistory.Entry(
+		description, url, username, password);
+	history.add(data, timestamp);
+	myHistory = history;
     }
 
     /**
      * Merge in history entries from another account.  Any history
      * entry present in the source account object is added into this
      * object's history, except for entries that are already present.
-     * Additions are made to ensure that the list stays sorted by
-     * timestamp.
+     *<p>
+     * Both histories are sorted by timestamp, so they're merged in a
+     * single pass into a new list.  Timestamps within a history must
+     * be distinct; if the two histories have different entries with
+     * the same timestamp, only the entry that's greater according to
+     * {@link AccountHistory.Entry#compareTo} is kept.  That way, the result of
+     * merging two accounts is the same whichever is merged into the
+     * other.
      *
      * @param source The account from which to merge history.
      */
     public void mergeHistory(Account source) {
-	List<HistoryEntry> sourceHistory = source.myHistory;
+	AccountHistory mine = myHistory;
+	AccountHistory theirs = source.myHistory;
+	AccountHistory merged =
+		new AccountHistory(mine.size() + theirs.size());
 	int myIndex = 0;
 	int sourceIndex = 0;
-	HistoryEntry myEntry = myHistory.get(myIndex);
-	HistoryEntry newEntry = sourceHistory.get(sourceIndex);
-	for (;;) {
-	    if (newEntry.equals(myEntry)) {
+	while (myIndex < mine.size() && sourceIndex < theirs.size()) {
+	    long myTime = mine.getTimestamp(myIndex);
+	    long newTime = theirs.getTimestamp(sourceIndex);
+	    if (myTime < newTime) {
+		merged.add(mine.get(myIndex), myTime);
 		myIndex++;
+	    } else if (myTime > newTime) {
+		merged.add(theirs.get(sourceIndex), newTime);
 		sourceIndex++;
-		if (myIndex >= myHistory.size()
-			|| sourceIndex >= sourceHistory.size()) {
-		    break;
-		}
-		myEntry = myHistory.get(myIndex);
-		newEntry = sourceHistory.get(sourceIndex);
-		continue;
-	    }
-	    Date myTimestamp = myEntry.timestamp;
-	    if (newEntry.timestamp.compareTo(myTimestamp) < 0) {
-		myHistory.add(myIndex, newEntry);
-		sourceIndex++;
-		if (sourceIndex >= sourceHistory.size()) {
-		    break;
-		}
-		newEntry = sourceHistory.get(sourceIndex);
-		myIndex++;
 	    } else {
+		AccountHistory.Entry myEntry = mine.get(myIndex);
+		AccountHistory.Entry newEntry = theirs.get(sourceIndex);
+		merged.add(myEntry.compareTo(newEntry) >= 0
+			   ? myEntry : newEntry, myTime);
 		myIndex++;
-		if (myIndex >= myHistory.size()) {
-		    myHistory.add(newEntry);
-		    sourceIndex++;
-		    break;
-		}
-		myEntry = myHistory.get(myIndex);
+		sourceIndex++;
 	    }
 	}
-	while (sourceIndex < sourceHistory.size()) {
-	    myHistory.add(sourceHistory.get(sourceIndex));
-	    sourceIndex++;
+	for (; myIndex < mine.size(); myIndex++) {
+	    merged.add(mine.get(myIndex), mine.getTimestamp(myIndex));
 	}
+	for (; sourceIndex < theirs.size(); sourceIndex++) {
+	    merged.add(theirs.get(sourceIndex),
+		       theirs.getTimestamp(sourceIndex));
+	}
+	myHistory = merged;
+    }
+
+    /**
+     * Give this account the same history as another copy of it.  An
+     * {@link AccountStore} uses this to bring the account it handed out
+     * up to date with its own record of the account.
+     *
+     * @param source The account whose history is to be shared.
+     */
+    void copyHistory(Account source) {
+	assert myUUID.equals(source.myUUID);
+	myHistory = source.myHistory;
+    }
+
+    /**
+     * Return whether merging history from another account would
+     * change this account's history.  This makes the same single pass
+     * as {@link #mergeHistory}, but without building a new history.
+     *
+     * @param source The account from which history would be merged.
+     * @return True if <code>mergeHistory(source)</code> would add or
+     *     replace any entries.
+     */
+    boolean isMissingHistory(Account source) {
+	AccountHistory mine = myHistory;
+	AccountHistory theirs = source.myHistory;
+	int myIndex = 0;
+	int sourceIndex = 0;
+	while (myIndex < mine.size() && sourceIndex < theirs.size()) {
+	    long myTime = mine.getTimestamp(myIndex);
+	    long newTime = theirs.getTimestamp(sourceIndex);
+	    if (myTime > newTime || (myTime == newTime
+		    && mine.get(myIndex).compareTo(
+			    theirs.get(sourceIndex)) < 0)) {
+		return true;
+	    }
+	    myIndex++;
+	    if (myTime == newTime) {
+		sourceIndex++;
+	    }
+	}
+	return sourceIndex < theirs.size();
+    }
+
+    /**
+     * Return the description this account would have after merging
+     * history from another account.
+     *
+     * @param source The account from which history would be merged.
+     * @return The description from the latest entry in the merged
+     *     history.
+     */
+    String getMergedDescription(Account source) {
+	AccountHistory mine = myHistory;
+	AccountHistory theirs = source.myHistory;
+	AccountHistory.Entry myLatest = mine.getLatest();
+	AccountHistory.Entry sourceLatest = theirs.getLatest();
+	long myTime = mine.getLatestTimestamp();
+	long sourceTime = theirs.getLatestTimestamp();
+	int rv = Long.compare(myTime, sourceTime);
+	if (rv == 0) {
+	    rv = myLatest.compareTo(sourceLatest);
+	}
+	return rv >= 0 ? myLatest.description : sourceLatest.description;
     }
 
     /**
@@ -243,65 +264,288 @@ public class Account extends AccountData implements Cloneable {
      */
     void readAccount(DataInput in, int formatVersion)
 	    throws IOException {
-	myHistory.clear();
-	int size;
-	if (formatVersion >= AccountStore.FORMAT_V2) {
-	    myUUID = UUID.fromString(in.readUTF());
+	long size;
+	if (formatVersion >= AccountStore.FORMAT_V6) {
+	    myUUID = readUUID(in, formatVersion);
+	    size = readVarLong(in);
+	} else if (formatVersion >= AccountStore.FORMAT_V2) {
+	    myUUID = readUUID(in, formatVersion);
 	    size = in.readInt();
-	    if (size <= 0) {
-		throw new AccountFileFormatException(
-			"Invalid history size for account");
-	    }
 	} else {
 	    myUUID = UUID.randomUUID();
 	    size = 1;
 	}
-	Date prevTimestamp = new Date(0);
+	if (size <= 0 || size > Integer.MAX_VALUE) {
+	    throw new AccountFileFormatException(
+		    "Invalid history size for account");
+	}
+	// Don't trust a corrupt size with a huge allocation; the
+	// history grows as needed.
+	AccountHistory history = new AccountHistory((int) Math.min(size, 64));
 	while (size > 0) {
-	    String description = in.readUTF();
-	    String url = in.readUTF();
-	    String username = in.readUTF();
-	    String password = in.readUTF();
-	    Date timestamp;
+	    readEntry(in, history, formatVersion);
+	    size--;
+	}
+	checkNotFuture(history);
+	myHistory = history;
+    }
+
+    /**
+     * Read one history entry, and add it to the end of a history.
+     * Starting with format version 6, entries are in the form written
+     * by {@link #writeEntry}, relative to the entry before; before
+     * that, every field is written in full.
+     *
+     * @param in The data input stream from which to read the entry.
+     * @param history The history to which the entry is added.
+     * @param formatVersion The version of the file format being read.
+     * @throws IOException Indicates a failure reading account data,
+     *     including an entry that isn't later than the one before.
+     */
+    private static void readEntry(DataInput in, AccountHistory history,
+				  int formatVersion)
+	    throws IOException {
+	AccountHistory.Entry prev = history.getLatest();
+	long prevTime = prev == null ? 0 : history.getLatestTimestamp();
+	String description;
+	String url;
+	String username;
+	String password;
+	long timestamp;
+	if (formatVersion < AccountStore.FORMAT_V6) {
+	    description = in.readUTF();
+	    url = in.readUTF();
+	    username = in.readUTF();
+	    password = in.readUTF();
 	    if (formatVersion >= AccountStore.FORMAT_V2) {
-		timestamp = new Date(in.readLong());
+		timestamp = in.readLong();
 	    } else {
-		timestamp = new Date();
+		timestamp = System.currentTimeMillis();
 	    }
-	    if (prevTimestamp.compareTo(timestamp) >= 0) {
+	} else {
+	    int changed = in.readUnsignedByte();
+	    if ((changed & ~ALL_CHANGED) != 0
+		    || (prev == null && changed != ALL_CHANGED)) {
 		throw new AccountFileFormatException(
-			"Account history not in time order");
+			"Invalid history entry flags " + changed);
 	    }
-	    prevTimestamp = timestamp;
-	    HistoryEntry data = new HistoryEntry(
-		    description, url, username, password, timestamp);
-	    myHistory.add(data);
-	    size--;
+	    description = (changed & DESCRIPTION_CHANGED) != 0
+		    ? in.readUTF() : prev.description;
+	    url = (changed & URL_CHANGED) != 0
+		    ? in.readUTF() : prev.url;
+	    username = (changed & USERNAME_CHANGED) != 0
+		    ? in.readUTF() : prev.username;
+	    password = (changed & PASSWORD_CHANGED) != 0
+		    ? in.readUTF() : prev.password;
+	    timestamp = prevTime + readVarLong(in);
 	}
-	if (prevTimestamp.compareTo(new Date()) > 0) {
+	if (prevTime >= timestamp) {
+	    throw new AccountFileFormatException(
+		    "Account history not in time order");
+	}
+	history.add(new AccountHistory.Entry(
+		description, url, username, password), timestamp);
+    }
+
+    /**
+     * Write one history entry in the compact form used starting with
+     * format version 6.  The entry starts with a bit mask of the fields
+     * that differ from the previous entry; only those fields are
+     * written, and the others refer back to the previous entry.  The
+     * timestamp is written as a variable-length count of milliseconds
+     * since the previous entry.
+     *
+     * @param out The data output stream to which to write the entry.
+     * @param history The history containing the entry.
+     * @param index The index of the entry, counting from the oldest.
+     * @throws IOException Indicates a failure writing account data.
+     */
+    private static void writeEntry(DataOutput out, AccountHistory history,
+				   int index)
+	    throws IOException {
+	AccountHistory.Entry data = history.get(index);
+	AccountHistory.Entry prev =
+		index > 0 ? history.get(index - 1) : null;
+	int changed = ALL_CHANGED;
+	long base = 0;
+	if (prev != null) {
+	    changed = 0;
+	    if (!data.description.equals(prev.description)) {
+		changed |= DESCRIPTION_CHANGED;
+	    }
+	    if (!data.url.equals(prev.url)) {
+		changed |= URL_CHANGED;
+	    }
+	    if (!data.username.equals(prev.username)) {
+		changed |= USERNAME_CHANGED;
+	    }
+	    if (!data.password.equals(prev.password)) {
+		changed |= PASSWORD_CHANGED;
+	    }
+	    base = history.getTimestamp(index - 1);
+	}
+	out.writeByte(changed);
+	if ((changed & DESCRIPTION_CHANGED) != 0) {
+	    out.writeUTF(data.description);
+	}
+	if ((changed & URL_CHANGED) != 0) {
+	    out.writeUTF(data.url);
+	}
+	if ((changed & USERNAME_CHANGED) != 0) {
+	    out.writeUTF(data.username);
+	}
+	if ((changed & PASSWORD_CHANGED) != 0) {
+	    out.writeUTF(data.password);
+	}
+	writeVarLong(out, history.getTimestamp(index) - base);
+    }
+
+    private static void checkNotFuture(AccountHistory history)
+	    throws AccountFileFormatException {
+	if (history.getLatestTimestamp() > System.currentTimeMillis()) {
 	    throw new AccountFileFormatException(
 		    "Account history has entries in the future");
 	}
     }
 
+    /**
+     * Write a non-negative number in a variable-length encoding, seven
+     * bits per byte, least significant bits first.  The high bit of
+     * each byte is set if more bytes follow.
+     *
+     * @param out The data output stream to which to write the number.
+     * @param value The number to be written.
+     * @throws IOException Indicates a failure writing data.
+     */
+    static void writeVarLong(DataOutput out, long value)
+	    throws IOException {
+	while ((value & ~0x7fL) != 0) {
+	    out.writeByte((int) (value & 0x7f) | 0x80);
+	    value >>>= 7;
+	}
+	out.writeByte((int) value);
+    }
+
+    /**
+     * Read a number written by {@link #writeVarLong}.
+     *
+     * @param in The data input stream from which to read the number.
+     * @return The number that was read.
+     * @throws IOException Indicates a failure reading data, or an
+     *     encoding longer than any number can need.
+     */
+    static long readVarLong(DataInput in) throws IOException {
+	long value = 0;
+	for (int shift = 0; shift < 64; shift += 7) {
+	    int b = in.readUnsignedByte();
+	    value |= (long) (b & 0x7f) << shift;
+	    if ((b & 0x80) == 0) {
+		return value;
+	    }
+	}
+	throw new AccountFileFormatException(
+		"Malformed variable-length number");
+    }
+
+    /**
+     * Write an account UUID.  Starting with format version 6, a UUID is
+     * written as its 16 bytes, rather than as a string.
+     *
+     * @param out The data output stream to which to write the UUID.
+     * @param uuid The UUID to be written.
+     * @throws IOException Indicates a failure writing data.
+     */
+    static void writeUUID(DataOutput out, UUID uuid) throws IOException {
+	out.writeLong(uuid.getMostSignificantBits());
+	out.writeLong(uuid.getLeastSignificantBits());
+    }
+
+    /**
+     * Read an account UUID written by {@link #writeUUID}, or, before
+     * format version 6, written as a string.
+     *
+     * @param in The data input stream from which to read the UUID.
+     * @param formatVersion The version of the file format being read.
+     * @return The UUID that was read.
+     * @throws IOException Indicates a failure reading data.
+     */
+    static UUID readUUID(DataInput in, int formatVersion)
+	    throws IOException {
+	if (formatVersion >= AccountStore.FORMAT_V6) {
+	    return new UUID(in.readLong(), in.readLong());
+	}
+	return UUID.fromString(in.readUTF());
+    }
+
     /**
      * Write this account to an output stream.  Full account history
-     * will be written, consistent with the file format as of version 2.
+     * will be written, in the form used as of file format version 6:
+     * the UUID, the number of history entries, and then each entry as
+     * written by {@link #writeEntry}.
      *
      * @param out The data output stream to which to write the account's
      *     data.
      * @throws IOException Indicates a failure writing account data.
      */
     void writeAccount(DataOutput out) throws IOException {
-	out.writeUTF(myUUID.toString());
-	out.writeInt(myHistory.size());
-	for (HistoryEntry data : myHistory) {
-	    out.writeUTF(data.description);
-	    out.writeUTF(data.url);
-	    out.writeUTF(data.username);
-	    out.writeUTF(data.password);
-	    out.writeLong(data.timestamp.getTime());
+	AccountHistory history = myHistory;
+	writeUUID(out, myUUID);
+	writeVarLong(out, history.size());
+	for (int i = 0; i < history.size(); i++) {
+	    writeEntry(out, history, i);
+	}
+    }
+
+    /**
+     * Write the most recent entry in this account's history to an
+     * output stream.  The entry is written in the same form as entries
+     * written by {@link #writeAccount}, relative to the entry before
+     * it, and can be read back by {@link #readUpdate}.
+     *
+     * @param out The data output stream to which to write the entry.
+     * @throws IOException Indicates a failure writing account data.
+     */
+    void writeUpdate(DataOutput out) throws IOException {
+	AccountHistory history = myHistory;
+	writeEntry(out, history, history.size() - 1);
+    }
+
+    /**
+     * Read one history entry from an input stream, and add it to this
+     * account's history as the most recent update.  The entry must be
+     * in the form written by {@link #writeUpdate}.
+     *
+     * @param in The data input stream from which to read the entry.
+     * @param formatVersion The version of the file format being read.
+     * @throws IOException Indicates a failure reading account data,
+     *     including an entry that isn't later than the most recent
+     *     update.
+     */
+    void readUpdate(DataInput in, int formatVersion) throws IOException {
+	AccountHistory history = myHistory.copy();
+	readEntry(in, history, formatVersion);
+	checkNotFuture(history);
+	myHistory = history;
+    }
+
+    /**
+     * Read the description from a history entry written by {@link
+     * #writeUpdate}, without reading the rest of the entry.
+     *
+     * @param in The data input stream from which to read the entry.
+     * @param current The account's description before the update.
+     * @param formatVersion The version of the file format being read.
+     * @return The account's description after the update.
+     * @throws IOException Indicates a failure reading account data.
+     */
+    static String readUpdateDescription(DataInput in, String current,
+					int formatVersion)
+	    throws IOException {
+	if (formatVersion >= AccountStore.FORMAT_V6
+		&& (in.readUnsignedByte() & DESCRIPTION_CHANGED) == 0) {
+	    return current;
 	}
+	return in.readUTF();
     }
 
     /**
@@ -338,7 +582,8 @@ public class Account extends AccountData implements Cloneable {
      * @return Account data as it was <code>index</code> updates ago.
      */
     public AccountData getUpdateData(int index) {
-	return myHistory.get(myHistory.size() - index - 1);
+	AccountHistory history = myHistory;
+	return history.getData(history.size() - index - 1);
     }
 
     /**
@@ -348,7 +593,7 @@ public class Account extends AccountData implements Cloneable {
      * @return This account's current description.
      */
     public String getDescription() {
-	return myHistory.get(myHistory.size() - 1).description;
+	return myHistory.getLatest().description;
     }
 
     /**
@@ -357,7 +602,7 @@ public class Account extends AccountData implements Cloneable {
      * @return This account's current URL.
      */
     public String getUrl() {
-	return myHistory.get(myHistory.size() - 1).url;
+	return myHistory.getLatest().url;
     }
 
     /**
@@ -367,7 +612,7 @@ public class Account extends AccountData implements Cloneable {
      * @return This account's current user name.
      */
     public String getUsername() {
-	return myHistory.get(myHistory.size() - 1).username;
+	return myHistory.getLatest().username;
     }
 
     /**
@@ -377,7 +622,7 @@ public class Account extends AccountData implements Cloneable {
      * @return This account's current password.
      */
     public String getPassword() {
-	return myHistory.get(myHistory.size() - 1).password;
+	return myHistory.getLatest().password;
     }
 
     /**
@@ -386,7 +631,7 @@ public class Account extends AccountData implements Cloneable {
      * @return The current timestamp of this account's data.
      */
     public Date getTimestamp() {
-	return myHistory.get(myHistory.size() - 1).timestamp;
+	return new Date(myHistory.getLatestTimestamp());
     }
 
     /**
@@ -403,7 +648,7 @@ public class Account extends AccountData implements Cloneable {
     protected Account clone() {
 	try {
 	    Account acct = (Account) super.clone();
-	    acct.myHistory = new Vector<HistoryEntry>(myHistory);
+	    acct.myHistory = myHistory.copy();
 	    return acct;
 	} catch (CloneNotSupportedException ex) {
 	    return null;
@@ -426,4 +671,15 @@ public class Account extends AccountData implements Cloneable {
 	return myUUID.equals(other.myUUID)
 		&& myHistory.equals(other.myHistory);
     }
+
+    /**
+     * Return a hash code for this account.  The hash code depends only
+     * on the UUID, so it doesn't change when the account is updated.
+     *
+     * @return A hash code consistent with {@link #equals}.
+     */
+    @Override
+    public int hashCode() {
+	return myUUID.hashCode();
+    }
 }
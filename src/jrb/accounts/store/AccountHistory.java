@@ -0,0 +1,245 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.store;
+
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * The update history of an <code>Account</code>, oldest entry first.
+ *<p>
+ * The account data in each entry is kept in an immutable {@link Entry};
+ * the timestamps are kept separately, in an array of
+ * <code>long</code>.  The most recent entry is also kept in a field of
+ * its own, so the account's current data can be read without any
+ * indexing.
+ *<p>
+ * Copies share their arrays with the original, since entries never
+ * change once added.  Whichever history is added to first after a copy
+ * gets new arrays of its own.
+ *<p>
+ * This class isn't synchronized.  <code>Account</code> adds entries
+ * only to a history that no other thread can see yet, copying its
+ * current history first when necessary.
+ */
+final class AccountHistory {
+    /**
+     * The account data from one history entry, without its timestamp.
+     */
+    static final class Entry {
+	final String description;
+	final String url;
+	final String username;
+	final String password;
+
+	Entry(String description, String url,
+	      String username, String password) {
+	    this.description = description;
+	    this.url = url;
+	    this.username = username;
+	    this.password = password;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+	    if (!(o instanceof Entry)) {
+		return false;
+	    }
+	    Entry data = (Entry) o;
+	    return description.equals(data.description)
+		    && url.equals(data.url)
+		    && username.equals(data.username)
+		    && password.equals(data.password);
+	}
+
+	@Override
+	public int hashCode() {
+	    return description.hashCode() ^ password.hashCode();
+	}
+
+	/**
+	 * Order entries with the same timestamp by their data.
+	 */
+	int compareTo(Entry data) {
+	    int rv = description.compareTo(data.description);
+	    if (rv != 0) return rv;
+	    rv = url.compareTo(data.url);
+	    if (rv != 0) return rv;
+	    rv = username.compareTo(data.username);
+	    if (rv != 0) return rv;
+	    return password.compareTo(data.password);
+	}
+    }
+
+    /**
+     * One entry together with its timestamp, as returned by {@link
+     * #getData}.
+     */
+    private static final class EntryData extends AccountData {
+	private final Entry entry;
+	private final long timestamp;
+
+	EntryData(Entry entry, long timestamp) {
+	    this.entry = entry;
+	    this.timestamp = timestamp;
+	}
+
+	public String getDescription() {
+	    return entry.description;
+	}
+
+	public String getUrl() {
+	    return entry.url;
+	}
+
+	public String getUsername() {
+	    return entry.username;
+	}
+
+	public String getPassword() {
+	    return entry.password;
+	}
+
+	public Date getTimestamp() {
+	    return new Date(timestamp);
+	}
+    }
+
+    private Entry[] entries;
+    private long[] timestamps;
+    private int size;
+
+    /**
+     * Whether the arrays may be shared with a copy of this history.
+     */
+    private boolean shared;
+
+    private Entry latest;
+    private long latestTimestamp;
+
+    /**
+     * Create an empty history.
+     *
+     * @param capacity The number of entries expected.
+     */
+    AccountHistory(int capacity) {
+	capacity = Math.max(1, capacity);
+	entries = new Entry[capacity];
+	timestamps = new long[capacity];
+    }
+
+    /**
+     * Add an entry as the most recent in this history.  The caller is
+     * responsible for keeping timestamps in order.
+     *
+     * @param entry The entry to be added.
+     * @param timestamp The entry's timestamp.
+     */
+    void add(Entry entry, long timestamp) {
+	if (shared || size == entries.length) {
+	    int capacity = size == entries.length
+		    ? size + (size >> 1) + 1 : entries.length;
+	    entries = Arrays.copyOf(entries, capacity);
+	    timestamps = Arrays.copyOf(timestamps, capacity);
+	    shared = false;
+	}
+	entries[size] = entry;
+	timestamps[size] = timestamp;
+	size++;
+	latest = entry;
+	latestTimestamp = timestamp;
+    }
+
+    /**
+     * Return a copy of this history.  The copy shares this history's
+     * arrays until either is added to.
+     *
+     * @return The new copy.
+     */
+    AccountHistory copy() {
+	AccountHistory copy = new AccountHistory(this);
+	shared = true;
+	return copy;
+    }
+
+    private AccountHistory(AccountHistory original) {
+	entries = original.entries;
+	timestamps = original.timestamps;
+	size = original.size;
+	shared = true;
+	latest = original.latest;
+	latestTimestamp = original.latestTimestamp;
+    }
+
+    int size() {
+	return size;
+    }
+
+    /**
+     * Return an entry, counting from the oldest.
+     */
+    Entry get(int index) {
+	checkIndex(index);
+	return entries[index];
+    }
+
+    /**
+     * Return an entry's timestamp, counting from the oldest entry.
+     */
+    long getTimestamp(int index) {
+	checkIndex(index);
+	return timestamps[index];
+    }
+
+    /**
+     * Return an entry and its timestamp as <code>AccountData</code>,
+     * counting from the oldest entry.
+     */
+    AccountData getData(int index) {
+	checkIndex(index);
+	return new EntryData(entries[index], timestamps[index]);
+    }
+
+    private void checkIndex(int index) {
+	if (index < 0 || index >= size) {
+	    throw new ArrayIndexOutOfBoundsException(index);
+	}
+    }
+
+    /**
+     * Return the most recent entry, or <code>null</code> if the history
+     * is empty.
+     */
+    Entry getLatest() {
+	return latest;
+    }
+
+    long getLatestTimestamp() {
+	return latestTimestamp;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+	if (!(o instanceof AccountHistory)) {
+	    return false;
+	}
+	AccountHistory other = (AccountHistory) o;
+	if (size != other.size) {
+	    return false;
+	}
+	for (int i = 0; i < size; i++) {
+	    if (timestamps[i] != other.timestamps[i]
+		    || !entries[i].equals(other.entries[i])) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    @Override
+    public int hashCode() {
+	return size == 0 ? 0 : latest.hashCode();
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.store;
+
+import java.util.Collection;
+
+/**
+ * A secondary index over the accounts in an <code>AccountStore</code>.
+ *<p>
+ * The account store calls {@link #add} whenever an account enters the
+ * store or has been changed, and {@link #remove} whenever an account
+ * leaves the store or is about to be changed.  An account is therefore
+ * removed with the same data it was added with.  When many accounts
+ * enter the store at once, as when reading a file, the store calls
+ * {@link #addAll} instead.
+ */
+interface AccountIndex {
+    /**
+     * Add an account to the index.
+     *
+     * @param account The account being added.
+     */
+    void add(Account account);
+
+    /**
+     * Add many accounts to the index.  This is the same as adding
+     * each account in turn, but gives the index a chance to build
+     * itself more efficiently.
+     *
+     * @param accounts The accounts being added.
+     */
+    void addAll(Collection<Account> accounts);
+
+    /**
+     * Remove an account from the index.
+     *
+     * @param account The account being removed.
+     */
+    void remove(Account account);
+}
@@ -8,10 +8,24 @@ import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 import java.security.*;
 import javax.crypto.*;
@@ -19,7 +33,6 @@ import javax.crypto.spec.*;
 
 import java.net.URL;
 import java.util.HashMap;
-import java.util.TreeMap;
 import java.util.UUID;
 
 /**
@@ -29,30 +42,62 @@ import java.util.UUID;
  * update, and access individual {@link Account} objects. The entire
  * set of accounts can be saved in a file, encrypted, and later read
  * back to reconstruct the saved account store.
+ *<p>
+ * An account store may be used from any number of threads.  Changes
+ * to the accounts, and reading a file, are made one at a time, under
+ * the write lock of a <code>StampedLock</code>.  Looking accounts up
+ * with {@link #size} or {@link #iterator} takes no lock at all; the
+ * accounts are kept in persistent maps, which are replaced rather
+ * than changed, so iteration never throws
+ * <code>ConcurrentModificationException</code>.  Searches
+ * and saves hold the read lock, so they can run alongside each other,
+ * but not alongside a change.  Saves are also made one at a time,
+ * synchronized on the store.
  */
 public class AccountStore implements Iterable<Account>, Cloneable {
     static int FORMAT_V1 = 1;
 
     static int FORMAT_V2 = 2;
 
+    static int FORMAT_V3 = 3;
+
+    static int FORMAT_V4 = 4;
+
+    static int FORMAT_V5 = 5;
+
+    static int FORMAT_V6 = 6;
+
+    static int FORMAT_V7 = 7;
+
     private static final String[] MAGIC_VERSIONS = {
 	"ACCTS.00",	// FORMAT_V0
 	"ACCTS.01",	// FORMAT_V1
 	"ACCTS.02",	// FORMAT_V2
+	"ACCTS.03",	// FORMAT_V3
+	"ACCTS.04",	// FORMAT_V4
+	"ACCTS.05",	// FORMAT_V5
+	"ACCTS.06",	// FORMAT_V6
+	"ACCTS.07",	// FORMAT_V7
     };
 
     static int FORMAT_CURRENT = MAGIC_VERSIONS.length - 1;
 
-    private static final String FILEMAGIC
-	    = MAGIC_VERSIONS[FORMAT_CURRENT];
-
-    private static final String PASSWORD_TYPE = "AES";
+    static final String FILEMAGIC = MAGIC_VERSIONS[FORMAT_CURRENT];
 
     private static final String CIPHER_ALGORITHM = "AES/CBC/PKCS5Padding";
 
-    private static final int PASSWORD_COUNT = 0x10000;
+    static final String SECTION_ALGORITHM = "AES/GCM/NoPadding";
 
-    private static final int KEY_BITS = 128;
+    static final int NONCE_BYTES = 96 / 8;
+
+    static final int TAG_BITS = 128;
+
+    /**
+     * The largest encrypted section accepted when reading a file.  This
+     * guards against trying to allocate absurd amounts of memory for a
+     * corrupted length.
+     */
+    static final int MAX_SECTION_BYTES = 1 << 30;
 
     private static final SecureRandom randomSource = new SecureRandom();
 
@@ -61,7 +106,7 @@ public class AccountStore implements Iterable<Account>, Cloneable {
      * The salt is actually temporary data that is only live while
      * initializing for {@link #readAccounts} or {@link #writeAccounts}.
      * The storage persists when not in use to avoid creating
-     * unnecessary garbage.
+     * unnecessary garbage.  Guarded by <code>this</code>.
      */
     private byte[] passwordSalt = new byte[8];
 
@@ -70,30 +115,132 @@ public class AccountStore implements Iterable<Account>, Cloneable {
      * operations.  This block is actually temporary data that is only
      * live while initializing for {@link #readAccounts} or {@link
      * #writeAccounts}.  The storage persists when not in use to avoid
-     * creating unnecessary garbage.
+     * creating unnecessary garbage.  Guarded by <code>this</code>.
      */
     private byte[] ivBlock = new byte[128 / 8];		// 1 128-bit AES block
 
     /**
-     * A key specification created from the user-supplied password.
-     * This is remembered so that it can be re-used for {@link
-     * #writeAccounts(OutputStream)}.
+     * The encryption key derived from the user-supplied password,
+     * together with its salt.  This is remembered so that it can be
+     * re-used for {@link #writeAccounts(OutputStream)} without paying
+     * for key derivation on every save.  Guarded by <code>this</code>.
+     */
+    private DerivedKey sessionKey;
+
+    /**
+     * What's needed to write the most recently written snapshot again,
+     * byte for byte:  the initialization vector it was encrypted with,
+     * and everything its plaintext depends on.  The account map is
+     * compared by identity; since maps never change, the same map
+     * means the same accounts.
+     */
+    private static final class WrittenSnapshot {
+	final PersistentMap<String, Account> accounts;
+	final long seq;
+	final boolean compressed;
+	final byte[] salt;
+	final byte[] iv;
+
+	WrittenSnapshot(PersistentMap<String, Account> accounts, long seq,
+			boolean compressed, byte[] salt, byte[] iv) {
+	    this.accounts = accounts;
+	    this.seq = seq;
+	    this.compressed = compressed;
+	    this.salt = salt;
+	    this.iv = iv;
+	}
+
+	boolean matches(PersistentMap<String, Account> accounts, long seq,
+			boolean compressed, byte[] salt) {
+	    return this.accounts == accounts && this.seq == seq
+		    && this.compressed == compressed
+		    && Arrays.equals(this.salt, salt);
+	}
+    }
+
+    /**
+     * The snapshot most recently written by this store, or by a copy
+     * of it that was marked saved.  It never changes, so it's shared
+     * with copies.  Guarded by <code>this</code>.
+     */
+    private WrittenSnapshot lastWritten;
+
+    /**
+     * Whether snapshots written by {@link #writeAccounts} are
+     * compressed.
+     */
+    private volatile boolean compressSnapshots = true;
+
+    /**
+     * Guards changes to the accounts, the secondary indexes and the
+     * journal.  Each copy of a store has a lock of its own.
      */
-    private PBEKeySpec fileKey;
+    private StampedLock lock = new StampedLock();
 
     /**
      * A map containing all accounts in the store.  The account
      * description is used as the key to the map to facilitate iteration
      * order and to prevent duplicate descriptions.
+     *<p>
+     * The accounts in this map, and in {@link #uuidMap}, are this
+     * store's records of its accounts; they're never handed out, and
+     * never changed.  A change to an account replaces its record with
+     * an updated copy, and then brings the account's handle up to date;
+     * see {@link #handles}.  The maps themselves are persistent, so a
+     * snapshot of the store shares them, rather than copying them.
      */
-    private TreeMap<String, Account> myAccounts;
+    private volatile PersistentMap<String, Account> myAccounts;
 
     /**
      * A map containing all accounts in the store.  The account
      * UUID is used as the key to the map to facilitate finding matching
      * accounts during merge operations.
      */
-    private HashMap<UUID, Account> uuidMap;
+    private volatile PersistentMap<UUID, Account> uuidMap;
+
+    /**
+     * The accounts handed out by this store, by UUID.  Each account in
+     * the store has at most one handle, created from its record when
+     * it's first needed.  A handle's history is always the same as its
+     * record's, so callers can go on using the same
+     * <code>Account</code> object as it changes.  Handles aren't
+     * shared with snapshots, so neither sees the other's changes.
+     */
+    private ConcurrentHashMap<UUID, Account> handles;
+
+    /**
+     * Secondary indexes on account URL, user name, and registrable
+     * domain.
+     */
+    private AttributeIndex urlIndex;
+    private AttributeIndex usernameIndex;
+    private AttributeIndex domainIndex;
+
+    /**
+     * Index for finding accounts by partial description or URL.
+     */
+    private SearchIndex searchIndex;
+
+    /**
+     * Index for finding accounts despite typing mistakes.
+     */
+    private FuzzyIndex fuzzyIndex;
+
+    /**
+     * Every secondary index, to be kept up to date as accounts are
+     * added, changed and removed.  The indexes hold handles, not
+     * records.  They're built only when first searched, so reading a
+     * file or taking a snapshot doesn't pay for them; until then, this
+     * is <code>null</code>.
+     */
+    private List<AccountIndex> indexes;
+
+    /**
+     * The log of changes made since this store was last read or saved.
+     * Changes are recorded holding the write lock; saves are noted
+     * holding the read lock, synchronized on <code>this</code>.
+     */
+    private Journal journal;
 
     /**
      * Construct an empty account store.
@@ -118,43 +265,262 @@ public class AccountStore implements Iterable<Account>, Cloneable {
 	readAccounts(raw, password);
     }
 
+    /**
+     * Construct an account store by reading it from a file.
+     *
+     * @param path The file from which the account data will be read.
+     * @param password A character array holding the password that will
+     *     decrypt the account data.
+     * @throws GeneralSecurityException Indicates a failure during
+     *     decryption.
+     * @throws IOException Indicates a failure reading data.
+     */
+    public AccountStore(Path path, char[] password)
+	    throws GeneralSecurityException, IOException {
+	readAccounts(path, password);
+    }
+
     /**
      * Clear out the contents of this account store.  This method
      * restores this account store to the state created by the no-arg
      * constructor.
      */
     private void initialize() {
-	myAccounts = new TreeMap<String, Account>();
-	uuidMap = new HashMap<UUID, Account>();
+	myAccounts = new PersistentMap<String, Account>();
+	uuidMap = new PersistentMap<UUID, Account>();
+	handles = new ConcurrentHashMap<UUID, Account>();
+	indexes = null;
+	journal = new Journal();
+    }
+
+    /**
+     * Create the secondary indexes, and add every account to them.
+     * Called holding the write lock.
+     */
+    private void createIndexes() {
+	long start = System.nanoTime();
+	List<Account> accounts = new ArrayList<Account>(myAccounts.size());
+	for (Account record : myAccounts.values()) {
+	    accounts.add(handleFor(record));
+	}
+	urlIndex = AttributeIndex.byUrl();
+	usernameIndex = AttributeIndex.byUsername();
+	domainIndex = AttributeIndex.byDomain();
+	List<AccountIndex> newIndexes = new ArrayList<AccountIndex>();
+	newIndexes.add(urlIndex);
+	newIndexes.add(usernameIndex);
+	newIndexes.add(domainIndex);
+	searchIndex = new SearchIndex();
+	newIndexes.add(searchIndex);
+	fuzzyIndex = new FuzzyIndex();
+	newIndexes.add(fuzzyIndex);
+	for (AccountIndex index : newIndexes) {
+	    index.addAll(accounts);
+	}
+	indexes = newIndexes;
+	StoreMetrics.INDEX_BUILD.record(start);
+    }
+
+    /**
+     * Acquire the lock for searching the secondary indexes, first
+     * building them if they haven't been built yet.  The lock is held
+     * in read mode if the indexes were already built, and in write
+     * mode otherwise.
+     *
+     * @return A stamp to be passed to <code>lock.unlock()</code>.
+     */
+    private long lockIndexes() {
+	long stamp = lock.readLock();
+	if (indexes != null) {
+	    return stamp;
+	}
+	long writeStamp = lock.tryConvertToWriteLock(stamp);
+	if (writeStamp == 0) {
+	    lock.unlockRead(stamp);
+	    writeStamp = lock.writeLock();
+	}
+	boolean built = false;
+	try {
+	    if (indexes == null) {
+		createIndexes();
+	    }
+	    built = true;
+	} finally {
+	    if (!built) {
+		lock.unlockWrite(writeStamp);
+	    }
+	}
+	return writeStamp;
+    }
+
+    /**
+     * Return the handle for an account, given its record, creating the
+     * handle if there isn't one yet.  The new handle is made from the
+     * account's current record, which may be newer than the one
+     * given.
+     *
+     * @param record The record of an account in this store.
+     * @return The account's handle.
+     */
+    private Account handleFor(Account record) {
+	Account handle = handles.get(record.getUUID());
+	if (handle != null) {
+	    return handle;
+	}
+	handle = handles.computeIfAbsent(
+		record.getUUID(), new Function<UUID, Account>() {
+		    public Account apply(UUID uuid) {
+			Account current = uuidMap.get(uuid);
+			return current == null ? null : current.clone();
+		    }
+		});
+	// If the account was deleted meanwhile, hand out a copy of the
+	// record, not tied to the store.
+	return handle != null ? handle : record.clone();
+    }
+
+    /**
+     * Bring an account's handle, if it has one, up to date with its
+     * record.  The record must already be in {@link #uuidMap}; between
+     * them, this and {@link #handleFor} make sure that a handle
+     * created while the record changes ends up with the new history.
+     *
+     * @param record The account's new record.
+     */
+    private void updateHandle(final Account record) {
+	handles.computeIfPresent(
+		record.getUUID(), new BiFunction<UUID, Account, Account>() {
+		    public Account apply(UUID uuid, Account handle) {
+			handle.copyHistory(record);
+			return handle;
+		    }
+		});
+    }
+
+    /**
+     * Replace an account's record with an updated copy, keeping the
+     * maps, the account's handle and the secondary indexes up to date.
+     * Called holding the write lock.
+     *
+     * @param record The account's record in this store.
+     * @param updated The new record for the account.
+     */
+    private void replaceAccount(Account record, Account updated) {
+	Account handle = indexes == null ? null : handleFor(record);
+	if (handle != null) {
+	    for (AccountIndex index : indexes) {
+		index.remove(handle);
+	    }
+	}
+	String description = updated.getDescription();
+	PersistentMap<String, Account> accounts = myAccounts;
+	if (!description.equals(record.getDescription())) {
+	    accounts = accounts.without(record.getDescription());
+	}
+	myAccounts = accounts.with(description, updated);
+	uuidMap = uuidMap.with(updated.getUUID(), updated);
+	updateHandle(updated);
+	if (handle != null) {
+	    for (AccountIndex index : indexes) {
+		index.add(handle);
+	    }
+	}
     }
 
     /**
-     * Add a new account to the account store.
+     * Add a new account to the account store.  The caller must hold
+     * the write lock, unless no other thread can see this store yet.
      *
-     * @param newAccount The account to be added to the account store.
+     * @param newAccount The record of the account to be added to the
+     *     account store.  It must not be changed afterwards.
      */
     private void addAccount(Account newAccount) {
 	assert !uuidMap.containsKey(newAccount.getUUID());
 	assert !myAccounts.containsKey(newAccount.getDescription());
-	myAccounts.put(newAccount.getDescription(), newAccount);
-	uuidMap.put(newAccount.getUUID(), newAccount);
+	uuidMap = uuidMap.with(newAccount.getUUID(), newAccount);
+	myAccounts = myAccounts.with(newAccount.getDescription(), newAccount);
+	if (indexes != null) {
+	    Account handle = handleFor(newAccount);
+	    for (AccountIndex index : indexes) {
+		index.add(handle);
+	    }
+	}
+    }
+
+    /**
+     * Add many new accounts to the account store at once.  This is the
+     * same as calling {@link #addAccount} for each account, but lets
+     * the maps and secondary indexes be built in bulk.  The caller must
+     * hold the write lock, unless no other thread can see this store
+     * yet.
+     *
+     * @param newAccounts The records of the accounts to be added to the
+     *     account store.  They must not be changed afterwards.
+     */
+    void addAccounts(Collection<Account> newAccounts) {
+	HashMap<String, Account> descriptions =
+		new HashMap<String, Account>(newAccounts.size() * 2);
+	HashMap<UUID, Account> uuids =
+		new HashMap<UUID, Account>(newAccounts.size() * 2);
+	for (Account account : newAccounts) {
+	    assert !uuidMap.containsKey(account.getUUID());
+	    assert !myAccounts.containsKey(account.getDescription());
+	    descriptions.put(account.getDescription(), account);
+	    uuids.put(account.getUUID(), account);
+	}
+	uuidMap = uuidMap.withAll(uuids);
+	myAccounts = myAccounts.withAll(descriptions);
+	if (indexes != null) {
+	    List<Account> added = new ArrayList<Account>(newAccounts.size());
+	    for (Account account : newAccounts) {
+		added.add(handleFor(account));
+	    }
+	    for (AccountIndex index : indexes) {
+		index.addAll(added);
+	    }
+	}
+    }
+
+    /**
+     * Return the records of every account, in order by description,
+     * without creating handles for them.  This is for copying accounts
+     * into another store, as {@link StoreMerger} does.
+     *
+     * @return A read-only collection of the account records.
+     */
+    Collection<Account> getRecords() {
+	return myAccounts.values();
     }
 
     /**
-     * Update an existing account in the account store.
+     * Update an existing account in the account store.  The account is
+     * found by its UUID; the <code>Account</code> object handed out by
+     * this store for it is updated, but no other copy.
      *
      * @param account The account to be updated in the account store.
      * @param description The new description for <code>account</code>.
      * @param url The new URL for <code>account</code>.
      * @param username The new user name for <code>account</code>.
      * @param password The new password for <code>account</code>.
+     * @throws IllegalArgumentException The account isn't in this store.
      */
     public void updateAccount(Account account,
 			      String description, String url,
 			      String username, String password) {
-	myAccounts.remove(account.getDescription());
-	account.update(description, url, username, password);
-	myAccounts.put(account.getDescription(), account);
+	long stamp = lock.writeLock();
+	try {
+	    Account record = uuidMap.get(account.getUUID());
+	    if (record == null) {
+		throw new IllegalArgumentException(
+			"Account not in store: " + account.getDescription());
+	    }
+	    Account updated = record.clone();
+	    updated.update(description, url, username, password);
+	    replaceAccount(record, updated);
+	    journal.recordUpdate(updated);
+	} finally {
+	    lock.unlockWrite(stamp);
+	}
     }
 
     /**
@@ -172,30 +538,144 @@ public class AccountStore implements Iterable<Account>, Cloneable {
     public Account createAccount(String description, String url,
 				 String username, String password) {
 	Account account = new Account(description, url, username, password);
-	addAccount(account);
+	long stamp = lock.writeLock();
+	try {
+	    handles.put(account.getUUID(), account);
+	    addAccount(account.clone());
+	    journal.recordCreate(account);
+	} finally {
+	    lock.unlockWrite(stamp);
+	}
 	return account;
     }
 
     /**
      * Merge account entries from another account store, adding anything
-     * not already in this account store.
+     * not already in this account store.  Accounts new to this store
+     * are added, and the history of each account already here is
+     * merged with its history in the source.
+     *<p>
+     * Descriptions must remain unique, so a source account is merged
+     * only if afterwards no other account would have the same
+     * description.  Source accounts already in this store are
+     * considered first, and then new accounts, each group in order by
+     * description.  Each one is checked against this store as it will
+     * be after merging the accounts before it, so a new account may
+     * take the description of an account renamed by the merge.  A
+     * source account that fails the check isn't merged at all; the
+     * rest of the merge goes ahead.
+     *<p>
+     * The merge is planned before anything is changed, on a copy of
+     * the description map that shares its structure with the original;
+     * the planned map then replaces the original at once.
      *
      * @param mergeSource The source account store to be merged into
      *     this account store.
+     * @return The accounts from <code>mergeSource</code> that couldn't
+     *     be merged because of duplicate descriptions, in the order
+     *     they were considered.  The list is empty if everything was
+     *     merged.
      */
-    public void mergeAccounts(AccountStore mergeSource) {
+    public List<Account> mergeAccounts(AccountStore mergeSource) {
+	long stamp = lock.writeLock();
+	try {
+	    return mergeLocked(mergeSource);
+	} finally {
+	    lock.unlockWrite(stamp);
+	}
+    }
+
+    /**
+     * Merge account entries from another account store, as for {@link
+     * #mergeAccounts}, holding the write lock.
+     */
+    private List<Account> mergeLocked(AccountStore mergeSource) {
+	List<Account> rejected = new ArrayList<Account>();
+	List<Account> sourceAdded = new ArrayList<Account>();
+	List<Account> changed = new ArrayList<Account>();
 	for (Account account : mergeSource) {
 	    Account existing = uuidMap.get(account.getUUID());
-	    // FIXME: These operations will fail if it tries to create
-	    // a duplicate description.
 	    if (existing == null) {
-		addAccount(account);
+		sourceAdded.add(account);
+	    } else if (existing.isMissingHistory(account)) {
+		changed.add(account);
+	    }
+	}
+	if (sourceAdded.isEmpty() && changed.isEmpty()) {
+	    return rejected;
+	}
+
+	PersistentMap<String, Account> descriptions = myAccounts;
+	Iterator<Account> iter = changed.iterator();
+	while (iter.hasNext()) {
+	    Account account = iter.next();
+	    Account existing = uuidMap.get(account.getUUID());
+	    String description = existing.getMergedDescription(account);
+	    Account owner = descriptions.get(description);
+	    if (owner != null && owner != existing) {
+		rejected.add(account);
+		iter.remove();
+	    } else {
+		descriptions = descriptions.without(existing.getDescription())
+			.with(description, existing);
+	    }
+	}
+	// New accounts get records of their own, so that later changes
+	// in the source don't show up here.
+	List<Account> added = new ArrayList<Account>();
+	for (Account account : sourceAdded) {
+	    if (descriptions.containsKey(account.getDescription())) {
+		rejected.add(account);
 	    } else {
-		myAccounts.remove(existing.getDescription());
-		existing.mergeHistory(account);
-		myAccounts.put(existing.getDescription(), existing);
+		Account record = account.clone();
+		descriptions = descriptions.with(record.getDescription(),
+						 record);
+		added.add(record);
+	    }
+	}
+
+	PersistentMap<UUID, Account> uuids = uuidMap;
+	List<Account> merged = new ArrayList<Account>(changed.size());
+	for (Account account : changed) {
+	    Account existing = uuids.get(account.getUUID());
+	    if (indexes != null) {
+		Account handle = handleFor(existing);
+		for (AccountIndex index : indexes) {
+		    index.remove(handle);
+		}
+	    }
+	    Account record = existing.clone();
+	    record.mergeHistory(account);
+	    descriptions = descriptions.with(record.getDescription(), record);
+	    uuids = uuids.with(record.getUUID(), record);
+	    merged.add(record);
+	    journal.recordMerge(record);
+	}
+	for (Account record : added) {
+	    uuids = uuids.with(record.getUUID(), record);
+	    journal.recordMerge(record);
+	}
+	uuidMap = uuids;
+	myAccounts = descriptions;
+	for (Account record : merged) {
+	    updateHandle(record);
+	}
+	if (indexes != null) {
+	    for (Account record : merged) {
+		Account handle = handleFor(record);
+		for (AccountIndex index : indexes) {
+		    index.add(handle);
+		}
+	    }
+	    List<Account> addedHandles = new ArrayList<Account>(added.size());
+	    for (Account record : added) {
+		addedHandles.add(handleFor(record));
+	    }
+	    for (AccountIndex index : indexes) {
+		index.addAll(addedHandles);
 	    }
 	}
+	return rejected;
     }
 
     /**
@@ -204,8 +684,142 @@ public class AccountStore implements Iterable<Account>, Cloneable {
      * @param account The account to be deleted from the account store.
      */
     public void deleteAccount(Account account) {
-	uuidMap.remove(account.getUUID());
-	myAccounts.remove(account.getDescription());
+	long stamp = lock.writeLock();
+	try {
+	    Account removed = removeAccount(account);
+	    if (removed != null) {
+		journal.recordDelete(removed);
+	    }
+	} finally {
+	    lock.unlockWrite(stamp);
+	}
+    }
+
+    /**
+     * Remove an account from every map and index.  The account is found
+     * by its description, so <code>account</code> may be a copy of the
+     * account in the store.
+     *
+     * @param account The account to be removed.
+     * @return The account removed from the store, or <code>null</code>
+     *     if there was none.
+     */
+    private Account removeAccount(Account account) {
+	Account removed = myAccounts.get(account.getDescription());
+	if (removed != null) {
+	    myAccounts = myAccounts.without(removed.getDescription());
+	    uuidMap = uuidMap.without(removed.getUUID());
+	    Account handle = handles.remove(removed.getUUID());
+	    if (indexes != null && handle != null) {
+		for (AccountIndex index : indexes) {
+		    index.remove(handle);
+		}
+	    }
+	}
+	return removed;
+    }
+
+    /**
+     * The accounts in a store at some moment, as returned by {@link
+     * #getVersion}.  A version holds on to the store's account maps as
+     * they were; since the maps are persistent, it costs only the parts
+     * of the maps that have changed since.
+     */
+    static final class Version {
+	final PersistentMap<String, Account> accounts;
+	final PersistentMap<UUID, Account> uuids;
+
+	Version(PersistentMap<String, Account> accounts,
+		PersistentMap<UUID, Account> uuids) {
+	    this.accounts = accounts;
+	    this.uuids = uuids;
+	}
+    }
+
+    /**
+     * Return the current version of this store's accounts, to be
+     * restored later with {@link #restore}.
+     *
+     * @return The current version.
+     */
+    Version getVersion() {
+	long stamp = lock.readLock();
+	try {
+	    return new Version(myAccounts, uuidMap);
+	} finally {
+	    lock.unlockRead(stamp);
+	}
+    }
+
+    /**
+     * Put back the accounts from an earlier version of this store.
+     * Accounts added since the version are deleted, accounts deleted
+     * since are added back, and every other account gets back the
+     * history it had.  The work done is in proportion to the number of
+     * accounts that differ; see {@link PersistentMap#changedKeys}.
+     *<p>
+     * The change is journaled like any other:  accounts that are
+     * deleted, or that get back an old description, are recorded as
+     * deleted, and then every account restored is recorded as merged.
+     * Deleting first means no two accounts share a description while
+     * the records are replayed.
+     *
+     * @param version The version to restore.
+     */
+    void restore(Version version) {
+	long stamp = lock.writeLock();
+	try {
+	    List<UUID> changed = uuidMap.changedKeys(version.uuids);
+	    List<Account> oldHandles = new ArrayList<Account>();
+	    if (indexes != null) {
+		for (UUID uuid : changed) {
+		    Account old = uuidMap.get(uuid);
+		    if (old != null) {
+			oldHandles.add(handleFor(old));
+		    }
+		}
+		for (Account handle : oldHandles) {
+		    for (AccountIndex index : indexes) {
+			index.remove(handle);
+		    }
+		}
+	    }
+	    PersistentMap<UUID, Account> oldUuids = uuidMap;
+	    myAccounts = version.accounts;
+	    uuidMap = version.uuids;
+
+	    List<Account> restored = new ArrayList<Account>();
+	    for (UUID uuid : changed) {
+		Account old = oldUuids.get(uuid);
+		Account record = uuidMap.get(uuid);
+		if (record == null) {
+		    handles.remove(uuid);
+		    journal.recordDelete(old);
+		    continue;
+		}
+		if (old != null) {
+		    updateHandle(record);
+		    if (!old.getDescription().equals(record.getDescription())) {
+			journal.recordDelete(old);
+		    }
+		}
+		restored.add(record);
+	    }
+	    for (Account record : restored) {
+		journal.recordMerge(record);
+	    }
+	    if (indexes != null) {
+		List<Account> newHandles = new ArrayList<Account>();
+		for (Account record : restored) {
+		    newHandles.add(handleFor(record));
+		}
+		for (AccountIndex index : indexes) {
+		    index.addAll(newHandles);
+		}
+	    }
+	} finally {
+	    lock.unlockWrite(stamp);
+	}
     }
 
     /**
@@ -219,31 +833,168 @@ public class AccountStore implements Iterable<Account>, Cloneable {
 
     /**
      * Return an <code>Iterator</code> over every account.  Iteration
-     * returns the accounts ordered by their description.
+     * returns the accounts ordered by their description.  The iterator
+     * may be used while the store is changing; it returns the accounts
+     * that were in the store when the iteration started, but an
+     * account changed meanwhile may be returned with its new data.
      *
      * @return An iterator over all the accounts.
      */
     public Iterator<Account> iterator() {
-	return myAccounts.values().iterator();
+	final Iterator<Account> records = myAccounts.values().iterator();
+	return new Iterator<Account>() {
+	    public boolean hasNext() {
+		return records.hasNext();
+	    }
+
+	    public Account next() {
+		return handleFor(records.next());
+	    }
+	};
+    }
+
+    /**
+     * Return the account with a given description.  The description
+     * must match exactly.
+     *
+     * @param description The description to look up.
+     * @return The account with the description, or <code>null</code>
+     *     if there's none.
+     */
+    public Account getAccount(String description) {
+	Account record = myAccounts.get(description);
+	return record == null ? null : handleFor(record);
+    }
+
+    /**
+     * Return every account with a given URL.  The URL must match
+     * exactly.
+     *
+     * @param url The URL to look up.
+     * @return A read-only collection of the matching accounts; the
+     *     collection is empty if there are none.
+     */
+    public Collection<Account> getAccountsByUrl(String url) {
+	long stamp = lockIndexes();
+	try {
+	    return copyOf(urlIndex.get(url));
+	} finally {
+	    lock.unlock(stamp);
+	}
+    }
+
+    /**
+     * Return every account with a given user name.  The user name must
+     * match exactly.
+     *
+     * @param username The user name to look up.
+     * @return A read-only collection of the matching accounts; the
+     *     collection is empty if there are none.
+     */
+    public Collection<Account> getAccountsByUsername(String username) {
+	long stamp = lockIndexes();
+	try {
+	    return copyOf(usernameIndex.get(username));
+	} finally {
+	    lock.unlock(stamp);
+	}
+    }
+
+    /**
+     * Return every account whose URL is in the same registrable domain
+     * as a given URL or host name.  For example, looking up
+     * "https://login.example.com/" finds accounts for
+     * "http://www.example.com/" and "https://example.com/account".
+     *
+     * @param url The URL or host name to look up.
+     * @return A read-only collection of the matching accounts; the
+     *     collection is empty if there are none.
+     */
+    public Collection<Account> getAccountsByDomain(String url) {
+	String domain = AttributeIndex.registrableDomain(url);
+	if (domain == null) {
+	    return Collections.emptyList();
+	}
+	long stamp = lockIndexes();
+	try {
+	    return copyOf(domainIndex.get(domain));
+	} finally {
+	    lock.unlock(stamp);
+	}
+    }
+
+    /**
+     * Return a read-only copy of the accounts found in an index, so
+     * that it can be used after the lock is released.
+     */
+    private static Collection<Account> copyOf(Collection<Account> accounts) {
+	return Collections.unmodifiableList(new ArrayList<Account>(accounts));
+    }
+
+    /**
+     * Search for accounts whose description or URL contains a given
+     * string, ignoring case.  Accounts where the string is found at
+     * the start of the description or URL come first, then those where
+     * it starts a word, then the rest.  Searches are fast enough to
+     * repeat as each character of a query is typed.
+     *
+     * @param query The string to search for.
+     * @param limit The largest number of accounts to return.
+     * @return A list of at most <code>limit</code> matching accounts,
+     *     best first.  The list is empty if the query is empty.
+     */
+    public List<Account> search(String query, int limit) {
+	long stamp = lockIndexes();
+	try {
+	    return searchIndex.search(query.trim(), limit);
+	} finally {
+	    lock.unlock(stamp);
+	}
+    }
+
+    /**
+     * Search for accounts whose description, URL or user name
+     * approximately matches a given string, allowing for typing
+     * mistakes.  Earlier descriptions, URLs and user names from each
+     * account's update history are searched as well.  The search
+     * gives up after a few milliseconds, returning the best matches
+     * found by then, so that it's fast enough to repeat as each
+     * character of a query is typed, even in a large store.
+     *
+     * @param query The string to search for.
+     * @param limit The largest number of accounts to return.
+     * @return A list of at most <code>limit</code> matching accounts,
+     *     best first.
+     */
+    public List<Account> fuzzySearch(String query, int limit) {
+	long stamp = lockIndexes();
+	try {
+	    return fuzzyIndex.search(query, limit,
+				     FuzzyIndex.DEFAULT_BUDGET);
+	} finally {
+	    lock.unlock(stamp);
+	}
     }
 
     /**
      * Read the file magic from the start of a saved file, to determine
-     * its format version.  If the stream starts with a recognized magic
+     * its format version.  If the buffer starts with a recognized magic
      * string, return the associated file format version number.  If the
      * magic isn't recognized as a supported version, throw an
      * <code>IOException</code>.
      *
-     * @param in The input stream from which to read version magic.
+     * @param buffer The buffer from which to read version magic,
+     *     starting at its position.
      * @return The file format version number.
      * @throws IOException indicates that the file magic couldn't be
      *     read, or wasn't recognized.
      */
-    private int readMagic(InputStream in) throws IOException {
-	byte[] magic = new byte[FILEMAGIC.length()];
-	int nRead = in.read(magic);
-	String magicString = new String(magic, 0, nRead);
-	if (nRead < magic.length) {
+    static int readMagic(ByteBuffer buffer) throws IOException {
+	byte[] magic = new byte[Math.min(FILEMAGIC.length(),
+					 buffer.remaining())];
+	buffer.get(magic);
+	String magicString = new String(magic);
+	if (magic.length < FILEMAGIC.length()) {
 	    throw new AccountFileFormatException(
 		    "Magic truncated: " + magicString);
 	}
@@ -259,132 +1010,565 @@ public class AccountStore implements Iterable<Account>, Cloneable {
     }
 
     /**
-     * Create an encryption key from a password.  The key is used to
-     * read or write a save file.  The password specification object
-     * used to create the secret key is remembered, and can be re-used
-     * in later operations.
+     * Create an encryption key from a password and the current password
+     * salt.  The key is used to read or write a save file.  The derived
+     * key is remembered, and can be re-used in later operations; any
+     * previously remembered key is destroyed.
      *
      * @param password A character array holding the password to be used
      *     for constructing the key.
-     * @return A cryptographic key usable in <code>Cipher</code>
-     *     methods.
+     * @return The newly derived key.
      * @throws GeneralSecurityException Indicates a failure constructing
-     *     the key or cipher.
+     *     the key.
      */
-    private Key makeKey(char[] password)
+    private DerivedKey makeKey(char[] password)
 	    throws GeneralSecurityException {
-	fileKey = new PBEKeySpec(password, passwordSalt,
-				 PASSWORD_COUNT, KEY_BITS);
-	for (int i = 0; i < password.length; i++) {
-	    password[i] = ' ';
+	DerivedKey newKey = new DerivedKey(password, passwordSalt);
+	if (sessionKey != null) {
+	    sessionKey.destroy();
 	}
-	SecretKeyFactory factory =
-		SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
-	SecretKey passwordSecret = factory.generateSecret(fileKey);
-	return new SecretKeySpec(passwordSecret.getEncoded(),
-				 PASSWORD_TYPE);
+	sessionKey = newKey;
+	return newKey;
     }
 
     /**
-     * Create an input stream that reads and decrypts account data from
-     * a raw input stream.
+     * Decrypt the account data in a file in format version 1 or 2.
      *<p>
      * Parameters needed to initialize the decryption are read
-     * unencrypted from the raw input stream.
+     * unencrypted from the start of the buffer; the rest of the buffer
+     * is decrypted in one operation.
      *<p>
      * The password used to generate the encryption key is remembered,
      * and may be re-used in subsequent write operations.
      *
-     * @param raw Input stream from which encrypted data will be read
-     *     and decrypted.
+     * @param buffer The buffer holding the file after its magic.
      * @param password A character array holding the password that will
      *     decrypt the account data.
-     * @return A data input stream that can supply decrypted account
-     *     data.
+     * @return A buffer holding the decrypted account data.
      * @throws GeneralSecurityException Indicates a failure constructing
-     *     the key or cipher.
-     * @throws IOException Indicates a failure when reading the decryption
-     *     parameters.
+     *     the key or cipher, or during decryption.
+     * @throws IOException Indicates that the decryption parameters are
+     *     missing.
      */
-    private DataInputStream makeInput(InputStream raw, char[] password)
+    private ByteBuffer decryptUnjournaled(ByteBuffer buffer,
+					  char[] password)
 	    throws GeneralSecurityException, IOException {
-	raw.read(passwordSalt);
-	raw.read(ivBlock);
+	ByteBufferDataInput in = new ByteBufferDataInput(buffer);
+	in.readFully(passwordSalt);
+	in.readFully(ivBlock);
 	Cipher fileCipher = Cipher.getInstance(CIPHER_ALGORITHM);
 	fileCipher.init(Cipher.DECRYPT_MODE,
-			makeKey(password),
+			makeKey(password).getKey(),
 			new IvParameterSpec(ivBlock));
-	InputStream decryptedStream =
-	    new CipherInputStream(raw, fileCipher);
-	return new DataInputStream(decryptedStream);
+	long start = System.nanoTime();
+	ByteBuffer plaintext = ByteBuffer.allocate(
+		fileCipher.getOutputSize(buffer.remaining()));
+	fileCipher.doFinal(buffer, plaintext);
+	plaintext.flip();
+	StoreMetrics.DECRYPT.record(start);
+	return plaintext;
     }
 
     /**
-     * Create an output stream that encrypts and writes account data to
-     * a raw output stream.
+     * Read account data from the given stream using the given password.
+     * The key derived from the password will be remembered, and can be
+     * reused for subsequent write operations.
      *<p>
-     * Parameters needed to initialize the encryption are written
-     * unencrypted to the raw output stream.
+     * The whole stream is read into memory before it is decrypted.
+     * When reading from a file, {@link #readAccounts(Path, char[])} is
+     * preferred.
      *
-     * @param raw Output to which encrypted data will be written.
+     * @param raw The input stream from which encrypted data will be
+     *     read.
      * @param password A character array holding the password that will
-     *     encrypt the account data.
-     * @return A data output stream that can receive unencrypted account
-     *     data.
-     * @throws GeneralSecurityException Indicates a failure constructing
-     *     the key or cipher.
-     * @throws IOException Indicates a failure when writing the encryption
-     *     parameters.
+     *     decrypt the account data.
+     * @throws GeneralSecurityException Indicates a failure during
+     *     decryption.
+     * @throws IOException Indicates a failure reading data.
      */
-    private DataOutputStream makeOutput(OutputStream raw, char[] password)
+    public void readAccounts(InputStream raw, char[] password)
 	    throws GeneralSecurityException, IOException {
-	randomSource.nextBytes(passwordSalt);
-	randomSource.nextBytes(ivBlock);
-	raw.write(passwordSalt);
-	raw.write(ivBlock);
-	Cipher fileCipher = Cipher.getInstance(CIPHER_ALGORITHM);
-	fileCipher.init(Cipher.ENCRYPT_MODE,
-			makeKey(password),
-			new IvParameterSpec(ivBlock));
-	OutputStream encryptedStream =
-	    new CipherOutputStream(raw, fileCipher);
-	return new DataOutputStream(encryptedStream);
+	readAccounts(ByteBuffer.wrap(raw.readAllBytes()), password);
     }
 
     /**
-     * Read account data from the given stream using the given password.
-     * The password will be remembered, and can be reused for subsequent
-     * write operations.
+     * Read account data from the given file using the given password.
+     * The key derived from the password will be remembered, and can be
+     * reused for subsequent write operations.
+     *<p>
+     * The file is memory-mapped, and decrypted directly from the
+     * mapping, without copying it through a stream.
      *
-     * @param raw The input stream from which encrypted data will be
-     *     read.
+     * @param path The file from which encrypted data will be read.
      * @param password A character array holding the password that will
      *     decrypt the account data.
      * @throws GeneralSecurityException Indicates a failure during
      *     decryption.
      * @throws IOException Indicates a failure reading data.
      */
-    public void readAccounts(InputStream raw, char[] password)
+    public void readAccounts(Path path, char[] password)
+	    throws GeneralSecurityException, IOException {
+	FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+	try {
+	    long size = channel.size();
+	    if (size > Integer.MAX_VALUE) {
+		throw new AccountFileFormatException(
+			"File too large: " + size + " bytes");
+	    }
+	    readAccounts(channel.map(FileChannel.MapMode.READ_ONLY, 0, size),
+			 password);
+	} finally {
+	    channel.close();
+	}
+    }
+
+    /**
+     * Read account data from a buffer holding the contents of a saved
+     * file.
+     *
+     * @param buffer The buffer from which encrypted data will be read,
+     *     starting at its position.
+     * @param password A character array holding the password that will
+     *     decrypt the account data.
+     * @throws GeneralSecurityException Indicates a failure during
+     *     decryption.
+     * @throws IOException Indicates a truncated or malformed file.
+     */
+    private synchronized void readAccounts(ByteBuffer buffer,
+					   char[] password)
+	    throws GeneralSecurityException, IOException {
+	long stamp = lock.writeLock();
+	try {
+	    readAccountsLocked(buffer, password);
+	} finally {
+	    lock.unlockWrite(stamp);
+	}
+    }
+
+    /**
+     * Read account data from a buffer, as for {@link
+     * #readAccounts(ByteBuffer, char[])}, holding the write lock.
+     */
+    private void readAccountsLocked(ByteBuffer buffer, char[] password)
 	    throws GeneralSecurityException, IOException {
-	int formatVersion = readMagic(raw);
+	int formatVersion = readMagic(buffer);
 	if (formatVersion < FORMAT_V1) {
 	    throw new AccountFileFormatException(
 		    "File format V" + formatVersion
 		    + " is not supported");
 	}
 	initialize();
-	DataInputStream in = makeInput(raw, password);
+	if (formatVersion >= FORMAT_V3) {
+	    readJournaledAccounts(buffer, password, formatVersion);
+	    return;
+	}
+	ByteBufferDataInput in = new ByteBufferDataInput(
+		decryptUnjournaled(buffer, password));
+	long start = System.nanoTime();
 	int nElements = in.readInt();
 	for (int i = 0; i < nElements; i++) {
 	    addAccount(new Account(in, formatVersion));
 	}
-	in.close();
+	StoreMetrics.PARSE.record(start);
+    }
+
+    /**
+     * Read the rest of a file in format version 3 or later, after the
+     * file magic.  The snapshot at the start of the file is read, and
+     * then the change records following it are replayed in order.
+     * Starting with version 4, the snapshot is a {@link
+     * ChunkedSnapshot}, which is decrypted and parsed in parallel.
+     *<p>
+     * The change records serve as a write-ahead log:  each change is
+     * appended as it's made, and replayed here.  A save interrupted by
+     * a crash can tear the last record, but nothing before it; see
+     * {@link #isTornRecord}.  A torn record is ignored, and the file
+     * holds every change up to it.  The next save will then write a
+     * fresh snapshot, rather than appending after the damage.  Damage
+     * anywhere else in the log can't be explained by a crash, so the
+     * file is rejected rather than silently losing the changes after
+     * the damage.  Change records are always written in the current
+     * format, so a file in an older format also gets a fresh snapshot
+     * on the next save.
+     *
+     * @param buffer The buffer from which encrypted data will be read,
+     *     starting at its position.
+     * @param password A character array holding the password that will
+     *     decrypt the account data.
+     * @param formatVersion The version of the file format being read.
+     * @throws GeneralSecurityException Indicates a failure during
+     *     decryption.
+     * @throws IOException Indicates a truncated or malformed file,
+     *     including damage in the middle of the change log.
+     */
+    private void readJournaledAccounts(ByteBuffer buffer, char[] password,
+				       int formatVersion)
+	    throws GeneralSecurityException, IOException {
+	buffer.get(passwordSalt);
+	DerivedKey key = makeKey(password);
+	long seq;
+	long snapshotSize;
+	if (formatVersion >= FORMAT_V4) {
+	    ChunkedSnapshot snapshot =
+		    ChunkedSnapshot.read(buffer, key, formatVersion);
+	    addAccounts(snapshot.getAccounts());
+	    seq = snapshot.getSeq();
+	    snapshotSize = snapshot.getSize();
+	} else {
+	    int start = buffer.position();
+	    ByteBuffer snapshot = readSection(buffer, key);
+	    if (snapshot == null) {
+		throw new AccountFileFormatException(
+			"Account snapshot missing");
+	    }
+	    ByteBufferDataInput data = new ByteBufferDataInput(snapshot);
+	    ChunkedSnapshot.readHeader(data);
+	    seq = data.readLong();
+	    int nElements = data.readInt();
+	    for (int i = 0; i < nElements; i++) {
+		addAccount(new Account(data, formatVersion));
+	    }
+	    snapshotSize = buffer.position() - start;
+	}
+
+	int logStart = buffer.position();
+	boolean appendable = true;
+	for (;;) {
+	    int recordStart = buffer.position();
+	    ByteBuffer record;
+	    try {
+		record = readSection(buffer, key);
+	    } catch (EOFException | AccountFileFormatException
+		     | AEADBadTagException e) {
+		if (!isTornRecord(buffer, recordStart, e)) {
+		    throw new AccountFileFormatException(
+			    "Change log damaged at byte " + recordStart);
+		}
+		appendable = false;
+		break;
+	    }
+	    if (record == null) {
+		break;
+	    }
+	    seq = replayRecord(new ByteBufferDataInput(record), seq,
+			       formatVersion);
+	}
+	appendable = appendable && formatVersion == FORMAT_CURRENT;
+	journal.opened(seq, appendable, snapshotSize,
+		       buffer.position() - logStart);
+    }
+
+    /**
+     * Apply one change record read from a file.  Records for changes
+     * already applied are skipped.
+     *
+     * @param in The decrypted change record.
+     * @param lastSeq The sequence number of the most recent change
+     *     applied.
+     * @param formatVersion The version of the file format being read.
+     * @return The sequence number of the most recent change applied
+     *     after this record.
+     * @throws IOException Indicates a malformed record.
+     */
+    private long replayRecord(DataInput in, long lastSeq,
+			      int formatVersion)
+	    throws IOException {
+	byte type = in.readByte();
+	long seq = in.readLong();
+	if (seq <= lastSeq) {
+	    return lastSeq;
+	}
+	Account account;
+	switch (type) {
+	case Journal.CREATE:
+	    addAccount(new Account(in, formatVersion));
+	    break;
+	case Journal.UPDATE:
+	    account = findRecordedAccount(
+		    Account.readUUID(in, formatVersion));
+	    Account updated = account.clone();
+	    updated.readUpdate(in, formatVersion);
+	    replaceAccount(account, updated);
+	    break;
+	case Journal.DELETE:
+	    removeAccount(findRecordedAccount(
+		    Account.readUUID(in, formatVersion)));
+	    break;
+	case Journal.MERGE:
+	    account = new Account(in, formatVersion);
+	    Account existing = uuidMap.get(account.getUUID());
+	    if (existing != null) {
+		removeAccount(existing);
+	    }
+	    addAccount(account);
+	    break;
+	default:
+	    throw new AccountFileFormatException(
+		    "Unknown change record type " + type);
+	}
+	return seq;
+    }
+
+    /**
+     * Return the account named by the UUID in a change record.
+     *
+     * @param uuid The account UUID.
+     * @return The account with the given UUID.
+     * @throws AccountFileFormatException There's no such account.
+     */
+    private Account findRecordedAccount(UUID uuid)
+	    throws AccountFileFormatException {
+	Account account = uuidMap.get(uuid);
+	if (account == null) {
+	    throw new AccountFileFormatException(
+		    "Change record for unknown account " + uuid);
+	}
+	return account;
+    }
+
+    /**
+     * Return the number of bytes in a file taken up by an encrypted
+     * section.
+     *
+     * @param plaintextSize The size of the section before encryption.
+     * @return The size of the section in the file.
+     */
+    private static long sectionSize(int plaintextSize) {
+	return 4 + NONCE_BYTES + plaintextSize + TAG_BITS / 8;
+    }
+
+    /**
+     * Read and decrypt one section of a file in format version 3 or
+     * later.  A section consists of the length of the encrypted data,
+     * a nonce, and the encrypted data with its authentication tag.
+     *
+     * @param in The input stream from which to read the section.
+     * @param key The key that will decrypt the section.
+     * @return The decrypted contents of the section, or
+     *     <code>null</code> if the input stream is at end of file.
+     * @throws EOFException The input stream ends partway through the
+     *     section.
+     * @throws GeneralSecurityException Indicates a failure during
+     *     decryption, including a section that fails authentication.
+     * @throws IOException Indicates a failure reading data.
+     */
+    static byte[] readSection(DataInputStream in, DerivedKey key)
+	    throws GeneralSecurityException, IOException {
+	int first = in.read();
+	if (first < 0) {
+	    return null;
+	}
+	int length = (first << 24)
+		| (in.readUnsignedByte() << 16)
+		| (in.readUnsignedByte() << 8)
+		| in.readUnsignedByte();
+	if (length < TAG_BITS / 8 || length > MAX_SECTION_BYTES) {
+	    throw new AccountFileFormatException(
+		    "Invalid section length " + length);
+	}
+	byte[] nonce = new byte[NONCE_BYTES];
+	in.readFully(nonce);
+	byte[] encrypted = new byte[length];
+	in.readFully(encrypted);
+	long start = System.nanoTime();
+	Cipher sectionCipher = Cipher.getInstance(SECTION_ALGORITHM);
+	sectionCipher.init(Cipher.DECRYPT_MODE,
+			   key.getKey(),
+			   new GCMParameterSpec(TAG_BITS, nonce));
+	byte[] plaintext = sectionCipher.doFinal(encrypted);
+	StoreMetrics.DECRYPT.record(start);
+	return plaintext;
+    }
+
+    /**
+     * Read and decrypt one section from a buffer, in the form read by
+     * {@link #readSection(DataInputStream, DerivedKey)}.  The section is
+     * decrypted directly from the buffer.  If the section is incomplete,
+     * the buffer's position is left unchanged.
+     *
+     * @param buffer The buffer from which to read the section, starting
+     *     at its position.
+     * @param key The key that will decrypt the section.
+     * @return A buffer holding the decrypted contents of the section,
+     *     or <code>null</code> if there are no bytes remaining.
+     * @throws EOFException The buffer ends partway through the section.
+     * @throws GeneralSecurityException Indicates a failure during
+     *     decryption, including a section that fails authentication.
+     * @throws IOException Indicates a malformed section.
+     */
+    static ByteBuffer readSection(ByteBuffer buffer, DerivedKey key)
+	    throws GeneralSecurityException, IOException {
+	if (!buffer.hasRemaining()) {
+	    return null;
+	}
+	if (buffer.remaining() < 4) {
+	    throw new EOFException();
+	}
+	int length = buffer.getInt(buffer.position());
+	if (length < TAG_BITS / 8 || length > MAX_SECTION_BYTES) {
+	    throw new AccountFileFormatException(
+		    "Invalid section length " + length);
+	}
+	if (buffer.remaining() - 4 < NONCE_BYTES + length) {
+	    throw new EOFException();
+	}
+	byte[] nonce = new byte[NONCE_BYTES];
+	buffer.position(buffer.position() + 4);
+	buffer.get(nonce);
+	ByteBuffer encrypted = buffer.slice();
+	encrypted.limit(length);
+	buffer.position(buffer.position() + length);
+	long start = System.nanoTime();
+	Cipher sectionCipher = Cipher.getInstance(SECTION_ALGORITHM);
+	sectionCipher.init(Cipher.DECRYPT_MODE,
+			   key.getKey(),
+			   new GCMParameterSpec(TAG_BITS, nonce));
+	ByteBuffer plaintext = ByteBuffer.allocate(
+		sectionCipher.getOutputSize(length));
+	sectionCipher.doFinal(encrypted, plaintext);
+	plaintext.flip();
+	StoreMetrics.DECRYPT.record(start);
+	return plaintext;
+    }
+
+    /**
+     * Return whether a change record that couldn't be read was torn by
+     * a crash during a save, rather than damaged some other way.  A
+     * crash can leave the last record incomplete, or leave the file
+     * extended past the records that reached the disk, filled with
+     * zeros.  So a record is torn if the file ends partway through it,
+     * or if nothing but zeros follows it:  following its start, if
+     * its length is invalid, or its end, if it fails authentication.
+     *
+     * @param buffer The buffer holding the file, positioned as {@link
+     *     #readSection(ByteBuffer, DerivedKey)} left it after failing.
+     * @param start The position of the record in the buffer.
+     * @param failure The failure reading the record.
+     * @return True if the record is torn.
+     */
+    static boolean isTornRecord(ByteBuffer buffer, int start,
+				Exception failure) {
+	if (failure instanceof EOFException) {
+	    return true;
+	}
+	int from = failure instanceof AEADBadTagException
+		? buffer.position() : start;
+	for (int i = from; i < buffer.limit(); i++) {
+	    if (buffer.get(i) != 0) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    /**
+     * Encrypt and write one section of a file in format version 3 or
+     * later, in the form read by {@link #readSection}.  Every section
+     * gets a fresh random nonce.
+     *
+     * @param out The output stream to which to write the section.
+     * @param key The key that will encrypt the section.
+     * @param plaintext The contents of the section.
+     * @return The number of bytes written.
+     * @throws GeneralSecurityException Indicates a failure during
+     *     encryption.
+     * @throws IOException Indicates a failure writing data.
+     */
+    private static long writeSection(DataOutputStream out, DerivedKey key,
+				     byte[] plaintext)
+	    throws GeneralSecurityException, IOException {
+	byte[] nonce = new byte[NONCE_BYTES];
+	randomSource.nextBytes(nonce);
+	Cipher sectionCipher = Cipher.getInstance(SECTION_ALGORITHM);
+	sectionCipher.init(Cipher.ENCRYPT_MODE,
+			   key.getKey(),
+			   new GCMParameterSpec(TAG_BITS, nonce));
+	byte[] encrypted = sectionCipher.doFinal(plaintext);
+	out.writeInt(encrypted.length);
+	out.write(nonce);
+	out.write(encrypted);
+	return sectionSize(plaintext.length);
+    }
+
+    /**
+     * Select whether account data written by {@link #writeAccounts} is
+     * compressed before it is encrypted.  Compression is on by default.
+     * Files are read correctly either way.
+     *
+     * @param compress True if later writes should be compressed.
+     */
+    public void setCompressionEnabled(boolean compress) {
+	compressSnapshots = compress;
+    }
+
+    /**
+     * Return whether account data written by {@link #writeAccounts} is
+     * compressed.
+     *
+     * @return True if writes are compressed.
+     */
+    public boolean isCompressionEnabled() {
+	return compressSnapshots;
+    }
+
+    /**
+     * Write account data to the given stream using the given key.  The
+     * file written contains a snapshot of every account, and no change
+     * records.  The read lock is held while writing, so the snapshot
+     * is consistent with the journal.
+     *<p>
+     * If nothing has changed since the last snapshot was written with
+     * the same key, the initialization vector is used again, so the
+     * same bytes are written.  Since the plaintext is the same, this
+     * gives away nothing but that the content hasn't changed.
+     *
+     * @param raw The output stream to which encrypted data will be
+     *     written.
+     * @param key The key that will encrypt the account data.
+     * @throws GeneralSecurityException Indicates a failure during
+     *     encryption.
+     * @throws IOException Indicates a failure writing data.
+     */
+    private void writeAccounts(OutputStream raw, DerivedKey key)
+	    throws GeneralSecurityException, IOException {
+	long stamp = lock.readLock();
+	try {
+	    PersistentMap<String, Account> accounts = myAccounts;
+	    long seq = journal.getLastSeq();
+	    boolean compress = compressSnapshots;
+	    byte[] iv;
+	    if (lastWritten != null
+		    && lastWritten.matches(accounts, seq, compress,
+					   key.getSalt())) {
+		iv = lastWritten.iv;
+	    } else {
+		iv = new byte[NONCE_BYTES];
+		randomSource.nextBytes(iv);
+	    }
+	    DataOutputStream out = new DataOutputStream(raw);
+	    out.write(FILEMAGIC.getBytes());
+	    out.write(key.getSalt());
+	    long snapshotSize = ChunkedSnapshot.write(
+		    out, key, iv, seq, accounts.values(), compress);
+	    out.close();
+	    journal.savedSnapshot(snapshotSize);
+	    lastWritten = new WrittenSnapshot(accounts, seq, compress,
+					      key.getSalt().clone(), iv);
+	} finally {
+	    lock.unlockRead(stamp);
+	}
     }
 
     /**
      * Write account data to the given stream using the given password.
-     * The password will be remembered, and can be reused for subsequent
-     * write operations.
+     * The key derived from the password will be remembered, and can be
+     * reused for subsequent write operations.
+     *<p>
+     * If the password is the one the remembered key was derived from,
+     * the key and its salt are kept, so that writing an unchanged store
+     * again writes the same bytes.  Otherwise, a new password salt is
+     * generated.  Finding out costs a key derivation; if the password
+     * has changed, a second derivation is needed with the new salt.
      *
      * @param raw The output stream to which encrypted data will be
      *     written.
@@ -394,21 +1578,30 @@ public class AccountStore implements Iterable<Account>, Cloneable {
      *     encryption.
      * @throws IOException Indicates a failure writing data.
      */
-    public void writeAccounts(OutputStream raw, char[] password)
+    public synchronized void writeAccounts(OutputStream raw,
+					   char[] password)
 	    throws GeneralSecurityException, IOException {
-	raw.write(FILEMAGIC.getBytes());
-	DataOutputStream out = makeOutput(raw, password);
-	out.writeInt(myAccounts.size());
-	for (Account acct : myAccounts.values()) {
-	    acct.writeAccount(out);
+	if (sessionKey != null) {
+	    DerivedKey key = new DerivedKey(password.clone(),
+					    sessionKey.getSalt());
+	    boolean same = key.sameKey(sessionKey);
+	    key.destroy();
+	    if (same) {
+		Arrays.fill(password, ' ');
+		writeAccounts(raw, sessionKey);
+		return;
+	    }
 	}
-	out.close();
+	randomSource.nextBytes(passwordSalt);
+	writeAccounts(raw, makeKey(password));
     }
 
     /**
-     * Write account data to the given stream using the saved password.
-     * The password used is from the most recent read or write operation
-     * that provided one.  If there is no saved password, a
+     * Write account data to the given stream using the saved key.
+     * The key used is the one derived from the password in the most
+     * recent read or write operation that provided one.  The key and
+     * its salt are re-used as is, so the cost of deriving the key from
+     * the password isn't paid again.  If there is no saved key, a
      * <code>NullPointerException</code> exception will be thrown.
      *
      * @param outStream The output stream to which encrypted data will
@@ -418,28 +1611,218 @@ public class AccountStore implements Iterable<Account>, Cloneable {
      * @throws IOException Indicates a failure writing data.
      * @throws NullPointerException There is no saved password.
      */
-    public void writeAccounts(OutputStream outStream)
+    public synchronized void writeAccounts(OutputStream outStream)
 	    throws GeneralSecurityException, IOException {
-	writeAccounts(outStream, fileKey.getPassword());
+	if (sessionKey == null) {
+	    throw new NullPointerException("No saved password");
+	}
+	writeAccounts(outStream, sessionKey);
     }
 
-    @Override
-    protected AccountStore clone() {
+    /**
+     * Destroy the key remembered from the password, and forget every
+     * account, leaving this store empty.  Afterwards, the store can
+     * only be saved with a password.  This is for a store that must no
+     * longer be usable, such as one kept open by a program that's
+     * locking itself.  The accounts are dropped rather than erased;
+     * their data remains in memory until it's garbage collected.
+     */
+    public synchronized void destroy() {
+	long stamp = lock.writeLock();
+	try {
+	    if (sessionKey != null) {
+		sessionKey.destroy();
+		sessionKey = null;
+	    }
+	    lastWritten = null;
+	    initialize();
+	} finally {
+	    lock.unlockWrite(stamp);
+	}
+    }
+
+    /**
+     * Return a count of the changes made to this store.  The count
+     * goes up with every change, including changes read from a file's
+     * change log, so two calls that return the same count saw the same
+     * accounts.
+     *
+     * @return The number of changes made so far.
+     */
+    public long getModificationCount() {
+	long stamp = lock.readLock();
+	try {
+	    return journal.getLastSeq();
+	} finally {
+	    lock.unlockRead(stamp);
+	}
+    }
+
+    /**
+     * Return whether this store has changed since it was last read
+     * from or written to a file, or since a snapshot of it that was
+     * marked saved with {@link #markSaved}.  A store that has never
+     * been read or saved counts as changed.  Callers such as autosave
+     * can skip writing a store that hasn't changed.
+     *
+     * @return True if there are changes that haven't been saved.
+     */
+    public boolean isModified() {
+	long stamp = lock.readLock();
+	try {
+	    return journal.hasUnsavedChanges();
+	} finally {
+	    lock.unlockRead(stamp);
+	}
+    }
+
+    /**
+     * Return whether an account has changes that haven't been saved,
+     * as for {@link #isModified()}.  The account is found by its UUID.
+     *
+     * @param account The account to be checked.
+     * @return True if the account was created, changed or deleted
+     *     since the store was last read or saved.
+     */
+    public boolean isModified(Account account) {
+	long stamp = lock.readLock();
+	try {
+	    return journal.hasUnsavedChanges(account.getUUID());
+	} finally {
+	    lock.unlockRead(stamp);
+	}
+    }
+
+    /**
+     * Return whether the changes made since the last save can be
+     * appended to the saved file with {@link #appendAccounts}.  This is
+     * true if this store was last read from or written to a file in
+     * the current format, and the change log in that file hasn't grown
+     * past the point where it should be compacted.  Otherwise, the
+     * whole store must be saved with {@link
+     * #writeAccounts(OutputStream)}, which compacts the file into a
+     * fresh snapshot.
+     *
+     * @return True if changes can be appended to the saved file.
+     */
+    public synchronized boolean canAppend() {
+	long stamp = lock.readLock();
+	try {
+	    return sessionKey != null && journal.canAppend();
+	} finally {
+	    lock.unlockRead(stamp);
+	}
+    }
+
+    /**
+     * Append the changes made since the last save to a saved file,
+     * using the saved key.  The stream must append to the end of the
+     * file this store was most recently read from or written to.  Only
+     * the changes are written, so the cost of the save doesn't depend
+     * on the size of the store.
+     *
+     * @param raw The output stream to which encrypted change records
+     *     will be written.
+     * @throws GeneralSecurityException Indicates a failure during
+     *     encryption.
+     * @throws IOException Indicates a failure writing data.
+     * @throws IllegalStateException Changes can't be appended; see
+     *     {@link #canAppend}.
+     */
+    public synchronized void appendAccounts(OutputStream raw)
+	    throws GeneralSecurityException, IOException {
+	long stamp = lock.readLock();
+	try {
+	    if (sessionKey == null || !journal.canAppend()) {
+		throw new IllegalStateException(
+			"Can't append to saved file");
+	    }
+	    DataOutputStream out = new DataOutputStream(raw);
+	    long logSize = 0;
+	    Iterator<byte[]> records = journal.unsavedRecords();
+	    while (records.hasNext()) {
+		logSize += writeSection(out, sessionKey, records.next());
+	    }
+	    out.close();
+	    journal.savedRecords(logSize);
+	} finally {
+	    lock.unlockRead(stamp);
+	}
+    }
+
+    /**
+     * Take note that a snapshot of this store was saved.  Changes saved
+     * with the snapshot won't be saved again by {@link
+     * #appendAccounts}.  Nothing happens if the snapshot wasn't taken
+     * from this store, or if this store has been saved more recently
+     * than the snapshot.  If the snapshot was written in full, and this
+     * store hasn't changed since the snapshot was taken, writing this
+     * store with the same key writes the same bytes.
+     *
+     * @param saved A snapshot of this store that has been saved.
+     */
+    public synchronized void markSaved(AccountStore saved) {
+	long stamp = lock.writeLock();
+	try {
+	    journal.adopt(saved.journal);
+	    if (saved.lastWritten != null) {
+		lastWritten = saved.lastWritten;
+	    }
+	} finally {
+	    lock.unlockWrite(stamp);
+	}
+    }
+
+    /**
+     * Return an independent copy of this account store.  Later changes
+     * to this store or to its accounts don't show up in the copy, and
+     * vice versa.  The copy has its own copy of the remembered key, so
+     * it can be saved with {@link #writeAccounts(OutputStream)}; for
+     * instance, by a background thread while this store goes on
+     * changing.
+     *<p>
+     * A snapshot is taken in constant time, however large the store:
+     * the copy shares this store's account maps, which never change,
+     * and has its own handles for the accounts, made as they're used.
+     * Its secondary indexes are built when it's first searched.
+     *
+     * @return A snapshot of the current state of this store.
+     */
+    public synchronized AccountStore snapshot() {
+	long stamp = lock.readLock();
 	try {
 	    AccountStore accts = (AccountStore) super.clone();
+	    accts.lock = new StampedLock();
 	    accts.passwordSalt = passwordSalt.clone();
 	    accts.ivBlock = ivBlock.clone();
-	    // FIXME: These constructors presumably create shallow
-	    // copies, so changes in the original accounts will show up
-	    // in the clone as well, and vice versa.
-	    accts.myAccounts = new TreeMap<String, Account>(myAccounts);
-	    accts.uuidMap = new HashMap<UUID, Account>(uuidMap);
+	    accts.journal = journal.copy();
+	    if (sessionKey != null) {
+		accts.sessionKey = sessionKey.copy();
+	    }
+	    accts.handles = new ConcurrentHashMap<UUID, Account>();
+	    accts.indexes = null;
+	    accts.urlIndex = null;
+	    accts.usernameIndex = null;
+	    accts.domainIndex = null;
+	    accts.searchIndex = null;
+	    accts.fuzzyIndex = null;
 	    return accts;
 	} catch (CloneNotSupportedException ex) {
 	    return null;
+	} finally {
+	    lock.unlockRead(stamp);
 	}
     }
 
+    /**
+     * Return an independent copy of this account store, the same as
+     * {@link #snapshot}.
+     */
+    @Override
+    protected AccountStore clone() {
+	return snapshot();
+    }
+
     @Override
     public boolean equals(Object o) {
 	if (!(o instanceof AccountStore)) {
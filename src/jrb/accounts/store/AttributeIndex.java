@@ -0,0 +1,193 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.store;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * An index from one attribute of an account to every account with that
+ * attribute.  Lookups are a single hash table probe.
+ *<p>
+ * The attribute is computed from the account by {@link #keyOf};
+ * accounts for which it returns <code>null</code> aren't indexed.
+ */
+abstract class AttributeIndex implements AccountIndex {
+    /**
+     * Second-level names commonly used for registrations under country
+     * domains, as in "example.co.uk" or "example.com.au".
+     */
+    private static final Set<String> SECOND_LEVEL_NAMES =
+	    new HashSet<String>(Arrays.asList(
+		    "ac", "co", "com", "edu", "gov", "net", "or", "org"));
+
+    private final HashMap<String, Map<UUID, Account>> index =
+	    new HashMap<String, Map<UUID, Account>>();
+
+    /**
+     * Return the key under which an account is indexed.
+     *
+     * @param account The account to be indexed.
+     * @return The key, or <code>null</code> if the account isn't
+     *     indexed.
+     */
+    abstract String keyOf(Account account);
+
+    public void add(Account account) {
+	String key = keyOf(account);
+	if (key == null) {
+	    return;
+	}
+	Map<UUID, Account> accounts = index.get(key);
+	if (accounts == null) {
+	    accounts = new LinkedHashMap<UUID, Account>(2);
+	    index.put(key, accounts);
+	}
+	accounts.put(account.getUUID(), account);
+    }
+
+    public void addAll(Collection<Account> accounts) {
+	for (Account account : accounts) {
+	    add(account);
+	}
+    }
+
+    public void remove(Account account) {
+	String key = keyOf(account);
+	if (key == null) {
+	    return;
+	}
+	Map<UUID, Account> accounts = index.get(key);
+	if (accounts != null) {
+	    accounts.remove(account.getUUID());
+	    if (accounts.isEmpty()) {
+		index.remove(key);
+	    }
+	}
+    }
+
+    /**
+     * Return every account indexed under a key, in the order they were
+     * added.  The collection returned is a read-only view, and changes
+     * as the index does.
+     *
+     * @param key The key to look up.
+     * @return The accounts with the given key; the collection is empty
+     *     if there are none.
+     */
+    Collection<Account> get(String key) {
+	Map<UUID, Account> accounts = index.get(key);
+	if (accounts == null) {
+	    return Collections.emptyList();
+	}
+	return Collections.unmodifiableCollection(accounts.values());
+    }
+
+    /**
+     * Create an index on account URLs.  URLs are compared exactly.
+     *
+     * @return A new, empty index.
+     */
+    static AttributeIndex byUrl() {
+	return new AttributeIndex() {
+	    String keyOf(Account account) {
+		return account.getUrl();
+	    }
+	};
+    }
+
+    /**
+     * Create an index on account user names.  User names are compared
+     * exactly.
+     *
+     * @return A new, empty index.
+     */
+    static AttributeIndex byUsername() {
+	return new AttributeIndex() {
+	    String keyOf(Account account) {
+		return account.getUsername();
+	    }
+	};
+    }
+
+    /**
+     * Create an index on the registrable domain of account URLs, as
+     * computed by {@link #registrableDomain}.
+     *
+     * @return A new, empty index.
+     */
+    static AttributeIndex byDomain() {
+	return new AttributeIndex() {
+	    String keyOf(Account account) {
+		return registrableDomain(account.getUrl());
+	    }
+	};
+    }
+
+    /**
+     * Return the registrable domain named by a URL:  the part of the
+     * host name under which names are assigned to a single owner, such
+     * as "example.com" for "https://www.login.example.com/".  A URL
+     * without a scheme is treated as an HTTP URL, so a bare host name
+     * is also accepted.
+     *<p>
+     * The JDK offers no public suffix list, so the domain is found by
+     * rule of thumb:  the last two labels of the host name, or the
+     * last three when the host is under a two-letter country domain
+     * and the second-to-last label is a common second-level name such
+     * as "co" or "org".  IP addresses are returned as they are.
+     *
+     * @param url The URL or host name.
+     * @return The registrable domain in lower case, or
+     *     <code>null</code> if the URL has no host name.
+     */
+    static String registrableDomain(String url) {
+	if (url == null || url.isEmpty()) {
+	    return null;
+	}
+	String host;
+	try {
+	    URI uri = new URI(url.contains("://") ? url : "http://" + url);
+	    host = uri.getHost();
+	} catch (URISyntaxException e) {
+	    return null;
+	}
+	if (host == null || host.isEmpty()) {
+	    return null;
+	}
+	host = host.toLowerCase(Locale.ROOT);
+	if (host.endsWith(".")) {
+	    host = host.substring(0, host.length() - 1);
+	}
+	if (host.startsWith("[") || host.matches("[0-9.]+")) {
+	    return host;
+	}
+	String[] labels = host.split("\\.");
+	int n = labels.length;
+	if (n <= 2) {
+	    return host;
+	}
+	int keep = 2;
+	if (labels[n - 1].length() == 2
+		&& SECOND_LEVEL_NAMES.contains(labels[n - 2])) {
+	    keep = 3;
+	}
+	StringBuilder domain = new StringBuilder(labels[n - keep]);
+	for (int i = n - keep + 1; i < n; i++) {
+	    domain.append('.').append(labels[i]);
+	}
+	return domain.toString();
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.store;
+
+import java.io.DataInput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+
+/**
+ * A <code>DataInput</code> that reads directly from a
+ * <code>ByteBuffer</code>.
+ *<p>
+ * Reads advance the buffer's position.  Unlike wrapping the buffer in
+ * a stream, strings in modified UTF-8 are decoded straight from the
+ * buffer, without first copying their bytes.  Reading past the
+ * buffer's limit throws <code>EOFException</code>, as for a
+ * <code>DataInputStream</code>.
+ */
+class ByteBufferDataInput implements DataInput {
+    private final ByteBuffer buffer;
+
+    /**
+     * Temporary space for decoding strings, grown as needed.
+     */
+    private char[] chars = new char[80];
+
+    /**
+     * Create a <code>DataInput</code> reading from a buffer, starting
+     * at the buffer's current position.
+     *
+     * @param buffer The buffer from which to read.
+     */
+    ByteBufferDataInput(ByteBuffer buffer) {
+	this.buffer = buffer;
+    }
+
+    /**
+     * Return the number of bytes that remain to be read.
+     *
+     * @return The number of bytes before the buffer's limit.
+     */
+    int remaining() {
+	return buffer.remaining();
+    }
+
+    private void require(int n) throws EOFException {
+	if (buffer.remaining() < n) {
+	    throw new EOFException();
+	}
+    }
+
+    public void readFully(byte[] b) throws IOException {
+	readFully(b, 0, b.length);
+    }
+
+    public void readFully(byte[] b, int off, int len) throws IOException {
+	require(len);
+	buffer.get(b, off, len);
+    }
+
+    public int skipBytes(int n) {
+	int skip = Math.max(0, Math.min(n, buffer.remaining()));
+	buffer.position(buffer.position() + skip);
+	return skip;
+    }
+
+    public boolean readBoolean() throws IOException {
+	return readByte() != 0;
+    }
+
+    public byte readByte() throws IOException {
+	require(1);
+	return buffer.get();
+    }
+
+    public int readUnsignedByte() throws IOException {
+	return readByte() & 0xff;
+    }
+
+    public short readShort() throws IOException {
+	require(2);
+	return buffer.getShort();
+    }
+
+    public int readUnsignedShort() throws IOException {
+	return readShort() & 0xffff;
+    }
+
+    public char readChar() throws IOException {
+	require(2);
+	return buffer.getChar();
+    }
+
+    public int readInt() throws IOException {
+	require(4);
+	return buffer.getInt();
+    }
+
+    public long readLong() throws IOException {
+	require(8);
+	return buffer.getLong();
+    }
+
+    public float readFloat() throws IOException {
+	require(4);
+	return buffer.getFloat();
+    }
+
+    public double readDouble() throws IOException {
+	require(8);
+	return buffer.getDouble();
+    }
+
+    /**
+     * Read a line of text, as for <code>RandomAccessFile</code>.  Each
+     * byte is converted to a character directly, without decoding.
+     */
+    public String readLine() {
+	if (!buffer.hasRemaining()) {
+	    return null;
+	}
+	StringBuilder line = new StringBuilder();
+	while (buffer.hasRemaining()) {
+	    char c = (char) (buffer.get() & 0xff);
+	    if (c == '\n') {
+		break;
+	    } else if (c == '\r') {
+		if (buffer.hasRemaining()
+			&& buffer.get(buffer.position()) == '\n') {
+		    buffer.get();
+		}
+		break;
+	    }
+	    line.append(c);
+	}
+	return line.toString();
+    }
+
+    /**
+     * Read a string in modified UTF-8, as written by
+     * <code>DataOutput.writeUTF</code>.
+     */
+    public String readUTF() throws IOException {
+	int length = readUnsignedShort();
+	require(length);
+	if (chars.length < length) {
+	    chars = new char[Math.max(length, 2 * chars.length)];
+	}
+	int end = buffer.position() + length;
+	int nChars = 0;
+	while (buffer.position() < end) {
+	    int c = buffer.get() & 0xff;
+	    if (c < 0x80) {
+		chars[nChars++] = (char) c;
+	    } else if ((c & 0xe0) == 0xc0) {
+		int c2 = continuation(end);
+		chars[nChars++] = (char) (((c & 0x1f) << 6) | c2);
+	    } else if ((c & 0xf0) == 0xe0) {
+		int c2 = continuation(end);
+		int c3 = continuation(end);
+		chars[nChars++] =
+			(char) (((c & 0x0f) << 12) | (c2 << 6) | c3);
+	    } else {
+		throw new UTFDataFormatException(
+			"Malformed input around byte "
+			+ (buffer.position() - 1));
+	    }
+	}
+	return new String(chars, 0, nChars);
+    }
+
+    /**
+     * Read one continuation byte of a multi-byte character, and return
+     * its six data bits.
+     */
+    private int continuation(int end) throws UTFDataFormatException {
+	if (buffer.position() >= end) {
+	    throw new UTFDataFormatException(
+		    "Malformed input: partial character at end");
+	}
+	int c = buffer.get() & 0xff;
+	if ((c & 0xc0) != 0x80) {
+	    throw new UTFDataFormatException(
+		    "Malformed input around byte " + (buffer.position() - 1));
+	}
+	return c & 0x3f;
+    }
+}
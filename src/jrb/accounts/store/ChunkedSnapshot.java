@@ -0,0 +1,590 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * The snapshot of all accounts at the start of a save file in format
+ * version 4 or later.
+ *<p>
+ * The snapshot is split into chunks that are encrypted and
+ * authenticated independently with AES/GCM, so that they can be
+ * decrypted and parsed in parallel.  The snapshot starts with an
+ * initialization vector; the nonce for each chunk is derived from the
+ * initialization vector and the chunk's index, so chunks can't be
+ * reordered without failing authentication.  The first chunk is a
+ * header giving the sequence number of the last change included in the
+ * snapshot and the total number of accounts.  Each following chunk
+ * holds a whole number of accounts, in the same form as a version 2
+ * file.  The last chunk is flagged as such in its length word and in
+ * its authenticated data, so that a snapshot can't be truncated at a
+ * chunk boundary without detection.
+ *<p>
+ * Starting with version 5, the last chunk is an index rather than a
+ * chunk of accounts.  For every account, in order, the index gives the
+ * account's UUID and description, the chunk holding it, and its offset
+ * within the chunk's plaintext.  The index lets a {@link
+ * LazyAccountStore} find accounts without decrypting the snapshot.
+ *<p>
+ * Starting with version 7, the header ends with a flags byte.  If the
+ * snapshot is flagged as compressed, the plaintext of every chunk after
+ * the header is compressed with Deflate before it is encrypted; see
+ * {@link #deflate}.  Index offsets refer to the uncompressed plaintext.
+ */
+class ChunkedSnapshot {
+    /**
+     * Accounts are added to a chunk until its plaintext reaches this
+     * size.
+     */
+    static final int CHUNK_BYTES = 64 * 1024;
+
+    /**
+     * Bit in a chunk's length word marking the last chunk.
+     */
+    private static final int LAST_CHUNK = 0x80000000;
+
+    /**
+     * Flag in the header chunk marking a snapshot whose account and
+     * index chunks are compressed.
+     */
+    private static final int COMPRESSED = 0x01;
+
+    /**
+     * Preset dictionary for compressed chunks, made of fragments common
+     * in account data.  Deflate finds matches nearer the end of the
+     * dictionary more cheaply, so the most common fragments come last.
+     * This is part of format version 7, and mustn't be changed.
+     */
+    private static final byte[] DICTIONARY = (
+	    "admin" + "support" + "customer" + "banking" + "mail"
+	    + "shop" + "store" + "portal" + "secure" + "signin"
+	    + "auth" + "login" + "account" + "password" + "username"
+	    + "user" + "@yahoo.com" + "@gmail.com" + ".co.uk/" + ".io/"
+	    + ".edu/" + ".gov/" + ".net/" + ".org/" + ".com/"
+	    + "http://www." + "https://www." + "https://")
+	.getBytes(StandardCharsets.US_ASCII);
+
+    private static final SecureRandom randomSource = new SecureRandom();
+
+    private final long seq;
+    private final List<Account> accounts;
+    private final long size;
+
+    private ChunkedSnapshot(long seq, List<Account> accounts, long size) {
+	this.seq = seq;
+	this.accounts = accounts;
+	this.size = size;
+    }
+
+    /**
+     * Return the sequence number of the last change included in this
+     * snapshot.
+     *
+     * @return The sequence number of the snapshot.
+     */
+    long getSeq() {
+	return seq;
+    }
+
+    /**
+     * Return the accounts in this snapshot, in the order written.
+     *
+     * @return A list of the accounts in the snapshot.
+     */
+    List<Account> getAccounts() {
+	return accounts;
+    }
+
+    /**
+     * Return the number of bytes this snapshot took up in its file.
+     *
+     * @return The size of the snapshot in bytes.
+     */
+    long getSize() {
+	return size;
+    }
+
+    /**
+     * Return the nonce for one chunk.  The chunk index is combined with
+     * the last eight bytes of the initialization vector.
+     */
+    private static byte[] chunkNonce(byte[] iv, long index) {
+	byte[] nonce = iv.clone();
+	for (int i = nonce.length - 1; index != 0; i--) {
+	    nonce[i] ^= (byte) index;
+	    index >>>= 8;
+	}
+	return nonce;
+    }
+
+    private static Cipher chunkCipher(int mode, DerivedKey key, byte[] iv,
+				      long index, boolean last)
+	    throws GeneralSecurityException {
+	Cipher cipher = Cipher.getInstance(AccountStore.SECTION_ALGORITHM);
+	cipher.init(mode, key.getKey(),
+		    new GCMParameterSpec(AccountStore.TAG_BITS,
+					 chunkNonce(iv, index)));
+	cipher.updateAAD(new byte[] { (byte) (last ? 1 : 0) });
+	return cipher;
+    }
+
+    /**
+     * Decrypt one chunk.
+     *
+     * @param key The key that will decrypt the chunk.
+     * @param iv The initialization vector of the snapshot.
+     * @param index The index of the chunk in the snapshot.
+     * @param last Whether this is the last chunk of the snapshot.
+     * @param encrypted The encrypted chunk, without its length word.
+     * @return The plaintext of the chunk.
+     * @throws GeneralSecurityException Indicates a failure during
+     *     decryption, including a chunk that fails authentication.
+     */
+    static byte[] decryptChunk(DerivedKey key, byte[] iv, long index,
+			       boolean last, byte[] encrypted)
+	    throws GeneralSecurityException {
+	long start = System.nanoTime();
+	byte[] plaintext =
+		chunkCipher(Cipher.DECRYPT_MODE, key, iv, index, last)
+		.doFinal(encrypted);
+	StoreMetrics.DECRYPT.record(start);
+	return plaintext;
+    }
+
+    /**
+     * Return whether a chunk length word marks the last chunk.
+     *
+     * @param lengthWord The length word preceding a chunk.
+     * @return True if the chunk is the last one in the snapshot.
+     */
+    static boolean isLastChunk(int lengthWord) {
+	return (lengthWord & LAST_CHUNK) != 0;
+    }
+
+    /**
+     * Return the length of a chunk from its length word.
+     *
+     * @param lengthWord The length word preceding a chunk.
+     * @param index The index of the chunk, for error messages.
+     * @return The length of the encrypted chunk.
+     * @throws AccountFileFormatException The length is invalid.
+     */
+    static int chunkLength(int lengthWord, long index)
+	    throws AccountFileFormatException {
+	int length = lengthWord & ~LAST_CHUNK;
+	if (length < AccountStore.TAG_BITS / 8
+		|| length > AccountStore.MAX_SECTION_BYTES
+		|| (index == 0 && isLastChunk(lengthWord))) {
+	    throw new AccountFileFormatException(
+		    "Invalid snapshot chunk " + index);
+	}
+	return length;
+    }
+
+    /**
+     * Decrypt one chunk from a buffer into a new buffer.
+     *
+     * @param key The key that will decrypt the chunk.
+     * @param iv The initialization vector of the snapshot.
+     * @param index The index of the chunk in the snapshot.
+     * @param last Whether this is the last chunk of the snapshot.
+     * @param encrypted A buffer holding the encrypted chunk, without its
+     *     length word, between its position and limit.
+     * @return A buffer holding the plaintext of the chunk.
+     * @throws GeneralSecurityException Indicates a failure during
+     *     decryption, including a chunk that fails authentication.
+     */
+    static ByteBuffer decryptChunk(DerivedKey key, byte[] iv, long index,
+				   boolean last, ByteBuffer encrypted)
+	    throws GeneralSecurityException {
+	long start = System.nanoTime();
+	Cipher cipher = chunkCipher(Cipher.DECRYPT_MODE, key, iv,
+				    index, last);
+	ByteBuffer plaintext = ByteBuffer.allocate(
+		cipher.getOutputSize(encrypted.remaining()));
+	cipher.doFinal(encrypted, plaintext);
+	plaintext.flip();
+	StoreMetrics.DECRYPT.record(start);
+	return plaintext;
+    }
+
+    /**
+     * Check the record type at the start of the header chunk of a
+     * snapshot.  The sequence number and the number of accounts follow,
+     * to be read by the caller, and then the flags read by {@link
+     * #readCompressed}.
+     *
+     * @param header The plaintext of the header chunk.
+     * @throws IOException Indicates a malformed header.
+     */
+    static void readHeader(DataInput header) throws IOException {
+	if (header.readByte() != Journal.SNAPSHOT) {
+	    throw new AccountFileFormatException(
+		    "File doesn't start with a snapshot");
+	}
+    }
+
+    /**
+     * Read the flags at the end of the header chunk of a snapshot, and
+     * return whether the account and index chunks are compressed.
+     * Before format version 7, there are no flags, and chunks are never
+     * compressed.
+     *
+     * @param header The plaintext of the header chunk, positioned after
+     *     the number of accounts.
+     * @param formatVersion The version of the file format being read.
+     * @return True if the chunks are compressed.
+     * @throws IOException Indicates a malformed header.
+     */
+    static boolean readCompressed(DataInput header, int formatVersion)
+	    throws IOException {
+	if (formatVersion < AccountStore.FORMAT_V7) {
+	    return false;
+	}
+	int flags = header.readUnsignedByte();
+	if ((flags & ~COMPRESSED) != 0) {
+	    throw new AccountFileFormatException(
+		    "Unknown snapshot flags " + flags);
+	}
+	return (flags & COMPRESSED) != 0;
+    }
+
+    /**
+     * Compress the plaintext of one chunk.  The result holds the length
+     * of the uncompressed plaintext, followed by the plaintext
+     * compressed with raw Deflate using the preset dictionary.
+     *
+     * @param plaintext The plaintext to be compressed.
+     * @return The compressed plaintext.
+     */
+    static byte[] deflate(ByteArrayOutputStream plaintext) {
+	ByteArrayOutputStream buffer =
+		new ByteArrayOutputStream(plaintext.size() / 2 + 16);
+	int length = plaintext.size();
+	buffer.write(length >>> 24);
+	buffer.write(length >>> 16);
+	buffer.write(length >>> 8);
+	buffer.write(length);
+	Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+	try {
+	    deflater.setDictionary(DICTIONARY);
+	    deflater.setInput(plaintext.toByteArray());
+	    deflater.finish();
+	    byte[] block = new byte[8192];
+	    while (!deflater.finished()) {
+		int n = deflater.deflate(block);
+		buffer.write(block, 0, n);
+	    }
+	} finally {
+	    deflater.end();
+	}
+	return buffer.toByteArray();
+    }
+
+    /**
+     * Decompress the plaintext of one chunk written by {@link
+     * #deflate}.
+     *
+     * @param compressed A buffer holding the compressed plaintext.
+     * @return A buffer holding the uncompressed plaintext.
+     * @throws AccountFileFormatException The compressed data is
+     *     malformed.
+     */
+    static ByteBuffer inflate(ByteBuffer compressed)
+	    throws AccountFileFormatException {
+	if (compressed.remaining() < 4) {
+	    throw new AccountFileFormatException(
+		    "Compressed chunk is truncated");
+	}
+	int length = compressed.getInt();
+	if (length < 0 || length > AccountStore.MAX_SECTION_BYTES) {
+	    throw new AccountFileFormatException(
+		    "Invalid compressed chunk length " + length);
+	}
+	ByteBuffer plaintext = ByteBuffer.allocate(length);
+	Inflater inflater = new Inflater(true);
+	try {
+	    inflater.setDictionary(DICTIONARY);
+	    inflater.setInput(compressed);
+	    while (plaintext.hasRemaining()) {
+		if (inflater.inflate(plaintext) == 0
+			&& (inflater.finished() || inflater.needsInput())) {
+		    throw new AccountFileFormatException(
+			    "Compressed chunk is truncated");
+		}
+	    }
+	} catch (DataFormatException e) {
+	    throw new AccountFileFormatException(
+		    "Malformed compressed chunk: " + e.getMessage());
+	} finally {
+	    inflater.end();
+	}
+	plaintext.flip();
+	return plaintext;
+    }
+
+    /**
+     * Encrypt and write one chunk.
+     *
+     * @return The number of bytes written.
+     */
+    private static long writeChunk(DataOutputStream out, DerivedKey key,
+				   byte[] iv, long index, boolean last,
+				   ByteArrayOutputStream plaintext,
+				   boolean compress)
+	    throws GeneralSecurityException, IOException {
+	Cipher cipher = chunkCipher(Cipher.ENCRYPT_MODE, key, iv,
+				    index, last);
+	byte[] encrypted = cipher.doFinal(
+		compress ? deflate(plaintext) : plaintext.toByteArray());
+	out.writeInt(encrypted.length | (last ? LAST_CHUNK : 0));
+	out.write(encrypted);
+	return 4 + encrypted.length;
+    }
+
+    /**
+     * Write a snapshot of a collection of accounts, with a random
+     * initialization vector.
+     *
+     * @param out The output stream to which to write the snapshot.
+     * @param key The key that will encrypt the snapshot.
+     * @param seq The sequence number of the last change included in the
+     *     snapshot.
+     * @param accounts The accounts to be written.
+     * @param compress Whether to compress the account and index
+     *     chunks.
+     * @return The number of bytes written.
+     * @throws GeneralSecurityException Indicates a failure during
+     *     encryption.
+     * @throws IOException Indicates a failure writing data.
+     */
+    static long write(DataOutputStream out, DerivedKey key, long seq,
+		      Collection<Account> accounts, boolean compress)
+	    throws GeneralSecurityException, IOException {
+	byte[] iv = new byte[AccountStore.NONCE_BYTES];
+	randomSource.nextBytes(iv);
+	return write(out, key, iv, seq, accounts, compress);
+    }
+
+    /**
+     * Write a snapshot of a collection of accounts, with a given
+     * initialization vector.  Encrypting two different snapshots with
+     * the same key and initialization vector would give away both; an
+     * initialization vector may be used again only to write the same
+     * snapshot, byte for byte, as before.  Otherwise, it must be
+     * random.
+     *
+     * @param out The output stream to which to write the snapshot.
+     * @param key The key that will encrypt the snapshot.
+     * @param iv The initialization vector, {@link
+     *     AccountStore#NONCE_BYTES} long.
+     * @param seq The sequence number of the last change included in the
+     *     snapshot.
+     * @param accounts The accounts to be written.
+     * @param compress Whether to compress the account and index
+     *     chunks.
+     * @return The number of bytes written.
+     * @throws GeneralSecurityException Indicates a failure during
+     *     encryption.
+     * @throws IOException Indicates a failure writing data.
+     */
+    static long write(DataOutputStream out, DerivedKey key, byte[] iv,
+		      long seq, Collection<Account> accounts,
+		      boolean compress)
+	    throws GeneralSecurityException, IOException {
+	out.write(iv);
+	long size = iv.length;
+
+	ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+	DataOutputStream data = new DataOutputStream(buffer);
+	data.writeByte(Journal.SNAPSHOT);
+	data.writeLong(seq);
+	data.writeInt(accounts.size());
+	data.writeByte(compress ? COMPRESSED : 0);
+	size += writeChunk(out, key, iv, 0, false, buffer, false);
+
+	ByteArrayOutputStream indexBuffer = new ByteArrayOutputStream();
+	DataOutputStream indexData = new DataOutputStream(indexBuffer);
+	Iterator<Account> iter = accounts.iterator();
+	int index = 1;
+	do {
+	    buffer.reset();
+	    while (iter.hasNext() && buffer.size() < CHUNK_BYTES) {
+		Account acct = iter.next();
+		indexData.writeLong(acct.getUUID().getMostSignificantBits());
+		indexData.writeLong(acct.getUUID().getLeastSignificantBits());
+		indexData.writeUTF(acct.getDescription());
+		indexData.writeInt(index);
+		indexData.writeInt(buffer.size());
+		acct.writeAccount(data);
+	    }
+	    size += writeChunk(out, key, iv, index, false, buffer, compress);
+	    index++;
+	} while (iter.hasNext());
+	size += writeChunk(out, key, iv, index, true, indexBuffer,
+			   compress);
+	return size;
+    }
+
+    /**
+     * A task to decrypt one chunk, and parse the accounts in it.
+     * Failures are saved to be rethrown by the thread that collects
+     * the results.
+     */
+    private static class ChunkDecoder extends RecursiveTask<List<Account>> {
+	private final DerivedKey key;
+	private final byte[] iv;
+	private final long index;
+	private final boolean last;
+	private final ByteBuffer encrypted;
+	private final int formatVersion;
+	private final boolean compressed;
+
+	private Exception failure;
+
+	ChunkDecoder(DerivedKey key, byte[] iv, long index, boolean last,
+		     ByteBuffer encrypted, int formatVersion,
+		     boolean compressed) {
+	    this.key = key;
+	    this.iv = iv;
+	    this.index = index;
+	    this.last = last;
+	    this.encrypted = encrypted;
+	    this.formatVersion = formatVersion;
+	    this.compressed = compressed;
+	}
+
+	@Override
+	protected List<Account> compute() {
+	    try {
+		ByteBuffer plaintext =
+			decryptChunk(key, iv, index, last, encrypted);
+		long start = System.nanoTime();
+		if (compressed) {
+		    plaintext = inflate(plaintext);
+		}
+		ByteBufferDataInput in = new ByteBufferDataInput(plaintext);
+		List<Account> accounts = new ArrayList<Account>();
+		while (in.remaining() > 0) {
+		    accounts.add(new Account(in, formatVersion));
+		}
+		StoreMetrics.PARSE.record(start);
+		return accounts;
+	    } catch (Exception e) {
+		failure = e;
+		return null;
+	    }
+	}
+
+	/**
+	 * Return the accounts parsed from the chunk, or rethrow the
+	 * failure that prevented parsing them.
+	 */
+	List<Account> getAccounts()
+		throws GeneralSecurityException, IOException {
+	    List<Account> accounts = join();
+	    if (failure instanceof GeneralSecurityException) {
+		throw (GeneralSecurityException) failure;
+	    } else if (failure instanceof IOException) {
+		throw (IOException) failure;
+	    } else if (failure != null) {
+		throw (RuntimeException) failure;
+	    }
+	    return accounts;
+	}
+    }
+
+    /**
+     * Read a snapshot from a buffer.  The chunks are located first,
+     * without copying them out of the buffer; they are then decrypted
+     * and parsed in parallel on the common fork-join pool.  On return,
+     * the buffer is positioned after the snapshot.
+     *
+     * @param buffer The buffer from which to read the snapshot,
+     *     starting at its position.
+     * @param key The key that will decrypt the snapshot.
+     * @param formatVersion The version of the file format being read.
+     * @return The snapshot that was read.
+     * @throws GeneralSecurityException Indicates a failure during
+     *     decryption, including a chunk that fails authentication.
+     * @throws IOException Indicates a truncated or malformed snapshot.
+     */
+    static ChunkedSnapshot read(ByteBuffer buffer, DerivedKey key,
+				int formatVersion)
+	    throws GeneralSecurityException, IOException {
+	int start = buffer.position();
+	byte[] iv = new byte[AccountStore.NONCE_BYTES];
+	ByteBufferDataInput in = new ByteBufferDataInput(buffer);
+	in.readFully(iv);
+
+	List<ChunkDecoder> decoders = new ArrayList<ChunkDecoder>();
+	long seq = 0;
+	int nElements = 0;
+	boolean compressed = false;
+	boolean last = false;
+	boolean hasIndex = formatVersion >= AccountStore.FORMAT_V5;
+	for (long index = 0; !last; index++) {
+	    int lengthWord = in.readInt();
+	    last = isLastChunk(lengthWord);
+	    int length = chunkLength(lengthWord, index);
+	    if (in.remaining() < length) {
+		throw new EOFException();
+	    }
+	    ByteBuffer encrypted = buffer.slice();
+	    encrypted.limit(length);
+	    buffer.position(buffer.position() + length);
+	    if (index == 0) {
+		ByteBufferDataInput header = new ByteBufferDataInput(
+			decryptChunk(key, iv, 0, false, encrypted));
+		readHeader(header);
+		seq = header.readLong();
+		nElements = header.readInt();
+		compressed = readCompressed(header, formatVersion);
+	    } else if (!(last && hasIndex)) {
+		decoders.add(new ChunkDecoder(key, iv, index, last,
+					      encrypted, formatVersion,
+					      compressed));
+	    }
+	}
+
+	if (decoders.size() == 1) {
+	    decoders.get(0).invoke();
+	} else {
+	    for (ChunkDecoder decoder : decoders) {
+		decoder.fork();
+	    }
+	}
+	List<Account> accounts = new ArrayList<Account>(nElements);
+	for (ChunkDecoder decoder : decoders) {
+	    accounts.addAll(decoder.getAccounts());
+	}
+	if (accounts.size() != nElements) {
+	    throw new AccountFileFormatException(
+		    "Snapshot has " + accounts.size()
+		    + " accounts; expected " + nElements);
+	}
+	return new ChunkedSnapshot(seq, accounts, buffer.position() - start);
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.store;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.security.auth.Destroyable;
+
+/**
+ * An encryption key derived from a password, together with the salt
+ * used to derive it.
+ *<p>
+ * Deriving a key from a password is deliberately expensive.  An
+ * <code>AccountStore</code> keeps the derived key so that saving the
+ * same store again only costs encryption and I/O.  Because the salt is
+ * kept with the key, the same key is reproduced when the file is read
+ * back.  Each save gets a fresh initialization vector, unless it
+ * writes exactly what was written before; see
+ * <code>AccountStore.writeAccounts</code>.
+ *<p>
+ * The key material can be erased with {@link #destroy}, after which
+ * the key can no longer be used.
+ */
+class DerivedKey implements Destroyable {
+    private static final String KEY_ALGORITHM = "PBKDF2WithHmacSHA256";
+
+    private static final String PASSWORD_TYPE = "AES";
+
+    private static final int PASSWORD_COUNT = 0x10000;
+
+    private static final int KEY_BITS = 128;
+
+    private final byte[] salt;
+    private final byte[] keyBytes;
+    private boolean destroyed;
+
+    private DerivedKey(byte[] salt, byte[] keyBytes) {
+	this.salt = salt;
+	this.keyBytes = keyBytes;
+    }
+
+    /**
+     * Derive a key from a password and salt.  The password characters
+     * are overwritten once the key has been derived.
+     *
+     * @param password A character array holding the password to be used
+     *     for constructing the key.
+     * @param salt The password salt.  The array is copied.
+     * @throws GeneralSecurityException Indicates a failure constructing
+     *     the key.
+     */
+    DerivedKey(char[] password, byte[] salt)
+	    throws GeneralSecurityException {
+	long start = System.nanoTime();
+	this.salt = salt.clone();
+	PBEKeySpec keySpec = new PBEKeySpec(password, this.salt,
+					    PASSWORD_COUNT, KEY_BITS);
+	Arrays.fill(password, ' ');
+	try {
+	    SecretKeyFactory factory =
+		    SecretKeyFactory.getInstance(KEY_ALGORITHM);
+	    SecretKey passwordSecret = factory.generateSecret(keySpec);
+	    keyBytes = passwordSecret.getEncoded();
+	} finally {
+	    keySpec.clearPassword();
+	}
+	StoreMetrics.KEY_DERIVATION.record(start);
+    }
+
+    /**
+     * Return the salt used to derive this key.  The salt must be saved
+     * unencrypted with any data encrypted with this key.
+     *
+     * @return The password salt.  Callers must not modify the array.
+     */
+    byte[] getSalt() {
+	return salt;
+    }
+
+    /**
+     * Return this key in a form usable in <code>Cipher</code> methods.
+     *
+     * @return A cryptographic key.
+     * @throws IllegalStateException The key has been destroyed.
+     */
+    Key getKey() {
+	if (destroyed) {
+	    throw new IllegalStateException("Key has been destroyed");
+	}
+	return new SecretKeySpec(keyBytes, PASSWORD_TYPE);
+    }
+
+    /**
+     * Return an independent copy of this key.  Destroying either copy
+     * doesn't affect the other.
+     *
+     * @return A copy of this key.
+     */
+    DerivedKey copy() {
+	return new DerivedKey(salt.clone(), keyBytes.clone());
+    }
+
+    /**
+     * Return whether another key has the same salt and key material as
+     * this one; that is, whether it was derived from the same password
+     * and salt.  The comparison takes the same time wherever the keys
+     * differ.
+     *
+     * @param other The key to compare with this one.
+     * @return True if the keys are the same.
+     * @throws IllegalStateException Either key has been destroyed.
+     */
+    boolean sameKey(DerivedKey other) {
+	if (destroyed || other.destroyed) {
+	    throw new IllegalStateException("Key has been destroyed");
+	}
+	return Arrays.equals(salt, other.salt)
+		&& MessageDigest.isEqual(keyBytes, other.keyBytes);
+    }
+
+    /**
+     * Erase the key material.
+     */
+    @Override
+    public void destroy() {
+	Arrays.fill(keyBytes, (byte) 0);
+	destroyed = true;
+    }
+
+    @Override
+    public boolean isDestroyed() {
+	return destroyed;
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.store;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * Saves an <code>AccountStore</code> to a file without ever leaving the
+ * file partly written.
+ *<p>
+ * A whole store is written to a temporary file next to the target,
+ * forced to disk, and then renamed over the target in one atomic step,
+ * so a crash leaves either the old file or the new one.  Before the
+ * rename, the old file becomes the first of a number of rotating
+ * backups, named by adding <code>.1</code>, <code>.2</code> and so on
+ * to the target's name; the oldest backup is dropped.  If the new file
+ * would be the same, byte for byte, as the old one, nothing is changed
+ * at all.
+ *<p>
+ * Changes can also be appended to the target in place.  A crash while
+ * appending leaves at worst a partial change record at the end of the
+ * file, which is ignored when the file is read.  Forcing appended
+ * changes to disk can be put off, so that a burst of changes costs one
+ * <code>fsync</code> rather than one each; see {@link #sync}.
+ */
+public class FileSaver {
+    /**
+     * The number of backups kept unless some other number is given.
+     */
+    public static final int DEFAULT_BACKUPS = 3;
+
+    /**
+     * Size of the buffer between the account store and the file.
+     */
+    private static final int BUFFER_BYTES = 64 * 1024;
+
+    /**
+     * A buffered output stream that writes to a file channel, and can
+     * force the file to disk when it's closed.  Closing it more than
+     * once does nothing.
+     */
+    private static class ChannelOutputStream extends OutputStream {
+	private final FileChannel channel;
+	private final boolean forceOnClose;
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+	private boolean closed;
+
+	ChannelOutputStream(FileChannel channel, boolean forceOnClose) {
+	    this.channel = channel;
+	    this.forceOnClose = forceOnClose;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+	    if (!buffer.hasRemaining()) {
+		flush();
+	    }
+	    buffer.put((byte) b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+	    while (len > 0) {
+		if (!buffer.hasRemaining()) {
+		    flush();
+		}
+		int n = Math.min(len, buffer.remaining());
+		buffer.put(b, off, n);
+		off += n;
+		len -= n;
+	    }
+	}
+
+	@Override
+	public void flush() throws IOException {
+	    buffer.flip();
+	    while (buffer.hasRemaining()) {
+		channel.write(buffer);
+	    }
+	    buffer.clear();
+	}
+
+	/**
+	 * Flush the buffer, force the file to disk if requested, and
+	 * close the channel.  The channel is closed even if flushing
+	 * fails.
+	 */
+	@Override
+	public void close() throws IOException {
+	    if (closed) {
+		return;
+	    }
+	    closed = true;
+	    try {
+		flush();
+		if (forceOnClose) {
+		    channel.force(true);
+		}
+	    } finally {
+		channel.close();
+	    }
+	}
+    }
+
+    private final Path target;
+    private final int backups;
+
+    /**
+     * Create a saver for a file, keeping the default number of backups.
+     *
+     * @param target The file to be saved.
+     */
+    public FileSaver(Path target) {
+	this(target, DEFAULT_BACKUPS);
+    }
+
+    /**
+     * Create a saver for a file.
+     *
+     * @param target The file to be saved.
+     * @param backups The number of backups to keep; zero for none.
+     */
+    public FileSaver(Path target, int backups) {
+	this.target = target.toAbsolutePath();
+	this.backups = backups;
+    }
+
+    /**
+     * Return the file this saver writes.
+     *
+     * @return The path of the target file.
+     */
+    public Path getTarget() {
+	return target;
+    }
+
+    /**
+     * Return the path of one of the target's backups.
+     *
+     * @param n The number of the backup, counting from 1 for the most
+     *     recent.
+     * @return The path of the backup.
+     */
+    public Path getBackup(int n) {
+	return target.resolveSibling(target.getFileName() + "." + n);
+    }
+
+    /**
+     * Write a whole account store to the target, with the store's
+     * remembered key; see {@link AccountStore#writeAccounts(OutputStream)}.
+     *
+     * @param store The account store to be written.
+     * @throws GeneralSecurityException Indicates a failure during
+     *     encryption.
+     * @throws IOException Indicates a failure writing the file.  The
+     *     target is unchanged.
+     */
+    public void write(AccountStore store)
+	    throws GeneralSecurityException, IOException {
+	write(store, null);
+    }
+
+    /**
+     * Write a whole account store to the target with a password; see
+     * {@link AccountStore#writeAccounts(OutputStream, char[])}.
+     *
+     * @param store The account store to be written.
+     * @param password A character array holding the password that will
+     *     encrypt the account data, or <code>null</code> to use the
+     *     store's remembered key.
+     * @throws GeneralSecurityException Indicates a failure during
+     *     encryption.
+     * @throws IOException Indicates a failure writing the file.  The
+     *     target is unchanged.
+     */
+    public void write(AccountStore store, char[] password)
+	    throws GeneralSecurityException, IOException {
+	long start = System.nanoTime();
+	Path dir = target.getParent();
+	Path temp = Files.createTempFile(
+		dir, "." + target.getFileName() + ".", ".tmp");
+	boolean renamed = false;
+	try {
+	    OutputStream out = new ChannelOutputStream(
+		    FileChannel.open(temp, StandardOpenOption.WRITE), true);
+	    try {
+		if (password == null) {
+		    store.writeAccounts(out);
+		} else {
+		    store.writeAccounts(out, password);
+		}
+	    } finally {
+		out.close();
+	    }
+	    if (Files.exists(target)
+		    && Files.mismatch(temp, target) == -1L) {
+		return;
+	    }
+	    rotateBackups();
+	    Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+	    renamed = true;
+	    syncDirectory(dir);
+	} finally {
+	    if (!renamed) {
+		Files.deleteIfExists(temp);
+	    }
+	    StoreMetrics.SAVE.record(start);
+	}
+    }
+
+    /**
+     * Shift every backup down by one, and make the target the most
+     * recent backup.  The target is linked rather than copied where the
+     * file system allows it; it stays in place until it's replaced.
+     */
+    private void rotateBackups() throws IOException {
+	if (backups <= 0 || !Files.exists(target)) {
+	    return;
+	}
+	Files.deleteIfExists(getBackup(backups));
+	for (int n = backups - 1; n >= 1; n--) {
+	    if (Files.exists(getBackup(n))) {
+		Files.move(getBackup(n), getBackup(n + 1),
+			   StandardCopyOption.ATOMIC_MOVE);
+	    }
+	}
+	try {
+	    Files.createLink(getBackup(1), target);
+	} catch (UnsupportedOperationException | IOException e) {
+	    Files.copy(target, getBackup(1),
+		       StandardCopyOption.REPLACE_EXISTING);
+	}
+    }
+
+    /**
+     * Force a directory to disk, so that a rename in it survives a
+     * crash.  Not every platform can open a directory; where it can't,
+     * the rename is left to the file system.
+     */
+    private static void syncDirectory(Path dir) {
+	try {
+	    FileChannel channel = FileChannel.open(dir,
+						   StandardOpenOption.READ);
+	    try {
+		channel.force(true);
+	    } finally {
+		channel.close();
+	    }
+	} catch (IOException e) {
+	    // Directories can't be opened on this platform.
+	}
+    }
+
+    /**
+     * Append an account store's unsaved changes to the target, with
+     * the store's remembered key; see {@link
+     * AccountStore#appendAccounts}.  The store must be able to append
+     * changes; see {@link AccountStore#canAppend}.
+     *
+     * @param store The account store whose changes are to be appended.
+     * @param force Whether to force the changes to disk before
+     *     returning.  If not, {@link #sync} must be called later.
+     * @throws GeneralSecurityException Indicates a failure during
+     *     encryption.
+     * @throws IOException Indicates a failure writing the file.  The
+     *     file may have been left with a partial change record.
+     */
+    public void append(AccountStore store, boolean force)
+	    throws GeneralSecurityException, IOException {
+	long start = System.nanoTime();
+	OutputStream out = new ChannelOutputStream(
+		FileChannel.open(target, StandardOpenOption.WRITE,
+				 StandardOpenOption.APPEND),
+		force);
+	try {
+	    store.appendAccounts(out);
+	} finally {
+	    out.close();
+	    StoreMetrics.SAVE.record(start);
+	}
+    }
+
+    /**
+     * Force changes appended to the target to disk.
+     *
+     * @throws IOException Indicates a failure writing the file.
+     */
+    public void sync() throws IOException {
+	long start = System.nanoTime();
+	FileChannel channel = FileChannel.open(target,
+					       StandardOpenOption.WRITE);
+	try {
+	    channel.force(true);
+	} finally {
+	    channel.close();
+	    StoreMetrics.SYNC.record(start);
+	}
+    }
+}
@@ -0,0 +1,476 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.store;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An index for approximate searches, tolerant of typing mistakes, over
+ * account descriptions, URLs and user names.
+ *<p>
+ * Each indexed string is broken into trigrams, its overlapping
+ * three-character sequences, with padding so that the start and end
+ * of the string make trigrams of their own.  The index maps each
+ * trigram to every string containing it.  A query is broken into
+ * trigrams the same way, and a string matches if it shares at least
+ * half of the query's trigrams; a single mistyped character spoils at
+ * most three of them.
+ *<p>
+ * Strings are indexed from an account's whole update history, not just
+ * its current data, so an account can be found by a name it used to
+ * have.  Matches on current data rank ahead of equally good matches on
+ * history.
+ *<p>
+ * Searches run against a time budget.  The trigrams of a query are
+ * looked up rarest first, and if the budget runs out, the search stops
+ * and ranks the strings found so far.  The rarest trigrams do the most
+ * to tell strings apart, so the results degrade gradually.
+ */
+class FuzzyIndex implements AccountIndex {
+    /**
+     * The default time limit for a search, in nanoseconds.
+     */
+    static final long DEFAULT_BUDGET = TimeUnit.MILLISECONDS.toNanos(20);
+
+    /**
+     * The number of accounts below which {@link #addAll} doesn't split
+     * its work any further.
+     */
+    private static final int SPLIT_THRESHOLD = 512;
+
+    /**
+     * How many postings to count between checks of the time budget.
+     */
+    private static final int CLOCK_INTERVAL = 4096;
+
+    /**
+     * The number of removed terms below which the index is never
+     * compacted.
+     */
+    private static final int MIN_COMPACTION = 1024;
+
+    /**
+     * Character used to pad strings before breaking them into trigrams.
+     */
+    private static final char PAD = '\0';
+
+    /**
+     * One indexed string.  Only the string's trigrams are kept, as a
+     * sorted array without duplicates.
+     */
+    private static class Term {
+	final Account account;
+	final long[] trigrams;
+	final boolean current;
+
+	Term(Account account, long[] trigrams, boolean current) {
+	    this.account = account;
+	    this.trigrams = trigrams;
+	    this.current = current;
+	}
+    }
+
+    /**
+     * The numbers of every term containing one trigram, in the order
+     * the terms were added.  The list may include removed terms.
+     */
+    private static class Posting {
+	int[] ids = new int[4];
+	int size;
+
+	void add(int id) {
+	    if (size == ids.length) {
+		ids = Arrays.copyOf(ids, 2 * size);
+	    }
+	    ids[size++] = id;
+	}
+    }
+
+    /**
+     * The number of trigrams each term seen by a search shares with the
+     * query, in an open-addressed hash table.  The table grows with the
+     * number of terms seen, rather than with the size of the index, so
+     * that a search costs no more than the postings it reads.
+     */
+    private static class TermCounts {
+	private int[] ids = new int[64];
+	private int[] counts = new int[64];
+	private int size;
+
+	TermCounts() {
+	    Arrays.fill(ids, -1);
+	}
+
+	private static int slotFor(int id, int mask) {
+	    int h = id * 0x9e3779b9;
+	    return (h ^ (h >>> 16)) & mask;
+	}
+
+	void increment(int id) {
+	    int mask = ids.length - 1;
+	    int slot = slotFor(id, mask);
+	    while (ids[slot] != id) {
+		if (ids[slot] < 0) {
+		    if (2 * (size + 1) > ids.length) {
+			grow();
+			increment(id);
+			return;
+		    }
+		    ids[slot] = id;
+		    size++;
+		    break;
+		}
+		slot = (slot + 1) & mask;
+	    }
+	    counts[slot]++;
+	}
+
+	private void grow() {
+	    int[] oldIds = ids;
+	    int[] oldCounts = counts;
+	    ids = new int[2 * oldIds.length];
+	    counts = new int[ids.length];
+	    Arrays.fill(ids, -1);
+	    int mask = ids.length - 1;
+	    for (int i = 0; i < oldIds.length; i++) {
+		if (oldIds[i] >= 0) {
+		    int slot = slotFor(oldIds[i], mask);
+		    while (ids[slot] >= 0) {
+			slot = (slot + 1) & mask;
+		    }
+		    ids[slot] = oldIds[i];
+		    counts[slot] = oldCounts[i];
+		}
+	    }
+	}
+
+	int capacity() {
+	    return ids.length;
+	}
+
+	/**
+	 * Return the term in a slot, or -1 if the slot is empty.
+	 */
+	int idAt(int slot) {
+	    return ids[slot];
+	}
+
+	int countAt(int slot) {
+	    return counts[slot];
+	}
+    }
+
+    private final HashMap<Long, Posting> postings =
+	    new HashMap<Long, Posting>();
+
+    /**
+     * Every term added to the index, by number.  Removed terms are
+     * left as <code>null</code> until the index is compacted.
+     */
+    private Term[] allTerms = new Term[16];
+    private int nTerms;
+    private int nRemoved;
+
+    /**
+     * The numbers of the terms indexed for each account, so they can be
+     * removed with the account.
+     */
+    private final HashMap<UUID, int[]> accountTerms =
+	    new HashMap<UUID, int[]>();
+
+    /**
+     * Return the distinct trigrams of a string, in sorted order.  Each
+     * trigram's three characters are packed into a <code>long</code>.
+     */
+    static long[] trigrams(String text) {
+	if (text.isEmpty()) {
+	    return new long[0];
+	}
+	String padded = "" + PAD + PAD + text + PAD;
+	long[] trigrams = new long[padded.length() - 2];
+	for (int i = 0; i < trigrams.length; i++) {
+	    trigrams[i] = ((long) padded.charAt(i) << 32)
+		    | ((long) padded.charAt(i + 1) << 16)
+		    | padded.charAt(i + 2);
+	}
+	Arrays.sort(trigrams);
+	int n = 0;
+	for (int i = 0; i < trigrams.length; i++) {
+	    if (n == 0 || trigrams[i] != trigrams[n - 1]) {
+		trigrams[n++] = trigrams[i];
+	    }
+	}
+	return Arrays.copyOf(trigrams, n);
+    }
+
+    /**
+     * Compute the terms to be indexed for an account.  Each distinct
+     * string is indexed once, and is current if the account's current
+     * data uses it.
+     */
+    private static Term[] termsOf(Account account) {
+	Map<String, Boolean> strings = new LinkedHashMap<String, Boolean>();
+	int count = account.getUpdateCount();
+	for (int i = 0; i < count; i++) {
+	    AccountData data = account.getUpdateData(i);
+	    Boolean current = Boolean.valueOf(i == 0);
+	    String[] values = {
+		SearchIndex.fold(data.getDescription()),
+		SearchIndex.urlText(data.getUrl()),
+		SearchIndex.fold(data.getUsername()),
+	    };
+	    for (String value : values) {
+		if (!strings.containsKey(value)) {
+		    strings.put(value, current);
+		}
+	    }
+	}
+	List<Term> terms = new ArrayList<Term>(strings.size());
+	for (Map.Entry<String, Boolean> e : strings.entrySet()) {
+	    long[] trigrams = trigrams(e.getKey());
+	    if (trigrams.length > 0) {
+		terms.add(new Term(account, trigrams,
+				   e.getValue().booleanValue()));
+	    }
+	}
+	return terms.toArray(new Term[terms.size()]);
+    }
+
+    private void insert(Account account, Term[] terms) {
+	int[] ids = new int[terms.length];
+	for (int i = 0; i < terms.length; i++) {
+	    ids[i] = insert(terms[i]);
+	}
+	accountTerms.put(account.getUUID(), ids);
+    }
+
+    private int insert(Term term) {
+	if (nTerms == allTerms.length) {
+	    allTerms = Arrays.copyOf(allTerms, 2 * nTerms);
+	}
+	int id = nTerms++;
+	allTerms[id] = term;
+	for (long trigram : term.trigrams) {
+	    Long key = Long.valueOf(trigram);
+	    Posting posting = postings.get(key);
+	    if (posting == null) {
+		posting = new Posting();
+		postings.put(key, posting);
+	    }
+	    posting.add(id);
+	}
+	return id;
+    }
+
+    public void add(Account account) {
+	insert(account, termsOf(account));
+    }
+
+    /**
+     * A task to compute the terms for a range of accounts, splitting
+     * the range among parallel subtasks if it's large.
+     */
+    private static class TermBuilder extends RecursiveAction {
+	private final Account[] accounts;
+	private final Term[][] results;
+	private final int start;
+	private final int end;
+
+	TermBuilder(Account[] accounts, Term[][] results,
+		    int start, int end) {
+	    this.accounts = accounts;
+	    this.results = results;
+	    this.start = start;
+	    this.end = end;
+	}
+
+	@Override
+	protected void compute() {
+	    if (end - start <= SPLIT_THRESHOLD) {
+		for (int i = start; i < end; i++) {
+		    results[i] = termsOf(accounts[i]);
+		}
+	    } else {
+		int middle = (start + end) >>> 1;
+		invokeAll(new TermBuilder(accounts, results, start, middle),
+			  new TermBuilder(accounts, results, middle, end));
+	    }
+	}
+    }
+
+    /**
+     * Add many accounts to the index.  Breaking the accounts' strings
+     * into trigrams is done in parallel on the common fork-join pool;
+     * the trigrams are then added to the index by the calling thread.
+     */
+    public void addAll(Collection<Account> accounts) {
+	Account[] accountArray = accounts.toArray(new Account[0]);
+	Term[][] results = new Term[accountArray.length][];
+	new TermBuilder(accountArray, results, 0, accountArray.length)
+		.invoke();
+	for (int i = 0; i < accountArray.length; i++) {
+	    insert(accountArray[i], results[i]);
+	}
+    }
+
+    /**
+     * Remove an account from the index.  The account's terms are only
+     * marked as removed; once removed terms outnumber the rest, the
+     * index is rebuilt without them.
+     */
+    public void remove(Account account) {
+	int[] ids = accountTerms.remove(account.getUUID());
+	if (ids == null) {
+	    return;
+	}
+	for (int id : ids) {
+	    allTerms[id] = null;
+	}
+	nRemoved += ids.length;
+	if (nRemoved > MIN_COMPACTION && nRemoved > nTerms - nRemoved) {
+	    compact();
+	}
+    }
+
+    /**
+     * Rebuild the index from the terms that haven't been removed.  The
+     * terms keep their order, so that ties in a search are broken the
+     * same way before and after.
+     */
+    private void compact() {
+	Term[] oldTerms = allTerms;
+	int oldCount = nTerms;
+	allTerms = new Term[Math.max(16, oldCount - nRemoved)];
+	nTerms = 0;
+	nRemoved = 0;
+	postings.clear();
+	int[] newIds = new int[oldCount];
+	for (int id = 0; id < oldCount; id++) {
+	    if (oldTerms[id] != null) {
+		newIds[id] = insert(oldTerms[id]);
+	    }
+	}
+	for (int[] ids : accountTerms.values()) {
+	    for (int i = 0; i < ids.length; i++) {
+		ids[i] = newIds[ids[i]];
+	    }
+	}
+    }
+
+    /**
+     * Return the best approximate matches for a query.  An account
+     * matches if one of its current or past descriptions, URLs or user
+     * names shares at least half of the query's trigrams.  Accounts
+     * sharing more trigrams with the query come first.  Case is
+     * ignored.
+     *
+     * @param query The text to search for.
+     * @param limit The largest number of accounts to return.
+     * @param budget The time limit for the search, in nanoseconds.  If
+     *     the search runs out of time, it returns the best matches
+     *     found so far.
+     * @return The matching accounts, best first.
+     */
+    List<Account> search(String query, int limit, long budget) {
+	long deadline = System.nanoTime() + budget;
+	long[] queryTrigrams = trigrams(SearchIndex.fold(query.trim()));
+	List<Posting> lists = new ArrayList<Posting>();
+	for (long trigram : queryTrigrams) {
+	    Posting posting = postings.get(Long.valueOf(trigram));
+	    if (posting != null) {
+		lists.add(posting);
+	    }
+	}
+	Collections.sort(lists, new Comparator<Posting>() {
+	    public int compare(Posting p1, Posting p2) {
+		return p1.size - p2.size;
+	    }
+	});
+
+	// Count the trigrams each term shares with the query.
+	TermCounts counts = new TermCounts();
+    count:
+	for (Posting posting : lists) {
+	    for (int i = 0; i < posting.size; i++) {
+		if (i % CLOCK_INTERVAL == CLOCK_INTERVAL - 1
+			&& System.nanoTime() - deadline > 0) {
+		    break count;
+		}
+		counts.increment(posting.ids[i]);
+	    }
+	}
+
+	// Sort the matching terms into buckets by the number of shared
+	// trigrams.
+	int required = (queryTrigrams.length + 1) / 2;
+	long[][] buckets = new long[queryTrigrams.length + 1][];
+	int[] bucketSizes = new int[buckets.length];
+	for (int slot = 0; slot < counts.capacity(); slot++) {
+	    int id = counts.idAt(slot);
+	    if (id < 0) {
+		continue;
+	    }
+	    int shared = counts.countAt(slot);
+	    Term term = allTerms[id];
+	    if (shared < required || term == null) {
+		continue;
+	    }
+	    long[] bucket = buckets[shared];
+	    if (bucket == null) {
+		bucket = new long[16];
+		buckets[shared] = bucket;
+	    } else if (bucketSizes[shared] == bucket.length) {
+		bucket = Arrays.copyOf(bucket, 2 * bucket.length);
+		buckets[shared] = bucket;
+	    }
+	    bucket[bucketSizes[shared]++] = sortKey(term, id);
+	}
+
+	// Take accounts from the best bucket first, until there are
+	// enough.
+	Set<Account> accounts = new LinkedHashSet<Account>();
+	for (int shared = buckets.length - 1;
+		shared >= required && accounts.size() < limit;
+		shared--) {
+	    long[] bucket = buckets[shared];
+	    if (bucket == null) {
+		continue;
+	    }
+	    Arrays.sort(bucket, 0, bucketSizes[shared]);
+	    for (int i = 0;
+		    i < bucketSizes[shared] && accounts.size() < limit;
+		    i++) {
+		accounts.add(allTerms[(int) bucket[i]].account);
+	    }
+	}
+	return new ArrayList<Account>(accounts);
+    }
+
+    /**
+     * Return a key for sorting terms that share equally many trigrams
+     * with a query.  Terms from current data come before terms from
+     * history; then terms with fewer trigrams come first, since fewer
+     * of their trigrams went unmatched.  Remaining ties go to the term
+     * added first.  The term number is in the low 32 bits of the key.
+     */
+    private static long sortKey(Term term, int id) {
+	long history = term.current ? 0 : 1;
+	long length = Math.min(term.trigrams.length, 0x3fffffff);
+	return (history << 62) | (length << 32) | id;
+    }
+}
@@ -0,0 +1,385 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The log of changes made to an <code>AccountStore</code> that haven't
+ * yet been saved.
+ *<p>
+ * Starting with format version 3, a save file consists of a snapshot
+ * of the whole account store followed by a log of change records, each
+ * encrypted and authenticated separately.  Saving a change then only
+ * requires appending its record to the file.  Every change is numbered
+ * with a sequence number; the snapshot records the sequence number of
+ * the last change it includes, and replaying a record that is already
+ * included is skipped.  Appending the same record twice is therefore
+ * harmless.
+ *<p>
+ * The log is thus a write-ahead log for the snapshot:  a change is
+ * durable once its record is appended and forced to disk, without
+ * rewriting the file.  The authentication tag on each record doubles as
+ * its checksum; a record damaged by a crash ends the log when the file
+ * is read.
+ *<p>
+ * Once the log in a file grows past a threshold relative to the
+ * snapshot, appending stops, and the next save must write a fresh
+ * snapshot instead.
+ */
+class Journal {
+    /**
+     * Record type for the snapshot that starts a file.  The snapshot
+     * contains the sequence number of the last change included,
+     * followed by the accounts in the same form as a version 2 file.
+     * Starting with version 4, the snapshot is split into chunks; see
+     * {@link ChunkedSnapshot}.
+     */
+    static final byte SNAPSHOT = 0;
+
+    /**
+     * Record type for creating an account.  The payload is the new
+     * account.
+     */
+    static final byte CREATE = 1;
+
+    /**
+     * Record type for updating an account.  The payload is the UUID of
+     * the account, followed by the new history entry.  Starting with
+     * version 6, the UUID is written as 16 bytes, and the entry refers
+     * back to the account's previous entry for unchanged fields; see
+     * {@link Account#writeUpdate}.
+     */
+    static final byte UPDATE = 2;
+
+    /**
+     * Record type for deleting an account.  The payload is the UUID of
+     * the account.
+     */
+    static final byte DELETE = 3;
+
+    /**
+     * Record type for merging into an account.  The payload is the
+     * account with its merged history; it replaces any existing account
+     * with the same UUID.  Restoring an earlier version of an account
+     * is recorded the same way.
+     */
+    static final byte MERGE = 4;
+
+    /**
+     * The smallest size the log in a file may reach before it is
+     * folded back into a fresh snapshot.  Above this, the log may grow
+     * as large as the snapshot itself.
+     */
+    private static final long COMPACT_MIN_BYTES = 64 * 1024;
+
+    /**
+     * One encoded change record, with the UUID of the account changed.
+     */
+    private static class Record {
+	final long seq;
+	final UUID uuid;
+	final byte[] data;
+
+	Record(long seq, UUID uuid, byte[] data) {
+	    this.seq = seq;
+	    this.uuid = uuid;
+	    this.data = data;
+	}
+    }
+
+    /**
+     * An object identifying the account store this journal belongs to.
+     * Copies of a journal share the same origin; a journal for a store
+     * that was re-read gets a new one.
+     */
+    private Object origin = new Object();
+
+    /**
+     * Records of changes that aren't known to be saved, in order.
+     */
+    private List<Record> records = new ArrayList<Record>();
+
+    /**
+     * Sequence number of the most recent change.
+     */
+    private long lastSeq;
+
+    /**
+     * Sequence number of the most recent change known to be saved in
+     * the file, or -1 if there's no file that changes can be appended
+     * to.
+     */
+    private long savedSeq = -1;
+
+    /**
+     * Sequence number of the most recent change known to be in the
+     * file most recently read or written, whether or not changes can
+     * be appended to it, or -1 if there's no such file.  The store is
+     * unchanged since it was read or saved if this is {@link
+     * #lastSeq}.
+     */
+    private long cleanSeq = -1;
+
+    /**
+     * Size in bytes of the snapshot in the file.
+     */
+    private long snapshotBytes;
+
+    /**
+     * Size in bytes of the change log in the file.
+     */
+    private long logBytes;
+
+    /**
+     * Return the sequence number of the most recent change.
+     *
+     * @return The most recent sequence number.
+     */
+    long getLastSeq() {
+	return lastSeq;
+    }
+
+    /**
+     * Return whether there are changes that haven't been saved, either
+     * in the file most recently read or written, or in a save made from
+     * a copy of this journal.  A store that has never been read or
+     * saved has unsaved changes, even if it's empty.
+     *
+     * @return True if the store has changed since it was last read or
+     *     saved.
+     */
+    boolean hasUnsavedChanges() {
+	return cleanSeq != lastSeq;
+    }
+
+    /**
+     * Return whether there are unsaved changes to one account.  An
+     * account that has been deleted, but whose deletion isn't saved,
+     * has unsaved changes.
+     *
+     * @param uuid The UUID of the account.
+     * @return True if a change to the account hasn't been saved.
+     */
+    boolean hasUnsavedChanges(UUID uuid) {
+	if (cleanSeq == lastSeq) {
+	    return false;
+	}
+	for (Record record : records) {
+	    if (record.seq > cleanSeq && record.uuid.equals(uuid)) {
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    /**
+     * Return whether unsaved changes can be appended to the file, or
+     * whether a fresh snapshot must be written.
+     *
+     * @return True if the file has a snapshot to append to, and the log
+     *     in the file is still below the compaction threshold.
+     */
+    boolean canAppend() {
+	return savedSeq >= 0
+		&& logBytes <= Math.max(COMPACT_MIN_BYTES, snapshotBytes);
+    }
+
+    /**
+     * Return the encoded records of all unsaved changes, in order.
+     *
+     * @return An iterator over the unsaved change records.
+     */
+    Iterator<byte[]> unsavedRecords() {
+	final Iterator<Record> iter = records.iterator();
+	return new Iterator<byte[]>() {
+	    public boolean hasNext() {
+		return iter.hasNext();
+	    }
+
+	    public byte[] next() {
+		return iter.next().data;
+	    }
+	};
+    }
+
+    /**
+     * Note that a file was read with a snapshot and log ending at the
+     * given sequence number.
+     *
+     * @param seq The sequence number of the last change in the file.
+     * @param appendable Whether later changes can be appended to the
+     *     file.  This is false if the file wasn't in the journal
+     *     format, or if its log ended in a partial record.
+     * @param snapshotSize Size in bytes of the snapshot in the file.
+     * @param logSize Size in bytes of the log in the file.
+     */
+    void opened(long seq, boolean appendable,
+		long snapshotSize, long logSize) {
+	records.clear();
+	lastSeq = seq;
+	savedSeq = appendable ? seq : -1;
+	cleanSeq = seq;
+	snapshotBytes = snapshotSize;
+	logBytes = logSize;
+    }
+
+    /**
+     * Note that a fresh snapshot including every change was written.
+     *
+     * @param snapshotSize Size in bytes of the snapshot written.
+     */
+    void savedSnapshot(long snapshotSize) {
+	records.clear();
+	savedSeq = lastSeq;
+	cleanSeq = lastSeq;
+	snapshotBytes = snapshotSize;
+	logBytes = 0;
+    }
+
+    /**
+     * Note that every unsaved change was appended to the file.
+     *
+     * @param logSize Size in bytes of the records appended.
+     */
+    void savedRecords(long logSize) {
+	records.clear();
+	savedSeq = lastSeq;
+	cleanSeq = lastSeq;
+	logBytes += logSize;
+    }
+
+    /**
+     * Take note of a save made from a copy of this journal.  Changes
+     * that the copy saved are no longer unsaved here.  Nothing happens
+     * if the copy was made from some other journal, or if this journal
+     * already knows of a later save.
+     *
+     * @param saved The journal of a copy of the account store that was
+     *     saved.
+     */
+    void adopt(Journal saved) {
+	if (saved.origin != origin || saved.savedSeq <= savedSeq) {
+	    return;
+	}
+	int nSaved = 0;
+	while (nSaved < records.size()
+		&& records.get(nSaved).seq <= saved.savedSeq) {
+	    nSaved++;
+	}
+	records.subList(0, nSaved).clear();
+	savedSeq = saved.savedSeq;
+	cleanSeq = saved.cleanSeq;
+	snapshotBytes = saved.snapshotBytes;
+	logBytes = saved.logBytes;
+    }
+
+    /**
+     * Return an independent copy of this journal.  The encoded records
+     * are immutable, and are shared.
+     *
+     * @return A copy of this journal.
+     */
+    Journal copy() {
+	Journal j = new Journal();
+	j.origin = origin;
+	j.records = new ArrayList<Record>(records);
+	j.lastSeq = lastSeq;
+	j.savedSeq = savedSeq;
+	j.cleanSeq = cleanSeq;
+	j.snapshotBytes = snapshotBytes;
+	j.logBytes = logBytes;
+	return j;
+    }
+
+    /**
+     * Start encoding a record of a new change.  The record type and
+     * sequence number are written; the caller writes the payload.
+     */
+    private DataOutputStream startRecord(ByteArrayOutputStream buffer,
+					 byte type) throws IOException {
+	DataOutputStream out = new DataOutputStream(buffer);
+	out.writeByte(type);
+	out.writeLong(lastSeq + 1);
+	return out;
+    }
+
+    private void addRecord(ByteArrayOutputStream buffer, Account account) {
+	lastSeq++;
+	records.add(new Record(lastSeq, account.getUUID(),
+			       buffer.toByteArray()));
+    }
+
+    /**
+     * Record that an account was created.
+     *
+     * @param account The new account.
+     */
+    void recordCreate(Account account) {
+	ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+	try {
+	    account.writeAccount(startRecord(buffer, CREATE));
+	} catch (IOException e) {
+	    throw new IllegalStateException(e);
+	}
+	addRecord(buffer, account);
+    }
+
+    /**
+     * Record that an account was updated.  The most recent entry in the
+     * account's history is recorded.
+     *
+     * @param account The updated account.
+     */
+    void recordUpdate(Account account) {
+	ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+	try {
+	    DataOutputStream out = startRecord(buffer, UPDATE);
+	    Account.writeUUID(out, account.getUUID());
+	    account.writeUpdate(out);
+	} catch (IOException e) {
+	    throw new IllegalStateException(e);
+	}
+	addRecord(buffer, account);
+    }
+
+    /**
+     * Record that an account was deleted.
+     *
+     * @param account The deleted account.
+     */
+    void recordDelete(Account account) {
+	ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+	try {
+	    Account.writeUUID(startRecord(buffer, DELETE), account.getUUID());
+	} catch (IOException e) {
+	    throw new IllegalStateException(e);
+	}
+	addRecord(buffer, account);
+    }
+
+    /**
+     * Record that history was merged into an account, that an account
+     * was added by a merge, or that an account was restored to an
+     * earlier version.
+     *
+     * @param account The account as it is after the merge.
+     */
+    void recordMerge(Account account) {
+	ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+	try {
+	    account.writeAccount(startRecord(buffer, MERGE));
+	} catch (IOException e) {
+	    throw new IllegalStateException(e);
+	}
+	addRecord(buffer, account);
+    }
+}
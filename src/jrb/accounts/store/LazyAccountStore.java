@@ -0,0 +1,497 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import java.security.GeneralSecurityException;
+import javax.crypto.AEADBadTagException;
+
+/**
+ * A read-only view of a saved account store that decrypts accounts
+ * only when they are first used.
+ *<p>
+ * Opening a <code>LazyAccountStore</code> decrypts only the snapshot
+ * header, the account index, and the change records at the end of the
+ * file.  The index maps each account's UUID and description to the
+ * chunk and offset where the account is stored.  An account is decoded
+ * the first time it is requested, and kept in a cache of recently used
+ * accounts; the least recently used accounts are dropped from the cache
+ * as needed.  Accounts created or replaced by change records are kept
+ * in memory for as long as the store is open.
+ *<p>
+ * Like <code>AccountStore</code>, iteration returns the accounts
+ * ordered by their description.  Changes made to the returned
+ * <code>Account</code> objects aren't saved, and may be lost when an
+ * account is dropped from the cache.
+ *<p>
+ * Only files in format version 5 or later have an index, and can be
+ * opened with this class.
+ */
+public class LazyAccountStore implements Iterable<Account>, Closeable {
+    /**
+     * The default number of decoded accounts kept in the cache.
+     */
+    public static final int DEFAULT_CACHE_SIZE = 1024;
+
+    /**
+     * What the index knows about one account.
+     */
+    private static class IndexEntry {
+	String description;
+	final int chunk;
+	final int offset;
+
+	IndexEntry(String description, int chunk, int offset) {
+	    this.description = description;
+	    this.chunk = chunk;
+	    this.offset = offset;
+	}
+    }
+
+    private final FileChannel channel;
+    private final int formatVersion;
+    private DerivedKey key;
+    private byte[] iv = new byte[AccountStore.NONCE_BYTES];
+
+    /**
+     * Whether the account and index chunks are compressed.
+     */
+    private boolean compressed;
+
+    /**
+     * File position and length of each chunk of accounts, indexed by
+     * chunk number.  Entry 0 is the header, which holds no accounts.
+     */
+    private long[] chunkPositions;
+    private int[] chunkLengths;
+
+    /**
+     * Map from description to UUID for every account, for iteration
+     * and lookup by description.
+     */
+    private TreeMap<String, UUID> descriptions =
+	    new TreeMap<String, UUID>();
+
+    /**
+     * Map from UUID to index entry for every account.  Accounts that
+     * were created or replaced by change records have no location in
+     * the snapshot; for them, the chunk number is -1.
+     */
+    private HashMap<UUID, IndexEntry> entries =
+	    new HashMap<UUID, IndexEntry>();
+
+    /**
+     * Accounts that were created or replaced by change records.
+     */
+    private HashMap<UUID, Account> pinned = new HashMap<UUID, Account>();
+
+    /**
+     * Updates from change records to be applied to accounts in the
+     * snapshot when they are decoded.  Each entry is the encoded
+     * history entry, as read by {@link Account#readUpdate}.
+     */
+    private HashMap<UUID, List<byte[]>> pendingUpdates =
+	    new HashMap<UUID, List<byte[]>>();
+
+    /**
+     * Recently decoded accounts, in least to most recently used order.
+     */
+    private final LinkedHashMap<UUID, Account> cache;
+
+    /**
+     * The most recently decrypted chunk, so that decoding neighboring
+     * accounts doesn't decrypt it again.
+     */
+    private int plaintextChunk = -1;
+    private byte[] plaintext;
+
+    /**
+     * Open a saved account store with the default cache size.
+     *
+     * @param path The file containing the account store.
+     * @param password A character array holding the password that will
+     *     decrypt the account data.
+     * @throws GeneralSecurityException Indicates a failure during
+     *     decryption.
+     * @throws IOException Indicates a failure reading data, or a file
+     *     that has no index.
+     */
+    public LazyAccountStore(Path path, char[] password)
+	    throws GeneralSecurityException, IOException {
+	this(path, password, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Open a saved account store.
+     *
+     * @param path The file containing the account store.
+     * @param password A character array holding the password that will
+     *     decrypt the account data.
+     * @param cacheSize The number of decoded accounts to be kept in
+     *     the cache.
+     * @throws GeneralSecurityException Indicates a failure during
+     *     decryption.
+     * @throws IOException Indicates a failure reading data, or a file
+     *     that has no index.
+     */
+    public LazyAccountStore(Path path, char[] password, final int cacheSize)
+	    throws GeneralSecurityException, IOException {
+	cache = new LinkedHashMap<UUID, Account>(16, 0.75f, true) {
+	    @Override
+	    protected boolean removeEldestEntry(
+		    Map.Entry<UUID, Account> eldest) {
+		return size() > cacheSize;
+	    }
+	};
+	channel = FileChannel.open(path, StandardOpenOption.READ);
+	boolean opened = false;
+	try {
+	    byte[] magic = readBytes(0, 8);
+	    formatVersion = AccountStore.readMagic(ByteBuffer.wrap(magic));
+	    if (formatVersion < AccountStore.FORMAT_V5) {
+		throw new AccountFileFormatException(
+			"File format V" + formatVersion
+			+ " has no account index");
+	    }
+	    readIndex(password);
+	    opened = true;
+	} finally {
+	    if (!opened) {
+		close();
+	    }
+	}
+    }
+
+    /**
+     * Read bytes from a given position in the file.
+     */
+    private byte[] readBytes(long position, int length) throws IOException {
+	ByteBuffer buffer = ByteBuffer.allocate(length);
+	while (buffer.hasRemaining()) {
+	    if (channel.read(buffer, position + buffer.position()) < 0) {
+		throw new EOFException();
+	    }
+	}
+	return buffer.array();
+    }
+
+    /**
+     * Read the snapshot header and index, and replay the change
+     * records.  The accounts themselves aren't decrypted.  As for
+     * <code>AccountStore</code>, a torn record at the end of the log
+     * is ignored, but damage anywhere else is rejected.
+     */
+    private void readIndex(char[] password)
+	    throws GeneralSecurityException, IOException {
+	key = new DerivedKey(password, readBytes(8, 8));
+	iv = readBytes(16, iv.length);
+	long position = 16 + iv.length;
+
+	List<Long> positions = new ArrayList<Long>();
+	List<Integer> lengths = new ArrayList<Integer>();
+	byte[] header = null;
+	byte[] index = null;
+	boolean last = false;
+	for (int chunk = 0; !last; chunk++) {
+	    int lengthWord = ByteBuffer.wrap(readBytes(position, 4)).getInt();
+	    last = ChunkedSnapshot.isLastChunk(lengthWord);
+	    int length = ChunkedSnapshot.chunkLength(lengthWord, chunk);
+	    position += 4;
+	    if (chunk == 0) {
+		header = ChunkedSnapshot.decryptChunk(
+			key, iv, 0, false, readBytes(position, length));
+	    } else if (last) {
+		index = ChunkedSnapshot.decryptChunk(
+			key, iv, chunk, true, readBytes(position, length));
+	    }
+	    positions.add(position);
+	    lengths.add(length);
+	    position += length;
+	}
+	chunkPositions = new long[positions.size()];
+	chunkLengths = new int[lengths.size()];
+	for (int i = 0; i < chunkPositions.length; i++) {
+	    chunkPositions[i] = positions.get(i);
+	    chunkLengths[i] = lengths.get(i);
+	}
+
+	DataInputStream data = new DataInputStream(
+		new ByteArrayInputStream(header));
+	ChunkedSnapshot.readHeader(data);
+	long seq = data.readLong();
+	int nElements = data.readInt();
+	compressed = ChunkedSnapshot.readCompressed(data, formatVersion);
+	if (compressed) {
+	    index = ChunkedSnapshot.inflate(ByteBuffer.wrap(index)).array();
+	}
+	DataInputStream indexData = new DataInputStream(
+		new ByteArrayInputStream(index));
+	for (int i = 0; i < nElements; i++) {
+	    UUID uuid = new UUID(indexData.readLong(), indexData.readLong());
+	    String description = indexData.readUTF();
+	    int chunk = indexData.readInt();
+	    int offset = indexData.readInt();
+	    if (chunk <= 0 || chunk >= chunkPositions.length - 1) {
+		throw new AccountFileFormatException(
+			"Account index refers to invalid chunk " + chunk);
+	    }
+	    descriptions.put(description, uuid);
+	    entries.put(uuid, new IndexEntry(description, chunk, offset));
+	}
+
+	int logSize = Math.toIntExact(channel.size() - position);
+	ByteBuffer log = ByteBuffer.wrap(readBytes(position, logSize));
+	for (;;) {
+	    int recordStart = log.position();
+	    ByteBuffer record;
+	    try {
+		record = AccountStore.readSection(log, key);
+	    } catch (EOFException | AccountFileFormatException
+		     | AEADBadTagException e) {
+		if (!AccountStore.isTornRecord(log, recordStart, e)) {
+		    throw new AccountFileFormatException(
+			    "Change log damaged at byte "
+			    + (position + recordStart));
+		}
+		break;
+	    }
+	    if (record == null) {
+		break;
+	    }
+	    byte[] bytes = new byte[record.remaining()];
+	    record.get(bytes);
+	    seq = replayRecord(bytes, seq);
+	}
+    }
+
+    /**
+     * Apply one change record, as for
+     * <code>AccountStore.readAccounts</code>.  Accounts created or
+     * replaced by the record are kept in memory; updates to accounts in
+     * the snapshot are saved to be applied when the account is decoded.
+     */
+    private long replayRecord(byte[] record, long lastSeq)
+	    throws IOException {
+	DataInputStream in = new DataInputStream(
+		new ByteArrayInputStream(record));
+	byte type = in.readByte();
+	long seq = in.readLong();
+	if (seq <= lastSeq) {
+	    return lastSeq;
+	}
+	Account account;
+	UUID uuid;
+	switch (type) {
+	case Journal.CREATE:
+	case Journal.MERGE:
+	    account = new Account(in, formatVersion);
+	    forget(account.getUUID());
+	    pinned.put(account.getUUID(), account);
+	    descriptions.put(account.getDescription(), account.getUUID());
+	    entries.put(account.getUUID(),
+			new IndexEntry(account.getDescription(), -1, 0));
+	    break;
+	case Journal.UPDATE:
+	    uuid = Account.readUUID(in, formatVersion);
+	    IndexEntry entry = entries.get(uuid);
+	    if (entry == null) {
+		throw new AccountFileFormatException(
+			"Change record for unknown account " + uuid);
+	    }
+	    byte[] update = Arrays.copyOfRange(
+		    record, record.length - in.available(), record.length);
+	    account = pinned.get(uuid);
+	    if (account != null) {
+		account.readUpdate(new DataInputStream(
+			new ByteArrayInputStream(update)), formatVersion);
+	    } else {
+		List<byte[]> updates = pendingUpdates.get(uuid);
+		if (updates == null) {
+		    updates = new ArrayList<byte[]>();
+		    pendingUpdates.put(uuid, updates);
+		}
+		updates.add(update);
+	    }
+	    descriptions.remove(entry.description);
+	    entry.description = Account.readUpdateDescription(
+		    in, entry.description, formatVersion);
+	    descriptions.put(entry.description, uuid);
+	    break;
+	case Journal.DELETE:
+	    forget(Account.readUUID(in, formatVersion));
+	    break;
+	default:
+	    throw new AccountFileFormatException(
+		    "Unknown change record type " + type);
+	}
+	return seq;
+    }
+
+    /**
+     * Remove every trace of an account.
+     */
+    private void forget(UUID uuid) {
+	IndexEntry entry = entries.remove(uuid);
+	if (entry != null) {
+	    descriptions.remove(entry.description);
+	}
+	pinned.remove(uuid);
+	pendingUpdates.remove(uuid);
+	cache.remove(uuid);
+    }
+
+    /**
+     * Decode an account from the snapshot, and apply any updates to it
+     * from the change records.
+     */
+    private Account decode(UUID uuid, IndexEntry entry) throws IOException {
+	if (plaintextChunk != entry.chunk) {
+	    try {
+		plaintext = ChunkedSnapshot.decryptChunk(
+			key, iv, entry.chunk, false,
+			readBytes(chunkPositions[entry.chunk],
+				  chunkLengths[entry.chunk]));
+		if (compressed) {
+		    plaintext = ChunkedSnapshot.inflate(
+			    ByteBuffer.wrap(plaintext)).array();
+		}
+	    } catch (GeneralSecurityException e) {
+		throw new AccountFileFormatException(
+			"Chunk " + entry.chunk + " failed decryption: "
+			+ e.getMessage());
+	    }
+	    plaintextChunk = entry.chunk;
+	}
+	if (entry.offset < 0 || entry.offset >= plaintext.length) {
+	    throw new AccountFileFormatException(
+		    "Account index has invalid offset " + entry.offset);
+	}
+	Account account = new Account(
+		new DataInputStream(new ByteArrayInputStream(
+			plaintext, entry.offset,
+			plaintext.length - entry.offset)),
+		formatVersion);
+	if (!account.getUUID().equals(uuid)) {
+	    throw new AccountFileFormatException(
+		    "Account index doesn't match account " + uuid);
+	}
+	List<byte[]> updates = pendingUpdates.get(uuid);
+	if (updates != null) {
+	    for (byte[] update : updates) {
+		account.readUpdate(new DataInputStream(
+			new ByteArrayInputStream(update)), formatVersion);
+	    }
+	}
+	return account;
+    }
+
+    /**
+     * Return the account with a given UUID, decoding it if necessary.
+     *
+     * @param uuid The UUID of the account.
+     * @return The account, or <code>null</code> if there's no account
+     *     with the given UUID.
+     * @throws IOException Indicates a failure reading or decoding the
+     *     account.
+     */
+    public Account getAccount(UUID uuid) throws IOException {
+	IndexEntry entry = entries.get(uuid);
+	if (entry == null) {
+	    return null;
+	}
+	Account account = pinned.get(uuid);
+	if (account == null) {
+	    account = cache.get(uuid);
+	}
+	if (account == null) {
+	    account = decode(uuid, entry);
+	    cache.put(uuid, account);
+	}
+	return account;
+    }
+
+    /**
+     * Return the account with a given description, decoding it if
+     * necessary.
+     *
+     * @param description The description of the account.
+     * @return The account, or <code>null</code> if there's no account
+     *     with the given description.
+     * @throws IOException Indicates a failure reading or decoding the
+     *     account.
+     */
+    public Account getAccount(String description) throws IOException {
+	UUID uuid = descriptions.get(description);
+	return uuid == null ? null : getAccount(uuid);
+    }
+
+    /**
+     * Return the number of accounts in the store.
+     *
+     * @return The number of accounts in this store.
+     */
+    public int size() {
+	return descriptions.size();
+    }
+
+    /**
+     * Return an <code>Iterator</code> over every account.  Iteration
+     * returns the accounts ordered by their description, decoding them
+     * as they are reached.  A failure decoding an account is thrown as
+     * an <code>UncheckedIOException</code>.
+     *
+     * @return An iterator over all the accounts.
+     */
+    public Iterator<Account> iterator() {
+	final Iterator<UUID> uuids = descriptions.values().iterator();
+	return new Iterator<Account>() {
+	    public boolean hasNext() {
+		return uuids.hasNext();
+	    }
+
+	    public Account next() {
+		try {
+		    return getAccount(uuids.next());
+		} catch (IOException e) {
+		    throw new UncheckedIOException(e);
+		}
+	    }
+	};
+    }
+
+    /**
+     * Close the file, and destroy the key.
+     *
+     * @throws IOException Indicates a failure closing the file.
+     */
+    @Override
+    public void close() throws IOException {
+	if (key != null) {
+	    key.destroy();
+	}
+	plaintext = null;
+	cache.clear();
+	channel.close();
+    }
+}
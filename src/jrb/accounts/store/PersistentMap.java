@@ -0,0 +1,443 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.store;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * An immutable sorted map, updated by making new maps that share most
+ * of their structure with the old.
+ *<p>
+ * The map is an AVL tree.  {@link #with} and {@link #without} copy only
+ * the nodes on the path from the root to the entry that changed, so
+ * they take <i>O(</i>log n<i>)</i> time and space, and leave the
+ * original map as it was.  Since a map never changes, it can be shared
+ * freely:  between threads without locking, and between an account
+ * store and its snapshots without copying.
+ *<p>
+ * Since maps made from one another share whole subtrees, two such maps
+ * can be compared by looking only at the parts that aren't shared; see
+ * {@link #changedKeys}.
+ *<p>
+ * Keys are ordered by their natural ordering, and iteration returns
+ * entries in that order.  The standard <code>Map</code> methods that
+ * would change the map throw <code>UnsupportedOperationException</code>.
+ */
+final class PersistentMap<K extends Comparable<? super K>, V>
+	extends AbstractMap<K, V> {
+    /**
+     * One node of the tree, which is also one entry of the map.
+     */
+    private static final class Node<K, V> implements Map.Entry<K, V> {
+	final K key;
+	final V value;
+	final Node<K, V> left;
+	final Node<K, V> right;
+	final int height;
+	final int size;
+
+	Node(K key, V value, Node<K, V> left, Node<K, V> right) {
+	    this.key = key;
+	    this.value = value;
+	    this.left = left;
+	    this.right = right;
+	    height = 1 + Math.max(height(left), height(right));
+	    size = 1 + size(left) + size(right);
+	}
+
+	public K getKey() {
+	    return key;
+	}
+
+	public V getValue() {
+	    return value;
+	}
+
+	public V setValue(V value) {
+	    throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean equals(Object o) {
+	    if (!(o instanceof Map.Entry)) {
+		return false;
+	    }
+	    Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+	    return key.equals(e.getKey())
+		    && (value == null ? e.getValue() == null
+				      : value.equals(e.getValue()));
+	}
+
+	@Override
+	public int hashCode() {
+	    return key.hashCode() ^ (value == null ? 0 : value.hashCode());
+	}
+    }
+
+    private final Node<K, V> root;
+
+    /**
+     * Create an empty map.
+     */
+    PersistentMap() {
+	this(null);
+    }
+
+    private PersistentMap(Node<K, V> root) {
+	this.root = root;
+    }
+
+    private static int height(Node<?, ?> node) {
+	return node == null ? 0 : node.height;
+    }
+
+    private static int size(Node<?, ?> node) {
+	return node == null ? 0 : node.size;
+    }
+
+    @Override
+    public int size() {
+	return size(root);
+    }
+
+    @Override
+    public boolean isEmpty() {
+	return root == null;
+    }
+
+    /**
+     * Return the node for a key, or <code>null</code> if there's none.
+     */
+    @SuppressWarnings("unchecked")
+    private Node<K, V> find(Object key) {
+	K k = (K) key;
+	Node<K, V> node = root;
+	while (node != null) {
+	    int cmp = k.compareTo(node.key);
+	    if (cmp == 0) {
+		return node;
+	    }
+	    node = cmp < 0 ? node.left : node.right;
+	}
+	return null;
+    }
+
+    @Override
+    public V get(Object key) {
+	Node<K, V> node = find(key);
+	return node == null ? null : node.value;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+	return find(key) != null;
+    }
+
+    /**
+     * Return a map with the same entries as this one, except that a
+     * given key maps to a given value.
+     *
+     * @param key The key to be added or replaced.
+     * @param value The value for <code>key</code>.
+     * @return The new map.
+     */
+    PersistentMap<K, V> with(K key, V value) {
+	return new PersistentMap<K, V>(insert(root, key, value));
+    }
+
+    /**
+     * Return a map with the same entries as this one, except for any
+     * entry with a given key.
+     *
+     * @param key The key to be removed.
+     * @return The new map, or this map if it has no entry for
+     *     <code>key</code>.
+     */
+    PersistentMap<K, V> without(K key) {
+	Node<K, V> newRoot = delete(root, key);
+	return newRoot == root ? this : new PersistentMap<K, V>(newRoot);
+    }
+
+    /**
+     * Return a map with the entries of this one together with those of
+     * another map, which take precedence.  If this map is empty, the
+     * new map is built directly from the sorted entries, without any
+     * rebalancing.
+     *
+     * @param entries The entries to be added.
+     * @return The new map.
+     */
+    PersistentMap<K, V> withAll(Map<K, V> entries) {
+	if (root != null) {
+	    Node<K, V> newRoot = root;
+	    for (Map.Entry<K, V> e : entries.entrySet()) {
+		newRoot = insert(newRoot, e.getKey(), e.getValue());
+	    }
+	    return new PersistentMap<K, V>(newRoot);
+	}
+	TreeMap<K, V> sorted = new TreeMap<K, V>(entries);
+	Iterator<Map.Entry<K, V>> iter = sorted.entrySet().iterator();
+	return new PersistentMap<K, V>(build(iter, sorted.size()));
+    }
+
+    /**
+     * Build a balanced tree from the next <code>n</code> entries of a
+     * sorted iteration.
+     */
+    private static <K, V> Node<K, V> build(Iterator<Map.Entry<K, V>> iter,
+					   int n) {
+	if (n == 0) {
+	    return null;
+	}
+	Node<K, V> left = build(iter, n / 2);
+	Map.Entry<K, V> e = iter.next();
+	Node<K, V> right = build(iter, n - n / 2 - 1);
+	return new Node<K, V>(e.getKey(), e.getValue(), left, right);
+    }
+
+    private static <K extends Comparable<? super K>, V> Node<K, V> insert(
+	    Node<K, V> node, K key, V value) {
+	if (node == null) {
+	    return new Node<K, V>(key, value, null, null);
+	}
+	int cmp = key.compareTo(node.key);
+	if (cmp < 0) {
+	    return balance(node.key, node.value,
+			   insert(node.left, key, value), node.right);
+	} else if (cmp > 0) {
+	    return balance(node.key, node.value,
+			   node.left, insert(node.right, key, value));
+	}
+	return new Node<K, V>(key, value, node.left, node.right);
+    }
+
+    private static <K extends Comparable<? super K>, V> Node<K, V> delete(
+	    Node<K, V> node, K key) {
+	if (node == null) {
+	    return null;
+	}
+	int cmp = key.compareTo(node.key);
+	if (cmp < 0) {
+	    Node<K, V> left = delete(node.left, key);
+	    return left == node.left
+		    ? node : balance(node.key, node.value, left, node.right);
+	} else if (cmp > 0) {
+	    Node<K, V> right = delete(node.right, key);
+	    return right == node.right
+		    ? node : balance(node.key, node.value, node.left, right);
+	}
+	if (node.left == null) {
+	    return node.right;
+	} else if (node.right == null) {
+	    return node.left;
+	}
+	Node<K, V> min = node.right;
+	while (min.left != null) {
+	    min = min.left;
+	}
+	return balance(min.key, min.value, node.left, deleteMin(node.right));
+    }
+
+    private static <K, V> Node<K, V> deleteMin(Node<K, V> node) {
+	if (node.left == null) {
+	    return node.right;
+	}
+	return balance(node.key, node.value, deleteMin(node.left), node.right);
+    }
+
+    /**
+     * Make a node from a key, a value and two subtrees whose heights
+     * differ by at most two, rotating as needed to restore the AVL
+     * invariant.
+     */
+    private static <K, V> Node<K, V> balance(K key, V value,
+					     Node<K, V> left,
+					     Node<K, V> right) {
+	int leftHeight = height(left);
+	int rightHeight = height(right);
+	if (leftHeight > rightHeight + 1) {
+	    if (height(left.left) >= height(left.right)) {
+		return new Node<K, V>(
+			left.key, left.value, left.left,
+			new Node<K, V>(key, value, left.right, right));
+	    }
+	    Node<K, V> middle = left.right;
+	    return new Node<K, V>(
+		    middle.key, middle.value,
+		    new Node<K, V>(left.key, left.value,
+				   left.left, middle.left),
+		    new Node<K, V>(key, value, middle.right, right));
+	} else if (rightHeight > leftHeight + 1) {
+	    if (height(right.right) >= height(right.left)) {
+		return new Node<K, V>(
+			right.key, right.value,
+			new Node<K, V>(key, value, left, right.left),
+			right.right);
+	    }
+	    Node<K, V> middle = right.left;
+	    return new Node<K, V>(
+		    middle.key, middle.value,
+		    new Node<K, V>(key, value, left, middle.left),
+		    new Node<K, V>(right.key, right.value,
+				   middle.right, right.right));
+	}
+	return new Node<K, V>(key, value, left, right);
+    }
+
+    /**
+     * A subtree, or a single node, waiting to be compared by {@link
+     * #changedKeys}.
+     */
+    private static final class Pending<K, V> {
+	final Node<K, V> node;
+	final boolean whole;
+
+	Pending(Node<K, V> node, boolean whole) {
+	    this.node = node;
+	    this.whole = whole;
+	}
+    }
+
+    /**
+     * Return the keys whose entries differ between this map and
+     * another:  keys in only one of the maps, and keys mapped to
+     * different values.  Values are compared by identity, not with
+     * <code>equals()</code>.
+     *<p>
+     * Subtrees the two maps share are skipped without being looked
+     * at, so comparing a map with one made from it by a few changes
+     * takes time in proportion to the number of changes, times the
+     * height of the tree, rather than the size of the map.
+     *
+     * @param other The map to be compared with this one.
+     * @return The keys that differ, in order.
+     */
+    List<K> changedKeys(PersistentMap<K, V> other) {
+	List<K> keys = new ArrayList<K>();
+	ArrayDeque<Pending<K, V>> mine = new ArrayDeque<Pending<K, V>>();
+	ArrayDeque<Pending<K, V>> theirs = new ArrayDeque<Pending<K, V>>();
+	pushSubtree(mine, root);
+	pushSubtree(theirs, other.root);
+	while (!mine.isEmpty() && !theirs.isEmpty()) {
+	    Pending<K, V> a = mine.peek();
+	    Pending<K, V> b = theirs.peek();
+	    if (a.whole && b.whole && a.node == b.node) {
+		// Both maps continue with the same entries.
+		mine.pop();
+		theirs.pop();
+	    } else if (a.whole
+		    && (!b.whole || a.node.height >= b.node.height)) {
+		expand(mine);
+	    } else if (b.whole) {
+		expand(theirs);
+	    } else {
+		int cmp = a.node.key.compareTo(b.node.key);
+		if (cmp < 0) {
+		    keys.add(a.node.key);
+		    mine.pop();
+		} else if (cmp > 0) {
+		    keys.add(b.node.key);
+		    theirs.pop();
+		} else {
+		    if (a.node.value != b.node.value) {
+			keys.add(a.node.key);
+		    }
+		    mine.pop();
+		    theirs.pop();
+		}
+	    }
+	}
+	addRemainingKeys(mine, keys);
+	addRemainingKeys(theirs, keys);
+	return keys;
+    }
+
+    private static <K, V> void pushSubtree(ArrayDeque<Pending<K, V>> stack,
+					   Node<K, V> node) {
+	if (node != null) {
+	    stack.push(new Pending<K, V>(node, true));
+	}
+    }
+
+    /**
+     * Replace the subtree on top of a stack with its parts, in order.
+     */
+    private static <K, V> void expand(ArrayDeque<Pending<K, V>> stack) {
+	Node<K, V> node = stack.pop().node;
+	pushSubtree(stack, node.right);
+	stack.push(new Pending<K, V>(node, false));
+	pushSubtree(stack, node.left);
+    }
+
+    private static <K, V> void addRemainingKeys(
+	    ArrayDeque<Pending<K, V>> stack, List<K> keys) {
+	while (!stack.isEmpty()) {
+	    Pending<K, V> p = stack.pop();
+	    if (p.whole) {
+		Iterator<Map.Entry<K, V>> iter =
+			new EntryIterator<K, V>(p.node);
+		while (iter.hasNext()) {
+		    keys.add(iter.next().getKey());
+		}
+	    } else {
+		keys.add(p.node.key);
+	    }
+	}
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+	return new AbstractSet<Map.Entry<K, V>>() {
+	    public Iterator<Map.Entry<K, V>> iterator() {
+		return new EntryIterator<K, V>(root);
+	    }
+
+	    public int size() {
+		return PersistentMap.this.size();
+	    }
+	};
+    }
+
+    /**
+     * An in-order iteration over the nodes of a tree.
+     */
+    private static final class EntryIterator<K, V>
+	    implements Iterator<Map.Entry<K, V>> {
+	private final ArrayDeque<Node<K, V>> path =
+		new ArrayDeque<Node<K, V>>();
+
+	EntryIterator(Node<K, V> root) {
+	    descend(root);
+	}
+
+	private void descend(Node<K, V> node) {
+	    for (; node != null; node = node.left) {
+		path.push(node);
+	    }
+	}
+
+	public boolean hasNext() {
+	    return !path.isEmpty();
+	}
+
+	public Map.Entry<K, V> next() {
+	    if (path.isEmpty()) {
+		throw new NoSuchElementException();
+	    }
+	    Node<K, V> node = path.pop();
+	    descend(node.right);
+	    return node;
+	}
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.store;
+
+import javax.management.ConstructorParameters;
+
+/**
+ * The statistics for one phase timed by {@link StoreMetrics}, as of
+ * when they were read.  Over JMX, these appear as composite data.
+ *<p>
+ * Percentiles are estimated from the histogram, so they're only good
+ * to within a factor of two:  each is reported as the upper bound of
+ * the bucket holding it, but no more than the maximum.
+ */
+public class PhaseStatistics {
+    /** The number of histogram buckets. */
+    static final int NUM_BUCKETS = 64;
+
+    private final long count;
+    private final long totalNanos;
+    private final long maxNanos;
+    private final long[] histogram;
+
+    /**
+     * Create a set of statistics.
+     *
+     * @param count The number of operations.
+     * @param totalNanos The total time of the operations.
+     * @param maxNanos The time of the longest operation.
+     * @param histogram The number of operations in each histogram
+     *     bucket; see {@link StoreMetrics.Phase}.  The array is copied.
+     */
+    @ConstructorParameters({ "count", "totalNanos", "maxNanos",
+			     "histogram" })
+    public PhaseStatistics(long count, long totalNanos, long maxNanos,
+			   long[] histogram) {
+	this.count = count;
+	this.totalNanos = totalNanos;
+	this.maxNanos = maxNanos;
+	this.histogram = histogram.clone();
+    }
+
+    /**
+     * Return the histogram bucket that counts a time.
+     */
+    static int bucketFor(long nanos) {
+	return nanos == 0 ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+    }
+
+    /**
+     * Return the number of operations.
+     *
+     * @return The count.
+     */
+    public long getCount() {
+	return count;
+    }
+
+    /**
+     * Return the total time of all operations.
+     *
+     * @return The total, in nanoseconds.
+     */
+    public long getTotalNanos() {
+	return totalNanos;
+    }
+
+    /**
+     * Return the time of the longest operation.
+     *
+     * @return The maximum, in nanoseconds.
+     */
+    public long getMaxNanos() {
+	return maxNanos;
+    }
+
+    /**
+     * Return the mean time of an operation.
+     *
+     * @return The mean, in nanoseconds, or 0 if there were none.
+     */
+    public long getMeanNanos() {
+	return count == 0 ? 0 : totalNanos / count;
+    }
+
+    /**
+     * Return the estimated median time of an operation.
+     *
+     * @return The median, in nanoseconds.
+     */
+    public long getMedianNanos() {
+	return percentile(0.5);
+    }
+
+    /**
+     * Return the estimated 99th percentile time of an operation.
+     *
+     * @return The 99th percentile, in nanoseconds.
+     */
+    public long getPercentile99Nanos() {
+	return percentile(0.99);
+    }
+
+    /**
+     * Return the number of operations in each histogram bucket.
+     *
+     * @return A copy of the histogram.
+     */
+    public long[] getHistogram() {
+	return histogram.clone();
+    }
+
+    /**
+     * Estimate a percentile from the histogram.
+     *
+     * @param fraction The fraction of operations that take no longer
+     *     than the percentile.
+     * @return The percentile, in nanoseconds, or 0 if there were no
+     *     operations.
+     */
+    private long percentile(double fraction) {
+	long total = 0;
+	for (long n : histogram) {
+	    total += n;
+	}
+	long rank = (long) Math.ceil(total * fraction);
+	long seen = 0;
+	for (int i = 0; i < histogram.length; i++) {
+	    seen += histogram[i];
+	    if (seen >= rank && seen > 0) {
+		long upper = i >= 62 ? Long.MAX_VALUE : (2L << i) - 1;
+		return Math.min(upper, maxNanos);
+	    }
+	}
+	return 0;
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.store;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * An index for find-as-you-type searches over account descriptions and
+ * URLs.
+ *<p>
+ * The index is a sorted set of every suffix of every indexed string,
+ * so the suffixes starting with a query are adjacent, and are found
+ * with one logarithmic search.  A suffix is represented by its string
+ * and starting offset, so no substrings are copied.  Indexed strings
+ * are folded to lower case, and URLs are indexed without their scheme
+ * or a leading "www.".
+ *<p>
+ * Matches are ranked by where the query was found:  first, matches at
+ * the start of a description or URL; then matches at the start of a
+ * word; then matches anywhere else.  Each rank has its own set of
+ * suffixes, so a search for the top few matches can stop as soon as
+ * it has found enough.
+ */
+class SearchIndex implements AccountIndex {
+    /**
+     * Rank for suffixes at the start of an indexed string.
+     */
+    private static final int PREFIX = 0;
+
+    /**
+     * Rank for suffixes at the start of a word within a string.
+     */
+    private static final int WORD_START = 1;
+
+    /**
+     * Rank for all other suffixes.
+     */
+    private static final int INNER = 2;
+
+    /**
+     * One suffix of an indexed string.
+     */
+    private static class Suffix {
+	final String text;
+	final int offset;
+	final Account account;
+
+	Suffix(String text, int offset, Account account) {
+	    this.text = text;
+	    this.offset = offset;
+	    this.account = account;
+	}
+
+	/**
+	 * Return whether this suffix starts with a given string.
+	 */
+	boolean startsWith(String prefix) {
+	    return text.startsWith(prefix, offset);
+	}
+    }
+
+    /**
+     * Order suffixes by their text.  Ties are broken by account UUID,
+     * and then by the whole string and offset, so that only identical
+     * suffixes of the same account compare equal.  A suffix with no
+     * account sorts before every other suffix with the same text, so
+     * it can be used to search for a prefix.
+     */
+    private static final Comparator<Suffix> SUFFIX_ORDER =
+	    new Comparator<Suffix>() {
+		public int compare(Suffix s1, Suffix s2) {
+		    int i1 = s1.offset;
+		    int i2 = s2.offset;
+		    int end1 = s1.text.length();
+		    int end2 = s2.text.length();
+		    while (i1 < end1 && i2 < end2) {
+			int rv = s1.text.charAt(i1++) - s2.text.charAt(i2++);
+			if (rv != 0) {
+			    return rv;
+			}
+		    }
+		    int rv = (end1 - i1) - (end2 - i2);
+		    if (rv != 0) {
+			return rv;
+		    }
+		    if (s1.account == null || s2.account == null) {
+			return (s1.account == null ? 0 : 1)
+				- (s2.account == null ? 0 : 1);
+		    }
+		    rv = s1.account.getUUID().compareTo(
+			    s2.account.getUUID());
+		    if (rv != 0) {
+			return rv;
+		    }
+		    rv = s1.text.compareTo(s2.text);
+		    if (rv != 0) {
+			return rv;
+		    }
+		    return s1.offset - s2.offset;
+		}
+	    };
+
+    private final List<TreeSet<Suffix>> ranks =
+	    new ArrayList<TreeSet<Suffix>>();
+
+    SearchIndex() {
+	for (int rank = PREFIX; rank <= INNER; rank++) {
+	    ranks.add(new TreeSet<Suffix>(SUFFIX_ORDER));
+	}
+    }
+
+    /**
+     * Fold a string for indexing or searching.
+     */
+    static String fold(String text) {
+	return text.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Return the part of a URL that is indexed.
+     */
+    static String urlText(String url) {
+	String text = fold(url);
+	int scheme = text.indexOf("://");
+	if (scheme >= 0) {
+	    text = text.substring(scheme + 3);
+	}
+	if (text.startsWith("www.")) {
+	    text = text.substring(4);
+	}
+	return text;
+    }
+
+    private static int rankOf(String text, int offset) {
+	if (offset == 0) {
+	    return PREFIX;
+	}
+	char c = text.charAt(offset);
+	if (Character.isLetterOrDigit(c)
+		&& !Character.isLetterOrDigit(text.charAt(offset - 1))) {
+	    return WORD_START;
+	}
+	return INNER;
+    }
+
+    /**
+     * Add or remove every suffix of an indexed string.
+     */
+    private void update(String text, Account account, boolean add) {
+	for (int offset = 0; offset < text.length(); offset++) {
+	    Suffix suffix = new Suffix(text, offset, account);
+	    TreeSet<Suffix> suffixes = ranks.get(rankOf(text, offset));
+	    if (add) {
+		suffixes.add(suffix);
+	    } else {
+		suffixes.remove(suffix);
+	    }
+	}
+    }
+
+    public void add(Account account) {
+	update(fold(account.getDescription()), account, true);
+	update(urlText(account.getUrl()), account, true);
+    }
+
+    public void addAll(Collection<Account> accounts) {
+	for (Account account : accounts) {
+	    add(account);
+	}
+    }
+
+    public void remove(Account account) {
+	update(fold(account.getDescription()), account, false);
+	update(urlText(account.getUrl()), account, false);
+    }
+
+    /**
+     * Return the best matches for a query.  An account matches if the
+     * query occurs anywhere in its description or URL, ignoring case.
+     * The accounts are returned in rank order, as described above; an
+     * account is returned only once, at its best rank.
+     *
+     * @param query The text to search for.
+     * @param limit The largest number of accounts to return.
+     * @return The matching accounts, best first.
+     */
+    List<Account> search(String query, int limit) {
+	Set<Account> matches = new LinkedHashSet<Account>();
+	query = fold(query);
+	if (query.isEmpty()) {
+	    return new ArrayList<Account>();
+	}
+	Suffix probe = new Suffix(query, 0, null);
+	for (TreeSet<Suffix> suffixes : ranks) {
+	    for (Suffix suffix : suffixes.tailSet(probe, true)) {
+		if (matches.size() >= limit || !suffix.startsWith(query)) {
+		    break;
+		}
+		matches.add(suffix.account);
+	    }
+	}
+	return new ArrayList<Account>(matches);
+    }
+}
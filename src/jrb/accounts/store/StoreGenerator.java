@@ -0,0 +1,457 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.store;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.UUID;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * Generates account store files full of made-up accounts, for
+ * benchmarks and scale tests.
+ *<p>
+ * The number of accounts is fixed when the generator is created; the
+ * depth of account histories, the lengths of descriptions and
+ * passwords, and how many accounts share their URL with others can be
+ * set.  Descriptions are made of common words, numbered so that they're
+ * unique.  Timestamps fall in the past, between 2015 and 2020.
+ *<p>
+ * Everything about a file follows from the generator's seed and
+ * settings, including the password salt and initialization vector, so
+ * the same generator with the same password always writes the same
+ * bytes.  That makes the files useless for real accounts.  Each
+ * account is generated from the seed and its number alone, and
+ * accounts are generated one at a time as the file is written, so a
+ * store of millions of accounts needs memory only for the snapshot's
+ * index.
+ *<p>
+ * A replica (see {@link #replica}) is a copy of a generated store that
+ * has diverged from it, as two copies of a file do when each is
+ * changed separately.  Replicas share account UUIDs and history with
+ * the original, so they're useful for testing merges.
+ */
+public class StoreGenerator {
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    /**
+     * Accounts are created and updated between these times, 2015-01-01
+     * and 2020-01-01 UTC.  Replicas change them during the following
+     * month.
+     */
+    private static final long START_TIME = 1420070400000L;
+    private static final long END_TIME = 1577836800000L;
+    private static final long REPLICA_MILLIS = 30 * DAY_MILLIS;
+
+    private static final String[] WORDS = {
+	"Bank", "Mail", "Shop", "Cloud", "Travel", "News", "Music", "Video",
+	"Photo", "Games", "Health", "Insurance", "Credit", "Union", "Card",
+	"Market", "Books", "Home", "Energy", "Water", "Phone", "Mobile",
+	"Work", "School", "Library", "Forum", "Social", "Chat", "Code",
+	"Storage", "Backup", "Airline", "Hotel", "Rental", "Car", "Pharmacy",
+	"Doctor", "Dentist", "Tax", "City", "County", "State", "Retirement",
+	"Savings", "Checking", "Brokerage", "Pet", "Garden", "Hardware",
+	"Grocery", "Coffee", "Pizza", "Fitness", "Club", "Ticket", "Stream",
+	"Router", "Printer", "Camera", "Account", "Personal", "Family",
+	"Old", "New",
+    };
+
+    /**
+     * The characters in generated passwords.  These are kept here
+     * rather than taken from the password generator, so that the files
+     * generated from a seed never change.
+     */
+    private static final String PASSWORD_CHARS =
+	"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789"
+	+ "!#$%&*+-.:;=?@^_~";
+
+    private final long seed;
+    private final int numAccounts;
+
+    private int minDepth = 1;
+    private int maxDepth = 1;
+    private int minWords = 1;
+    private int maxWords = 3;
+    private int minPasswordLength = 8;
+    private int maxPasswordLength = 16;
+    private double sharedUrlRatio = 0.5;
+    private boolean compress = true;
+
+    private boolean isReplica;
+    private long replicaSeed;
+    private double changeRatio;
+
+    /**
+     * Create a generator for a store with a given number of accounts,
+     * with default settings:  histories one entry deep, descriptions of
+     * one to three words, passwords 8 to 16 characters long, and half
+     * of all URLs shared.
+     *
+     * @param seed The seed from which everything is generated.
+     * @param numAccounts The number of accounts in the store.
+     */
+    public StoreGenerator(long seed, int numAccounts) {
+	this.seed = seed;
+	this.numAccounts = numAccounts;
+    }
+
+    /**
+     * Set how deep account histories are.  Every history has at least
+     * the minimum number of entries, and each entry after that up to the
+     * maximum is there with even odds, so that half of the accounts
+     * have the minimum, a quarter one more, and so on.
+     *
+     * @param min The fewest entries in a history; at least 1.
+     * @param max The most entries in a history.
+     */
+    public void setHistoryDepth(int min, int max) {
+	minDepth = Math.max(1, min);
+	maxDepth = Math.max(minDepth, max);
+    }
+
+    /**
+     * Set how many words are in each description, before its number.
+     * The number of words is uniformly distributed.
+     *
+     * @param min The fewest words.
+     * @param max The most words.
+     */
+    public void setDescriptionWords(int min, int max) {
+	minWords = Math.max(0, min);
+	maxWords = Math.max(minWords, max);
+    }
+
+    /**
+     * Set how long passwords are.  Lengths are uniformly distributed.
+     *
+     * @param min The shortest password length; at least 1.
+     * @param max The longest password length.
+     */
+    public void setPasswordLength(int min, int max) {
+	minPasswordLength = Math.max(1, min);
+	maxPasswordLength = Math.max(minPasswordLength, max);
+    }
+
+    /**
+     * Set how many accounts share their URL with others.  Shared URLs
+     * come from a pool with one site for every twenty accounts; every
+     * other account has a URL of its own.
+     *
+     * @param ratio The fraction of accounts with a shared URL, from 0
+     *     to 1.
+     */
+    public void setSharedUrlRatio(double ratio) {
+	sharedUrlRatio = ratio;
+    }
+
+    /**
+     * Set whether written files are compressed; see
+     * {@link AccountStore#setCompressionEnabled}.
+     *
+     * @param compress Whether to compress files.
+     */
+    public void setCompressionEnabled(boolean compress) {
+	this.compress = compress;
+    }
+
+    /**
+     * Return a generator for a replica of this generator's store that
+     * has diverged from it.  The given fraction of the accounts are
+     * changed:  of those, one in eight is deleted, and the rest get one
+     * to three new history entries.  A quarter of the changed accounts
+     * are also joined by a new account.  Replicas with different seeds
+     * diverge differently.
+     *
+     * @param replicaSeed The seed from which the changes are generated.
+     * @param changeRatio The fraction of accounts changed, from 0 to 1.
+     * @return A generator with the same settings as this one, that
+     *     generates the replica.
+     */
+    public StoreGenerator replica(long replicaSeed, double changeRatio) {
+	StoreGenerator replica = new StoreGenerator(seed, numAccounts);
+	replica.minDepth = minDepth;
+	replica.maxDepth = maxDepth;
+	replica.minWords = minWords;
+	replica.maxWords = maxWords;
+	replica.minPasswordLength = minPasswordLength;
+	replica.maxPasswordLength = maxPasswordLength;
+	replica.sharedUrlRatio = sharedUrlRatio;
+	replica.compress = compress;
+	replica.isReplica = true;
+	replica.replicaSeed = replicaSeed;
+	replica.changeRatio = changeRatio;
+	return replica;
+    }
+
+    /**
+     * Return a random number generator for one account.  The seed and
+     * the account's number are scrambled together first, because
+     * <code>Random</code>s with nearby seeds start out alike.
+     */
+    private static Random randomFor(long seed, int index) {
+	long z = seed + index * 0x9e3779b97f4a7c15L;
+	z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+	z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+	return new Random(z ^ (z >>> 31));
+    }
+
+    /**
+     * How one account of the original store fares in a replica.  The
+     * first draws from the replica's random number generator for the
+     * account decide; the rest of the generator's draws make the
+     * changes.
+     */
+    private static class Change {
+	final Random random;
+	final boolean changed;
+	final boolean deleted;
+	final boolean added;
+
+	Change(Random random, double changeRatio) {
+	    this.random = random;
+	    int kind = random.nextInt(8);
+	    changed = random.nextDouble() < changeRatio;
+	    deleted = changed && kind == 0;
+	    added = changed && kind >= 6;
+	}
+    }
+
+    private Change changeFor(int index) {
+	if (!isReplica) {
+	    return null;
+	}
+	return new Change(randomFor(replicaSeed, index), changeRatio);
+    }
+
+    /**
+     * Return the number of accounts in the generated store.  For a
+     * replica, this takes a pass over the changes.
+     *
+     * @return The number of accounts.
+     */
+    public int size() {
+	if (!isReplica) {
+	    return numAccounts;
+	}
+	int size = 0;
+	for (int i = 0; i < numAccounts; i++) {
+	    Change change = changeFor(i);
+	    if (!change.deleted) {
+		size++;
+	    }
+	    if (change.added) {
+		size++;
+	    }
+	}
+	return size;
+    }
+
+    private static int between(Random random, int min, int max) {
+	return min + random.nextInt(max - min + 1);
+    }
+
+    private static UUID randomUUID(Random random) {
+	long high = random.nextLong();
+	long low = random.nextLong();
+	// Mark it as a version 4 UUID, like UUID.randomUUID().
+	high = (high & ~0xf000L) | 0x4000L;
+	low = (low & 0x3fffffffffffffffL) | 0x8000000000000000L;
+	return new UUID(high, low);
+    }
+
+    private String randomDescription(Random random, String number) {
+	StringBuilder description = new StringBuilder();
+	int words = between(random, minWords, maxWords);
+	for (int i = 0; i < words; i++) {
+	    description.append(WORDS[random.nextInt(WORDS.length)]);
+	    description.append(' ');
+	}
+	return description.append(number).toString();
+    }
+
+    private String randomPassword(Random random) {
+	int length = between(random, minPasswordLength, maxPasswordLength);
+	char[] password = new char[length];
+	for (int i = 0; i < length; i++) {
+	    password[i] = PASSWORD_CHARS.charAt(
+		    random.nextInt(PASSWORD_CHARS.length()));
+	}
+	return new String(password);
+    }
+
+    private String randomUrl(Random random, int index) {
+	if (random.nextDouble() < sharedUrlRatio) {
+	    int site = random.nextInt(Math.max(1, numAccounts / 20));
+	    return "https://login.site" + site + ".com/";
+	}
+	return "https://www.account" + index + ".example.com/login";
+    }
+
+    private static String randomUsername(Random random) {
+	if (random.nextInt(4) == 0) {
+	    return "user" + random.nextInt(20) + "@example.com";
+	}
+	return WORDS[random.nextInt(WORDS.length)].toLowerCase()
+		+ random.nextInt(1000);
+    }
+
+    /**
+     * Generate an account as it is in the store.  The account's history
+     * in the original store is spread between its creation time and the
+     * end of the original's time span; a replica may add entries after
+     * that.
+     */
+    private Account generateAccount(int index, Change change) {
+	Random random = randomFor(seed, index);
+	UUID uuid = randomUUID(random);
+	String description =
+		randomDescription(random, Integer.toString(index + 1));
+	String url = randomUrl(random, index);
+	String username = randomUsername(random);
+	int depth = minDepth;
+	while (depth < maxDepth && random.nextBoolean()) {
+	    depth++;
+	}
+	int extra = 0;
+	if (change != null && change.changed) {
+	    extra = between(change.random, 1, 3);
+	}
+
+	AccountHistory history = new AccountHistory(depth + extra);
+	long time = START_TIME
+		+ (long) (random.nextDouble() * (END_TIME - START_TIME));
+	long maxGap = Math.max(1, (END_TIME - time) / depth);
+	for (int i = 0; i < depth; i++) {
+	    if (i > 0) {
+		time += 1 + (long) (random.nextDouble() * (maxGap - 1));
+		if (random.nextInt(8) == 0) {
+		    username = randomUsername(random);
+		}
+	    }
+	    history.add(new AccountHistory.Entry(
+			    description, url, username,
+			    randomPassword(random)), time);
+	}
+	time = END_TIME;
+	for (int i = 0; i < extra; i++) {
+	    time += 1 + (long) (change.random.nextDouble()
+				* (REPLICA_MILLIS / extra - 1));
+	    history.add(new AccountHistory.Entry(
+			    description, url, username,
+			    randomPassword(change.random)), time);
+	}
+	return new Account(uuid, history);
+    }
+
+    /**
+     * Generate a new account added by a replica.  The description is
+     * numbered after the replica and the original account it follows,
+     * so that it's unique even among several replicas.
+     */
+    private Account addedAccount(int index, Change change) {
+	Random random = change.random;
+	UUID uuid = randomUUID(random);
+	String number = Long.toString(replicaSeed, 36) + "-" + (index + 1);
+	AccountHistory history = new AccountHistory(1);
+	history.add(new AccountHistory.Entry(
+			randomDescription(random, number),
+			randomUrl(random, index), randomUsername(random),
+			randomPassword(random)),
+		    END_TIME + 1
+		    + (long) (random.nextDouble() * (REPLICA_MILLIS - 1)));
+	return new Account(uuid, history);
+    }
+
+    /**
+     * Return the accounts of the generated store, as a collection whose
+     * iterators generate each account as it's reached.  Iteration isn't
+     * in order by description.
+     *
+     * @return A read-only collection of the accounts.
+     */
+    Collection<Account> accounts() {
+	final int size = size();
+	return new AbstractCollection<Account>() {
+	    public int size() {
+		return size;
+	    }
+
+	    public Iterator<Account> iterator() {
+		return new Iterator<Account>() {
+		    private int index;
+		    private Account pending;
+		    private Account queued;
+
+		    public boolean hasNext() {
+			while (pending == null && index < numAccounts) {
+			    Change change = changeFor(index);
+			    if (change == null || !change.deleted) {
+				pending = generateAccount(index, change);
+			    }
+			    if (change != null && change.added) {
+				queued = addedAccount(index, change);
+				if (pending == null) {
+				    pending = queued;
+				    queued = null;
+				}
+			    }
+			    index++;
+			}
+			return pending != null;
+		    }
+
+		    public Account next() {
+			if (!hasNext()) {
+			    throw new NoSuchElementException();
+			}
+			Account next = pending;
+			pending = queued;
+			queued = null;
+			return next;
+		    }
+		};
+	    }
+	};
+    }
+
+    /**
+     * Generate the store and write it as an account store file.  The
+     * stream isn't closed.
+     *
+     * @param raw The output stream to which the file will be written.
+     * @param password A character array holding the password that will
+     *     encrypt the file.  The array is cleared.
+     * @throws GeneralSecurityException Indicates a failure during
+     *     encryption.
+     * @throws IOException Indicates a failure writing data.
+     */
+    public void write(OutputStream raw, char[] password)
+	    throws GeneralSecurityException, IOException {
+	Random random = new Random(isReplica ? seed ^ replicaSeed : seed);
+	byte[] salt = new byte[8];
+	random.nextBytes(salt);
+	byte[] iv = new byte[AccountStore.NONCE_BYTES];
+	random.nextBytes(iv);
+	DerivedKey key = new DerivedKey(password, salt);
+	try {
+	    DataOutputStream out = new DataOutputStream(
+		    new BufferedOutputStream(raw, ChunkedSnapshot.CHUNK_BYTES));
+	    out.write(AccountStore.FILEMAGIC.getBytes());
+	    out.write(salt);
+	    ChunkedSnapshot.write(out, key, iv, 0, accounts(), compress);
+	    out.flush();
+	} finally {
+	    key.destroy();
+	}
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.store;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * Merges any number of account store files into one new account store
+ * in a single pass.
+ *<p>
+ * The source files are read and decrypted concurrently, on a pool of
+ * threads.  Each source's accounts are then sorted by UUID, and the
+ * sources are merged with a heap, so that every copy of an account is
+ * reached together, and their histories are merged at once.  Each
+ * account's merged history is the same as from merging the sources
+ * one by one, but the description map and indexes of the result are
+ * built only once.
+ *<p>
+ * As for {@link AccountStore#mergeAccounts}, descriptions must remain
+ * unique.  If several accounts end up with the same description, the
+ * account that appears in the earliest source keeps it, and the rest
+ * are left out of the result.  Ties between accounts from the same
+ * source go to the account with the lowest UUID.
+ */
+public class StoreMerger {
+    private final List<Path> paths = new ArrayList<Path>();
+    private final List<char[]> passwords = new ArrayList<char[]>();
+
+    private List<Account> rejected = new ArrayList<Account>();
+
+    /**
+     * The accounts from one source, with a cursor marking the next
+     * account to merge.
+     */
+    private static class Source {
+	final int order;
+	final Account[] accounts;
+	int next;
+
+	Source(int order, Account[] accounts) {
+	    this.order = order;
+	    this.accounts = accounts;
+	}
+
+	Account current() {
+	    return accounts[next];
+	}
+    }
+
+    /**
+     * Order accounts by UUID.
+     */
+    private static final Comparator<Account> UUID_ORDER =
+	    new Comparator<Account>() {
+		public int compare(Account a1, Account a2) {
+		    return a1.getUUID().compareTo(a2.getUUID());
+		}
+	    };
+
+    /**
+     * Order sources by the UUID of their next account, and then by
+     * their order in the list of sources.
+     */
+    private static final Comparator<Source> SOURCE_ORDER =
+	    new Comparator<Source>() {
+		public int compare(Source s1, Source s2) {
+		    int rv = UUID_ORDER.compare(s1.current(), s2.current());
+		    if (rv != 0) {
+			return rv;
+		    }
+		    return s1.order - s2.order;
+		}
+	    };
+
+    /**
+     * One account in the merged result, with the earliest source
+     * that contained it.
+     */
+    private static class Merged {
+	final Account account;
+	final int order;
+
+	Merged(Account account, int order) {
+	    this.account = account;
+	    this.order = order;
+	}
+
+	/**
+	 * Return whether this account takes precedence over another
+	 * account with the same description.
+	 */
+	boolean precedes(Merged other) {
+	    if (order != other.order) {
+		return order < other.order;
+	    }
+	    return UUID_ORDER.compare(account, other.account) < 0;
+	}
+    }
+
+    /**
+     * Add a source file to be merged.  Sources take precedence for
+     * descriptions in the order they're added.
+     *
+     * @param path The account store file to be read.
+     * @param password A character array holding the password that will
+     *     decrypt the file.
+     */
+    public void addSource(Path path, char[] password) {
+	paths.add(path);
+	passwords.add(password);
+    }
+
+    /**
+     * Read every source, and merge their accounts into a new account
+     * store.  The new store has never been saved; it's written in full
+     * by its first save.
+     *
+     * @return The merged account store.
+     * @throws GeneralSecurityException Indicates a failure decrypting
+     *     one of the sources.
+     * @throws IOException Indicates a failure reading one of the
+     *     sources.
+     */
+    public AccountStore merge()
+	    throws GeneralSecurityException, IOException {
+	List<Account[]> sources = readSources();
+	PriorityQueue<Source> heap = new PriorityQueue<Source>(
+		Math.max(1, sources.size()), SOURCE_ORDER);
+	for (int i = 0; i < sources.size(); i++) {
+	    Account[] accounts = sources.get(i);
+	    if (accounts.length > 0) {
+		Arrays.sort(accounts, UUID_ORDER);
+		heap.add(new Source(i, accounts));
+	    }
+	}
+
+	HashMap<String, Merged> descriptions = new HashMap<String, Merged>();
+	rejected = new ArrayList<Account>();
+	while (!heap.isEmpty()) {
+	    Source source = heap.poll();
+	    Merged merged = new Merged(source.current(), source.order);
+	    advance(heap, source);
+	    while (!heap.isEmpty()
+		    && UUID_ORDER.compare(heap.peek().current(),
+					  merged.account) == 0) {
+		source = heap.poll();
+		merged.account.mergeHistory(source.current());
+		advance(heap, source);
+	    }
+
+	    String description = merged.account.getDescription();
+	    Merged other = descriptions.get(description);
+	    if (other == null) {
+		descriptions.put(description, merged);
+	    } else if (merged.precedes(other)) {
+		descriptions.put(description, merged);
+		rejected.add(other.account);
+	    } else {
+		rejected.add(merged.account);
+	    }
+	}
+
+	List<Account> accounts = new ArrayList<Account>(descriptions.size());
+	for (Merged merged : descriptions.values()) {
+	    accounts.add(merged.account);
+	}
+	AccountStore result = new AccountStore();
+	result.addAccounts(accounts);
+	return result;
+    }
+
+    private static void advance(PriorityQueue<Source> heap, Source source) {
+	source.next++;
+	if (source.next < source.accounts.length) {
+	    heap.add(source);
+	}
+    }
+
+    /**
+     * Return the accounts left out of the last merge because their
+     * descriptions duplicated those of other accounts.
+     *
+     * @return A read-only list of the accounts that weren't merged.
+     */
+    public List<Account> getRejected() {
+	return Collections.unmodifiableList(rejected);
+    }
+
+    /**
+     * Read every source concurrently.  The sources' indexes are never
+     * searched, so they're never built.  The records of each source's
+     * accounts are taken as is; the source stores are thrown away, so
+     * the records can be merged into directly.
+     */
+    private List<Account[]> readSources()
+	    throws GeneralSecurityException, IOException {
+	int nThreads = Math.max(1, Math.min(
+		paths.size(), Runtime.getRuntime().availableProcessors()));
+	ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+	try {
+	    List<Future<Account[]>> futures =
+		    new ArrayList<Future<Account[]>>();
+	    for (int i = 0; i < paths.size(); i++) {
+		final Path path = paths.get(i);
+		final char[] password = passwords.get(i);
+		futures.add(executor.submit(new Callable<Account[]>() {
+		    public Account[] call()
+			    throws GeneralSecurityException, IOException {
+			AccountStore store = new AccountStore(path, password);
+			return store.getRecords().toArray(new Account[0]);
+		    }
+		}));
+	    }
+	    List<Account[]> sources = new ArrayList<Account[]>();
+	    for (Future<Account[]> future : futures) {
+		sources.add(getSource(future));
+	    }
+	    return sources;
+	} finally {
+	    executor.shutdownNow();
+	}
+    }
+
+    /**
+     * Return the accounts read from one source, or rethrow the failure
+     * that prevented reading them.
+     */
+    private static Account[] getSource(Future<Account[]> future)
+	    throws GeneralSecurityException, IOException {
+	try {
+	    return future.get();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new IOException("Interrupted while reading", e);
+	} catch (ExecutionException e) {
+	    Throwable failure = e.getCause();
+	    if (failure instanceof GeneralSecurityException) {
+		throw (GeneralSecurityException) failure;
+	    } else if (failure instanceof IOException) {
+		throw (IOException) failure;
+	    } else if (failure instanceof Error) {
+		throw (Error) failure;
+	    }
+	    throw (RuntimeException) failure;
+	}
+    }
+}
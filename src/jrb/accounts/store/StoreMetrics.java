@@ -0,0 +1,212 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.store;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Timing for the phases of reading, saving and displaying an account
+ * store:  deriving the key, decrypting, parsing, building the indexes,
+ * saving, syncing and refilling the account list in the UI.  For each
+ * phase there's a count, a total and maximum time, and a histogram of
+ * times.
+ *<p>
+ * Recording a time costs a call to <code>System.nanoTime</code> and a
+ * few uncontended additions, so the metrics are always on.  Phases are
+ * timed in whole operations, such as one chunk of a snapshot, never
+ * per account.  A typical use:
+ *<pre>
+ *     long start = System.nanoTime();
+ *     ...
+ *     StoreMetrics.DECRYPT.record(start);
+ *</pre>
+ * The metrics can be read with {@link #getInstance}, or, once
+ * {@link #register} has been called, over JMX as the MXBean named by
+ * {@link #OBJECT_NAME}.  Registering is left to long-running programs,
+ * so that a short command doesn't pay to start JMX.
+ */
+public class StoreMetrics implements StoreMetricsMXBean {
+    /**
+     * The name under which the metrics are registered with the
+     * platform MBean server.
+     */
+    public static final String OBJECT_NAME = "jrb.accounts:type=StoreMetrics";
+
+    /**
+     * One phase being timed.  Times are counted in histogram buckets
+     * by powers of two:  bucket <em>n</em> counts times of at least
+     * 2<sup><em>n</em></sup> nanoseconds, and less than
+     * 2<sup><em>n</em>+1</sup>.
+     */
+    public static class Phase {
+	private final String name;
+	private final LongAdder count = new LongAdder();
+	private final LongAdder totalNanos = new LongAdder();
+	private final AtomicLong maxNanos = new AtomicLong();
+	private final LongAdder[] buckets =
+		new LongAdder[PhaseStatistics.NUM_BUCKETS];
+
+	private Phase(String name) {
+	    this.name = name;
+	    for (int i = 0; i < buckets.length; i++) {
+		buckets[i] = new LongAdder();
+	    }
+	}
+
+	/**
+	 * Return the name of this phase.
+	 *
+	 * @return The name of the phase.
+	 */
+	public String getName() {
+	    return name;
+	}
+
+	/**
+	 * Record one operation of this phase, from its start until now.
+	 *
+	 * @param startNanos The value of <code>System.nanoTime</code>
+	 *     when the operation started.
+	 */
+	public void record(long startNanos) {
+	    long nanos = Math.max(System.nanoTime() - startNanos, 0L);
+	    count.increment();
+	    totalNanos.add(nanos);
+	    buckets[PhaseStatistics.bucketFor(nanos)].increment();
+	    long max = maxNanos.get();
+	    while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+		max = maxNanos.get();
+	    }
+	}
+
+	/**
+	 * Return the statistics for this phase.  Operations recorded
+	 * while the statistics are gathered may be only partly counted.
+	 *
+	 * @return The statistics.
+	 */
+	public PhaseStatistics getStatistics() {
+	    long[] histogram = new long[buckets.length];
+	    for (int i = 0; i < buckets.length; i++) {
+		histogram[i] = buckets[i].sum();
+	    }
+	    return new PhaseStatistics(count.sum(), totalNanos.sum(),
+				       maxNanos.get(), histogram);
+	}
+
+	private void reset() {
+	    count.reset();
+	    totalNanos.reset();
+	    maxNanos.set(0);
+	    for (LongAdder bucket : buckets) {
+		bucket.reset();
+	    }
+	}
+    }
+
+    /** Deriving a key from a password. */
+    public static final Phase KEY_DERIVATION = new Phase("KeyDerivation");
+
+    /** Decrypting one snapshot chunk, file section or whole old file. */
+    public static final Phase DECRYPT = new Phase("Decrypt");
+
+    /** Parsing the accounts from one decrypted chunk or old file. */
+    public static final Phase PARSE = new Phase("Parse");
+
+    /** Building the secondary indexes of a store. */
+    public static final Phase INDEX_BUILD = new Phase("IndexBuild");
+
+    /** Writing or appending to a file with a <code>FileSaver</code>. */
+    public static final Phase SAVE = new Phase("Save");
+
+    /** Forcing appended changes to disk. */
+    public static final Phase SYNC = new Phase("Sync");
+
+    /** Refilling the account list in the UI. */
+    public static final Phase LIST_REFILL = new Phase("ListRefill");
+
+    private static final Phase[] PHASES = {
+	KEY_DERIVATION, DECRYPT, PARSE, INDEX_BUILD, SAVE, SYNC, LIST_REFILL
+    };
+
+    private static final StoreMetrics INSTANCE = new StoreMetrics();
+
+    private static boolean registered;
+
+    private StoreMetrics() {
+    }
+
+    /**
+     * Return the one set of metrics.
+     *
+     * @return The metrics.
+     */
+    public static StoreMetrics getInstance() {
+	return INSTANCE;
+    }
+
+    /**
+     * Register the metrics with the platform MBean server, if they
+     * aren't registered already.
+     *
+     * @throws JMException Indicates the metrics couldn't be registered.
+     */
+    public static synchronized void register() throws JMException {
+	if (registered) {
+	    return;
+	}
+	MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+	server.registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+	registered = true;
+    }
+
+    @Override
+    public PhaseStatistics getKeyDerivation() {
+	return KEY_DERIVATION.getStatistics();
+    }
+
+    @Override
+    public PhaseStatistics getDecrypt() {
+	return DECRYPT.getStatistics();
+    }
+
+    @Override
+    public PhaseStatistics getParse() {
+	return PARSE.getStatistics();
+    }
+
+    @Override
+    public PhaseStatistics getIndexBuild() {
+	return INDEX_BUILD.getStatistics();
+    }
+
+    @Override
+    public PhaseStatistics getSave() {
+	return SAVE.getStatistics();
+    }
+
+    @Override
+    public PhaseStatistics getSync() {
+	return SYNC.getStatistics();
+    }
+
+    @Override
+    public PhaseStatistics getListRefill() {
+	return LIST_REFILL.getStatistics();
+    }
+
+    @Override
+    public void reset() {
+	for (Phase phase : PHASES) {
+	    phase.reset();
+	}
+    }
+}
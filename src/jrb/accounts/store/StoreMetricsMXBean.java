@@ -0,0 +1,65 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.store;
+
+/**
+ * The management interface for {@link StoreMetrics}.  Each attribute
+ * holds the statistics for one phase, as a {@link PhaseStatistics}.
+ */
+public interface StoreMetricsMXBean {
+    /**
+     * Return the statistics for deriving keys from passwords.
+     *
+     * @return The statistics.
+     */
+    PhaseStatistics getKeyDerivation();
+
+    /**
+     * Return the statistics for decrypting file data.
+     *
+     * @return The statistics.
+     */
+    PhaseStatistics getDecrypt();
+
+    /**
+     * Return the statistics for parsing decrypted accounts.
+     *
+     * @return The statistics.
+     */
+    PhaseStatistics getParse();
+
+    /**
+     * Return the statistics for building secondary indexes.
+     *
+     * @return The statistics.
+     */
+    PhaseStatistics getIndexBuild();
+
+    /**
+     * Return the statistics for writing and appending to files.
+     *
+     * @return The statistics.
+     */
+    PhaseStatistics getSave();
+
+    /**
+     * Return the statistics for forcing appended changes to disk.
+     *
+     * @return The statistics.
+     */
+    PhaseStatistics getSync();
+
+    /**
+     * Return the statistics for refilling the account list in the UI.
+     *
+     * @return The statistics.
+     */
+    PhaseStatistics getListRefill();
+
+    /**
+     * Discard everything recorded so far, in every phase.
+     */
+    void reset();
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.store;
+
+import java.util.ArrayDeque;
+
+/**
+ * The undo and redo history of an <code>AccountStore</code>.
+ *<p>
+ * Before each change that is to be undoable, the store's current
+ * version is marked with {@link #mark}, along with a name for the
+ * change.  Undoing the change restores the version marked before it;
+ * redoing it restores the version that was current when it was undone.
+ * Versions share all but the changed parts of the store's account maps
+ * (see {@link AccountStore#getVersion}), so each level of undo costs
+ * memory in proportion to the accounts changed, not to the size of the
+ * store, and undoing or redoing takes time in proportion to the
+ * accounts changed.
+ *<p>
+ * Marking a new change forgets anything that could have been redone.
+ * Only the most recent changes are kept, up to a limit given when the
+ * history is created.
+ *<p>
+ * This class isn't synchronized.
+ */
+public class UndoHistory {
+    /**
+     * One change that can be undone or redone, with the version to
+     * restore to do it.
+     */
+    private static class Step {
+	final String name;
+	final AccountStore.Version version;
+
+	Step(String name, AccountStore.Version version) {
+	    this.name = name;
+	    this.version = version;
+	}
+    }
+
+    private final AccountStore store;
+    private final int limit;
+    private final ArrayDeque<Step> undoSteps = new ArrayDeque<Step>();
+    private final ArrayDeque<Step> redoSteps = new ArrayDeque<Step>();
+
+    /**
+     * Create an empty history for an account store.
+     *
+     * @param store The account store whose changes are to be undone.
+     * @param limit The most changes that can be undone.
+     */
+    public UndoHistory(AccountStore store, int limit) {
+	this.store = store;
+	this.limit = limit;
+    }
+
+    /**
+     * Mark the store's current version as the one to restore if the
+     * change about to be made is undone.
+     *
+     * @param name A name for the change, such as "Delete".
+     */
+    public void mark(String name) {
+	undoSteps.push(new Step(name, store.getVersion()));
+	if (undoSteps.size() > limit) {
+	    undoSteps.removeLast();
+	}
+	redoSteps.clear();
+    }
+
+    /**
+     * Forget every change.  This must be called after the store is
+     * changed without marking it, as when it's read from a file.
+     */
+    public void clear() {
+	undoSteps.clear();
+	redoSteps.clear();
+    }
+
+    public boolean canUndo() {
+	return !undoSteps.isEmpty();
+    }
+
+    public boolean canRedo() {
+	return !redoSteps.isEmpty();
+    }
+
+    /**
+     * Return the name of the change that {@link #undo} would undo.
+     *
+     * @return The name given when the change was marked, or
+     *     <code>null</code> if there's nothing to undo.
+     */
+    public String getUndoName() {
+	return undoSteps.isEmpty() ? null : undoSteps.peek().name;
+    }
+
+    /**
+     * Return the name of the change that {@link #redo} would redo.
+     *
+     * @return The name given when the change was marked, or
+     *     <code>null</code> if there's nothing to redo.
+     */
+    public String getRedoName() {
+	return redoSteps.isEmpty() ? null : redoSteps.peek().name;
+    }
+
+    /**
+     * Undo the most recent change, restoring the store to the version
+     * marked before it.
+     *
+     * @throws IllegalStateException There's nothing to undo.
+     */
+    public void undo() {
+	if (undoSteps.isEmpty()) {
+	    throw new IllegalStateException("Nothing to undo");
+	}
+	Step step = undoSteps.pop();
+	redoSteps.push(new Step(step.name, store.getVersion()));
+	store.restore(step.version);
+    }
+
+    /**
+     * Redo the most recently undone change.
+     *
+     * @throws IllegalStateException There's nothing to redo.
+     */
+    public void redo() {
+	if (redoSteps.isEmpty()) {
+	    throw new IllegalStateException("Nothing to redo");
+	}
+	Step step = redoSteps.pop();
+	undoSteps.push(new Step(step.name, store.getVersion()));
+	store.restore(step.version);
+    }
+}
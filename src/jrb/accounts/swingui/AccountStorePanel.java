@@ -6,13 +6,15 @@ package jrb.accounts.swingui;
 
 import jrb.accounts.store.Account;
 import jrb.accounts.store.AccountStore;
+import jrb.accounts.store.FileSaver;
+import jrb.accounts.store.StoreMetrics;
+import jrb.accounts.store.UndoHistory;
 import jrb.accounts.password.PasswordGenerator;
 
+import java.util.List;
 import java.util.Vector;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 
 import java.security.GeneralSecurityException;
@@ -26,6 +28,8 @@ import java.awt.FlowLayout;
 import java.awt.GridLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.InputEvent;
+import java.awt.event.KeyEvent;
 
 import javax.swing.*;
 import javax.swing.event.DocumentEvent;
@@ -38,7 +42,7 @@ import javax.swing.event.ListSelectionListener;
  */
 class AccountStorePanel extends JPanel
 	implements ActionListener, ListSelectionListener,
-		   DocumentListener {
+		   DocumentListener, AutosaveWorker.Listener {
     /**
      * Text for the button used to move earlier in account update
      * history.
@@ -92,6 +96,38 @@ class AccountStorePanel extends JPanel
      */
     static private final String COPY = "Copy";
 
+    /**
+     * Name of the menu action used to undo the last change to the
+     * account store.
+     */
+    static private final String UNDO = "Undo";
+
+    /**
+     * Name of the menu action used to redo the last change undone.
+     */
+    static private final String REDO = "Redo";
+
+    /**
+     * Name of the change made by merging another account file.
+     */
+    static private final String MERGE = "Merge";
+
+    /**
+     * The most accounts shown in the account list when it's filtered.
+     */
+    static private final int FILTER_LIMIT = 100;
+
+    /**
+     * The most changes that can be undone.
+     */
+    static private final int UNDO_LIMIT = 500;
+
+    /**
+     * The most time, in milliseconds, that a saved change may wait to
+     * be forced to disk along with later changes.
+     */
+    static private final long SYNC_DELAY_MILLIS = 200;
+
     private JButton earlierButton = new JButton(EARLIER);
     private JButton laterButton = new JButton(LATER);
     private JButton deleteButton = new JButton(DELETE);
@@ -104,9 +140,17 @@ class AccountStorePanel extends JPanel
     private PasswordGenPanel passwordPanel;
 
     private JList<Account> accountList;
+    private JTextField filterField;
 
     private File myAccountsFile;
     private AccountStore myAccountStore;
+    private UndoHistory undoHistory;
+
+    private Action undoAction;
+    private Action redoAction;
+
+    private AutosaveWorker autosaver = new AutosaveWorker(
+	    this, FileSaver.DEFAULT_BACKUPS, SYNC_DELAY_MILLIS);
 
     private JPanel createButtonPanel(JButton[] buttons) {
 	JPanel buttonPanel = new JPanel(
@@ -157,6 +201,7 @@ class AccountStorePanel extends JPanel
 
     public AccountStorePanel() {
 	super(new BorderLayout());
+	createUndoActions();
 
 	accountList = new JList<Account>();
 	accountList.addListSelectionListener(this);
@@ -166,7 +211,27 @@ class AccountStorePanel extends JPanel
 	JScrollPane aScrollPane = new JScrollPane(accountList);
 	aScrollPane.setVerticalScrollBarPolicy(
 		JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
-	add(aScrollPane, BorderLayout.WEST);
+
+	filterField = new JTextField();
+	filterField.setToolTipText("Show only matching accounts");
+	filterField.getDocument().addDocumentListener(
+		new DocumentListener() {
+		    public void insertUpdate(DocumentEvent e) {
+			refillAccountList();
+		    }
+
+		    public void removeUpdate(DocumentEvent e) {
+			refillAccountList();
+		    }
+
+		    public void changedUpdate(DocumentEvent e) {
+		    }
+		});
+
+	JPanel listPanel = new JPanel(new BorderLayout());
+	listPanel.add(filterField, BorderLayout.NORTH);
+	listPanel.add(aScrollPane, BorderLayout.CENTER);
+	add(listPanel, BorderLayout.WEST);
 
 	accountDataPanel = new AccountDataPanel(this);
 	passwordPanel = new PasswordGenPanel();
@@ -180,6 +245,67 @@ class AccountStorePanel extends JPanel
 	generateButton.setEnabled(false);
     }
 
+    /**
+     * Create the actions for the <i>Undo</i> and <i>Redo</i> menu
+     * choices.
+     */
+    private void createUndoActions() {
+	int shortcut = Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx();
+	undoAction = new AbstractAction(UNDO) {
+	    public void actionPerformed(ActionEvent e) {
+		undoHistory.undo();
+		autosaveAccountStore();
+	    }
+	};
+	undoAction.putValue(Action.ACCELERATOR_KEY,
+			    KeyStroke.getKeyStroke(KeyEvent.VK_Z, shortcut));
+	redoAction = new AbstractAction(REDO) {
+	    public void actionPerformed(ActionEvent e) {
+		undoHistory.redo();
+		autosaveAccountStore();
+	    }
+	};
+	redoAction.putValue(Action.ACCELERATOR_KEY,
+			    KeyStroke.getKeyStroke(
+				    KeyEvent.VK_Z,
+				    shortcut | InputEvent.SHIFT_DOWN_MASK));
+    }
+
+    /**
+     * Return the action that undoes the last change to the account
+     * store, for the <i>Edit</i> menu.
+     */
+    Action getUndoAction() {
+	return undoAction;
+    }
+
+    /**
+     * Return the action that redoes the last change undone, for the
+     * <i>Edit</i> menu.
+     */
+    Action getRedoAction() {
+	return redoAction;
+    }
+
+    /**
+     * Set the names and states of the undo and redo actions.  Like the
+     * account list, they're disabled while account data is being
+     * edited.
+     */
+    private void updateUndoActions() {
+	boolean idle = undoHistory != null
+		&& (accountDataPanel.getFieldState()
+		    & AccountDataPanel.CHANGED) == 0;
+	boolean canUndo = idle && undoHistory.canUndo();
+	undoAction.setEnabled(canUndo);
+	undoAction.putValue(Action.NAME, canUndo
+		? UNDO + " " + undoHistory.getUndoName() : UNDO);
+	boolean canRedo = idle && undoHistory.canRedo();
+	redoAction.setEnabled(canRedo);
+	redoAction.putValue(Action.NAME, canRedo
+		? REDO + " " + undoHistory.getRedoName() : REDO);
+    }
+
     /**
      * Validate the input fields, and set button states based on the
      * result.
@@ -211,7 +337,8 @@ class AccountStorePanel extends JPanel
      *     otherwise, the text is <code>CREATE</code>.  The button is
      *     enabled if there are changes and all fields are valid.
      *<dt>Account list</dt>
-     *<dd> Selecting a new account is disabled if there are changes.
+     *<dd> Selecting a new account or changing the filter is disabled
+     *     if there are changes.
      *</dl>
      */
     private void validateAccountFields() {
@@ -245,6 +372,8 @@ class AccountStorePanel extends JPanel
 				 && !accountDataPanel.isEarliestUpdate());
 
 	accountList.setEnabled(!changed);
+	filterField.setEnabled(!changed);
+	updateUndoActions();
     }
 
     public void insertUpdate(DocumentEvent e) {
@@ -274,15 +403,39 @@ class AccountStorePanel extends JPanel
     /**
      * Re-initialize the contents of {@link #accountList}.  This method
      * must be called after any change that adds, deletes, or changes an
-     * account in the account store.  After the call, the current
-     * selection will have been cleared.
+     * account in the account store, or that changes the filter text.
+     * After the call, the current selection will have been cleared.
+     *<p>
+     * If there's filter text, the list holds only the best matches
+     * for it, as found by {@link AccountStore#search}, followed by any
+     * approximate matches from {@link AccountStore#fuzzySearch} to
+     * allow for typing mistakes; otherwise, the list holds every
+     * account.
      */
     private void refillAccountList() {
+	if (myAccountStore == null) {
+	    return;
+	}
+	long start = System.nanoTime();
 	boolean noPriorSelection
 	    = accountList.getSelectedValue() == null;
 	Vector<Account> v = new Vector<Account>();
-	for (Account acct : myAccountStore) {
-	    v.add(acct);
+	String filter = filterField.getText().trim();
+	if (filter.isEmpty()) {
+	    for (Account acct : myAccountStore) {
+		v.add(acct);
+	    }
+	} else {
+	    v.addAll(myAccountStore.search(filter, FILTER_LIMIT));
+	    for (Account acct
+		    : myAccountStore.fuzzySearch(filter, FILTER_LIMIT)) {
+		if (v.size() >= FILTER_LIMIT) {
+		    break;
+		}
+		if (!v.contains(acct)) {
+		    v.add(acct);
+		}
+	    }
 	}
 	// This call leaves the current selection cleared.  If there was
 	// a selection prior to the call, this will also trigger a call
@@ -296,25 +449,47 @@ class AccountStorePanel extends JPanel
 	// `openAccountStore()`.
 
 	accountList.setListData(v);
+	StoreMetrics.LIST_REFILL.record(start);
 	if (noPriorSelection) {
 	    setSelectedAccount();
 	}
     }
 
+    /**
+     * Save the account store after a change, and update the account
+     * list.  The save happens in the background from a snapshot of the
+     * account store; failures are reported by {@link #saveFailed}.
+     */
     private void autosaveAccountStore() {
-	try {
-	    myAccountStore.writeAccounts(
-		new FileOutputStream(myAccountsFile));
-	} catch (Exception e) {
-	    JOptionPane.showMessageDialog(
-		this,
-		"Unable to save '"
-		    + myAccountsFile.getName() +"': "
-		    + e.getMessage(),
-		"Automatic Save Failed",
-		JOptionPane.ERROR_MESSAGE);
-	}
+	autosaver.save(myAccountStore.snapshot(), myAccountsFile);
 	refillAccountList();
+	updateUndoActions();
+    }
+
+    public void saveCompleted(AccountStore snapshot, File file) {
+	if (file.equals(myAccountsFile)) {
+	    myAccountStore.markSaved(snapshot);
+	}
+    }
+
+    public void saveFailed(AccountStore snapshot, File file,
+			   Exception error) {
+	JOptionPane.showMessageDialog(
+	    this,
+	    "Unable to save '"
+		+ file.getName() +"': "
+		+ error.getMessage(),
+	    "Automatic Save Failed",
+	    JOptionPane.ERROR_MESSAGE);
+    }
+
+    /**
+     * Wait for any background saves to finish.  This must be called
+     * before exiting, and before any operation that reads or writes
+     * account files directly.
+     */
+    void waitForSaves() {
+	autosaver.waitForSaves();
     }
 
     /**
@@ -324,6 +499,7 @@ class AccountStorePanel extends JPanel
     private void deleteAccount() {
 	// validateAccountFields() guarantees that there's an account
 	// selection in this case.
+	undoHistory.mark(DELETE);
 	myAccountStore.deleteAccount(accountList.getSelectedValue());
 	autosaveAccountStore();
     }
@@ -337,6 +513,7 @@ class AccountStorePanel extends JPanel
      */
     private void updateAccountStore() {
 	// XXX: error check: creating a duplicate.
+	undoHistory.mark(updateButton.getText());
 	Account account;
 	if (!accountList.isSelectionEmpty()) {
 	    account = accountList.getSelectedValue();
@@ -404,7 +581,10 @@ class AccountStorePanel extends JPanel
 	if (e.getValueIsAdjusting())
 	    return;
 	setSelectedAccount();
-	accountList.requestFocusInWindow();
+	// Don't take the focus away from someone typing filter text.
+	if (!filterField.isFocusOwner()) {
+	    accountList.requestFocusInWindow();
+	}
     }
 
     /**
@@ -420,11 +600,13 @@ class AccountStorePanel extends JPanel
      */
     void createAccountStore(File accountsFile, char[] password)
 	    throws IOException, GeneralSecurityException {
+	waitForSaves();
 	myAccountStore = new AccountStore();
+	undoHistory = new UndoHistory(myAccountStore, UNDO_LIMIT);
 	myAccountsFile = accountsFile;
-	myAccountStore.writeAccounts(
-	    new FileOutputStream(myAccountsFile), password);
+	new FileSaver(myAccountsFile.toPath()).write(myAccountStore, password);
 	refillAccountList();
+	updateUndoActions();
     }
 
     /**
@@ -440,42 +622,52 @@ class AccountStorePanel extends JPanel
      */
     void openAccountStore(File accountsFile, char[] password)
 	    throws IOException, GeneralSecurityException {
-	if (myAccountStore == null) {
-	    myAccountStore = new AccountStore();
-	}
+	waitForSaves();
+	// Read into a new store, so that if the file can't be read, the
+	// current store and the file it's saved to are left alone.
+	// Otherwise, a later autosave could replace a damaged file with
+	// whatever was read before the damage was found.
+	AccountStore opened = new AccountStore(accountsFile.toPath(),
+					       password);
+	myAccountStore = opened;
+	undoHistory = new UndoHistory(myAccountStore, UNDO_LIMIT);
 	myAccountsFile = accountsFile;
-	myAccountStore.readAccounts(
-	    new FileInputStream(myAccountsFile), password);
 	refillAccountList();
+	updateUndoActions();
 	accountList.requestFocusInWindow();
     }
 
     /**
      * Merge entries from an alternate accounts file as for the
-     * "File-&gt;Merge" menu option.
+     * "File-&gt;Merge" menu option.  The merged account store is saved
+     * in the background, as for any other change, and the merge can be
+     * undone like any other change.
      *
      * @param mergeFile File containing additional account data to be
      *     merged into <code>myAccountStore</code>.
      * @param password Password for decrypting the merge file.
+     * @return The accounts that couldn't be merged because their
+     *     descriptions would have been duplicates.
      *
      * @throws GeneralSecurityException Indicates a failure relating to
-     *     decrypting the merge file or encrypting the accounts file.
+     *     decrypting the merge file.
      * @throws IOException Indicates a failure reading from the merge
-     *     file, or writing to the accounts file.
+     *     file.
      */
-    void mergeAccountStore(File mergeFile, char[] password)
+    List<Account> mergeAccountStore(File mergeFile, char[] password)
 	    throws IOException, GeneralSecurityException {
-	AccountStore merge = new AccountStore(
-	    new FileInputStream(mergeFile), password);
-	myAccountStore.mergeAccounts(merge);
-	myAccountStore.writeAccounts(
-	    new FileOutputStream(myAccountsFile));
-	refillAccountList();
+	AccountStore merge = new AccountStore(mergeFile.toPath(), password);
+	undoHistory.mark(MERGE);
+	List<Account> rejected = myAccountStore.mergeAccounts(merge);
+	autosaveAccountStore();
 	accountList.requestFocusInWindow();
+	return rejected;
     }
 
     /**
-     * Save account data as for the "File-&gt;Save As" menu option.
+     * Save account data as for the "File-&gt;Save As" menu option.  Any
+     * existing file is replaced atomically, and kept as a backup; see
+     * {@link FileSaver}.
      *
      * @param accountsFile File from to which to write our new account
      *     data.
@@ -489,8 +681,8 @@ class AccountStorePanel extends JPanel
      */
     void saveAccountStore(File accountsFile, char[] password)
 	    throws IOException, GeneralSecurityException {
+	waitForSaves();
 	myAccountsFile = accountsFile;
-	myAccountStore.writeAccounts(
-	    new FileOutputStream(myAccountsFile), password);
+	new FileSaver(myAccountsFile.toPath()).write(myAccountStore, password);
     }
 }
@@ -4,16 +4,22 @@
 
 package jrb.accounts.swingui;
 
+import jrb.accounts.store.Account;
+import jrb.accounts.store.StoreMetrics;
+
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
 
 import java.awt.BorderLayout;
 import java.awt.EventQueue;
 import java.awt.FlowLayout;
 import java.awt.GridLayout;
 import java.awt.event.ActionEvent;
+import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 
+import javax.management.JMException;
 import javax.swing.*;
 
 /**
@@ -35,16 +41,22 @@ class AccountStoreUI extends JFrame {
      * Initialize all the UI elements in the application.
      */
     public AccountStoreUI() {
-        super("Account Manager");
+	super("Account Manager");
 
+	accountsPanel = new AccountStorePanel();
 	setJMenuBar(new JMenuBar());
 	getJMenuBar().add(makeFileMenu());
-	accountsPanel = new AccountStorePanel();
+	getJMenuBar().add(makeEditMenu());
 	add(accountsPanel);
 
 	fileChooser = new AccountFileDialog(this);
 
-        setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+	setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
+	addWindowListener(new WindowAdapter() {
+	    public void windowClosing(WindowEvent we) {
+		exitApplication();
+	    }
+	});
 	pack();
     }
 
@@ -91,7 +103,7 @@ class AccountStoreUI extends JFrame {
 
 	    act = new AbstractAction(EXIT) {
 		public void actionPerformed(ActionEvent ae) {
-		    System.exit(0);
+		    exitApplication();
 		}
 	    };
 	    fileMenu.add(act);
@@ -99,9 +111,31 @@ class AccountStoreUI extends JFrame {
 	return fileMenu;
     }
 
+    /**
+     * Make the GUI's <i>Edit</i> menu.
+     *
+     * @return The application's <i>Edit</i> menu.
+     */
+    private JMenu makeEditMenu() {
+	JMenu editMenu = new JMenu("Edit");
+	editMenu.add(accountsPanel.getUndoAction());
+	editMenu.add(accountsPanel.getRedoAction());
+	return editMenu;
+    }
+
+    /**
+     * Exit the application, after any background saves have finished.
+     */
+    private void exitApplication() {
+	accountsPanel.waitForSaves();
+	System.exit(0);
+    }
+
     private void openAccounts(File newFile, char[] password) {
 	try {
 	    accountsPanel.openAccountStore(newFile, password);
+	    saveFileAction.setEnabled(true);
+	    mergeFileAction.setEnabled(true);
 	} catch (Exception e) {
 	    JOptionPane.showMessageDialog(
 		this,
@@ -111,8 +145,6 @@ class AccountStoreUI extends JFrame {
 		"Unable to Open Accounts",
 		JOptionPane.WARNING_MESSAGE);
 	}
-	saveFileAction.setEnabled(true);
-	mergeFileAction.setEnabled(true);
     }
 
     private void openAccountsPasswordDialog(String filename) {
@@ -195,7 +227,22 @@ class AccountStoreUI extends JFrame {
 	char[] password = fileChooser.getPassword();
 
 	try {
-	    accountsPanel.mergeAccountStore(newFile, password);
+	    List<Account> rejected =
+		    accountsPanel.mergeAccountStore(newFile, password);
+	    if (!rejected.isEmpty()) {
+		StringBuilder message = new StringBuilder(
+			"These accounts from '" + newFile.getName()
+			+ "' would have duplicated existing descriptions,"
+			+ " and weren't merged:");
+		for (Account account : rejected) {
+		    message.append("\n    ").append(account.getDescription());
+		}
+		JOptionPane.showMessageDialog(
+		    this,
+		    message.toString(),
+		    "Some Accounts Not Merged",
+		    JOptionPane.WARNING_MESSAGE);
+	    }
 	} catch (Exception e) {
 	    JOptionPane.showMessageDialog(
 		this,
@@ -295,7 +342,7 @@ class AccountStoreUI extends JFrame {
      * @param argv The command line arguments.
      */
     public static void main(String[] argv) {
-        JFrame.setDefaultLookAndFeelDecorated(true);
+	JFrame.setDefaultLookAndFeelDecorated(true);
 	EventQueue.invokeLater(new Runnable() {
 	    public void run() {
 		AccountStoreUI ui = new AccountStoreUI();
@@ -303,7 +350,27 @@ class AccountStoreUI extends JFrame {
 		    ui.openAccountsPasswordDialog(argv[0]);
 		}
 		ui.setVisible(true);
+		registerMetrics();
 	    }
 	});
     }
+
+    /**
+     * Register {@link StoreMetrics} for JMX in the background, so that
+     * starting JMX doesn't delay the UI.  The metrics are only for
+     * diagnosis, so failing to register them isn't reported.
+     */
+    private static void registerMetrics() {
+	Thread t = new Thread(new Runnable() {
+	    public void run() {
+		try {
+		    StoreMetrics.register();
+		} catch (JMException e) {
+		    // Run without metrics.
+		}
+	    }
+	}, "metrics registration");
+	t.setDaemon(true);
+	t.start();
+    }
 }
@@ -0,0 +1,340 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.swingui;
+
+import jrb.accounts.store.AccountStore;
+import jrb.accounts.store.FileSaver;
+
+import java.io.File;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import java.awt.EventQueue;
+
+/**
+ * A background service that saves account store snapshots to a file.
+ *<p>
+ * Saves are performed one at a time on a single worker thread, so two
+ * saves never race on the same file.  Requests that arrive while a
+ * save is queued are coalesced:  only the most recent snapshot is
+ * written.  The outcome of each save is reported to a {@link Listener}
+ * on the event dispatch thread.
+ *<p>
+ * When possible, only the changes in a snapshot are appended to the
+ * file.  If a save fails, the file may have been left with a partial
+ * change record, so the next save to that file writes the whole store.
+ * Whole stores are written with a {@link FileSaver}, so the file is
+ * replaced atomically, and backups are kept.
+ *<p>
+ * Appended changes are group committed:  they're forced to disk
+ * together, no later than a given delay after the first of them was
+ * appended, so a burst of changes costs a single <code>fsync</code>.
+ * Until then, a crash may lose the most recent changes, but never
+ * leaves the file unreadable; see {@link AccountStore#readAccounts}.
+ * A snapshot with no unsaved changes isn't written at all, unless its
+ * file needs to be rewritten after such a failure.
+ */
+class AutosaveWorker {
+    /**
+     * Receives the outcome of background saves.  Methods are invoked on
+     * the event dispatch thread.
+     */
+    interface Listener {
+	/**
+	 * Report that a snapshot was successfully written.
+	 *
+	 * @param snapshot The account store snapshot that was saved.
+	 * @param file The file that was written.
+	 */
+	void saveCompleted(AccountStore snapshot, File file);
+
+	/**
+	 * Report that a snapshot couldn't be written.
+	 *
+	 * @param snapshot The account store snapshot that wasn't saved.
+	 * @param file The file that was being written.
+	 * @param error The reason for the failure.
+	 */
+	void saveFailed(AccountStore snapshot, File file, Exception error);
+    }
+
+    private final ScheduledExecutorService executor =
+	    Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+		    Thread t = new Thread(r, "autosave");
+		    t.setDaemon(true);
+		    return t;
+		}
+	    });
+
+    private final Listener listener;
+
+    /**
+     * The most recent snapshot waiting to be saved, or
+     * <code>null</code> if no save is queued.  Guarded by
+     * <code>this</code>.
+     */
+    private AccountStore pendingStore;
+
+    /**
+     * The file to which {@link #pendingStore} will be saved.  Guarded by
+     * <code>this</code>.
+     */
+    private File pendingFile;
+
+    /**
+     * A file that must be rewritten in full on the next save, because
+     * a save to it failed.  Used only by the worker thread.
+     */
+    private File damagedFile;
+
+    /**
+     * A file with appended changes that haven't been forced to disk
+     * yet, and the snapshot whose changes they are.  Used only by the
+     * worker thread.
+     */
+    private File unsyncedFile;
+    private AccountStore unsyncedStore;
+
+    /**
+     * The time, from <code>System.nanoTime()</code>, at which the
+     * oldest change not yet forced to disk was appended.  Used only by
+     * the worker thread.
+     */
+    private long unsyncedSince;
+
+    /**
+     * Whether a task to force changes to disk is scheduled.  Used only
+     * by the worker thread.
+     */
+    private boolean syncScheduled;
+
+    /**
+     * The number of backups kept of each file saved.
+     */
+    private final int backups;
+
+    /**
+     * The most time, in milliseconds, that an appended change may wait
+     * to be forced to disk.
+     */
+    private final long syncDelay;
+
+    /**
+     * Create a worker that reports to a listener.
+     *
+     * @param listener The listener to be told the outcome of saves.
+     * @param backups The number of backups to keep of each file saved;
+     *     see {@link FileSaver}.
+     * @param syncDelay The most time, in milliseconds, that an appended
+     *     change may wait to be forced to disk with later changes.  If
+     *     zero, every append is forced to disk at once.
+     */
+    AutosaveWorker(Listener listener, int backups, long syncDelay) {
+	this.listener = listener;
+	this.backups = backups;
+	this.syncDelay = syncDelay;
+    }
+
+    /**
+     * Request that a snapshot be saved to a file.  If an earlier request
+     * for the same file hasn't started yet, it is replaced by this one.
+     * The snapshot must not be changed after it is passed in.
+     *
+     * @param snapshot An account store snapshot that can be saved with
+     *     its remembered key.
+     * @param file The file to which the snapshot will be saved.
+     */
+    synchronized void save(AccountStore snapshot, File file) {
+	if (pendingStore != null && !file.equals(pendingFile)) {
+	    queueSave(pendingStore, pendingFile);
+	    pendingStore = null;
+	}
+	boolean queued = pendingStore != null;
+	pendingStore = snapshot;
+	pendingFile = file;
+	if (!queued) {
+	    executor.execute(new Runnable() {
+		public void run() {
+		    writePending();
+		}
+	    });
+	}
+    }
+
+    /**
+     * Queue a save that can't be coalesced with later requests.
+     */
+    private void queueSave(final AccountStore snapshot, final File file) {
+	executor.execute(new Runnable() {
+	    public void run() {
+		write(snapshot, file);
+		commitIfDue();
+	    }
+	});
+    }
+
+    /**
+     * Take the pending request, if it hasn't already been taken by an
+     * earlier task, and write it.
+     */
+    private void writePending() {
+	AccountStore snapshot;
+	File file;
+	synchronized (this) {
+	    snapshot = pendingStore;
+	    file = pendingFile;
+	    pendingStore = null;
+	    pendingFile = null;
+	}
+	if (snapshot != null) {
+	    write(snapshot, file);
+	}
+	commitIfDue();
+    }
+
+    private void write(final AccountStore snapshot, final File file) {
+	Exception error = null;
+	boolean damaged = file.equals(damagedFile);
+	boolean append = snapshot.canAppend() && !damaged;
+	if (!damaged && !snapshot.isModified()) {
+	    reportResult(snapshot, file, null);
+	    return;
+	}
+	try {
+	    FileSaver saver = new FileSaver(file.toPath(), backups);
+	    if (append) {
+		saver.append(snapshot, false);
+		if (unsyncedFile != null && !file.equals(unsyncedFile)) {
+		    sync();
+		}
+		if (unsyncedFile == null) {
+		    unsyncedSince = System.nanoTime();
+		}
+		unsyncedFile = file;
+		unsyncedStore = snapshot;
+	    } else {
+		saver.write(snapshot);
+		if (file.equals(unsyncedFile)) {
+		    // The file with the unsynced changes was replaced.
+		    unsyncedFile = null;
+		    unsyncedStore = null;
+		}
+	    }
+	    if (file.equals(damagedFile)) {
+		damagedFile = null;
+	    }
+	} catch (Exception e) {
+	    damagedFile = file;
+	    error = e;
+	}
+	reportResult(snapshot, file, error);
+    }
+
+    /**
+     * Force appended changes to disk if the oldest of them has waited
+     * as long as it may.  Otherwise, if no other save is waiting to be
+     * written, schedule them to be forced when the time is up; if one
+     * is, it will get here again itself.  Called by the worker thread
+     * after every save.
+     */
+    private void commitIfDue() {
+	if (unsyncedFile == null) {
+	    return;
+	}
+	long waited = TimeUnit.NANOSECONDS.toMillis(
+		System.nanoTime() - unsyncedSince);
+	if (waited >= syncDelay) {
+	    sync();
+	    return;
+	}
+	boolean idle;
+	synchronized (this) {
+	    idle = pendingStore == null;
+	}
+	if (idle && !syncScheduled) {
+	    syncScheduled = true;
+	    executor.schedule(new Runnable() {
+		public void run() {
+		    syncScheduled = false;
+		    sync();
+		}
+	    }, syncDelay - waited, TimeUnit.MILLISECONDS);
+	}
+    }
+
+    /**
+     * Force appended changes to disk, if there are any.  If that fails,
+     * the changes may be lost, so the file is rewritten in full on the
+     * next save, and the failure is reported.
+     */
+    private void sync() {
+	if (unsyncedFile == null) {
+	    return;
+	}
+	File file = unsyncedFile;
+	AccountStore snapshot = unsyncedStore;
+	unsyncedFile = null;
+	unsyncedStore = null;
+	try {
+	    new FileSaver(file.toPath(), backups).sync();
+	} catch (Exception e) {
+	    damagedFile = file;
+	    reportResult(snapshot, file, e);
+	}
+    }
+
+    /**
+     * Report the outcome of a save to the listener, on the event
+     * dispatch thread.
+     *
+     * @param failure The reason the save failed, or <code>null</code>
+     *     if it succeeded.
+     */
+    private void reportResult(final AccountStore snapshot, final File file,
+			      final Exception failure) {
+	EventQueue.invokeLater(new Runnable() {
+	    public void run() {
+		if (failure == null) {
+		    listener.saveCompleted(snapshot, file);
+		} else {
+		    listener.saveFailed(snapshot, file, failure);
+		}
+	    }
+	});
+    }
+
+    /**
+     * Wait until every save requested so far has finished, and has been
+     * forced to disk.  The results will still be reported to the
+     * listener asynchronously.
+     */
+    void waitForSaves() {
+	Future<?> done = executor.submit(new Runnable() {
+	    public void run() {
+		sync();
+	    }
+	});
+	boolean interrupted = false;
+	for (;;) {
+	    try {
+		done.get();
+		break;
+	    } catch (InterruptedException e) {
+		interrupted = true;
+	    } catch (ExecutionException e) {
+		break;
+	    }
+	}
+	if (interrupted) {
+	    Thread.currentThread().interrupt();
+	}
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.cli;
+
+import jrb.accounts.store.Account;
+import jrb.accounts.store.AccountStore;
+import jrb.accounts.store.FileSaver;
+
+import java.io.IOException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import java.security.GeneralSecurityException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for serving an account store file with an
+ * <code>AccountAgent</code>, through an <code>AgentClient</code>.
+ */
+public class TestAccountAgent {
+    private static final String[][] TEST_DATA = {
+	{ "xxx desc", "http://c.com", "u0", "p3" },
+	{ "yyy desc", "http://b.com", "u0", "p2" },
+	{ "zzz desc", "http://a.com", "u1", "p0" },
+    };
+
+    private static final String PASSWORD = "password";
+
+    private Path dir;
+    private Path file;
+    private AccountAgent agent;
+    private AgentClient client;
+
+    /**
+     * Exceptions thrown out of any thread while a test runs, such as
+     * the agent's accept thread.
+     */
+    private final List<Throwable> failures = new ArrayList<Throwable>();
+    private Thread.UncaughtExceptionHandler savedHandler;
+
+    @Before
+    public void startAgent() throws IOException, GeneralSecurityException {
+	savedHandler = Thread.getDefaultUncaughtExceptionHandler();
+	Thread.setDefaultUncaughtExceptionHandler(
+		new Thread.UncaughtExceptionHandler() {
+		    public void uncaughtException(Thread t, Throwable e) {
+			synchronized (failures) {
+			    failures.add(e);
+			}
+		    }
+		});
+	dir = Files.createTempDirectory("agent");
+	file = dir.resolve("test.accts");
+	AccountStore accounts = new AccountStore();
+	for (String[] data : TEST_DATA) {
+	    accounts.createAccount(data[0], data[1], data[2], data[3]);
+	}
+	new FileSaver(file, 0).write(accounts, PASSWORD.toCharArray());
+	startAgent(0);
+    }
+
+    private void startAgent(long idleMillis)
+	    throws IOException, GeneralSecurityException {
+	if (agent != null) {
+	    stopAndWait();
+	}
+	agent = new AccountAgent(file, dir.resolve("agent.sock"), idleMillis);
+	agent.unlock(PASSWORD.toCharArray());
+	agent.start();
+	client = new AgentClient(dir.resolve("agent.sock"));
+    }
+
+    /**
+     * Stop the agent, and wait for its accept thread to finish.
+     */
+    private void stopAndWait() throws IOException {
+	client.close();
+	agent.stop();
+	try {
+	    agent.awaitStop();
+	} catch (InterruptedException e) {
+	    throw new IOException(e);
+	}
+    }
+
+    @After
+    public void stopAgent() throws IOException {
+	try {
+	    stopAndWait();
+	} finally {
+	    Thread.setDefaultUncaughtExceptionHandler(savedHandler);
+	}
+	synchronized (failures) {
+	    assertTrue("Agent thread failed: " + failures,
+		       failures.isEmpty());
+	}
+	DirectoryStream<Path> files = Files.newDirectoryStream(dir);
+	try {
+	    for (Path p : files) {
+		Files.delete(p);
+	    }
+	} finally {
+	    files.close();
+	}
+	Files.delete(dir);
+    }
+
+    @Test
+    public void testQueries() throws IOException {
+	for (String[] data : TEST_DATA) {
+	    assertArrayEquals(data, client.get(data[0]));
+	}
+	assertNull(client.get("no such account"));
+	assertEquals(Arrays.asList("xxx desc", "yyy desc", "zzz desc"),
+		     client.list());
+	assertEquals(Arrays.asList("yyy desc"), client.search("b.com", 10));
+	assertEquals(2, client.search("desc", 2).size());
+    }
+
+    @Test
+    public void testUpdateIsSaved()
+	    throws IOException, GeneralSecurityException {
+	client.update("yyy desc", "http://b.com", "u2", "new password");
+	client.update("www desc", "http://d.com", "u0", "p4");
+	String[] expected = {
+	    "yyy desc", "http://b.com", "u2", "new password"
+	};
+	assertArrayEquals(expected, client.get("yyy desc"));
+	AccountStore saved = new AccountStore(file, PASSWORD.toCharArray());
+	assertEquals(4, saved.size());
+	Account account = saved.getAccount("yyy desc");
+	assertEquals("u2", account.getUsername());
+	assertEquals("new password", account.getPassword());
+	assertEquals("p4", saved.getAccount("www desc").getPassword());
+	assertFalse(agent.isLocked());
+    }
+
+    @Test
+    public void testEscapes() throws IOException {
+	String description = "tab\there\\newline\nthere\r";
+	client.update(description, "", "", "p\\t");
+	assertArrayEquals(new String[] { description, "", "", "p\\t" },
+			  client.get(description));
+    }
+
+    @Test
+    public void testLockAndUnlock() throws IOException {
+	client.lock();
+	assertTrue(agent.isLocked());
+	try {
+	    client.get("xxx desc");
+	    fail("Locked agent answered a query");
+	} catch (IOException e) {
+	    // expected
+	}
+	try {
+	    client.unlock("wrong password".toCharArray());
+	    fail("Agent unlocked with the wrong password");
+	} catch (IOException e) {
+	    // expected
+	}
+	assertTrue(agent.isLocked());
+	client.unlock(PASSWORD.toCharArray());
+	assertArrayEquals(TEST_DATA[0], client.get("xxx desc"));
+    }
+
+    @Test
+    public void testIdleLock()
+	    throws IOException, GeneralSecurityException,
+		   InterruptedException {
+	startAgent(200);
+	client.list();
+	assertFalse(agent.isLocked());
+	for (int i = 0; i < 100 && !agent.isLocked(); i++) {
+	    Thread.sleep(50);
+	}
+	assertTrue("Agent didn't lock when idle", agent.isLocked());
+    }
+
+    @Test
+    public void testChangedFileLocks()
+	    throws IOException, GeneralSecurityException {
+	AccountStore accounts = new AccountStore(file,
+						 PASSWORD.toCharArray());
+	accounts.deleteAccount(accounts.getAccount("xxx desc"));
+	new FileSaver(file, 0).write(accounts);
+	try {
+	    client.get("yyy desc");
+	    fail("Agent answered from a stale copy of the file");
+	} catch (IOException e) {
+	    // expected
+	}
+	assertTrue(agent.isLocked());
+	client.unlock(PASSWORD.toCharArray());
+	assertEquals(2, client.list().size());
+    }
+
+    /**
+     * Stop agents while connections keep arriving, so that some are
+     * accepted as the agent stops.  The checks in {@link #stopAgent}
+     * catch any failure of an accept thread.
+     */
+    @Test
+    public void testStopWhileConnecting()
+	    throws IOException, GeneralSecurityException,
+		   InterruptedException {
+	for (int i = 0; i < 20; i++) {
+	    startAgent(0);
+	    final Path socket = dir.resolve("agent.sock");
+	    Thread connector = new Thread() {
+		public void run() {
+		    for (int j = 0; j < 200; j++) {
+			try {
+			    SocketChannel.open(
+				UnixDomainSocketAddress.of(socket)).close();
+			} catch (IOException e) {
+			    return;
+			}
+		    }
+		}
+	    };
+	    connector.start();
+	    Thread.sleep(2);
+	    stopAndWait();
+	    connector.join();
+	    agent = null;
+	}
+	startAgent(0);
+    }
+
+    @Test
+    public void testStop() throws IOException {
+	client.stop();
+	assertFalse("Socket left behind",
+		    Files.exists(dir.resolve("agent.sock")));
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.cli;
+
+import jrb.accounts.store.AccountStore;
+import jrb.accounts.store.FileSaver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import java.security.GeneralSecurityException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the <code>Accounts</code> command line tool, run against a
+ * file and against an agent.
+ */
+public class TestAccounts {
+    private static final String[][] TEST_DATA = {
+	{ "xxx desc", "http://c.com", "u0", "p3" },
+	{ "yyy desc", "http://b.com", "u0", "p,2" },
+	{ "zzz desc", "http://a.com", "u1", "p\"0" },
+    };
+
+    private static final String PASSWORD = "password";
+
+    private final InputStream savedIn = System.in;
+
+    private Path dir;
+    private Path file;
+    private ByteArrayOutputStream output;
+
+    @Before
+    public void createFile() throws IOException, GeneralSecurityException {
+	dir = Files.createTempDirectory("cli");
+	file = dir.resolve("test.accts");
+	AccountStore accounts = new AccountStore();
+	for (String[] data : TEST_DATA) {
+	    accounts.createAccount(data[0], data[1], data[2], data[3]);
+	}
+	new FileSaver(file, 0).write(accounts, PASSWORD.toCharArray());
+    }
+
+    @After
+    public void deleteFiles() throws IOException {
+	System.setIn(savedIn);
+	DirectoryStream<Path> files = Files.newDirectoryStream(dir);
+	try {
+	    for (Path p : files) {
+		Files.delete(p);
+	    }
+	} finally {
+	    files.close();
+	}
+	Files.delete(dir);
+    }
+
+    /**
+     * Run a command on the test file, with the given lines as standard
+     * input, and return its exit status.
+     */
+    private int run(String input, String... argv)
+	    throws IOException, GeneralSecurityException {
+	System.setIn(new ByteArrayInputStream(
+		input.getBytes(StandardCharsets.UTF_8)));
+	output = new ByteArrayOutputStream();
+	PrintStream out = new PrintStream(output, true, "UTF-8");
+	return new Accounts(out).run(argv);
+    }
+
+    private int runOnFile(String input, String... argv)
+	    throws IOException, GeneralSecurityException {
+	String[] args = new String[argv.length + 1];
+	args[0] = file.toString();
+	System.arraycopy(argv, 0, args, 1, argv.length);
+	return run(input, args);
+    }
+
+    private List<String> outputLines() {
+	String text = new String(output.toByteArray(),
+				 StandardCharsets.UTF_8);
+	return Arrays.asList(text.split("\r?\n"));
+    }
+
+    @Test
+    public void testGet() throws IOException, GeneralSecurityException {
+	assertEquals(0, runOnFile(PASSWORD + "\n", "get", "yyy desc"));
+	assertEquals(Arrays.asList("p,2"), outputLines());
+	assertEquals(0, runOnFile(PASSWORD + "\n", "get", "yyy desc", "url"));
+	assertEquals(Arrays.asList("http://b.com"), outputLines());
+	assertEquals(0, runOnFile(PASSWORD + "\n", "get", "xxx desc", "all"));
+	assertEquals(Arrays.asList("xxx desc\thttp://c.com\tu0\tp3"),
+		     outputLines());
+	assertEquals(1, runOnFile(PASSWORD + "\n", "get", "no such desc"));
+	assertEquals(2, runOnFile(PASSWORD + "\n", "get", "xxx desc", "x"));
+    }
+
+    @Test
+    public void testListAndSearch()
+	    throws IOException, GeneralSecurityException {
+	assertEquals(0, runOnFile(PASSWORD + "\n", "list"));
+	assertEquals(Arrays.asList("xxx desc", "yyy desc", "zzz desc"),
+		     outputLines());
+	assertEquals(0, runOnFile(PASSWORD + "\n", "search", "a.com"));
+	assertEquals(Arrays.asList("zzz desc"), outputLines());
+    }
+
+    @Test
+    public void testAddAndUpdate()
+	    throws IOException, GeneralSecurityException {
+	assertEquals(0, runOnFile(PASSWORD + "\nnew\n",
+				  "add", "www desc", "http://d.com", "u2"));
+	assertEquals(1, runOnFile(PASSWORD + "\nnew\n",
+				  "add", "www desc", "http://d.com", "u2"));
+	assertEquals(0, runOnFile(PASSWORD + "\nnewer\n",
+				  "update", "xxx desc", "http://e.com", "u3"));
+	assertEquals(1, runOnFile(PASSWORD + "\nnew\n",
+				  "update", "vvv desc", "http://d.com", "u2"));
+	AccountStore saved = new AccountStore(file, PASSWORD.toCharArray());
+	assertEquals(4, saved.size());
+	assertEquals("new", saved.getAccount("www desc").getPassword());
+	assertEquals("newer", saved.getAccount("xxx desc").getPassword());
+	assertEquals("u3", saved.getAccount("xxx desc").getUsername());
+    }
+
+    @Test
+    public void testExport() throws IOException, GeneralSecurityException {
+	Path csv = dir.resolve("export.csv");
+	assertEquals(0, runOnFile(PASSWORD + "\n", "export", csv.toString()));
+	List<String> lines = Files.readAllLines(csv, StandardCharsets.UTF_8);
+	assertEquals(Arrays.asList(
+			     "description,url,username,password",
+			     "xxx desc,http://c.com,u0,p3",
+			     "yyy desc,http://b.com,u0,\"p,2\"",
+			     "zzz desc,http://a.com,u1,\"p\"\"0\""),
+		     lines);
+	assertEquals(0, runOnFile(PASSWORD + "\n", "export", "-"));
+	assertEquals(lines, outputLines());
+    }
+
+    @Test
+    public void testAgent() throws IOException, GeneralSecurityException {
+	Path socket = dir.resolve("agent.sock");
+	AccountAgent agent = new AccountAgent(file, socket, 0);
+	agent.unlock(PASSWORD.toCharArray());
+	agent.start();
+	try {
+	    assertEquals(0, run("", "-a", socket.toString(),
+				"get", "zzz desc"));
+	    assertEquals(Arrays.asList("p\"0"), outputLines());
+	    assertEquals(0, run("new\n", "-a", socket.toString(),
+				"add", "www desc", "http://d.com", "u2"));
+	    assertEquals(0, run("", "-a", socket.toString(), "list"));
+	    assertEquals(4, outputLines().size());
+	    assertEquals(2, run("", "-a", socket.toString(), "export", "-"));
+	} finally {
+	    agent.stop();
+	}
+    }
+
+    @Test
+    public void testUsage() throws IOException, GeneralSecurityException {
+	assertEquals(2, run(""));
+	assertEquals(2, runOnFile(""));
+	assertEquals(2, runOnFile("", "frobnicate"));
+    }
+}
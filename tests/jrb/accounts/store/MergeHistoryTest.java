@@ -45,8 +45,18 @@ public class MergeHistoryTest {
 			TEST_DATA[i+1].getUsername(),
 			TEST_DATA[i+1].getPassword());
 	}
+	Account reverse = srcAcct.clone();
+	reverse.mergeHistory(tgtAcct);
+	boolean missing = tgtAcct.isMissingHistory(srcAcct);
+	String description = tgtAcct.getMergedDescription(srcAcct);
+	int oldCount = tgtAcct.getUpdateCount();
 	tgtAcct.mergeHistory(srcAcct);
 	int count = tgtAcct.getUpdateCount();
+	assertEquals("Merge result depends on direction", reverse, tgtAcct);
+	assertEquals("isMissingHistory() wrong",
+		     oldCount != count, missing);
+	assertEquals("getMergedDescription() wrong",
+		     tgtAcct.getDescription(), description);
 	assertEquals("Number of history entries after merge",
 		     useTgt.length + 1, count);
 	for (int i = 0; i < count; i++) {
@@ -4,6 +4,8 @@
 
 package jrb.accounts.store;
 
+import java.util.List;
+
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -56,4 +58,55 @@ public class MergeStoreTest extends AccountStoreSupport {
 	assertEquals(origCopy, orig);
 	assertEquals(1, merge.size());
     }
+
+    @Test
+    public void testMergeDuplicateNew() {
+	AccountStore orig = createTestStore(1);
+	AccountStore merge = new AccountStore();
+	Account duplicate = merge.createAccount(
+		TEST_DATA[0].getDescription(), "http://d.com", "u1", "p5");
+	extendTestStore(merge, 1);
+	AccountStore origCopy = orig.clone();
+
+	List<Account> rejected = orig.mergeAccounts(merge);
+
+	assertEquals(1, rejected.size());
+	assertSame(duplicate, rejected.get(0));
+	assertEquals(2, orig.size());
+	assertEquals(origCopy.iterator().next(), orig.iterator().next());
+    }
+
+    @Test
+    public void testMergeDuplicateRename() {
+	AccountStore orig = createTestStore(2);
+	AccountStore merge = orig.snapshot();
+	Account renamed = merge.iterator().next();
+	merge.updateAccount(renamed, TEST_DATA[1].getDescription(),
+			    renamed.getUrl(), renamed.getUsername(),
+			    renamed.getPassword());
+	AccountStore origCopy = orig.snapshot();
+
+	List<Account> rejected = orig.mergeAccounts(merge);
+
+	assertEquals(1, rejected.size());
+	assertSame(renamed, rejected.get(0));
+	assertEquals(origCopy, orig);
+    }
+
+    @Test
+    public void testMergeRenameIntoFreedDescription() {
+	AccountStore orig = createTestStore(1);
+	AccountStore merge = orig.snapshot();
+	Account renamed = merge.iterator().next();
+	merge.updateAccount(renamed, TEST_DATA[1].getDescription(),
+			    renamed.getUrl(), renamed.getUsername(),
+			    renamed.getPassword());
+	merge.createAccount(TEST_DATA[0].getDescription(),
+			    "http://d.com", "u1", "p5");
+
+	List<Account> rejected = orig.mergeAccounts(merge);
+
+	assertTrue(rejected.isEmpty());
+	assertEquals(merge, orig);
+    }
 }
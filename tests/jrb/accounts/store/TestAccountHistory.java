@@ -76,4 +76,32 @@ public class TestAccountHistory {
 			 count, acct.getUpdateCount());
 	}
     }
+
+    /**
+     * Test that updating a clone of an account leaves the original's
+     * history alone, and the reverse.
+     */
+    @Test
+    public void testCloneHistory() {
+	Account acct = createAccountWithUpdates(2);
+	Account copy = acct.clone();
+	copy.update(TEST_DATA[2].getDescription(), TEST_DATA[2].getUrl(),
+		    TEST_DATA[2].getUsername(), TEST_DATA[2].getPassword());
+	assertEquals("Original's update count changed",
+		     2, acct.getUpdateCount());
+	assertTrue("Original's data changed",
+		   TEST_DATA[1].matches(acct.getUpdateData(0)));
+	assertEquals("Clone's update count doesn't match",
+		     3, copy.getUpdateCount());
+	assertTrue("Clone's data doesn't match",
+		   TEST_DATA[2].matches(copy.getUpdateData(0)));
+
+	Account other = copy.clone();
+	copy.update(TEST_DATA[0].getDescription(), TEST_DATA[0].getUrl(),
+		    TEST_DATA[0].getUsername(), TEST_DATA[0].getPassword());
+	assertEquals("Second clone's update count changed",
+		     3, other.getUpdateCount());
+	assertTrue("Second clone's data changed",
+		   TEST_DATA[2].matches(other.getUpdateData(0)));
+    }
 }
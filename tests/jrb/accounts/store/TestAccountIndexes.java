@@ -0,0 +1,130 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+
+import java.security.GeneralSecurityException;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the secondary indexes that find accounts by URL, user
+ * name, and domain.
+ */
+public class TestAccountIndexes {
+    private static final String PASSWORD = "password";
+
+    private static void assertAccounts(String message,
+				       Collection<Account> actual,
+				       Account... expected) {
+	assertEquals(message, new HashSet<Account>(Arrays.asList(expected)),
+		     new HashSet<Account>(actual));
+    }
+
+    @Test
+    public void testLookup() {
+	AccountStore accounts = new AccountStore();
+	Account a = accounts.createAccount(
+		"a", "https://www.example.com/login", "alice", "p0");
+	Account b = accounts.createAccount(
+		"b", "https://mail.example.com/", "bob", "p1");
+	Account c = accounts.createAccount(
+		"c", "https://www.example.com/login", "bob", "p2");
+	assertAccounts("Lookup by URL failed",
+		       accounts.getAccountsByUrl(
+			       "https://www.example.com/login"), a, c);
+	assertAccounts("Lookup by user name failed",
+		       accounts.getAccountsByUsername("bob"), b, c);
+	assertAccounts("Lookup by domain failed",
+		       accounts.getAccountsByDomain("example.com"), a, b, c);
+	assertAccounts("Lookup of missing URL found accounts",
+		       accounts.getAccountsByUrl("https://example.org/"));
+    }
+
+    @Test
+    public void testUpdateAndDelete() {
+	AccountStore accounts = new AccountStore();
+	Account a = accounts.createAccount(
+		"a", "https://www.example.com/", "alice", "p0");
+	Account b = accounts.createAccount(
+		"b", "https://www.example.com/", "bob", "p1");
+	accounts.updateAccount(a, "a", "https://example.org/", "carol", "p2");
+	assertAccounts("Updated account still under old URL",
+		       accounts.getAccountsByUrl("https://www.example.com/"),
+		       b);
+	assertAccounts("Updated account not under new domain",
+		       accounts.getAccountsByDomain("www.example.org"), a);
+	assertAccounts("Updated account still under old user name",
+		       accounts.getAccountsByUsername("alice"));
+	accounts.deleteAccount(b);
+	assertAccounts("Deleted account still indexed",
+		       accounts.getAccountsByDomain("example.com"));
+    }
+
+    @Test
+    public void testMerge() {
+	AccountStore accounts = new AccountStore();
+	Account a = accounts.createAccount(
+		"a", "https://www.example.com/", "alice", "p0");
+	AccountStore merge = accounts.snapshot();
+	Account mergeA = merge.iterator().next();
+	merge.updateAccount(mergeA, "a", "https://example.net/",
+			    "alice", "p1");
+	Account b = merge.createAccount(
+		"b", "https://example.net/", "bob", "p2");
+	accounts.mergeAccounts(merge);
+	assertAccounts("Merged accounts not indexed",
+		       accounts.getAccountsByUrl("https://example.net/"),
+		       a, b);
+	assertAccounts("Merged account still under old URL",
+		       accounts.getAccountsByUrl("https://www.example.com/"));
+    }
+
+    @Test
+    public void testIndexesAfterRead()
+	    throws IOException, GeneralSecurityException {
+	AccountStore accounts = new AccountStore();
+	accounts.createAccount("a", "https://www.example.com/", "alice", "p0");
+	ByteArrayOutputStream image = new ByteArrayOutputStream();
+	accounts.writeAccounts(image, PASSWORD.toCharArray());
+	accounts.createAccount("b", "https://example.com/", "bob", "p1");
+	accounts.appendAccounts(image);
+
+	AccountStore restored = new AccountStore(
+		new ByteArrayInputStream(image.toByteArray()),
+		PASSWORD.toCharArray());
+	assertEquals("Accounts not indexed after read", 2,
+		     restored.getAccountsByDomain("example.com").size());
+	assertEquals("Snapshot not indexed", 1,
+		     restored.snapshot().getAccountsByUsername("bob").size());
+    }
+
+    @Test
+    public void testRegistrableDomain() {
+	String[][] cases = {
+	    { "https://www.example.com/login", "example.com" },
+	    { "http://a.b.Example.COM:8080/x", "example.com" },
+	    { "example.com", "example.com" },
+	    { "https://www.bbc.co.uk/", "bbc.co.uk" },
+	    { "https://shop.example.com.au/", "example.com.au" },
+	    { "https://www.example.de/", "example.de" },
+	    { "http://192.168.1.1/admin", "192.168.1.1" },
+	    { "localhost", "localhost" },
+	};
+	for (String[] c : cases) {
+	    assertEquals("Wrong domain for " + c[0],
+			 c[1], AttributeIndex.registrableDomain(c[0]));
+	}
+	assertNull(AttributeIndex.registrableDomain(""));
+	assertNull(AttributeIndex.registrableDomain("not a url"));
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import java.security.GeneralSecurityException;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for saving changes to an <code>AccountStore</code> by appending
+ * change records with {@link AccountStore#appendAccounts}.
+ *<p>
+ * Each test saves a snapshot of an account store, makes changes,
+ * appends them to the saved image, and then asserts that reading the
+ * image back produces an account store equal to the changed one.
+ */
+public class TestAccountJournal extends AccountStoreSupport {
+    private static final AccountTestData[] TEST_DATA = {
+	new AccountTestData("xxx desc", "http://c.com", "u0", "p3"),
+	new AccountTestData("yyy desc", "http://b.com", "u0", "p2"),
+	new AccountTestData("zzz desc", "http://a.com", "u0", "p0"),
+    };
+
+    private static final String PASSWORD = "password";
+
+    public TestAccountJournal() {
+	super(TEST_DATA, PASSWORD);
+    }
+
+    /**
+     * Append the unsaved changes in an account store to a saved image.
+     */
+    private void append(AccountStore accounts, ByteArrayOutputStream image)
+	    throws IOException, GeneralSecurityException {
+	assertTrue("Can't append changes", accounts.canAppend());
+	accounts.appendAccounts(image);
+    }
+
+    private AccountStore readImage(ByteArrayOutputStream image)
+	    throws IOException, GeneralSecurityException {
+	return new AccountStore(
+		new ByteArrayInputStream(image.toByteArray()),
+		filePassword.toCharArray());
+    }
+
+    private ByteArrayOutputStream saveImage(AccountStore accounts)
+	    throws IOException, GeneralSecurityException {
+	ByteArrayOutputStream image = new ByteArrayOutputStream();
+	accounts.writeAccounts(image, filePassword.toCharArray());
+	return image;
+    }
+
+    @Test
+    public void testAppendCreate()
+	    throws IOException, GeneralSecurityException {
+	AccountStore accounts = createTestStore(1);
+	ByteArrayOutputStream image = saveImage(accounts);
+	extendTestStore(accounts, 2);
+	append(accounts, image);
+	AccountStore restored = readImage(image);
+	assertEquals("Created accounts lost from change log",
+		     accounts, restored);
+	validateContent(restored);
+    }
+
+    @Test
+    public void testAppendUpdate()
+	    throws IOException, GeneralSecurityException {
+	AccountStore accounts = createTestStore();
+	ByteArrayOutputStream image = saveImage(accounts);
+	Account acct = accounts.iterator().next();
+	accounts.updateAccount(acct, "aaa desc", acct.getUrl(),
+			       acct.getUsername(), "new password");
+	append(accounts, image);
+	assertEquals("Updated account lost from change log",
+		     accounts, readImage(image));
+    }
+
+    @Test
+    public void testAppendDelete()
+	    throws IOException, GeneralSecurityException {
+	AccountStore accounts = createTestStore();
+	ByteArrayOutputStream image = saveImage(accounts);
+	accounts.deleteAccount(accounts.iterator().next());
+	append(accounts, image);
+	AccountStore restored = readImage(image);
+	assertEquals("Deletion lost from change log", accounts, restored);
+	assertEquals(testData.length - 1, restored.size());
+    }
+
+    @Test
+    public void testAppendMerge()
+	    throws IOException, GeneralSecurityException {
+	AccountStore accounts = createTestStore(1);
+	AccountStore merge = accounts.snapshot();
+	extendTestStore(merge, 2);
+	Account acct = merge.iterator().next();
+	merge.updateAccount(acct, acct.getDescription(), acct.getUrl(),
+			    acct.getUsername(), "new password");
+	ByteArrayOutputStream image = saveImage(accounts);
+	accounts.mergeAccounts(merge);
+	append(accounts, image);
+	assertEquals("Merge lost from change log",
+		     accounts, readImage(image));
+    }
+
+    @Test
+    public void testAppendAfterRead()
+	    throws IOException, GeneralSecurityException {
+	ByteArrayOutputStream image = saveImage(createTestStore(1));
+	AccountStore accounts = readImage(image);
+	extendTestStore(accounts, 2);
+	append(accounts, image);
+	validateContent(readImage(image));
+    }
+
+    @Test
+    public void testRepeatedAppend()
+	    throws IOException, GeneralSecurityException {
+	AccountStore accounts = createTestStore(1);
+	ByteArrayOutputStream image = saveImage(accounts);
+	extendTestStore(accounts, 1);
+	AccountStore stale = accounts.snapshot();
+	append(accounts, image);
+	// The stale copy appends the same change again; reading it back
+	// must apply it only once.
+	stale.appendAccounts(image);
+	extendTestStore(accounts, 1);
+	append(accounts, image);
+	validateContent(readImage(image));
+    }
+
+    @Test
+    public void testMarkSaved()
+	    throws IOException, GeneralSecurityException {
+	AccountStore accounts = createTestStore(1);
+	ByteArrayOutputStream image = saveImage(accounts);
+	extendTestStore(accounts, 1);
+	AccountStore saved = accounts.snapshot();
+	saved.appendAccounts(image);
+	accounts.markSaved(saved);
+	int savedSize = image.size();
+	accounts.appendAccounts(image);
+	assertEquals("Changes saved by snapshot were appended again",
+		     savedSize, image.size());
+    }
+
+    @Test
+    public void testTruncatedRecord()
+	    throws IOException, GeneralSecurityException {
+	AccountStore accounts = createTestStore(2);
+	ByteArrayOutputStream image = saveImage(accounts);
+	AccountStore snapshot = accounts.snapshot();
+	extendTestStore(accounts, 1);
+	append(accounts, image);
+
+	byte[] bytes = image.toByteArray();
+	byte[] truncated = Arrays.copyOf(bytes, bytes.length - 1);
+	AccountStore restored = new AccountStore(
+		new ByteArrayInputStream(truncated),
+		filePassword.toCharArray());
+	assertEquals("Partial change record wasn't ignored",
+		     snapshot, restored);
+	assertFalse("Appending allowed after partial change record",
+		    restored.canAppend());
+    }
+
+    @Test
+    public void testDamagedRecord()
+	    throws IOException, GeneralSecurityException {
+	AccountStore accounts = createTestStore(1);
+	ByteArrayOutputStream image = saveImage(accounts);
+	extendTestStore(accounts, 1);
+	append(accounts, image);
+	AccountStore snapshot = accounts.snapshot();
+	extendTestStore(accounts, 1);
+	append(accounts, image);
+
+	byte[] bytes = image.toByteArray();
+	bytes[bytes.length - 2] ^= 0x5a;
+	AccountStore restored = new AccountStore(
+		new ByteArrayInputStream(bytes),
+		filePassword.toCharArray());
+	assertEquals("Changes before the damaged record were lost",
+		     snapshot, restored);
+	validateContent(restored, 2);
+	assertFalse("Appending allowed after damaged change record",
+		    restored.canAppend());
+    }
+
+    @Test
+    public void testZeroFilledTail()
+	    throws IOException, GeneralSecurityException {
+	AccountStore accounts = createTestStore(1);
+	ByteArrayOutputStream image = saveImage(accounts);
+	extendTestStore(accounts, 1);
+	append(accounts, image);
+	AccountStore snapshot = accounts.snapshot();
+	image.write(new byte[100]);
+	AccountStore restored = readImage(image);
+	assertEquals("Changes before the zero fill were lost",
+		     snapshot, restored);
+	assertFalse("Appending allowed after zero fill",
+		    restored.canAppend());
+    }
+
+    @Test
+    public void testDamageInsideLog()
+	    throws IOException, GeneralSecurityException {
+	AccountStore accounts = createTestStore(1);
+	ByteArrayOutputStream image = saveImage(accounts);
+	extendTestStore(accounts, 1);
+	append(accounts, image);
+	int damaged = image.size() - 2;
+	extendTestStore(accounts, 1);
+	append(accounts, image);
+
+	byte[] bytes = image.toByteArray();
+	bytes[damaged] ^= 0x5a;
+	try {
+	    new AccountStore(new ByteArrayInputStream(bytes),
+			     filePassword.toCharArray());
+	    fail("Damage inside the change log was ignored");
+	} catch (AccountFileFormatException e) {
+	    // expected
+	}
+    }
+
+    @Test
+    public void testCannotAppendToOldFormat()
+	    throws IOException, GeneralSecurityException {
+	AccountStore accounts =
+		createFromResource("test-data/v2-sample.accts");
+	assertFalse("Appending allowed to V2 file", accounts.canAppend());
+	accounts = createFromResource("test-data/v5-sample.accts");
+	assertFalse("Appending allowed to V5 file", accounts.canAppend());
+	assertFalse("Appending allowed without a file",
+		    createTestStore().canAppend());
+    }
+
+    @Test
+    public void testCompaction()
+	    throws IOException, GeneralSecurityException {
+	AccountStore accounts = createTestStore();
+	ByteArrayOutputStream image = saveImage(accounts);
+	Account acct = accounts.iterator().next();
+	char[] filler = new char[1000];
+	Arrays.fill(filler, 'x');
+	String password = new String(filler);
+	int nUpdates = 0;
+	while (accounts.canAppend()) {
+	    accounts.updateAccount(acct, acct.getDescription(),
+				   acct.getUrl(), acct.getUsername(),
+				   password + nUpdates);
+	    accounts.appendAccounts(image);
+	    nUpdates++;
+	    assertTrue("Change log never compacted", nUpdates < 1000);
+	}
+	assertEquals("Compacted log not readable",
+		     accounts, readImage(image));
+
+	ByteArrayOutputStream compacted = new ByteArrayOutputStream();
+	accounts.writeAccounts(compacted);
+	assertTrue("Can't append after compaction", accounts.canAppend());
+	assertTrue("Compaction didn't shrink the file",
+		   compacted.size() < image.size());
+	assertEquals("Compacted file not readable",
+		     accounts, readImage(compacted));
+    }
+}
@@ -4,12 +4,15 @@
 
 package jrb.accounts.store;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 
 import java.security.GeneralSecurityException;
+import java.util.Arrays;
 
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -88,6 +91,54 @@ public class TestAccountStore extends AccountStoreSupport {
 		     origAccounts, newAccounts);
     }
 
+    @Test
+    public void testSnapshotIsolation() {
+	AccountStore origAccounts = createTestStore();
+	AccountStore snapshot = origAccounts.snapshot();
+	assertEquals("Snapshot not equal to its original",
+		     origAccounts, snapshot);
+	Account acct = origAccounts.iterator().next();
+	origAccounts.updateAccount(acct, acct.getDescription(),
+				   acct.getUrl(), acct.getUsername(),
+				   "new password");
+	assertNotEquals("Snapshot changed by update to its original",
+			origAccounts, snapshot);
+	validateContent(snapshot);
+    }
+
+    @Test
+    public void testSnapshotChangesIsolated() {
+	AccountStore origAccounts = createTestStore();
+	AccountStore snapshot = origAccounts.snapshot();
+	Account acct = snapshot.iterator().next();
+	snapshot.updateAccount(acct, "renamed", acct.getUrl(),
+			       acct.getUsername(), acct.getPassword());
+	snapshot.createAccount("new desc", "http://d.com", "u1", "p4");
+	assertEquals(testData.length + 1, snapshot.size());
+	assertNotEquals("Original changed by update to its snapshot",
+			origAccounts, snapshot);
+	validateContent(origAccounts);
+	assertEquals(1, snapshot.getAccountsByUsername("u1").size());
+	assertTrue(origAccounts.getAccountsByUsername("u1").isEmpty());
+    }
+
+    @Test
+    public void testAccountIdentity() {
+	AccountStore accounts = createTestStore();
+	Account acct = accounts.iterator().next();
+	assertSame("Iteration returned a different account object",
+		   acct, accounts.iterator().next());
+	accounts.updateAccount(acct, acct.getDescription(),
+			       acct.getUrl(), acct.getUsername(),
+			       "new password");
+	assertEquals("new password", acct.getPassword());
+	assertSame("Update replaced the account object",
+		   acct, accounts.iterator().next());
+	assertSame("Search returned a different account object",
+		   acct, accounts.getAccountsByUrl(acct.getUrl())
+			   .iterator().next());
+    }
+
     @Test
     public void testAccountInequality() {
 	AccountStore origAccounts = createTestStore();
@@ -105,11 +156,185 @@ public class TestAccountStore extends AccountStoreSupport {
 		     origAccounts, newAccounts);
     }
 
+    @Test
+    public void testSavedKeySaveRestore()
+	    throws IOException, GeneralSecurityException {
+	AccountStore origAccounts = createTestStore();
+	ByteArrayOutputStream first = new ByteArrayOutputStream();
+	origAccounts.writeAccounts(first, filePassword.toCharArray());
+	ByteArrayOutputStream second = new ByteArrayOutputStream();
+	origAccounts.writeAccounts(second);
+
+	// Nothing changed, so the whole file must be the same.
+	byte[] firstBytes = first.toByteArray();
+	byte[] secondBytes = second.toByteArray();
+	assertArrayEquals("Unchanged save with saved key changed the file",
+			  firstBytes, secondBytes);
+
+	// After a change, magic and salt are the same; the initialization
+	// vector must differ.
+	Account acct = origAccounts.iterator().next();
+	origAccounts.updateAccount(acct, acct.getDescription(),
+				   acct.getUrl(), acct.getUsername(),
+				   "new password");
+	ByteArrayOutputStream third = new ByteArrayOutputStream();
+	origAccounts.writeAccounts(third);
+	byte[] thirdBytes = third.toByteArray();
+	int saltEnd = 8 + 8;
+	int ivEnd = saltEnd + AccountStore.NONCE_BYTES;
+	assertArrayEquals("Saved key didn't reuse password salt",
+			  Arrays.copyOfRange(firstBytes, 0, saltEnd),
+			  Arrays.copyOfRange(thirdBytes, 0, saltEnd));
+	assertFalse("Changed save reused the initialization vector",
+		    Arrays.equals(Arrays.copyOfRange(firstBytes, 0, ivEnd),
+				  Arrays.copyOfRange(thirdBytes, 0, ivEnd)));
+
+	AccountStore newAccounts = new AccountStore(
+		new ByteArrayInputStream(thirdBytes),
+		filePassword.toCharArray());
+	assertEquals("AccountStore changed by save with saved key",
+		     origAccounts, newAccounts);
+    }
+
+    @Test
+    public void testDestroy() throws IOException, GeneralSecurityException {
+	AccountStore origAccounts = createTestStore();
+	origAccounts.writeAccounts(new ByteArrayOutputStream(),
+				   filePassword.toCharArray());
+	AccountStore copy = origAccounts.snapshot();
+	origAccounts.destroy();
+	assertEquals(0, origAccounts.size());
+	assertNull(origAccounts.getAccount("xxx desc"));
+	assertFalse(origAccounts.canAppend());
+	try {
+	    origAccounts.writeAccounts(new ByteArrayOutputStream());
+	    fail("Destroyed store saved with its old key");
+	} catch (NullPointerException e) {
+	    // expected
+	}
+	// A copy has its own key, which must still work.
+	assertEquals(TEST_DATA.length, copy.size());
+	copy.writeAccounts(new ByteArrayOutputStream());
+    }
+
+    @Test
+    public void testSamePasswordSaveRestore()
+	    throws IOException, GeneralSecurityException {
+	AccountStore origAccounts = createTestStore();
+	ByteArrayOutputStream first = new ByteArrayOutputStream();
+	origAccounts.writeAccounts(first, filePassword.toCharArray());
+	ByteArrayOutputStream second = new ByteArrayOutputStream();
+	origAccounts.writeAccounts(second, filePassword.toCharArray());
+	assertArrayEquals("Unchanged save with same password changed file",
+			  first.toByteArray(), second.toByteArray());
+
+	ByteArrayOutputStream third = new ByteArrayOutputStream();
+	origAccounts.writeAccounts(third, "other password".toCharArray());
+	assertFalse("New password reused password salt",
+		    Arrays.equals(Arrays.copyOfRange(first.toByteArray(),
+						     0, 16),
+				  Arrays.copyOfRange(third.toByteArray(),
+						     0, 16)));
+	AccountStore newAccounts = new AccountStore(
+		new ByteArrayInputStream(third.toByteArray()),
+		"other password".toCharArray());
+	assertEquals(origAccounts, newAccounts);
+    }
+
+    @Test
+    public void testModificationTracking()
+	    throws IOException, GeneralSecurityException {
+	AccountStore accounts = createTestStore();
+	assertTrue("New store not modified", accounts.isModified());
+	accounts.writeAccounts(new ByteArrayOutputStream(),
+			       filePassword.toCharArray());
+	assertFalse("Saved store still modified", accounts.isModified());
+	long count = accounts.getModificationCount();
+
+	Account acct = accounts.iterator().next();
+	accounts.updateAccount(acct, acct.getDescription(), acct.getUrl(),
+			       acct.getUsername(), "new password");
+	assertTrue(accounts.isModified());
+	assertTrue(accounts.isModified(acct));
+	for (Account a : accounts) {
+	    assertEquals(a == acct, accounts.isModified(a));
+	}
+	assertTrue(accounts.getModificationCount() > count);
+
+	AccountStore snapshot = accounts.snapshot();
+	ByteArrayOutputStream saved = new ByteArrayOutputStream();
+	snapshot.writeAccounts(saved);
+	assertTrue(accounts.isModified());
+	accounts.markSaved(snapshot);
+	assertFalse("Store saved by snapshot still modified",
+		    accounts.isModified());
+	assertFalse(accounts.isModified(acct));
+	ByteArrayOutputStream again = new ByteArrayOutputStream();
+	accounts.writeAccounts(again);
+	assertArrayEquals("Store saved by snapshot wrote different bytes",
+			  saved.toByteArray(), again.toByteArray());
+    }
+
+    @Test
+    public void testLongHistorySaveRestore()
+	    throws IOException, GeneralSecurityException {
+	AccountStore origAccounts = createTestStore();
+	Account acct = origAccounts.iterator().next();
+	for (int i = 0; i < 100; i++) {
+	    String description = acct.getDescription();
+	    if (i % 10 == 0) {
+		description = "renamed " + i;
+	    }
+	    origAccounts.updateAccount(acct, description, acct.getUrl(),
+				       acct.getUsername(), "password " + i);
+	}
+	AccountStore newAccounts = createFromSaveRestore(origAccounts);
+	assertEquals("Account history changed by save/restore cycle",
+		     origAccounts, newAccounts);
+    }
+
+    @Test
+    public void testMappedFileSaveRestore()
+	    throws IOException, GeneralSecurityException {
+	AccountStore origAccounts = createTestStore();
+	Account acct = origAccounts.iterator().next();
+	File file = File.createTempFile("mapped", ".accts");
+	try {
+	    FileOutputStream out = new FileOutputStream(file);
+	    origAccounts.writeAccounts(out, filePassword.toCharArray());
+	    out.close();
+	    // Exercise multi-byte characters, including the two-byte
+	    // encoding of NUL, in a change record.
+	    origAccounts.updateAccount(acct, "\u00e9t\u00e9 \u20ac\u0000",
+				       "http://\u4f8b.com", "\ud83d\udd11",
+				       acct.getPassword());
+	    out = new FileOutputStream(file, true);
+	    origAccounts.appendAccounts(out);
+	    out.close();
+
+	    AccountStore newAccounts = new AccountStore(
+		    file.toPath(), filePassword.toCharArray());
+	    assertEquals("AccountStore changed by mapped file read",
+			 origAccounts, newAccounts);
+	} finally {
+	    file.delete();
+	}
+    }
+
+    /**
+     * Write the test accounts to a file.  All but the last account are
+     * written as a snapshot, and the last account is appended as a
+     * change record, so that the file exercises both.
+     */
     private void writeTestDataFile(String filename)
 	    throws IOException, GeneralSecurityException {
+	AccountStore accounts = createTestStore(testData.length - 1);
 	FileOutputStream out = new FileOutputStream(new File(filename));
-	createTestStore().writeAccounts(
-		out, filePassword.toCharArray());
+	accounts.writeAccounts(out, filePassword.toCharArray());
+	out.close();
+	extendTestStore(accounts, 1);
+	out = new FileOutputStream(new File(filename), true);
+	accounts.appendAccounts(out);
 	out.close();
     }
 
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import java.security.GeneralSecurityException;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for reading and writing account stores large enough that their
+ * snapshot is split into several {@link ChunkedSnapshot} chunks.
+ */
+public class TestChunkedSnapshot {
+    private static final String PASSWORD = "password";
+
+    /**
+     * Number of accounts to create.  This is enough to fill several
+     * chunks.
+     */
+    private static final int NUM_ACCOUNTS = 5000;
+
+    private static AccountStore createLargeStore() {
+	AccountStore accounts = new AccountStore();
+	for (int i = 0; i < NUM_ACCOUNTS; i++) {
+	    accounts.createAccount(
+		    String.format("account %05d", i),
+		    "https://www.example" + (i % 97) + ".com/login",
+		    "user" + i, "password" + i);
+	}
+	return accounts;
+    }
+
+    private static byte[] save(AccountStore accounts)
+	    throws IOException, GeneralSecurityException {
+	ByteArrayOutputStream output = new ByteArrayOutputStream();
+	accounts.writeAccounts(output, PASSWORD.toCharArray());
+	return output.toByteArray();
+    }
+
+    private static byte[] saveUncompressed(AccountStore accounts)
+	    throws IOException, GeneralSecurityException {
+	accounts.setCompressionEnabled(false);
+	try {
+	    return save(accounts);
+	} finally {
+	    accounts.setCompressionEnabled(true);
+	}
+    }
+
+    private static AccountStore restore(byte[] image)
+	    throws IOException, GeneralSecurityException {
+	return new AccountStore(new ByteArrayInputStream(image),
+				PASSWORD.toCharArray());
+    }
+
+    @Test
+    public void testMultiChunkSaveRestore()
+	    throws IOException, GeneralSecurityException {
+	AccountStore accounts = createLargeStore();
+	byte[] image = save(accounts);
+	assertTrue("Snapshot doesn't span several chunks",
+		   image.length > 3 * ChunkedSnapshot.CHUNK_BYTES);
+	assertEquals("AccountStore changed by save/restore cycle",
+		     accounts, restore(image));
+    }
+
+    @Test
+    public void testUncompressedSaveRestore()
+	    throws IOException, GeneralSecurityException {
+	AccountStore accounts = createLargeStore();
+	assertEquals("Uncompressed AccountStore changed by save/restore",
+		     accounts, restore(saveUncompressed(accounts)));
+    }
+
+    @Test
+    public void testCompression()
+	    throws IOException, GeneralSecurityException {
+	AccountStore accounts = createLargeStore();
+	byte[] compressed = save(accounts);
+	byte[] uncompressed = saveUncompressed(accounts);
+	assertTrue("Compression didn't shrink the snapshot",
+		   compressed.length < uncompressed.length / 2);
+    }
+
+    @Test
+    public void testEmptySaveRestore()
+	    throws IOException, GeneralSecurityException {
+	AccountStore accounts = new AccountStore();
+	assertEquals("Empty AccountStore changed by save/restore cycle",
+		     accounts, restore(save(accounts)));
+    }
+
+    @Test(expected = GeneralSecurityException.class)
+    public void testCorruptChunk()
+	    throws IOException, GeneralSecurityException {
+	byte[] image = save(createLargeStore());
+	image[image.length / 2] ^= 1;
+	restore(image);
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedSnapshot()
+	    throws IOException, GeneralSecurityException {
+	byte[] image = save(createLargeStore());
+	restore(Arrays.copyOf(image, image.length / 2));
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test that an <code>AccountStore</code> can be read and saved by
+ * other threads while it's being changed.
+ */
+public class TestConcurrentAccountStore {
+    private static final int NUM_ACCOUNTS = 200;
+    private static final int NUM_UPDATES = 2000;
+    private static final String PASSWORD = "password";
+
+    private final AtomicReference<Throwable> failure =
+	    new AtomicReference<Throwable>();
+
+    private volatile boolean done;
+
+    private static AccountStore createStore() {
+	AccountStore accounts = new AccountStore();
+	for (int i = 0; i < NUM_ACCOUNTS; i++) {
+	    accounts.createAccount("account " + i,
+				   "https://example.com/" + i,
+				   "user" + i, "password" + i);
+	}
+	return accounts;
+    }
+
+    /**
+     * Start a thread that repeats a check until the test is done,
+     * remembering the first failure.
+     */
+    private Thread startThread(final Runnable check) {
+	Thread t = new Thread(new Runnable() {
+	    public void run() {
+		try {
+		    while (!done) {
+			check.run();
+		    }
+		} catch (Throwable e) {
+		    failure.compareAndSet(null, e);
+		}
+	    }
+	});
+	t.start();
+	return t;
+    }
+
+    /**
+     * Rename every other account back and forth while other threads
+     * iterate over the store, search it and save it.  Iteration must
+     * find every account that isn't renamed, searches must succeed, and
+     * every save must read back with every account.
+     */
+    @Test
+    public void testReadWhileChanging() throws Exception {
+	final AccountStore accounts = createStore();
+	accounts.writeAccounts(new ByteArrayOutputStream(),
+			       PASSWORD.toCharArray());
+	final List<Account> all = new ArrayList<Account>();
+	for (Account account : accounts) {
+	    all.add(account);
+	}
+
+	List<Thread> threads = new ArrayList<Thread>();
+	threads.add(startThread(new Runnable() {
+	    public void run() {
+		int n = 0;
+		for (Account account : accounts) {
+		    if (!account.getDescription().startsWith("renamed")) {
+			n++;
+		    }
+		}
+		assertTrue("Iteration missed accounts",
+			   n >= NUM_ACCOUNTS / 2);
+		assertEquals(NUM_ACCOUNTS, accounts.size());
+	    }
+	}));
+	threads.add(startThread(new Runnable() {
+	    public void run() {
+		assertFalse("Search found nothing",
+			    accounts.search("account", 10).isEmpty());
+		assertFalse("Fuzzy search found nothing",
+			    accounts.fuzzySearch("acount", 10).isEmpty());
+		assertEquals(1, accounts.getAccountsByUsername("user7").size());
+	    }
+	}));
+	threads.add(startThread(new Runnable() {
+	    public void run() {
+		try {
+		    ByteArrayOutputStream out = new ByteArrayOutputStream();
+		    accounts.writeAccounts(out);
+		    AccountStore saved = new AccountStore(
+			    new ByteArrayInputStream(out.toByteArray()),
+			    PASSWORD.toCharArray());
+		    assertEquals(NUM_ACCOUNTS, saved.size());
+		} catch (Exception e) {
+		    throw new RuntimeException(e);
+		}
+	    }
+	}));
+
+	try {
+	    for (int i = 0; i < NUM_UPDATES && failure.get() == null; i++) {
+		Account account = all.get(2 * i % NUM_ACCOUNTS);
+		String description = account.getDescription();
+		description = description.startsWith("renamed ")
+			? description.substring("renamed ".length())
+			: "renamed " + description;
+		accounts.updateAccount(account, description,
+				       account.getUrl(),
+				       account.getUsername(),
+				       account.getPassword());
+	    }
+	} finally {
+	    done = true;
+	    for (Thread t : threads) {
+		t.join();
+	    }
+	}
+	if (failure.get() != null) {
+	    throw new AssertionError("Reader failed", failure.get());
+	}
+	assertEquals(NUM_ACCOUNTS, accounts.size());
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.store;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.security.GeneralSecurityException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for saving account stores to files with {@link FileSaver}.
+ * Each test saves into a fresh temporary directory, so that backups and
+ * leftover temporary files can be checked.
+ */
+public class TestFileSaver extends AccountStoreSupport {
+    private static final AccountTestData[] TEST_DATA = {
+	new AccountTestData("www desc", "http://d.com", "u0", "p4"),
+	new AccountTestData("xxx desc", "http://c.com", "u0", "p3"),
+	new AccountTestData("yyy desc", "http://b.com", "u0", "p2"),
+	new AccountTestData("zzz desc", "http://a.com", "u0", "p0"),
+    };
+
+    private static final String PASSWORD = "password";
+
+    private Path dir;
+    private Path file;
+
+    public TestFileSaver() {
+	super(TEST_DATA, PASSWORD);
+    }
+
+    @Before
+    public void createDirectory() throws IOException {
+	dir = Files.createTempDirectory("saver");
+	file = dir.resolve("test.accts");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+	DirectoryStream<Path> files = Files.newDirectoryStream(dir);
+	try {
+	    for (Path p : files) {
+		Files.delete(p);
+	    }
+	} finally {
+	    files.close();
+	}
+	Files.delete(dir);
+    }
+
+    private AccountStore readFile(Path path)
+	    throws IOException, GeneralSecurityException {
+	return new AccountStore(path, filePassword.toCharArray());
+    }
+
+    private int countFiles() throws IOException {
+	int n = 0;
+	DirectoryStream<Path> files = Files.newDirectoryStream(dir);
+	try {
+	    for (Path p : files) {
+		n++;
+	    }
+	} finally {
+	    files.close();
+	}
+	return n;
+    }
+
+    @Test
+    public void testWriteNewFile()
+	    throws IOException, GeneralSecurityException {
+	AccountStore accounts = createTestStore();
+	new FileSaver(file).write(accounts, filePassword.toCharArray());
+	assertEquals(accounts, readFile(file));
+	assertEquals("Temporary file or backup left behind",
+		     1, countFiles());
+    }
+
+    @Test
+    public void testRotateBackups()
+	    throws IOException, GeneralSecurityException {
+	FileSaver saver = new FileSaver(file, 2);
+	AccountStore accounts = createTestStore(1);
+	saver.write(accounts, filePassword.toCharArray());
+	for (int i = 0; i < 3; i++) {
+	    extendTestStore(accounts, 1);
+	    saver.write(accounts);
+	}
+	validateContent(readFile(file), 4);
+	validateContent(readFile(saver.getBackup(1)), 3);
+	validateContent(readFile(saver.getBackup(2)), 2);
+	assertFalse("Too many backups kept",
+		    Files.exists(saver.getBackup(3)));
+	assertEquals(3, countFiles());
+    }
+
+    @Test
+    public void testUnchangedWriteKeepsFile()
+	    throws IOException, GeneralSecurityException {
+	FileSaver saver = new FileSaver(file);
+	AccountStore accounts = createTestStore();
+	saver.write(accounts, filePassword.toCharArray());
+	byte[] before = Files.readAllBytes(file);
+	saver.write(accounts);
+	assertArrayEquals(before, Files.readAllBytes(file));
+	assertFalse("Unchanged write made a backup",
+		    Files.exists(saver.getBackup(1)));
+	assertEquals(1, countFiles());
+    }
+
+    @Test
+    public void testAppendAndSync()
+	    throws IOException, GeneralSecurityException {
+	FileSaver saver = new FileSaver(file);
+	AccountStore accounts = createTestStore(2);
+	saver.write(accounts, filePassword.toCharArray());
+	extendTestStore(accounts, 1);
+	saver.append(accounts, false);
+	extendTestStore(accounts, 1);
+	saver.append(accounts, true);
+	saver.sync();
+	AccountStore restored = readFile(file);
+	assertEquals(accounts, restored);
+	validateContent(restored);
+    }
+
+    @Test
+    public void testFailedWriteLeavesTarget()
+	    throws IOException, GeneralSecurityException {
+	FileSaver saver = new FileSaver(file);
+	AccountStore accounts = createTestStore();
+	saver.write(accounts, filePassword.toCharArray());
+	byte[] before = Files.readAllBytes(file);
+	try {
+	    // A new store has no remembered key to write with.
+	    saver.write(new AccountStore());
+	    fail("Write without a key succeeded");
+	} catch (NullPointerException e) {
+	    // expected
+	}
+	assertArrayEquals(before, Files.readAllBytes(file));
+	assertEquals("Temporary file left behind", 1, countFiles());
+    }
+}
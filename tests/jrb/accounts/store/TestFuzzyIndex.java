@@ -0,0 +1,148 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import java.security.GeneralSecurityException;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for approximate searches that allow for typing mistakes.
+ */
+public class TestFuzzyIndex {
+    private static final String PASSWORD = "password";
+
+    private static final int LIMIT = 10;
+
+    private static AccountStore createStore() {
+	AccountStore accounts = new AccountStore();
+	accounts.createAccount("Amazon", "https://www.amazon.com/",
+			       "alice", "p0");
+	accounts.createAccount("Netflix", "https://www.netflix.com/",
+			       "alice@example.com", "p1");
+	accounts.createAccount("First National Bank",
+			       "https://online.firstnational.example/",
+			       "alice1970", "p2");
+	return accounts;
+    }
+
+    private static void assertFirst(AccountStore accounts, String query,
+				    String expected) {
+	List<Account> found = accounts.fuzzySearch(query, LIMIT);
+	assertFalse("Nothing found for " + query, found.isEmpty());
+	assertEquals("Wrong best match for " + query,
+		     expected, found.get(0).getDescription());
+    }
+
+    @Test
+    public void testTypos() {
+	AccountStore accounts = createStore();
+	assertFirst(accounts, "amazon", "Amazon");
+	assertFirst(accounts, "amazn", "Amazon");
+	assertFirst(accounts, "amazom", "Amazon");
+	assertFirst(accounts, "netflx", "Netflix");
+	assertFirst(accounts, "frist national", "First National Bank");
+	assertFirst(accounts, "alice1907", "First National Bank");
+	assertTrue("Found accounts for unrelated text",
+		   accounts.fuzzySearch("zzyzx", LIMIT).isEmpty());
+	assertTrue("Found accounts for empty query",
+		   accounts.fuzzySearch("", LIMIT).isEmpty());
+    }
+
+    @Test
+    public void testHistory() {
+	AccountStore accounts = createStore();
+	Account bank = accounts.search("First National Bank", 1).get(0);
+	accounts.updateAccount(bank, "Second Bank", bank.getUrl(),
+			       bank.getUsername(), "p3");
+	Account other = accounts.createAccount(
+		"First Nation Credit", "https://credit.example/",
+		"bob", "p4");
+	List<Account> found = accounts.fuzzySearch("first national", LIMIT);
+	assertTrue("Account not found by old description",
+		   found.contains(bank));
+	accounts.updateAccount(other, "First National Credit",
+			       other.getUrl(), other.getUsername(), "p5");
+	found = accounts.fuzzySearch("first national", LIMIT);
+	assertEquals("Current data didn't rank ahead of history",
+		     other, found.get(0));
+    }
+
+    @Test
+    public void testDelete() {
+	AccountStore accounts = createStore();
+	accounts.deleteAccount(accounts.search("Amazon", 1).get(0));
+	assertTrue("Deleted account still found",
+		   accounts.fuzzySearch("amazn", LIMIT).isEmpty());
+    }
+
+    @Test
+    public void testBudget() {
+	AccountStore accounts = new AccountStore();
+	for (int i = 0; i < 2000; i++) {
+	    accounts.createAccount("account " + i, "https://example.com/",
+				   "user" + i, "p" + i);
+	}
+	FuzzyIndex index = new FuzzyIndex();
+	index.addAll(accounts.getAccountsByUrl("https://example.com/"));
+	assertEquals(LIMIT, index.search("acount 1", LIMIT,
+					 FuzzyIndex.DEFAULT_BUDGET).size());
+	// With no time at all, the search stops at its first look at
+	// the clock, and ranks what it found by then.
+	List<Account> found = index.search("acount 1", LIMIT, 0);
+	assertTrue("Search without time found too much",
+		   found.size() <= LIMIT);
+    }
+
+    @Test
+    public void testStableAfterCompaction() {
+	AccountStore accounts = new AccountStore();
+	List<Account> all = new ArrayList<Account>();
+	for (int i = 0; i < 3000; i++) {
+	    all.add(accounts.createAccount("account " + i,
+					   "https://example.com/",
+					   "user" + i, "p" + i));
+	}
+	FuzzyIndex index = new FuzzyIndex();
+	index.addAll(all);
+	List<Account> kept = new ArrayList<Account>();
+	for (int i = 0; i < all.size(); i++) {
+	    if (i % 3 == 0) {
+		kept.add(all.get(i));
+	    } else {
+		index.remove(all.get(i));
+	    }
+	}
+	// Ties are broken by the order accounts were added, so the
+	// compacted index must rank them as a fresh one would.
+	FuzzyIndex fresh = new FuzzyIndex();
+	fresh.addAll(kept);
+	for (String query : new String[] { "acount 1", "account", "user" }) {
+	    assertEquals("Ranking changed by compaction for " + query,
+			 fresh.search(query, LIMIT, Long.MAX_VALUE),
+			 index.search(query, LIMIT, Long.MAX_VALUE));
+	}
+    }
+
+    @Test
+    public void testSearchAfterRead()
+	    throws IOException, GeneralSecurityException {
+	AccountStore accounts = createStore();
+	ByteArrayOutputStream image = new ByteArrayOutputStream();
+	accounts.writeAccounts(image, PASSWORD.toCharArray());
+	AccountStore restored = new AccountStore(
+		new ByteArrayInputStream(image.toByteArray()),
+		PASSWORD.toCharArray());
+	assertFirst(restored, "netflx", "Netflix");
+	assertFirst(restored.snapshot(), "amazn", "Amazon");
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.store;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+
+import java.security.GeneralSecurityException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for reading saved account stores with {@link LazyAccountStore}.
+ * Each test saves an account store to a temporary file, opens the file
+ * lazily, and compares what it finds against the original store.
+ */
+public class TestLazyAccountStore {
+    private static final String PASSWORD = "password";
+
+    /**
+     * Number of accounts to create.  This is enough to fill several
+     * chunks.
+     */
+    private static final int NUM_ACCOUNTS = 5000;
+
+    /**
+     * Cache size small enough that iterating over every account must
+     * drop accounts from the cache.
+     */
+    private static final int CACHE_SIZE = 100;
+
+    private Path file;
+
+    @Before
+    public void createFile() throws IOException {
+	file = Files.createTempFile("lazy", ".accts");
+    }
+
+    @After
+    public void deleteFile() throws IOException {
+	Files.delete(file);
+    }
+
+    private static AccountStore createLargeStore() {
+	AccountStore accounts = new AccountStore();
+	for (int i = 0; i < NUM_ACCOUNTS; i++) {
+	    accounts.createAccount(
+		    String.format("account %05d", i),
+		    "https://www.example" + (i % 97) + ".com/login",
+		    "user" + i, "password" + i);
+	}
+	return accounts;
+    }
+
+    private void save(AccountStore accounts)
+	    throws IOException, GeneralSecurityException {
+	OutputStream out = new FileOutputStream(file.toFile());
+	try {
+	    accounts.writeAccounts(out, PASSWORD.toCharArray());
+	} finally {
+	    out.close();
+	}
+    }
+
+    private void append(AccountStore accounts)
+	    throws IOException, GeneralSecurityException {
+	OutputStream out = new FileOutputStream(file.toFile(), true);
+	try {
+	    accounts.appendAccounts(out);
+	} finally {
+	    out.close();
+	}
+    }
+
+    private LazyAccountStore open()
+	    throws IOException, GeneralSecurityException {
+	return new LazyAccountStore(file, PASSWORD.toCharArray(), CACHE_SIZE);
+    }
+
+    /**
+     * Assert that a lazy store holds the same accounts as an account
+     * store, in the same order.
+     */
+    private static void assertSameAccounts(String message,
+					   AccountStore expected,
+					   LazyAccountStore actual) {
+	assertEquals(message, expected.size(), actual.size());
+	Iterator<Account> iter = actual.iterator();
+	for (Account account : expected) {
+	    assertEquals(message, account, iter.next());
+	}
+	assertFalse(message, iter.hasNext());
+    }
+
+    @Test
+    public void testLazyRead()
+	    throws IOException, GeneralSecurityException {
+	AccountStore accounts = createLargeStore();
+	save(accounts);
+	LazyAccountStore lazy = open();
+	try {
+	    assertSameAccounts("Lazy store doesn't match saved store",
+			       accounts, lazy);
+	    // Accounts dropped from the cache must be decoded again.
+	    assertSameAccounts("Lazy store changed after first iteration",
+			       accounts, lazy);
+	} finally {
+	    lazy.close();
+	}
+    }
+
+    @Test
+    public void testUncompressedLazyRead()
+	    throws IOException, GeneralSecurityException {
+	AccountStore accounts = createLargeStore();
+	accounts.setCompressionEnabled(false);
+	save(accounts);
+	LazyAccountStore lazy = open();
+	try {
+	    assertSameAccounts("Lazy store doesn't match uncompressed store",
+			       accounts, lazy);
+	} finally {
+	    lazy.close();
+	}
+    }
+
+    @Test
+    public void testLookup()
+	    throws IOException, GeneralSecurityException {
+	AccountStore accounts = createLargeStore();
+	save(accounts);
+	LazyAccountStore lazy = open();
+	try {
+	    for (Account account : accounts) {
+		assertEquals("Lookup by UUID failed",
+			     account, lazy.getAccount(account.getUUID()));
+		assertEquals("Lookup by description failed", account,
+			     lazy.getAccount(account.getDescription()));
+	    }
+	    assertNull("Lookup of missing account succeeded",
+		       lazy.getAccount("no such account"));
+	} finally {
+	    lazy.close();
+	}
+    }
+
+    @Test
+    public void testEmptyStore()
+	    throws IOException, GeneralSecurityException {
+	save(new AccountStore());
+	LazyAccountStore lazy = open();
+	try {
+	    assertEquals(0, lazy.size());
+	    assertFalse(lazy.iterator().hasNext());
+	} finally {
+	    lazy.close();
+	}
+    }
+
+    @Test
+    public void testChangeLog()
+	    throws IOException, GeneralSecurityException {
+	AccountStore accounts = createLargeStore();
+	save(accounts);
+	Iterator<Account> iter = accounts.iterator();
+	Account updated = iter.next();
+	Account deleted = iter.next();
+	accounts.updateAccount(updated, "zzz renamed", updated.getUrl(),
+			       updated.getUsername(), "new password");
+	accounts.deleteAccount(deleted);
+	Account created = accounts.createAccount(
+		"aaa new", "https://new.example.com", "user", "password");
+	accounts.updateAccount(created, created.getDescription(),
+			       created.getUrl(), created.getUsername(),
+			       "newer password");
+	append(accounts);
+
+	LazyAccountStore lazy = open();
+	try {
+	    assertSameAccounts("Lazy store doesn't reflect change log",
+			       accounts, lazy);
+	    assertNull("Deleted account still present",
+		       lazy.getAccount(deleted.getUUID()));
+	} finally {
+	    lazy.close();
+	}
+    }
+
+    @Test(expected = AccountFileFormatException.class)
+    public void testDamagedChangeLog()
+	    throws IOException, GeneralSecurityException {
+	AccountStore accounts = createLargeStore();
+	save(accounts);
+	Iterator<Account> iter = accounts.iterator();
+	accounts.deleteAccount(iter.next());
+	append(accounts);
+	long damaged = Files.size(file) - 2;
+	accounts.deleteAccount(iter.next());
+	append(accounts);
+
+	byte[] bytes = Files.readAllBytes(file);
+	bytes[(int) damaged] ^= 0x5a;
+	Files.write(file, bytes);
+	open().close();
+    }
+
+    @Test(expected = AccountFileFormatException.class)
+    public void testOldFormat()
+	    throws IOException, GeneralSecurityException {
+	Files.copy(getClass().getClassLoader().getResourceAsStream(
+			   "test-data/v4-sample.accts"),
+		   file, StandardCopyOption.REPLACE_EXISTING);
+	open();
+    }
+}
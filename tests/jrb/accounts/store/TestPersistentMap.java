@@ -0,0 +1,142 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.store;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test that a <code>PersistentMap</code> behaves like a sorted map, and
+ * that making a new map leaves the old one unchanged.
+ */
+public class TestPersistentMap {
+    private static final int NUM_KEYS = 500;
+    private static final int NUM_CHANGES = 5000;
+
+    private static void checkSame(TreeMap<Integer, String> expected,
+				  PersistentMap<Integer, String> actual) {
+	assertEquals(expected.size(), actual.size());
+	assertEquals(expected.isEmpty(), actual.isEmpty());
+	assertEquals(new ArrayList<Map.Entry<Integer, String>>(
+			     expected.entrySet()),
+		     new ArrayList<Map.Entry<Integer, String>>(
+			     actual.entrySet()));
+    }
+
+    @Test
+    public void testEmpty() {
+	PersistentMap<Integer, String> map =
+		new PersistentMap<Integer, String>();
+	assertTrue(map.isEmpty());
+	assertEquals(0, map.size());
+	assertNull(map.get(1));
+	assertSame(map, map.without(1));
+	assertFalse(map.entrySet().iterator().hasNext());
+    }
+
+    @Test
+    public void testRandomChanges() {
+	Random random = new Random(16);
+	TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+	PersistentMap<Integer, String> map =
+		new PersistentMap<Integer, String>();
+	for (int i = 0; i < NUM_CHANGES; i++) {
+	    Integer key = random.nextInt(NUM_KEYS);
+	    if (random.nextInt(3) == 0) {
+		expected.remove(key);
+		map = map.without(key);
+	    } else {
+		expected.put(key, "value " + i);
+		map = map.with(key, "value " + i);
+	    }
+	    assertEquals(expected.get(key), map.get(key));
+	    assertEquals(expected.containsKey(key), map.containsKey(key));
+	}
+	checkSame(expected, map);
+	assertEquals(expected, map);
+    }
+
+    @Test
+    public void testOldMapUnchanged() {
+	TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+	PersistentMap<Integer, String> map =
+		new PersistentMap<Integer, String>();
+	for (int i = 0; i < NUM_KEYS; i++) {
+	    expected.put(i, "value " + i);
+	    map = map.with(i, "value " + i);
+	}
+	PersistentMap<Integer, String> changed = map;
+	for (int i = 0; i < NUM_KEYS; i += 2) {
+	    changed = changed.without(i);
+	}
+	changed = changed.with(1, "changed");
+	checkSame(expected, map);
+	assertEquals(NUM_KEYS / 2, changed.size());
+	assertEquals("changed", changed.get(1));
+	assertNull(changed.get(0));
+    }
+
+    @Test
+    public void testWithAll() {
+	Map<Integer, String> entries = new HashMap<Integer, String>();
+	for (int i = 0; i < NUM_KEYS; i++) {
+	    entries.put(i * 7 % NUM_KEYS, "value " + i);
+	}
+	TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+	expected.putAll(entries);
+	PersistentMap<Integer, String> map =
+		new PersistentMap<Integer, String>().withAll(entries);
+	checkSame(expected, map);
+
+	Map<Integer, String> more = new HashMap<Integer, String>();
+	for (int i = 0; i < NUM_KEYS; i += 3) {
+	    more.put(i, "more " + i);
+	    more.put(NUM_KEYS + i, "more " + i);
+	}
+	expected.putAll(more);
+	checkSame(expected, map.withAll(more));
+	assertEquals(NUM_KEYS, map.size());
+    }
+
+    @Test
+    public void testChangedKeys() {
+	Random random = new Random(17);
+	PersistentMap<Integer, String> map =
+		new PersistentMap<Integer, String>();
+	for (int i = 0; i < NUM_KEYS; i++) {
+	    map = map.with(i, "value " + i);
+	}
+	assertTrue(map.changedKeys(map).isEmpty());
+	PersistentMap<Integer, String> changed = map;
+	TreeSet<Integer> expected = new TreeSet<Integer>();
+	for (int i = 0; i < 20; i++) {
+	    Integer key = random.nextInt(2 * NUM_KEYS);
+	    expected.add(key);
+	    changed = key < NUM_KEYS && random.nextBoolean()
+		    ? changed.without(key)
+		    : changed.with(key, "changed " + i);
+	}
+	assertEquals(new ArrayList<Integer>(expected),
+		     map.changedKeys(changed));
+	assertEquals(new ArrayList<Integer>(expected),
+		     changed.changedKeys(map));
+	assertEquals(new ArrayList<Integer>(map.keySet()),
+		     map.changedKeys(new PersistentMap<Integer, String>()));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testImmutable() {
+	PersistentMap<Integer, String> map =
+		new PersistentMap<Integer, String>().with(1, "one");
+	map.put(2, "two");
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import java.security.GeneralSecurityException;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for searching accounts by partial description or URL.
+ */
+public class TestSearchIndex {
+    private static final String PASSWORD = "password";
+
+    private static final int LIMIT = 100;
+
+    @Test
+    public void testRanking() {
+	AccountStore accounts = new AccountStore();
+	Account inner = accounts.createAccount(
+		"piggybank", "https://mybanking.example.com/",
+		"alice", "p0");
+	Account word = accounts.createAccount(
+		"my bank", "https://example.org/", "alice", "p1");
+	Account prefix = accounts.createAccount(
+		"Bank of Example", "https://example.net/", "alice", "p2");
+	Account url = accounts.createAccount(
+		"savings", "https://www.bankexample.com/", "alice", "p3");
+	List<Account> found = accounts.search("bank", LIMIT);
+	assertEquals("Wrong number of matches", 4, found.size());
+	assertEquals("Prefix matches not first",
+		     new HashSet<Account>(Arrays.asList(prefix, url)),
+		     new HashSet<Account>(found.subList(0, 2)));
+	assertEquals("Word matches not next", word, found.get(2));
+	assertEquals("Inner matches not last", inner, found.get(3));
+    }
+
+    @Test
+    public void testSubstringAndCase() {
+	AccountStore accounts = new AccountStore();
+	Account a = accounts.createAccount(
+		"Electric Company", "https://power.example.com/",
+		"alice", "p0");
+	accounts.createAccount(
+		"water", "https://water.example.com/", "alice", "p1");
+	assertEquals(Arrays.asList(a), accounts.search("TRIC co", LIMIT));
+	assertEquals(Arrays.asList(a), accounts.search("  power", LIMIT));
+	assertTrue("Found accounts for missing text",
+		   accounts.search("gas", LIMIT).isEmpty());
+	assertTrue("Found accounts for empty query",
+		   accounts.search(" ", LIMIT).isEmpty());
+    }
+
+    @Test
+    public void testNoDuplicates() {
+	AccountStore accounts = new AccountStore();
+	Account a = accounts.createAccount(
+		"example example", "https://example.com/example",
+		"alice", "p0");
+	assertEquals(Arrays.asList(a), accounts.search("exam", LIMIT));
+    }
+
+    @Test
+    public void testLimit() {
+	AccountStore accounts = new AccountStore();
+	for (int i = 0; i < 50; i++) {
+	    accounts.createAccount("account " + i, "https://example.com/",
+				   "alice", "p" + i);
+	}
+	assertEquals(10, accounts.search("account", 10).size());
+	assertEquals(50, accounts.search("account", LIMIT).size());
+	assertEquals(11, accounts.search("account 1", LIMIT).size());
+    }
+
+    @Test
+    public void testUpdateAndDelete() {
+	AccountStore accounts = new AccountStore();
+	Account a = accounts.createAccount(
+		"alpha", "https://www.example.com/", "alice", "p0");
+	Account b = accounts.createAccount(
+		"beta", "https://www.example.com/", "bob", "p1");
+	accounts.updateAccount(a, "gamma", "https://example.org/",
+			       "alice", "p2");
+	assertTrue("Updated account found by old description",
+		   accounts.search("alpha", LIMIT).isEmpty());
+	assertEquals(Arrays.asList(a), accounts.search("gam", LIMIT));
+	assertEquals(Arrays.asList(a), accounts.search(".org", LIMIT));
+	accounts.deleteAccount(b);
+	assertTrue("Deleted account still found",
+		   accounts.search("beta", LIMIT).isEmpty());
+    }
+
+    @Test
+    public void testMerge() {
+	AccountStore accounts = new AccountStore();
+	accounts.createAccount(
+		"alpha", "https://www.example.com/", "alice", "p0");
+	AccountStore merge = accounts.snapshot();
+	Account mergeA = merge.iterator().next();
+	merge.updateAccount(mergeA, "alpha", "https://example.net/",
+			    "alice", "p1");
+	merge.createAccount("beta", "https://example.net/", "bob", "p2");
+	accounts.mergeAccounts(merge);
+	assertEquals("Merged accounts not found", 2,
+		     accounts.search("example.net", LIMIT).size());
+	assertTrue("Merged account found by old URL",
+		   accounts.search("example.com", LIMIT).isEmpty());
+    }
+
+    @Test
+    public void testSearchAfterRead()
+	    throws IOException, GeneralSecurityException {
+	AccountStore accounts = new AccountStore();
+	accounts.createAccount("alpha", "https://example.com/", "alice", "p0");
+	ByteArrayOutputStream image = new ByteArrayOutputStream();
+	accounts.writeAccounts(image, PASSWORD.toCharArray());
+	accounts.createAccount("alphabet", "https://example.com/",
+			       "bob", "p1");
+	accounts.appendAccounts(image);
+
+	AccountStore restored = new AccountStore(
+		new ByteArrayInputStream(image.toByteArray()),
+		PASSWORD.toCharArray());
+	assertEquals("Accounts not searchable after read", 2,
+		     restored.search("alpha", LIMIT).size());
+	assertEquals("Snapshot not searchable", 1,
+		     restored.snapshot().search("bet", LIMIT).size());
+    }
+}
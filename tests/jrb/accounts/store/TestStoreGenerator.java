@@ -0,0 +1,152 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import java.security.GeneralSecurityException;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for generating account stores with <code>StoreGenerator</code>.
+ */
+public class TestStoreGenerator {
+    private static final String PASSWORD = "password";
+    private static final int NUM_ACCOUNTS = 2000;
+
+    private static byte[] generate(StoreGenerator generator)
+	    throws IOException, GeneralSecurityException {
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	generator.write(out, PASSWORD.toCharArray());
+	return out.toByteArray();
+    }
+
+    private static AccountStore read(byte[] image)
+	    throws IOException, GeneralSecurityException {
+	return new AccountStore(new ByteArrayInputStream(image),
+				PASSWORD.toCharArray());
+    }
+
+    @Test
+    public void testDeterministic()
+	    throws IOException, GeneralSecurityException {
+	byte[] first = generate(new StoreGenerator(1, NUM_ACCOUNTS));
+	byte[] second = generate(new StoreGenerator(1, NUM_ACCOUNTS));
+	assertArrayEquals(first, second);
+	byte[] other = generate(new StoreGenerator(2, NUM_ACCOUNTS));
+	assertFalse(Arrays.equals(first, other));
+	assertEquals(read(first), read(second));
+    }
+
+    @Test
+    public void testSettings() throws IOException, GeneralSecurityException {
+	StoreGenerator generator = new StoreGenerator(3, NUM_ACCOUNTS);
+	generator.setHistoryDepth(2, 6);
+	generator.setPasswordLength(10, 12);
+	generator.setDescriptionWords(2, 2);
+	generator.setSharedUrlRatio(0.25);
+	AccountStore store = read(generate(generator));
+	assertEquals(NUM_ACCOUNTS, store.size());
+
+	int deepest = 0;
+	int shared = 0;
+	Set<String> descriptions = new HashSet<String>();
+	for (Account acct : store) {
+	    int depth = acct.getUpdateCount();
+	    assertTrue("History too shallow", depth >= 2);
+	    assertTrue("History too deep", depth <= 6);
+	    deepest = Math.max(deepest, depth);
+	    int length = acct.getPassword().length();
+	    assertTrue("Bad password length: " + length,
+		       length >= 10 && length <= 12);
+	    assertEquals(3, acct.getDescription().split(" ").length);
+	    assertTrue(descriptions.add(acct.getDescription()));
+	    if (acct.getUrl().startsWith("https://login.")) {
+		shared++;
+	    }
+	}
+	assertEquals(6, deepest);
+	assertTrue("Shared URL ratio far off: " + shared,
+		   shared > NUM_ACCOUNTS / 5 && shared < NUM_ACCOUNTS * 3 / 10);
+    }
+
+    @Test
+    public void testReplicaMerge()
+	    throws IOException, GeneralSecurityException {
+	StoreGenerator generator = new StoreGenerator(4, NUM_ACCOUNTS);
+	generator.setHistoryDepth(1, 4);
+	StoreGenerator replica = generator.replica(5, 0.2);
+	AccountStore original = read(generate(generator));
+	AccountStore changed = read(generate(replica));
+	assertEquals(replica.size(), changed.size());
+	assertFalse(original.equals(changed));
+
+	int common = 0;
+	for (Account acct : changed) {
+	    if (original.getAccount(acct.getDescription()) != null) {
+		common++;
+	    }
+	}
+	int added = changed.size() - common;
+	int deleted = original.size() - common;
+	assertTrue("Replica didn't add accounts", added > 0);
+	assertTrue("Replica didn't delete accounts", deleted > 0);
+
+	AccountStore merged = original.snapshot();
+	assertTrue("Replica accounts not merged",
+		   merged.mergeAccounts(changed).isEmpty());
+	assertEquals(original.size() + added, merged.size());
+	for (Account acct : changed) {
+	    Account mergedAccount = merged.getAccount(acct.getDescription());
+	    assertEquals(acct.getPassword(), mergedAccount.getPassword());
+	}
+	AccountStore again = merged.snapshot();
+	again.mergeAccounts(changed);
+	assertEquals("Merging the replica again changed the store",
+		     merged, again);
+    }
+
+    @Test
+    public void testLazyStore() throws IOException, GeneralSecurityException {
+	StoreGenerator generator = new StoreGenerator(6, NUM_ACCOUNTS);
+	Path file = Files.createTempFile("generated", ".accts");
+	try {
+	    OutputStream out = Files.newOutputStream(file);
+	    try {
+		generator.write(out, PASSWORD.toCharArray());
+	    } finally {
+		out.close();
+	    }
+	    AccountStore store = new AccountStore(file,
+						  PASSWORD.toCharArray());
+	    LazyAccountStore lazy = new LazyAccountStore(
+		    file, PASSWORD.toCharArray());
+	    try {
+		assertEquals(NUM_ACCOUNTS, lazy.size());
+		for (Account acct : store) {
+		    Account lazyAccount = lazy.getAccount(acct.getUUID());
+		    assertEquals(acct.getDescription(),
+				 lazyAccount.getDescription());
+		    assertEquals(acct.getPassword(),
+				 lazyAccount.getPassword());
+		}
+	    } finally {
+		lazy.close();
+	    }
+	} finally {
+	    Files.delete(file);
+	}
+    }
+}
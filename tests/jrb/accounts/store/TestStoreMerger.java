@@ -0,0 +1,140 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.store;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import java.security.GeneralSecurityException;
+
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for merging several account store files at once with {@link
+ * StoreMerger}.
+ */
+public class TestStoreMerger {
+    private final List<Path> files = new ArrayList<Path>();
+
+    @After
+    public void deleteFiles() throws IOException {
+	for (Path file : files) {
+	    Files.delete(file);
+	}
+    }
+
+    /**
+     * Save a store to a new temporary file, and add the file as a
+     * source for a merge.
+     */
+    private void addSource(StoreMerger merger, AccountStore accounts,
+			   String password)
+	    throws IOException, GeneralSecurityException {
+	Path file = Files.createTempFile("merge", ".accts");
+	files.add(file);
+	OutputStream out = new FileOutputStream(file.toFile());
+	try {
+	    accounts.writeAccounts(out, password.toCharArray());
+	} finally {
+	    out.close();
+	}
+	merger.addSource(file, password.toCharArray());
+    }
+
+    private static void update(AccountStore accounts, int n,
+			       String password) {
+	Iterator<Account> iter = accounts.iterator();
+	for (int i = 0; i < n; i++) {
+	    iter.next();
+	}
+	Account account = iter.next();
+	accounts.updateAccount(account, account.getDescription(),
+			       account.getUrl(), account.getUsername(),
+			       password);
+    }
+
+    @Test
+    public void testMergeReplicas()
+	    throws IOException, GeneralSecurityException {
+	AccountStore base = new AccountStore();
+	for (int i = 0; i < 100; i++) {
+	    base.createAccount(String.format("account %03d", i),
+			       "https://example.com/" + i,
+			       "user" + i, "p" + i);
+	}
+	AccountStore replica1 = base.snapshot();
+	AccountStore replica2 = base.snapshot();
+	AccountStore replica3 = base.snapshot();
+	update(replica1, 1, "changed 1");
+	update(replica2, 1, "changed 2");
+	update(replica2, 2, "changed 2");
+	replica3.createAccount("new 3", "https://example.org/", "u", "p");
+	update(replica3, 3, "changed 3");
+
+	StoreMerger merger = new StoreMerger();
+	addSource(merger, replica1, "password1");
+	addSource(merger, replica2, "password2");
+	addSource(merger, replica3, "password3");
+	AccountStore merged = merger.merge();
+
+	AccountStore expected = replica1.snapshot();
+	expected.mergeAccounts(replica2);
+	expected.mergeAccounts(replica3);
+	assertEquals("N-way merge differs from one-by-one merge",
+		     expected, merged);
+	assertEquals(101, merged.size());
+	assertTrue(merger.getRejected().isEmpty());
+	assertEquals("Merged store isn't indexed", 1,
+		     merged.getAccountsByUrl("https://example.org/").size());
+    }
+
+    @Test
+    public void testDuplicateDescriptions()
+	    throws IOException, GeneralSecurityException {
+	AccountStore first = new AccountStore();
+	first.createAccount("shared", "https://a.example/", "u1", "p1");
+	AccountStore second = new AccountStore();
+	Account duplicate = second.createAccount(
+		"shared", "https://b.example/", "u2", "p2");
+	second.createAccount("other", "https://c.example/", "u3", "p3");
+
+	StoreMerger merger = new StoreMerger();
+	addSource(merger, first, "password");
+	addSource(merger, second, "password");
+	AccountStore merged = merger.merge();
+
+	assertEquals(2, merged.size());
+	assertEquals(1, merger.getRejected().size());
+	assertEquals(duplicate.getUUID(),
+		     merger.getRejected().get(0).getUUID());
+	assertEquals("Earlier source didn't keep its description", 1,
+		     merged.getAccountsByUrl("https://a.example/").size());
+    }
+
+    @Test
+    public void testNoSources()
+	    throws IOException, GeneralSecurityException {
+	assertEquals(0, new StoreMerger().merge().size());
+    }
+
+    @Test(expected = GeneralSecurityException.class)
+    public void testWrongPassword()
+	    throws IOException, GeneralSecurityException {
+	AccountStore accounts = new AccountStore();
+	accounts.createAccount("a", "https://a.example/", "u", "p");
+	StoreMerger merger = new StoreMerger();
+	addSource(merger, accounts, "password");
+	merger.addSource(files.get(0), "wrong".toCharArray());
+	merger.merge();
+    }
+}
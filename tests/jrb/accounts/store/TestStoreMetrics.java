@@ -0,0 +1,137 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.store;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.security.GeneralSecurityException;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for timing store operations with <code>StoreMetrics</code>.
+ * The metrics are shared by everything in the process, so the tests
+ * only check how counts change.
+ */
+public class TestStoreMetrics {
+    private static final String PASSWORD = "password";
+    private static final int NUM_ACCOUNTS = 500;
+
+    private static long count(StoreMetrics.Phase phase) {
+	return phase.getStatistics().getCount();
+    }
+
+    @Test
+    public void testPhasesCounted()
+	    throws IOException, GeneralSecurityException {
+	StoreGenerator generator = new StoreGenerator(1, NUM_ACCOUNTS);
+	Path dir = Files.createTempDirectory("metrics");
+	Path file = dir.resolve("test.accts");
+	try {
+	    OutputStream out = Files.newOutputStream(file);
+	    try {
+		generator.write(out, PASSWORD.toCharArray());
+	    } finally {
+		out.close();
+	    }
+
+	    long keys = count(StoreMetrics.KEY_DERIVATION);
+	    long decrypts = count(StoreMetrics.DECRYPT);
+	    long parses = count(StoreMetrics.PARSE);
+	    AccountStore copy = new AccountStore(file,
+						 PASSWORD.toCharArray());
+	    assertEquals(keys + 1, count(StoreMetrics.KEY_DERIVATION));
+	    assertTrue("Decryption not counted",
+		       count(StoreMetrics.DECRYPT) > decrypts);
+	    assertTrue("Parsing not counted",
+		       count(StoreMetrics.PARSE) > parses);
+
+	    FileSaver saver = new FileSaver(file, 0);
+	    long saves = count(StoreMetrics.SAVE);
+	    saver.write(copy);
+	    assertEquals(keys + 1, count(StoreMetrics.KEY_DERIVATION));
+	    assertEquals(saves + 1, count(StoreMetrics.SAVE));
+
+	    long builds = count(StoreMetrics.INDEX_BUILD);
+	    copy.search("account", 10);
+	    copy.search("account", 10);
+	    assertEquals(builds + 1, count(StoreMetrics.INDEX_BUILD));
+
+	    long syncs = count(StoreMetrics.SYNC);
+	    saver.sync();
+	    assertEquals(syncs + 1, count(StoreMetrics.SYNC));
+	} finally {
+	    Files.deleteIfExists(file);
+	    Files.delete(dir);
+	}
+    }
+
+    @Test
+    public void testStatistics() {
+	PhaseStatistics stats = new PhaseStatistics(
+		5, 5000, 4000, new long[PhaseStatistics.NUM_BUCKETS]);
+	assertEquals(0, stats.getMedianNanos());
+
+	long[] histogram = new long[PhaseStatistics.NUM_BUCKETS];
+	histogram[PhaseStatistics.bucketFor(100)] = 3;
+	histogram[PhaseStatistics.bucketFor(300)] = 1;
+	histogram[PhaseStatistics.bucketFor(4000)] = 1;
+	assertEquals(PhaseStatistics.bucketFor(64),
+		     PhaseStatistics.bucketFor(127));
+	stats = new PhaseStatistics(5, 4700, 4000, histogram);
+	assertEquals(940, stats.getMeanNanos());
+	assertEquals(127, stats.getMedianNanos());
+	assertEquals(4000, stats.getPercentile99Nanos());
+	histogram[0] = 99;
+	assertEquals(3, stats.getHistogram()[6]);
+	assertEquals(0, stats.getHistogram()[0]);
+    }
+
+    @Test
+    public void testHistogram() {
+	StoreMetrics.Phase phase = StoreMetrics.LIST_REFILL;
+	long start = System.nanoTime();
+	for (int i = 0; i < 100; i++) {
+	    phase.record(System.nanoTime());
+	}
+	phase.record(start);
+	PhaseStatistics stats = phase.getStatistics();
+	long total = 0;
+	for (long n : stats.getHistogram()) {
+	    total += n;
+	}
+	assertEquals(stats.getCount(), total);
+	assertTrue(stats.getMaxNanos() >= stats.getPercentile99Nanos());
+	assertTrue(stats.getMaxNanos() <= stats.getTotalNanos());
+    }
+
+    @Test
+    public void testMXBean() throws JMException {
+	StoreMetrics.register();
+	StoreMetrics.register();
+	StoreMetrics.SYNC.record(System.nanoTime());
+	MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+	ObjectName name = new ObjectName(StoreMetrics.OBJECT_NAME);
+	CompositeData sync = (CompositeData) server.getAttribute(name, "Sync");
+	assertTrue((Long) sync.get("count") > 0);
+	assertEquals(PhaseStatistics.NUM_BUCKETS,
+		     ((long[]) sync.get("histogram")).length);
+
+	server.invoke(name, "reset", null, null);
+	sync = (CompositeData) server.getAttribute(name, "Sync");
+	assertEquals(0L, sync.get("count"));
+	assertEquals(0L, sync.get("maxNanos"));
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2020, by J. Richard Barnette.  All Rights Reserved.
+ */
+
+package jrb.accounts.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import java.security.GeneralSecurityException;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test undoing and redoing changes to an <code>AccountStore</code>
+ * with an <code>UndoHistory</code>.
+ */
+public class TestUndoHistory extends AccountStoreSupport {
+    private static final AccountTestData[] TEST_DATA = {
+	new AccountTestData("xxx desc", "http://c.com", "u0", "p3"),
+	new AccountTestData("yyy desc", "http://b.com", "u0", "p2"),
+	new AccountTestData("zzz desc", "http://a.com", "u0", "p0"),
+    };
+
+    private static final String PASSWORD = "password";
+
+    public TestUndoHistory() {
+	super(TEST_DATA, PASSWORD);
+    }
+
+    private AccountStore readImage(ByteArrayOutputStream image)
+	    throws IOException, GeneralSecurityException {
+	return new AccountStore(
+		new ByteArrayInputStream(image.toByteArray()),
+		filePassword.toCharArray());
+    }
+
+    @Test
+    public void testUndoRedoEachChange() {
+	AccountStore accounts = createTestStore(1);
+	UndoHistory history = new UndoHistory(accounts, 10);
+	assertFalse(history.canUndo());
+	assertFalse(history.canRedo());
+
+	AccountStore[] versions = new AccountStore[4];
+	versions[0] = accounts.snapshot();
+	history.mark("Add");
+	extendTestStore(accounts, 2);
+	versions[1] = accounts.snapshot();
+	Account acct = accounts.iterator().next();
+	history.mark("Update");
+	accounts.updateAccount(acct, "www desc", acct.getUrl(),
+			       acct.getUsername(), "new password");
+	versions[2] = accounts.snapshot();
+	history.mark("Delete");
+	accounts.deleteAccount(accounts.iterator().next());
+	versions[3] = accounts.snapshot();
+
+	String[] names = { "Add", "Update", "Delete" };
+	for (int i = versions.length - 1; i > 0; i--) {
+	    assertEquals(names[i - 1], history.getUndoName());
+	    history.undo();
+	    assertEquals("Undo didn't restore the earlier version",
+			 versions[i - 1], accounts);
+	    assertEquals(versions[i - 1].size(), accounts.size());
+	}
+	assertFalse(history.canUndo());
+	validateContent(accounts, 1);
+	for (int i = 1; i < versions.length; i++) {
+	    assertEquals(names[i - 1], history.getRedoName());
+	    history.redo();
+	    assertEquals("Redo didn't restore the later version",
+			 versions[i], accounts);
+	}
+	assertFalse(history.canRedo());
+    }
+
+    @Test
+    public void testAccountIdentity() {
+	AccountStore accounts = createTestStore();
+	UndoHistory history = new UndoHistory(accounts, 10);
+	Account acct = accounts.iterator().next();
+	history.mark("Update");
+	accounts.updateAccount(acct, acct.getDescription(), acct.getUrl(),
+			       acct.getUsername(), "new password");
+	history.undo();
+	assertEquals(TEST_DATA[0].getPassword(), acct.getPassword());
+	assertSame(acct, accounts.iterator().next());
+	history.redo();
+	assertEquals("new password", acct.getPassword());
+    }
+
+    @Test
+    public void testUndoMerge() {
+	AccountStore accounts = createTestStore(2);
+	AccountStore original = accounts.snapshot();
+	AccountStore source = createTestStore();
+	Account acct = source.iterator().next();
+	source.updateAccount(acct, acct.getDescription(), acct.getUrl(),
+			     acct.getUsername(), "merged password");
+	UndoHistory history = new UndoHistory(accounts, 10);
+	history.mark("Merge");
+	accounts.mergeAccounts(source);
+	assertEquals(3, accounts.getAccountsByUsername("u0").size());
+	history.undo();
+	assertEquals(original, accounts);
+	assertEquals(2, accounts.getAccountsByUsername("u0").size());
+	assertTrue(accounts.search("zzz", 10).isEmpty());
+    }
+
+    @Test
+    public void testMarkClearsRedo() {
+	AccountStore accounts = createTestStore(1);
+	UndoHistory history = new UndoHistory(accounts, 10);
+	history.mark("Add");
+	extendTestStore(accounts, 1);
+	history.undo();
+	assertTrue(history.canRedo());
+	history.mark("Add");
+	extendTestStore(accounts, 1);
+	assertFalse(history.canRedo());
+	assertNull(history.getRedoName());
+    }
+
+    @Test
+    public void testLimit() {
+	AccountStore accounts = createTestStore(0);
+	UndoHistory history = new UndoHistory(accounts, 2);
+	for (int i = 0; i < TEST_DATA.length; i++) {
+	    history.mark("Add");
+	    extendTestStore(accounts, 1);
+	}
+	history.undo();
+	history.undo();
+	assertFalse("History kept more than its limit", history.canUndo());
+	validateContent(accounts, 1);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNothingToUndo() {
+	new UndoHistory(createTestStore(), 10).undo();
+    }
+
+    /**
+     * Undoing a rename and a delete together must be journaled so the
+     * changes replay without two accounts sharing a description.
+     */
+    @Test
+    public void testAppendUndo()
+	    throws IOException, GeneralSecurityException {
+	AccountStore accounts = createTestStore();
+	UndoHistory history = new UndoHistory(accounts, 10);
+	ByteArrayOutputStream image = new ByteArrayOutputStream();
+	accounts.writeAccounts(image, filePassword.toCharArray());
+	history.mark("Merge");
+	AccountStore source = accounts.snapshot();
+	Account acct = source.iterator().next();
+	source.updateAccount(acct, "aaa desc", acct.getUrl(),
+			     acct.getUsername(), acct.getPassword());
+	accounts.mergeAccounts(source);
+	accounts.createAccount(TEST_DATA[0].getDescription(), "http://d.com",
+			       "u1", "p4");
+	history.undo();
+	assertTrue(accounts.canAppend());
+	accounts.appendAccounts(image);
+	AccountStore restored = readImage(image);
+	assertEquals(accounts, restored);
+	validateContent(restored);
+    }
+}